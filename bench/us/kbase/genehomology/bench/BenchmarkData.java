@@ -0,0 +1,132 @@
+package us.kbase.genehomology.bench;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import us.kbase.genehomology.homology.AlignedSequence;
+import us.kbase.genehomology.homology.SequenceSearchResult;
+
+/** Generates realistic search data for benchmarks. The data is generated from a seeded
+ * random source so that benchmark runs are comparable.
+ *
+ * Alignments are between 50 and 350 columns long, with about 40% identity and occasional gap
+ * runs in either sequence, and there are 10 distinct query IDs.
+ * @author gaprice@lbl.gov
+ *
+ */
+public class BenchmarkData {
+	
+	private static final String RESIDUES = "ACDEFGHIKLMNPQRSTVWY";
+	private static final String MAF_HEADER =
+			"# LAST version 900\n" +
+			"#\n" +
+			"# a=11 b=2 A=11 B=2 e=37 d=25 x=36 y=15 z=36 D=1e+06 E=44.9051\n" +
+			"# lambda=0.267004 K=0.0410581\n" +
+			"#\n";
+	
+	private BenchmarkData() {}
+	
+	private static class Alignment {
+		
+		private final String query;
+		private final String target;
+		
+		private Alignment(final Random random) {
+			final int length = 50 + random.nextInt(300);
+			final StringBuilder q = new StringBuilder(length);
+			final StringBuilder t = new StringBuilder(length);
+			int gap = 0;
+			boolean gapInQuery = false;
+			for (int i = 0; i < length; i++) {
+				if (gap == 0 && random.nextInt(40) == 0) {
+					gap = 1 + random.nextInt(5);
+					gapInQuery = random.nextBoolean();
+				}
+				final char r = randomResidue(random);
+				if (gap > 0) {
+					q.append(gapInQuery ? '-' : r);
+					t.append(gapInQuery ? r : '-');
+					gap--;
+				} else {
+					q.append(r);
+					t.append(random.nextInt(10) < 4 ? r : randomResidue(random));
+				}
+			}
+			query = q.toString();
+			target = t.toString();
+		}
+	}
+	
+	private static char randomResidue(final Random random) {
+		return RESIDUES.charAt(random.nextInt(RESIDUES.length()));
+	}
+	
+	private static int residues(final String alignedSequence) {
+		int count = 0;
+		for (int i = 0; i < alignedSequence.length(); i++) {
+			if (alignedSequence.charAt(i) != '-') {
+				count++;
+			}
+		}
+		return count;
+	}
+	
+	/** Generate lastal MAF output.
+	 * @param records the number of alignment records to generate.
+	 * @param random the source of randomness.
+	 * @return the MAF output as UTF-8 bytes.
+	 */
+	public static byte[] generateMAF(final int records, final Random random) {
+		final StringBuilder sb = new StringBuilder(MAF_HEADER);
+		for (int i = 0; i < records; i++) {
+			final Alignment a = new Alignment(random);
+			sb.append(String.format("a score=%s EG2=%.2g E=%.2g\n", 20 + random.nextInt(2000),
+					random.nextDouble(), random.nextDouble() * Math.pow(10, -random.nextInt(150))));
+			appendSequenceLine(sb, "target_" + random.nextInt(1000000), a.target, random);
+			appendSequenceLine(sb, "query_" + random.nextInt(10), a.query, random);
+			sb.append("\n");
+		}
+		return sb.toString().getBytes(StandardCharsets.UTF_8);
+	}
+	
+	private static void appendSequenceLine(
+			final StringBuilder sb,
+			final String id,
+			final String alignedSequence,
+			final Random random) {
+		final int residues = residues(alignedSequence);
+		sb.append(String.format("s %s %s %s + %s %s\n", id, random.nextInt(100), residues,
+				residues + 100 + random.nextInt(1000), alignedSequence));
+	}
+	
+	/** Generate search results.
+	 * @param count the number of results to generate.
+	 * @param random the source of randomness.
+	 * @return the results.
+	 */
+	public static List<SequenceSearchResult> generateResults(
+			final int count,
+			final Random random) {
+		final List<SequenceSearchResult> ret = new ArrayList<>(count);
+		for (int i = 0; i < count; i++) {
+			final Alignment a = new Alignment(random);
+			ret.add(new SequenceSearchResult(
+					toAlignedSequence("query_" + random.nextInt(10), a.query, random),
+					toAlignedSequence("target_" + random.nextInt(1000000), a.target, random),
+					random.nextDouble() * Math.pow(10, -random.nextInt(150)),
+					20 + random.nextInt(800)));
+		}
+		return ret;
+	}
+	
+	private static AlignedSequence toAlignedSequence(
+			final String id,
+			final String alignedSequence,
+			final Random random) {
+		final int residues = residues(alignedSequence);
+		return new AlignedSequence(id, residues + 100 + random.nextInt(1000), alignedSequence,
+				random.nextInt(100), residues, random.nextBoolean());
+	}
+}
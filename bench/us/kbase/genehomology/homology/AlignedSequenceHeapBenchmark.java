@@ -0,0 +1,96 @@
+package us.kbase.genehomology.homology;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import us.kbase.genehomology.bench.BenchmarkData;
+
+/** Measures the heap retained per {@link AlignedSequence} compared to storing the aligned
+ * sequence as a string, as AlignedSequence did previously, and per aligned sequence in a
+ * {@link ResultBatch}. JMH doesn't measure retained heap, so this is a standalone program.
+ *
+ * Usage: AlignedSequenceHeapBenchmark [alignment count]
+ * @author gaprice@lbl.gov
+ *
+ */
+public class AlignedSequenceHeapBenchmark {
+	
+	// the fields of AlignedSequence before the compact encoding
+	@SuppressWarnings("unused")
+	private static class StringAlignedSequence {
+		
+		private final String id;
+		private final int sequenceLength;
+		private final String alignedSequence;
+		private final int alignmentStart;
+		private final int alignmentLength;
+		private final boolean forwardStrand;
+		
+		private StringAlignedSequence(final AlignedSequence seq) {
+			id = new String(seq.getId());
+			sequenceLength = seq.getSequenceLength();
+			alignedSequence = seq.getAlignedSequence();
+			alignmentStart = seq.getAlignmentStart();
+			alignmentLength = seq.getAlignmentLength();
+			forwardStrand = seq.isForwardStrand();
+		}
+	}
+	
+	public static void main(final String[] args) throws Exception {
+		final int count = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+		final List<SequenceSearchResult> results = BenchmarkData.generateResults(
+				count, new Random(42));
+		final List<AlignedSequence> source = new ArrayList<>(count);
+		for (final SequenceSearchResult r: results) {
+			source.add(r.getQuery());
+		}
+		long columns = 0;
+		for (final AlignedSequence s: source) {
+			columns += s.getAlignmentLengthWithGaps();
+		}
+		
+		long before = usedHeap();
+		final List<StringAlignedSequence> strings = new ArrayList<>(count);
+		for (final AlignedSequence s: source) {
+			strings.add(new StringAlignedSequence(s));
+		}
+		final double stringBytes = (usedHeap() - before) / (double) count;
+		
+		before = usedHeap();
+		final List<AlignedSequence> compact = new ArrayList<>(count);
+		for (final AlignedSequence s: source) {
+			compact.add(new AlignedSequence(new String(s.getId()), s.getSequenceLength(),
+					s.getAlignedSequence(), s.getAlignmentStart(), s.getAlignmentLength(),
+					s.isForwardStrand()));
+		}
+		final double compactBytes = (usedHeap() - before) / (double) count;
+		
+		// each result has two aligned sequences
+		before = usedHeap();
+		final ResultBatch batch = ResultBatch.copyOf(results);
+		final double batchBytes = (usedHeap() - before) / (2.0 * count);
+		
+		System.out.println(String.format("%s alignments, mean %.1f columns",
+				count, columns / (double) count));
+		System.out.println(String.format("String storage:  %.1f bytes per alignment",
+				stringBytes));
+		System.out.println(String.format("compact storage: %.1f bytes per alignment",
+				compactBytes));
+		System.out.println(String.format("ratio:           %.2f", compactBytes / stringBytes));
+		System.out.println(String.format("batch storage:   %.1f bytes per aligned sequence",
+				batchBytes));
+		// keep the lists reachable until measured
+		System.out.println(strings.size() + compact.size() + batch.size() == 3 * count ?
+				"" : "?");
+	}
+	
+	private static long usedHeap() throws InterruptedException {
+		final Runtime rt = Runtime.getRuntime();
+		for (int i = 0; i < 5; i++) {
+			System.gc();
+			Thread.sleep(100);
+		}
+		return rt.totalMemory() - rt.freeMemory();
+	}
+}
@@ -0,0 +1,66 @@
+package us.kbase.genehomology.homology;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import us.kbase.genehomology.bench.BenchmarkData;
+
+/** Benchmarks the alignment statistics of search results. The statistics are calculated when
+ * a result is created, so creating the results is benchmarked as well as the accessors.
+ * @author gaprice@lbl.gov
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class SearchResultStatsBenchmark {
+	
+	private static final int RESULTS = 1000;
+	
+	private List<SequenceSearchResult> results;
+	
+	@Setup
+	public void setUp() {
+		results = BenchmarkData.generateResults(RESULTS, new Random(42));
+	}
+	
+	@Benchmark
+	public void calculateStatistics(final Blackhole bh) {
+		for (final SequenceSearchResult r: results) {
+			bh.consume(new SequenceSearchResult(
+					r.getQuery(), r.getTarget(), r.getEValue(), r.getBitScore()));
+		}
+	}
+	
+	@Benchmark
+	public void percentID(final Blackhole bh) {
+		for (final SequenceSearchResult r: results) {
+			bh.consume(r.getPercentID());
+		}
+	}
+	
+	@Benchmark
+	public void mismatches(final Blackhole bh) {
+		for (final SequenceSearchResult r: results) {
+			bh.consume(r.getMismatches());
+		}
+	}
+	
+	@Benchmark
+	public void gapOpenCount(final Blackhole bh) {
+		for (final SequenceSearchResult r: results) {
+			bh.consume(r.getQuery().getGapOpenCount());
+			bh.consume(r.getTarget().getGapOpenCount());
+		}
+	}
+}
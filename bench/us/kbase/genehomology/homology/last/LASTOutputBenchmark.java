@@ -0,0 +1,97 @@
+package us.kbase.genehomology.homology.last;
+
+import java.io.ByteArrayInputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import us.kbase.genehomology.bench.BenchmarkData;
+import us.kbase.genehomology.homology.ResultBatch;
+import us.kbase.genehomology.homology.SearchParameters;
+import us.kbase.genehomology.homology.SequenceSearchResult;
+import us.kbase.genehomology.homology.last.LAST.ResultCollector;
+
+/** Benchmarks parsing lastal MAF output into search results.
+ * @author gaprice@lbl.gov
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class LASTOutputBenchmark {
+	
+	@Param({"10", "1000", "100000"})
+	public int records;
+	
+	private Path tempDir;
+	private LAST last;
+	private byte[] maf;
+	private SearchParameters unlimited;
+	private SearchParameters limited;
+	
+	@Setup
+	public void setUp() throws Exception {
+		tempDir = Files.createTempDirectory("LASTOutputBenchmark");
+		last = new LAST(tempDir, 1);
+		maf = BenchmarkData.generateMAF(records, new Random(42));
+		unlimited = SearchParameters.getBuilder().build();
+		limited = SearchParameters.getBuilder().withNullableMaxResults(100)
+				.withNullableMaxEValue(1e-10).build();
+	}
+	
+	@TearDown
+	public void tearDown() throws Exception {
+		last.shutdown();
+		Files.delete(tempDir);
+	}
+	
+	@Benchmark
+	public ResultBatch processLASTOutput() throws Exception {
+		return process(unlimited);
+	}
+	
+	@Benchmark
+	public ResultBatch processLASTOutputWithLimits() throws Exception {
+		return process(limited);
+	}
+	
+	/* Parses the output into one result object per record rather than a batch, for
+	 * comparison with processLASTOutput.
+	 */
+	@Benchmark
+	public List<SequenceSearchResult> parseToObjects() throws Exception {
+		final List<SequenceSearchResult> results = new ArrayList<>();
+		new MAFParser(new ByteArrayInputStream(maf)).parse(1, new MAFParser.RecordSink() {
+			
+			@Override
+			public boolean isAccepted(final double eValue, final int bitScore) {
+				return true;
+			}
+			
+			@Override
+			public void add(final SequenceSearchResult result) {
+				results.add(result);
+			}
+		});
+		return results;
+	}
+	
+	private ResultBatch process(final SearchParameters params) throws Exception {
+		final ResultCollector results = new ResultCollector(params, 1);
+		last.processLASTOutput(new ByteArrayInputStream(maf), results);
+		return results.getResults();
+	}
+}
@@ -0,0 +1,154 @@
+package us.kbase.genehomology.service.api;
+
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.output.NullOutputStream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import com.google.common.collect.ImmutableMap;
+
+import us.kbase.genehomology.bench.BenchmarkData;
+import us.kbase.genehomology.homology.ResultBatch;
+import us.kbase.genehomology.service.Fields;
+
+/** Benchmarks writing search results in the BlastTab, JSON and Smile output formats, and
+ * reading the JSON and Smile output. The size of the JSON and Smile output is printed at setup.
+ * @author gaprice@lbl.gov
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class OutputFormatBenchmark {
+	
+	private static final Set<Map<String, Object>> NAMESPACES = new HashSet<>(Arrays.asList(
+			ImmutableMap.of(Fields.NAMESPACE_ID, "bench", Fields.NAMESPACE_SEQ_COUNT, 1000)));
+	
+	@Param({"100", "10000"})
+	public int results;
+	
+	private final ObjectMapper mapper = new ObjectMapper();
+	private final ObjectMapper smileMapper = new ObjectMapper(new SmileFactory());
+	private ResultBatch searchResults;
+	private byte[] jsonBytes;
+	private byte[] smileBytes;
+	
+	@Setup
+	public void setUp() throws Exception {
+		searchResults = ResultBatch.copyOf(
+				BenchmarkData.generateResults(results, new Random(42)));
+		final ByteArrayOutputStream json = new ByteArrayOutputStream();
+		SearchResultWriter.writeJSON(json, NAMESPACES, "LAST", searchResults);
+		jsonBytes = json.toByteArray();
+		final ByteArrayOutputStream smile = new ByteArrayOutputStream();
+		SearchResultWriter.writeSmile(smile, NAMESPACES, "LAST", searchResults);
+		smileBytes = smile.toByteArray();
+		System.out.println(String.format("%s results: JSON %s bytes, Smile %s bytes",
+				results, jsonBytes.length, smileBytes.length));
+	}
+	
+	@Benchmark
+	public void blastTab() throws Exception {
+		final BlastTabWriter writer = new BlastTabWriter(new NullOutputStream());
+		writer.write(searchResults);
+		writer.flush();
+	}
+	
+	/* Formats each line with String.format, as the BlastTab output was written before
+	 * BlastTabWriter, for comparison with blastTab.
+	 */
+	@Benchmark
+	public void blastTabViaFormat() throws Exception {
+		final Writer out = new BufferedWriter(new OutputStreamWriter(
+				new NullOutputStream(), StandardCharsets.UTF_8));
+		for (int i = 0; i < searchResults.size(); i++) {
+			out.write(String.format(
+					"%s\t%s\t%.2f\t%s\t%s\t%s\t%s\t%s\t%s\t%s\t%s\t%s\n",
+					searchResults.getQueryID(i), searchResults.getTargetID(i),
+					searchResults.getPercentID(i) * 100,
+					searchResults.getAlignmentLength(i), searchResults.getMismatches(i),
+					searchResults.getGapOpenCount(i),
+					searchResults.getQueryAlignmentStart(i) + 1,
+					searchResults.getQueryAlignmentStart(i) +
+							searchResults.getQueryAlignmentLength(i),
+					searchResults.getTargetAlignmentStart(i) + 1,
+					searchResults.getTargetAlignmentStart(i) +
+							searchResults.getTargetAlignmentLength(i),
+					searchResults.getEValue(i),
+					searchResults.getBitScore(i)));
+		}
+		out.flush();
+	}
+	
+	@Benchmark
+	public void json() throws Exception {
+		SearchResultWriter.writeJSON(new NullOutputStream(), NAMESPACES, "LAST", searchResults);
+	}
+	
+	@Benchmark
+	public void smile() throws Exception {
+		SearchResultWriter.writeSmile(new NullOutputStream(), NAMESPACES, "LAST", searchResults);
+	}
+	
+	@Benchmark
+	public JsonNode readJSON() throws Exception {
+		return mapper.readTree(jsonBytes);
+	}
+	
+	@Benchmark
+	public JsonNode readSmile() throws Exception {
+		return smileMapper.readTree(smileBytes);
+	}
+	
+	/* Builds a map per result and serializes the maps, as the JSON output was written before
+	 * it was streamed, for comparison with json.
+	 */
+	@Benchmark
+	public void jsonViaMaps() throws Exception {
+		final List<Map<String, Object>> alignments = new ArrayList<>(searchResults.size());
+		for (int i = 0; i < searchResults.size(); i++) {
+			final Map<String, Object> r = new HashMap<>();
+			r.put(Fields.ALIGN_E_VAL, searchResults.getEValue(i));
+			r.put(Fields.ALIGN_BIT_SCORE, searchResults.getBitScore(i));
+			r.put(Fields.ALIGN_QUERY_ID, searchResults.getQueryID(i));
+			r.put(Fields.ALIGN_QUERY_SEQ, searchResults.getQueryAlignedSequence(i));
+			r.put(Fields.ALIGN_QUERY_LEN, searchResults.getQuerySequenceLength(i));
+			r.put(Fields.ALIGN_QUERY_ALIGN_START, searchResults.getQueryAlignmentStart(i));
+			r.put(Fields.ALIGN_QUERY_ALIGN_LEN, searchResults.getQueryAlignmentLength(i));
+			r.put(Fields.ALIGN_TARGET_ID, searchResults.getTargetID(i));
+			r.put(Fields.ALIGN_TARGET_SEQ, searchResults.getTargetAlignedSequence(i));
+			r.put(Fields.ALIGN_TARGET_LEN, searchResults.getTargetSequenceLength(i));
+			r.put(Fields.ALIGN_TARGET_ALIGN_START, searchResults.getTargetAlignmentStart(i));
+			r.put(Fields.ALIGN_TARGET_ALIGN_LEN, searchResults.getTargetAlignmentLength(i));
+			alignments.add(r);
+		}
+		final Map<String, Object> ret = new HashMap<>();
+		ret.put(Fields.ALIGN_NAMESPACES, NAMESPACES);
+		ret.put(Fields.ALIGN_IMPLEMENTATION, "LAST");
+		ret.put(Fields.ALIGNMENTS, alignments);
+		mapper.writeValue(new NullOutputStream(), ret);
+	}
+}
@@ -9,6 +9,8 @@ import java.util.Map;
 import org.ini4j.Ini;
 import org.productivity.java.syslog4j.SyslogIF;
 
+import com.google.common.base.Optional;
+
 import us.kbase.genehomology.service.SLF4JAutoLogger;
 import us.kbase.genehomology.util.FileOpener;
 import us.kbase.common.service.JsonServerSyslog;
@@ -21,7 +23,30 @@ import us.kbase.common.service.JsonServerSyslog.SyslogOutput;
  * //TODO CFG add keys when legit keys exist
  * <pre>
  * homology-timeout
+ * last-stream-output
+ * last-thread-budget
+ * last-max-threads-per-search
+ * last-warmup
  * temp-dir
+ * search-max-concurrent
+ * search-max-queue-size
+ * search-max-queue-time-sec
+ * search-threads
+ * search-timeout-sec
+ * search-batch-window-ms
+ * search-batch-max-size
+ * search-cache-max-mb
+ * search-disk-cache-dir
+ * search-disk-cache-max-mb
+ * search-max-results-limit
+ * search-max-evalue-limit
+ * search-min-bitscore-limit
+ * search-multi-max-sequences
+ * search-multi-max-mb
+ * search-multi-max-total-results
+ * search-query-memory-max-kb
+ * response-compression-level
+ * response-compression-min-bytes
  * dont-trust-x-ip-headers
  * </pre>
  * 
@@ -46,9 +71,10 @@ public class GeneHomologyConfig {
 	private static final String KEY_TEMP_DIR = "temp-dir";
 	private static final String KEY_IGNORE_IP_HEADERS = "dont-trust-x-ip-headers";
 	
-	// these are both super hacky prototypy shite
+	// these are all super hacky prototypy shite
 	private static final String KEY_NAMESPACE_YAML = "namespace-yaml-file";
 	private static final String KEY_LAST_PRJ_FILE = "last-prj-file";
+	private static final String KEY_LAST_SHARDS_FILE = "last-shards-yaml-file";
 	
 	private static final String KEY_HOMOLOGY_TIMEOUT = "homology-timeout";
 	
@@ -56,6 +82,69 @@ public class GeneHomologyConfig {
 	private static final int DEFAULT_HOMOLOGY_TIMEOUT = 120;
 	private static final int MINIMUM_HOMOLOGY_TIMEOUT = 1;
 	
+	private static final String KEY_LAST_STREAM_OUTPUT = "last-stream-output";
+	private static final String KEY_LAST_THREAD_BUDGET = "last-thread-budget";
+	private static final String KEY_LAST_MAX_THREADS = "last-max-threads-per-search";
+	private static final String KEY_LAST_WARMUP = "last-warmup";
+	
+	private static final String KEY_MAX_CONCURRENT = "search-max-concurrent";
+	private static final String KEY_MAX_QUEUE_SIZE = "search-max-queue-size";
+	private static final String KEY_MAX_QUEUE_TIME = "search-max-queue-time-sec";
+	
+	private static final int DEFAULT_MAX_QUEUE_SIZE = 100;
+	// in seconds
+	private static final int DEFAULT_MAX_QUEUE_TIME = 30;
+	
+	private static final String KEY_SEARCH_THREADS = "search-threads";
+	private static final String KEY_SEARCH_TIMEOUT = "search-timeout-sec";
+	
+	// in seconds, added to the queue time and homology timeout for the default search timeout
+	private static final int SEARCH_TIMEOUT_SLACK = 10;
+	
+	private static final String KEY_BATCH_WINDOW = "search-batch-window-ms";
+	private static final String KEY_BATCH_MAX_SIZE = "search-batch-max-size";
+	
+	// 0 disables batching
+	private static final int DEFAULT_BATCH_WINDOW_MS = 0;
+	private static final int DEFAULT_BATCH_MAX_SIZE = 50;
+	
+	private static final String KEY_CACHE_MAX_MB = "search-cache-max-mb";
+	
+	// 0 disables the cache
+	private static final int DEFAULT_CACHE_MAX_MB = 100;
+	
+	private static final String KEY_DISK_CACHE_DIR = "search-disk-cache-dir";
+	private static final String KEY_DISK_CACHE_MAX_MB = "search-disk-cache-max-mb";
+	
+	private static final int DEFAULT_DISK_CACHE_MAX_MB = 1024;
+	
+	private static final String KEY_MAX_RESULTS_LIMIT = "search-max-results-limit";
+	private static final String KEY_MAX_EVALUE_LIMIT = "search-max-evalue-limit";
+	private static final String KEY_MIN_BITSCORE_LIMIT = "search-min-bitscore-limit";
+	
+	private static final int DEFAULT_MAX_RESULTS_LIMIT = 1000;
+	private static final double DEFAULT_MAX_EVALUE_LIMIT = 10;
+	private static final int DEFAULT_MIN_BITSCORE_LIMIT = 0;
+	
+	private static final String KEY_MULTI_MAX_SEQUENCES = "search-multi-max-sequences";
+	private static final String KEY_MULTI_MAX_MB = "search-multi-max-mb";
+	private static final String KEY_MULTI_MAX_TOTAL_RESULTS = "search-multi-max-total-results";
+	
+	private static final int DEFAULT_MULTI_MAX_SEQUENCES = 10000;
+	private static final int DEFAULT_MULTI_MAX_MB = 20;
+	private static final int DEFAULT_MULTI_MAX_TOTAL_RESULTS = 100000;
+	
+	private static final String KEY_QUERY_MEMORY_MAX_KB = "search-query-memory-max-kb";
+	
+	private static final int DEFAULT_QUERY_MEMORY_MAX_KB = 1024;
+	
+	private static final String KEY_COMPRESSION_LEVEL = "response-compression-level";
+	private static final String KEY_COMPRESSION_MIN_BYTES = "response-compression-min-bytes";
+	
+	private static final int DEFAULT_COMPRESSION_LEVEL = 6;
+	private static final int MAX_COMPRESSION_LEVEL = 9;
+	private static final int DEFAULT_COMPRESSION_MIN_BYTES = 2048;
+	
 	public static final String TRUE = "true";
 	
 	private final Path tempDir;
@@ -63,7 +152,31 @@ public class GeneHomologyConfig {
 	private final boolean ignoreIPHeaders;
 	private final int homologyTimeoutSec;
 	private final Path namespaceYAMLFile;
-	private final Path lastProjectFile;
+	private final Optional<Path> lastProjectFile;
+	private final Optional<Path> lastShardsFile;
+	private final boolean lastStreamOutput;
+	private final int lastThreadBudget;
+	private final int lastMaxThreadsPerSearch;
+	private final boolean lastWarmup;
+	private final int maxConcurrentSearches;
+	private final int maxSearchQueueSize;
+	private final int maxSearchQueueTimeSec;
+	private final int searchThreads;
+	private final int searchTimeoutSec;
+	private final int batchWindowMS;
+	private final int batchMaxSize;
+	private final int searchCacheMaxMB;
+	private final Optional<Path> diskCacheDir;
+	private final int diskCacheMaxMB;
+	private final int maxResultsLimit;
+	private final double maxEValueLimit;
+	private final int minBitScoreLimit;
+	private final int multiSearchMaxSequences;
+	private final int multiSearchMaxMB;
+	private final int multiSearchMaxTotalResults;
+	private final int queryMemoryMaxKB;
+	private final int compressionLevel;
+	private final int compressionMinBytes;
 
 	/** Create a new configuration.
 	 * 
@@ -116,7 +229,65 @@ public class GeneHomologyConfig {
 		homologyTimeoutSec = getInt(KEY_HOMOLOGY_TIMEOUT, cfg, DEFAULT_HOMOLOGY_TIMEOUT,
 				MINIMUM_HOMOLOGY_TIMEOUT);
 		namespaceYAMLFile = Paths.get(getString(KEY_NAMESPACE_YAML, cfg, true));
-		lastProjectFile = Paths.get(getString(KEY_LAST_PRJ_FILE, cfg, true));
+		lastProjectFile = getPath(KEY_LAST_PRJ_FILE, cfg);
+		lastShardsFile = getPath(KEY_LAST_SHARDS_FILE, cfg);
+		if (lastProjectFile.isPresent() == lastShardsFile.isPresent()) {
+			throw new GeneHomologyConfigurationException(String.format(
+					"Exactly one of the parameters %s and %s must be provided in " +
+					"configuration file %s, section %s",
+					KEY_LAST_PRJ_FILE, KEY_LAST_SHARDS_FILE, cfg.get(TEMP_KEY_CFG_FILE), CFG_LOC));
+		}
+		lastStreamOutput = !"false".equals(getString(KEY_LAST_STREAM_OUTPUT, cfg));
+		lastThreadBudget = getInt(KEY_LAST_THREAD_BUDGET, cfg,
+				Runtime.getRuntime().availableProcessors(), 1);
+		lastMaxThreadsPerSearch = getInt(KEY_LAST_MAX_THREADS, cfg, lastThreadBudget, 1);
+		lastWarmup = TRUE.equals(getString(KEY_LAST_WARMUP, cfg));
+		maxConcurrentSearches = getInt(KEY_MAX_CONCURRENT, cfg,
+				Runtime.getRuntime().availableProcessors(), 1);
+		maxSearchQueueSize = getInt(KEY_MAX_QUEUE_SIZE, cfg, DEFAULT_MAX_QUEUE_SIZE, 0);
+		maxSearchQueueTimeSec = getInt(KEY_MAX_QUEUE_TIME, cfg, DEFAULT_MAX_QUEUE_TIME, 0);
+		searchThreads = getInt(KEY_SEARCH_THREADS, cfg,
+				maxConcurrentSearches + maxSearchQueueSize, 1);
+		searchTimeoutSec = getInt(KEY_SEARCH_TIMEOUT, cfg,
+				maxSearchQueueTimeSec + homologyTimeoutSec + SEARCH_TIMEOUT_SLACK, 1);
+		batchWindowMS = getInt(KEY_BATCH_WINDOW, cfg, DEFAULT_BATCH_WINDOW_MS, 0);
+		batchMaxSize = getInt(KEY_BATCH_MAX_SIZE, cfg, DEFAULT_BATCH_MAX_SIZE, 1);
+		searchCacheMaxMB = getInt(KEY_CACHE_MAX_MB, cfg, DEFAULT_CACHE_MAX_MB, 0);
+		diskCacheDir = getPath(KEY_DISK_CACHE_DIR, cfg);
+		diskCacheMaxMB = getInt(KEY_DISK_CACHE_MAX_MB, cfg, DEFAULT_DISK_CACHE_MAX_MB, 1);
+		maxResultsLimit = getInt(KEY_MAX_RESULTS_LIMIT, cfg, DEFAULT_MAX_RESULTS_LIMIT, 1);
+		maxEValueLimit = getDouble(KEY_MAX_EVALUE_LIMIT, cfg, DEFAULT_MAX_EVALUE_LIMIT, 0);
+		minBitScoreLimit = getInt(KEY_MIN_BITSCORE_LIMIT, cfg, DEFAULT_MIN_BITSCORE_LIMIT,
+				Integer.MIN_VALUE);
+		multiSearchMaxSequences = getInt(KEY_MULTI_MAX_SEQUENCES, cfg,
+				DEFAULT_MULTI_MAX_SEQUENCES, 1);
+		multiSearchMaxMB = getInt(KEY_MULTI_MAX_MB, cfg, DEFAULT_MULTI_MAX_MB, 1);
+		multiSearchMaxTotalResults = getInt(KEY_MULTI_MAX_TOTAL_RESULTS, cfg,
+				DEFAULT_MULTI_MAX_TOTAL_RESULTS, 1);
+		if (multiSearchMaxTotalResults < maxResultsLimit) {
+			throw new GeneHomologyConfigurationException(String.format(
+					"Parameter %s in configuration file %s, section %s, " +
+					"must be at least the value of %s, %s, was %s",
+					KEY_MULTI_MAX_TOTAL_RESULTS, cfg.get(TEMP_KEY_CFG_FILE), CFG_LOC,
+					KEY_MAX_RESULTS_LIMIT, maxResultsLimit, multiSearchMaxTotalResults));
+		}
+		queryMemoryMaxKB = getInt(KEY_QUERY_MEMORY_MAX_KB, cfg, DEFAULT_QUERY_MEMORY_MAX_KB, 0);
+		compressionLevel = getInt(KEY_COMPRESSION_LEVEL, cfg, DEFAULT_COMPRESSION_LEVEL, 0);
+		if (compressionLevel > MAX_COMPRESSION_LEVEL) {
+			throw new GeneHomologyConfigurationException(String.format(
+					"Parameter %s in configuration file %s, section %s, " +
+					"must have a maximum value of %s, was %s",
+					KEY_COMPRESSION_LEVEL, cfg.get(TEMP_KEY_CFG_FILE), CFG_LOC,
+					MAX_COMPRESSION_LEVEL, compressionLevel));
+		}
+		compressionMinBytes = getInt(KEY_COMPRESSION_MIN_BYTES, cfg,
+				DEFAULT_COMPRESSION_MIN_BYTES, 0);
+	}
+	
+	private Optional<Path> getPath(final String paramName, final Map<String, String> cfg)
+			throws GeneHomologyConfigurationException {
+		final String path = getString(paramName, cfg);
+		return path == null ? Optional.absent() : Optional.of(Paths.get(path));
 	}
 	
 	private int getInt(
@@ -146,6 +317,34 @@ public class GeneHomologyConfig {
 		}
 	}
 
+	private double getDouble(
+			final String paramName,
+			final Map<String, String> cfg,
+			final double default_,
+			final double minimum)
+			throws GeneHomologyConfigurationException {
+		final String putative = getString(paramName, cfg);
+		if (putative == null) {
+			return default_;
+		}
+		final double val;
+		try {
+			val = Double.parseDouble(putative);
+		} catch (NumberFormatException e) {
+			throw new GeneHomologyConfigurationException(String.format(
+					"Parameter %s in configuration file %s, section %s, " +
+					"must be a number, was %s",
+					paramName, cfg.get(TEMP_KEY_CFG_FILE), CFG_LOC, putative));
+		}
+		if (Double.isNaN(val) || val < minimum) {
+			throw new GeneHomologyConfigurationException(String.format(
+					"Parameter %s in configuration file %s, section %s, " +
+					"must have a minimum value of %s, was %s",
+					paramName, cfg.get(TEMP_KEY_CFG_FILE), CFG_LOC, minimum, putative));
+		}
+		return val;
+	}
+
 	// returns null if no string
 	private String getString(
 			final String paramName,
@@ -214,10 +413,25 @@ public class GeneHomologyConfig {
 			//  do nothing
 		}
 
+		@Override
+		public void clearCallInfo() {
+			//  do nothing
+		}
+
 		@Override
 		public String getCallID() {
 			return null;
 		}
+
+		@Override
+		public String getCallMethod() {
+			return null;
+		}
+
+		@Override
+		public String getCallIPAddress() {
+			return null;
+		}
 	}
 	
 	// this is just too much of a pain to test, and testing manually is trivial.
@@ -253,10 +467,25 @@ public class GeneHomologyConfig {
 			rpc.setMethod(method);
 		}
 
+		@Override
+		public void clearCallInfo() {
+			setCallInfo(null, null, null);
+		}
+
 		@Override
 		public String getCallID() {
 			return JsonServerSyslog.getCurrentRpcInfo().getId();
 		}
+
+		@Override
+		public String getCallMethod() {
+			return JsonServerSyslog.getCurrentRpcInfo().getMethod();
+		}
+
+		@Override
+		public String getCallIPAddress() {
+			return JsonServerSyslog.getCurrentRpcInfo().getIp();
+		}
 	}
 
 	/** Get the timeout to use for any homology search processes.
@@ -266,6 +495,185 @@ public class GeneHomologyConfig {
 		return homologyTimeoutSec;
 	}
 	
+	/** True if LAST output should be parsed as it is produced, false if LAST output should be
+	 * written to a temporary file and parsed once LAST completes.
+	 * @return true to stream LAST output.
+	 */
+	public boolean isLASTStreamOutput() {
+		return lastStreamOutput;
+	}
+	
+	/** Get the maximum total number of threads that may be used by all running LAST processes.
+	 * Defaults to the number of processors available to the JVM.
+	 * @return the LAST thread budget.
+	 */
+	public int getLASTThreadBudget() {
+		return lastThreadBudget;
+	}
+	
+	/** Get the maximum number of threads any one LAST process may use. Defaults to the
+	 * LAST thread budget.
+	 * @return the maximum threads per search.
+	 */
+	public int getLASTMaxThreadsPerSearch() {
+		return lastMaxThreadsPerSearch;
+	}
+	
+	/** True if the LAST database files should be read into the page cache at startup, before
+	 * the service accepts requests.
+	 * @return true to warm the LAST database.
+	 */
+	public boolean isLASTWarmup() {
+		return lastWarmup;
+	}
+	
+	/** Get the maximum number of searches that may run concurrently. Defaults to the number
+	 * of processors available to the JVM.
+	 * @return the maximum number of concurrent searches.
+	 */
+	public int getMaxConcurrentSearches() {
+		return maxConcurrentSearches;
+	}
+	
+	/** Get the maximum number of searches that may wait to run.
+	 * @return the maximum search queue size.
+	 */
+	public int getMaxSearchQueueSize() {
+		return maxSearchQueueSize;
+	}
+	
+	/** Get the maximum time a search may wait to run.
+	 * @return the maximum queue time in seconds.
+	 */
+	public int getMaxSearchQueueTimeSec() {
+		return maxSearchQueueTimeSec;
+	}
+	
+	/** Get the number of threads that run searches. Defaults to the maximum number of
+	 * concurrent searches plus the maximum search queue size.
+	 * @return the number of search threads.
+	 */
+	public int getSearchThreads() {
+		return searchThreads;
+	}
+	
+	/** Get the maximum time a search request may take, including time spent in the search
+	 * queue. Defaults to the maximum queue time plus the homology timeout plus 10 seconds.
+	 * @return the search timeout in seconds.
+	 */
+	public int getSearchTimeoutSec() {
+		return searchTimeoutSec;
+	}
+	
+	/** Get the maximum time, in milliseconds, to hold a search batch open waiting for more
+	 * searches. 0 means searches are not batched.
+	 * @return the batch window in milliseconds.
+	 */
+	public int getSearchBatchWindowMS() {
+		return batchWindowMS;
+	}
+	
+	/** Get the maximum number of searches in a search batch.
+	 * @return the maximum batch size.
+	 */
+	public int getSearchBatchMaxSize() {
+		return batchMaxSize;
+	}
+	
+	/** Get the maximum size, in megabytes, of the in-memory search result cache. 0 indicates
+	 * the cache is disabled.
+	 * @return the maximum cache size.
+	 */
+	public int getSearchCacheMaxMB() {
+		return searchCacheMaxMB;
+	}
+	
+	/** Get the directory in which to store the persistent search result cache, if any.
+	 * @return the cache directory, or absent if the persistent cache is disabled.
+	 */
+	public Optional<Path> getSearchDiskCacheDirectory() {
+		return diskCacheDir;
+	}
+	
+	/** Get the maximum size, in megabytes, of the persistent search result cache.
+	 * @return the maximum cache size.
+	 */
+	public int getSearchDiskCacheMaxMB() {
+		return diskCacheMaxMB;
+	}
+	
+	/** Get the largest maximum number of results per query a search may request. This is also
+	 * the maximum number of results for searches that don't specify a maximum.
+	 * @return the results limit.
+	 */
+	public int getSearchMaxResultsLimit() {
+		return maxResultsLimit;
+	}
+	
+	/** Get the largest maximum E-value a search may request. This is also the maximum E-value
+	 * for searches that don't specify a maximum.
+	 * @return the E-value limit.
+	 */
+	public double getSearchMaxEValueLimit() {
+		return maxEValueLimit;
+	}
+	
+	/** Get the smallest minimum bit score a search may request. This is also the minimum bit
+	 * score for searches that don't specify a minimum.
+	 * @return the bit score limit.
+	 */
+	public int getSearchMinBitScoreLimit() {
+		return minBitScoreLimit;
+	}
+	
+	/** Get the maximum number of query sequences in a multiple sequence search.
+	 * @return the maximum number of sequences.
+	 */
+	public int getMultiSearchMaxSequences() {
+		return multiSearchMaxSequences;
+	}
+	
+	/** Get the maximum size, in megabytes, of the FASTA input for a multiple sequence search.
+	 * @return the maximum size.
+	 */
+	public int getMultiSearchMaxMB() {
+		return multiSearchMaxMB;
+	}
+	
+	/** Get the maximum number of results a multiple sequence search may return, summed over
+	 * all the query sequences. A search is rejected if the number of query sequences times the
+	 * maximum number of results per query exceeds this limit. Always at least the
+	 * {@link #getSearchMaxResultsLimit() results limit}.
+	 * @return the maximum number of results.
+	 */
+	public int getMultiSearchMaxTotalResults() {
+		return multiSearchMaxTotalResults;
+	}
+	
+	/** Get the maximum size, in kilobytes, of a search query that is held in memory and passed
+	 * to the homology implementation without writing it to a file. Larger queries are written
+	 * to a temporary file.
+	 * @return the maximum in memory query size.
+	 */
+	public int getSearchQueryMemoryMaxKB() {
+		return queryMemoryMaxKB;
+	}
+	
+	/** Get the gzip compression level for responses, from 1, the fastest, to 9, the smallest.
+	 * 0 means responses are not compressed.
+	 * @return the compression level.
+	 */
+	public int getResponseCompressionLevel() {
+		return compressionLevel;
+	}
+	
+	/** Get the minimum size, in bytes, of a response that is compressed.
+	 * @return the minimum size.
+	 */
+	public int getResponseCompressionMinBytes() {
+		return compressionMinBytes;
+	}
+	
 	/** Get a path to directory in which to store temporary files. The directory may not exist.
 	 * @return a temporary file directory.
 	 */
@@ -289,16 +697,24 @@ public class GeneHomologyConfig {
 		return ignoreIPHeaders;
 	}
 	
-	// next 2 are hacky bullpucky
+	// next 3 are hacky bullpucky
 	
 	public Path getNamespaceYAMLFile() {
 		return namespaceYAMLFile;
 	}
 	
-	public Path getLASTProjectFile() {
+	public Optional<Path> getLASTProjectFile() {
 		return lastProjectFile;
 	}
 	
+	/** Get the path to a YAML file listing the LAST project files for each shard of a sharded
+	 * database. Exactly one of this path and the {@link #getLASTProjectFile()} path is present.
+	 * @return the shard list file, or absent if the database is not sharded.
+	 */
+	public Optional<Path> getLASTShardsFile() {
+		return lastShardsFile;
+	}
+	
 	public static void main(final String[] args) throws Exception {
 		final GeneHomologyConfig cfg = new GeneHomologyConfig();
 		System.out.println(cfg.getHomologyTimeoutSec());
@@ -21,6 +21,10 @@ public enum ErrorType {
 	NO_SUCH_NAMESPACE		(50000, "No such namespace"),
 	/** There is no sequence with the specified name. */
 	NO_SUCH_SEQUENCE		(50010, "No such sequence"),
+	/** The service is too busy to process the request. */
+	TOO_MANY_REQUESTS		(60000, "Too many requests"),
+	/** The request took too long to process. */
+	REQUEST_TIMEOUT			(60010, "Request timed out"),
 	/** The requested operation is not supported. */
 	UNSUPPORTED_OP			(70000, "Unsupported operation");
 	
@@ -0,0 +1,16 @@
+package us.kbase.genehomology.core.exceptions;
+
+/** Thrown when the service takes too long to process a request.
+ * @author gaprice@lbl.gov
+ *
+ */
+@SuppressWarnings("serial")
+public class RequestTimeoutException extends GeneHomologyException {
+
+	/** Create the exception.
+	 * @param message the exception message.
+	 */
+	public RequestTimeoutException(final String message) {
+		super(ErrorType.REQUEST_TIMEOUT, message);
+	}
+}
@@ -0,0 +1,30 @@
+package us.kbase.genehomology.core.exceptions;
+
+/** Thrown when the service is too busy to accept a request.
+ * @author gaprice@lbl.gov
+ *
+ */
+@SuppressWarnings("serial")
+public class TooManyRequestsException extends GeneHomologyException {
+
+	private final int retryAfterSec;
+	
+	/** Create the exception.
+	 * @param message the exception message.
+	 * @param retryAfterSec the suggested number of seconds to wait before retrying the request.
+	 */
+	public TooManyRequestsException(final String message, final int retryAfterSec) {
+		super(ErrorType.TOO_MANY_REQUESTS, message);
+		if (retryAfterSec < 1) {
+			throw new IllegalArgumentException("retryAfterSec must be > 0");
+		}
+		this.retryAfterSec = retryAfterSec;
+	}
+
+	/** Get the suggested number of seconds to wait before retrying the request.
+	 * @return the retry delay in seconds.
+	 */
+	public int getRetryAfterSec() {
+		return retryAfterSec;
+	}
+}
@@ -0,0 +1,81 @@
+package us.kbase.genehomology.homology;
+
+/** Statistics for a pair of aligned sequences, calculated in a single pass over the alignment.
+ * @author gaprice@lbl.gov
+ *
+ */
+final class AlignmentStatistics {
+	
+	private static final byte GAP = '-';
+	
+	/** The number of columns with identical residues. */
+	final int matches;
+	/** The number of columns with differing residues. */
+	final int mismatches;
+	/** The number of columns with a positive BLOSUM62 score. */
+	final int positives;
+	/** The number of columns with a gap in either sequence. */
+	final int gapColumns;
+	
+	private AlignmentStatistics(
+			final int matches,
+			final int mismatches,
+			final int positives,
+			final int gapColumns) {
+		this.matches = matches;
+		this.mismatches = mismatches;
+		this.positives = positives;
+		this.gapColumns = gapColumns;
+	}
+	
+	/** Calculate the statistics for an alignment.
+	 * @param query an array containing the aligned query sequence as ISO-8859-1 bytes.
+	 * @param queryOffset the offset of the query in the array.
+	 * @param target an array containing the aligned target sequence as ISO-8859-1 bytes.
+	 * @param targetOffset the offset of the target in the array.
+	 * @param columns the number of alignment columns.
+	 * @return the statistics.
+	 */
+	static AlignmentStatistics calculate(
+			final byte[] query,
+			final int queryOffset,
+			final byte[] target,
+			final int targetOffset,
+			final int columns) {
+		int matches = 0;
+		int mismatches = 0;
+		int positives = 0;
+		int gapColumns = 0;
+		for (int i = 0; i < columns; i++) {
+			final byte q = query[queryOffset + i];
+			final byte t = target[targetOffset + i];
+			// the gap and identity counts are branch free
+			final int gap = (q == GAP | t == GAP) ? 1 : 0;
+			final int same = q == t ? 1 : 0;
+			gapColumns += gap;
+			matches += same & (gap ^ 1);
+			mismatches += (same ^ 1) & (gap ^ 1);
+			if (Blosum62.isPositive(q, t)) { // false for gaps
+				positives++;
+			}
+		}
+		return new AlignmentStatistics(matches, mismatches, positives, gapColumns);
+	}
+	
+	/** Count the runs of gaps in an aligned sequence.
+	 * @param seq an array containing the aligned sequence.
+	 * @param offset the offset of the sequence in the array.
+	 * @param columns the number of alignment columns.
+	 * @return the number of gap runs.
+	 */
+	static int countGapOpens(final byte[] seq, final int offset, final int columns) {
+		int opens = 0;
+		byte prev = 0;
+		for (int i = offset; i < offset + columns; i++) {
+			final byte b = seq[i];
+			opens += (b == GAP & prev != GAP) ? 1 : 0;
+			prev = b;
+		}
+		return opens;
+	}
+}
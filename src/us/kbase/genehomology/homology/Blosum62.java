@@ -0,0 +1,71 @@
+package us.kbase.genehomology.homology;
+
+/** The BLOSUM62 amino acid substitution matrix, used to determine which aligned residue pairs
+ * are positives, i.e. pairs with a positive substitution score. Lower case residues are
+ * treated as upper case.
+ * @author gaprice@lbl.gov
+ *
+ */
+final class Blosum62 {
+	
+	private static final String ALPHABET = "ARNDCQEGHILKMFPSTWYVBZX*";
+	private static final String[] MATRIX = {
+		//A  R  N  D  C  Q  E  G  H  I  L  K  M  F  P  S  T  W  Y  V  B  Z  X  *
+		" 4 -1 -2 -2  0 -1 -1  0 -2 -1 -1 -1 -1 -2 -1  1  0 -3 -2  0 -2 -1  0 -4", // A
+		"-1  5  0 -2 -3  1  0 -2  0 -3 -2  2 -1 -3 -2 -1 -1 -3 -2 -3 -1  0 -1 -4", // R
+		"-2  0  6  1 -3  0  0  0  1 -3 -3  0 -2 -3 -2  1  0 -4 -2 -3  3  0 -1 -4", // N
+		"-2 -2  1  6 -3  0  2 -1 -1 -3 -4 -1 -3 -3 -1  0 -1 -4 -3 -3  4  1 -1 -4", // D
+		" 0 -3 -3 -3  9 -3 -4 -3 -3 -1 -1 -3 -1 -2 -3 -1 -1 -2 -2 -1 -3 -3 -2 -4", // C
+		"-1  1  0  0 -3  5  2 -2  0 -3 -2  1  0 -3 -1  0 -1 -2 -1 -2  0  3 -1 -4", // Q
+		"-1  0  0  2 -4  2  5 -2  0 -3 -3  1 -2 -3 -1  0 -1 -3 -2 -2  1  4 -1 -4", // E
+		" 0 -2  0 -1 -3 -2 -2  6 -2 -4 -4 -2 -3 -3 -2  0 -2 -2 -3 -3 -1 -2 -1 -4", // G
+		"-2  0  1 -1 -3  0  0 -2  8 -3 -3 -1 -2 -1 -2 -1 -2 -2  2 -3  0  0 -1 -4", // H
+		"-1 -3 -3 -3 -1 -3 -3 -4 -3  4  2 -3  1  0 -3 -2 -1 -3 -1  3 -3 -3 -1 -4", // I
+		"-1 -2 -3 -4 -1 -2 -3 -4 -3  2  4 -2  2  0 -3 -2 -1 -2 -1  1 -4 -3 -1 -4", // L
+		"-1  2  0 -1 -3  1  1 -2 -1 -3 -2  5 -1 -3 -1  0 -1 -3 -2 -2  0  1 -1 -4", // K
+		"-1 -1 -2 -3 -1  0 -2 -3 -2  1  2 -1  5  0 -2 -1 -1 -1 -1  1 -3 -1 -1 -4", // M
+		"-2 -3 -3 -3 -2 -3 -3 -3 -1  0  0 -3  0  6 -4 -2 -2  1  3 -1 -3 -3 -1 -4", // F
+		"-1 -2 -2 -1 -3 -1 -1 -2 -2 -3 -3 -1 -2 -4  7 -1 -1 -4 -3 -2 -2 -1 -2 -4", // P
+		" 1 -1  1  0 -1  0  0  0 -1 -2 -2  0 -1 -2 -1  4  1 -3 -2 -2  0  0  0 -4", // S
+		" 0 -1  0 -1 -1 -1 -1 -2 -2 -1 -1 -1 -1 -2 -1  1  5 -2 -2  0 -1 -1  0 -4", // T
+		"-3 -3 -4 -4 -2 -2 -3 -2 -2 -3 -2 -3 -1  1 -4 -3 -2 11  2 -3 -4 -3 -2 -4", // W
+		"-2 -2 -2 -3 -2 -1 -2 -3  2 -1 -1 -2 -1  3 -3 -2 -2  2  7 -1 -3 -2 -1 -4", // Y
+		" 0 -3 -3 -3 -1 -2 -2 -3 -3  3  1 -2  1 -1 -2 -2  0 -3 -1  4 -3 -2 -1 -4", // V
+		"-2 -1  3  4 -3  0  1 -1  0 -3 -4  0 -3 -3 -2  0 -1 -4 -3 -3  4  1 -1 -4", // B
+		"-1  0  0  1 -3  3  4 -2  0 -3 -3  1 -1 -3 -1  0 -1 -3 -2 -2  1  4 -1 -4", // Z
+		" 0 -1 -1 -1 -2 -1 -1 -1 -1 -1 -1 -1 -1 -1 -2  0  0 -2 -1 -1 -1 -1 -1 -4", // X
+		"-4 -4 -4 -4 -4 -4 -4 -4 -4 -4 -4 -4 -4 -4 -4 -4 -4 -4 -4 -4 -4 -4 -4  1"  // *
+	};
+	
+	// indexed by the two ISO-8859-1 residues, (residue1 << 8) | residue2
+	private static final boolean[] POSITIVE = new boolean[256 * 256];
+	static {
+		for (int i = 0; i < MATRIX.length; i++) {
+			final String[] scores = MATRIX[i].trim().split("\\s+");
+			for (int j = 0; j < scores.length; j++) {
+				if (Integer.parseInt(scores[j]) > 0) {
+					for (final char r1: cases(ALPHABET.charAt(i))) {
+						for (final char r2: cases(ALPHABET.charAt(j))) {
+							POSITIVE[(r1 << 8) | r2] = true;
+						}
+					}
+				}
+			}
+		}
+	}
+	
+	private static char[] cases(final char residue) {
+		return new char[] {residue, Character.toLowerCase(residue)};
+	}
+	
+	private Blosum62() {}
+	
+	/** Check whether a pair of residues has a positive substitution score.
+	 * @param residue1 the first residue as an ISO-8859-1 byte.
+	 * @param residue2 the second residue as an ISO-8859-1 byte.
+	 * @return true if the substitution score is positive.
+	 */
+	static boolean isPositive(final byte residue1, final byte residue2) {
+		return POSITIVE[((residue1 & 0xFF) << 8) | (residue2 & 0xFF)];
+	}
+}
@@ -0,0 +1,76 @@
+package us.kbase.genehomology.homology;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.LinkedList;
+import java.util.List;
+
+/** Signals that the caller of a search no longer wants the results, for example because the
+ * client that requested the search has disconnected. Code running the search may register
+ * listeners that are called on cancellation, for example to kill a running process, or poll
+ * the token.
+ * @author gaprice@lbl.gov
+ *
+ */
+public class CancellationToken {
+
+	private boolean cancelled = false;
+	private final List<Runnable> listeners = new LinkedList<>();
+
+	/** Create a token that is not cancelled. */
+	public CancellationToken() {}
+
+	/** Cancel the search. The listeners are called, in the calling thread, in the order they
+	 * were added. Calling this method more than once has no effect.
+	 */
+	public void cancel() {
+		final List<Runnable> toCall;
+		synchronized (this) {
+			if (cancelled) {
+				return;
+			}
+			cancelled = true;
+			toCall = new LinkedList<>(listeners);
+			listeners.clear();
+		}
+		toCall.stream().forEach(l -> l.run());
+	}
+
+	/** Check whether the search is cancelled.
+	 * @return true if the search is cancelled.
+	 */
+	public synchronized boolean isCancelled() {
+		return cancelled;
+	}
+
+	/** Throw an exception if the search is cancelled.
+	 * @throws SearchCancelledException if the search is cancelled.
+	 */
+	public void throwIfCancelled() throws SearchCancelledException {
+		if (isCancelled()) {
+			throw new SearchCancelledException("The search was cancelled");
+		}
+	}
+
+	/** Add a listener to be called when the search is cancelled. If the search is already
+	 * cancelled the listener is called immediately in the calling thread.
+	 * @param listener the listener.
+	 */
+	public void addListener(final Runnable listener) {
+		checkNotNull(listener, "listener");
+		synchronized (this) {
+			if (!cancelled) {
+				listeners.add(listener);
+				return;
+			}
+		}
+		listener.run();
+	}
+
+	/** Remove a listener.
+	 * @param listener the listener.
+	 */
+	public synchronized void removeListener(final Runnable listener) {
+		listeners.remove(listener);
+	}
+}
@@ -4,45 +4,81 @@ import static com.google.common.base.Preconditions.checkNotNull;
 
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 
 import com.google.common.base.Optional;
 
 /** The location of a gene homology database (e.g as created by LAST, DIAMOND, etc.).
- * Currently only supports a Path based location, but
+ * Currently only supports Path based locations, but
  * returns an optional to allow specifying other locations in the future.
+ * 
+ * A database may be split into multiple shards, each of which is a complete database
+ * containing a portion of the sequences.
  * @author gaprice@lbl.gov
  *
  */
 public class GeneHomologyDBLocation {
 
-	private final Path pathToFile;
+	private final List<Path> shards;
 	
 	/** Create a new location.
 	 * @param pathToFile the path to the sketch database file.
 	 * @throws IllegalArgumentException if the file does not exist.
 	 */
 	public GeneHomologyDBLocation(final Path pathToFile) {
-		checkNotNull(pathToFile, "pathToFile");
-		if (!Files.exists(pathToFile)) {
-			// since this path may be used in an exec make sure it's valid
-			throw new IllegalArgumentException(pathToFile + " does not exist");
+		this(Arrays.asList(checkNotNull(pathToFile, "pathToFile")));
+	}
+	
+	/** Create a new location for a sharded database.
+	 * @param pathsToShards the paths to the database file for each shard.
+	 * @throws IllegalArgumentException if the list is empty or any file does not exist.
+	 */
+	public GeneHomologyDBLocation(final List<Path> pathsToShards) {
+		checkNotNull(pathsToShards, "pathsToShards");
+		if (pathsToShards.isEmpty()) {
+			throw new IllegalArgumentException("At least one database shard is required");
 		}
-		this.pathToFile = pathToFile;
+		for (final Path p: pathsToShards) {
+			checkNotNull(p, "Null path in pathsToShards");
+			if (!Files.exists(p)) {
+				// since this path may be used in an exec make sure it's valid
+				throw new IllegalArgumentException(p + " does not exist");
+			}
+		}
+		this.shards = Collections.unmodifiableList(Arrays.asList(
+				pathsToShards.toArray(new Path[pathsToShards.size()])));
 	}
 
-	/** Get the database location. Currently will always return the path, but returns
-	 * an {@link Optional} to allow for expansion in the future.
-	 * @return the path.
+	/** Get the database location. Currently will always return the path for an unsharded
+	 * database, but returns an {@link Optional} to allow for expansion in the future.
+	 * @return the path, or absent if the database is sharded.
 	 */
 	public Optional<Path> getPathToFile() {
-		return Optional.of(pathToFile);
+		return isSharded() ? Optional.absent() : Optional.of(shards.get(0));
+	}
+	
+	/** Get the database location for each shard of the database. An unsharded database
+	 * has a single shard.
+	 * @return the paths to each shard.
+	 */
+	public List<Path> getShards() {
+		return shards;
+	}
+	
+	/** Check whether the database has more than one shard.
+	 * @return true if the database is sharded.
+	 */
+	public boolean isSharded() {
+		return shards.size() > 1;
 	}
 
 	@Override
 	public int hashCode() {
 		final int prime = 31;
 		int result = 1;
-		result = prime * result + ((pathToFile == null) ? 0 : pathToFile.hashCode());
+		result = prime * result + ((shards == null) ? 0 : shards.hashCode());
 		return result;
 	}
 
@@ -58,11 +94,11 @@ public class GeneHomologyDBLocation {
 			return false;
 		}
 		GeneHomologyDBLocation other = (GeneHomologyDBLocation) obj;
-		if (pathToFile == null) {
-			if (other.pathToFile != null) {
+		if (shards == null) {
+			if (other.shards != null) {
 				return false;
 			}
-		} else if (!pathToFile.equals(other.pathToFile)) {
+		} else if (!shards.equals(other.shards)) {
 			return false;
 		}
 		return true;
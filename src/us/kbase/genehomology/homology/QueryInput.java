@@ -0,0 +1,188 @@
+package us.kbase.genehomology.homology;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+import com.google.common.base.Optional;
+import com.google.common.collect.BoundType;
+import com.google.common.collect.Range;
+import com.google.common.io.ByteStreams;
+
+/** FASTA formatted query sequences for a search, either held in memory or in a file.
+ *
+ * Queries held in memory are passed to the homology implementation without writing them to
+ * the file system. Query input may also consist of portions of other query input, in which case
+ * the portions are streamed from the other input when the input is read.
+ * @author gaprice@lbl.gov
+ *
+ */
+public class QueryInput {
+
+	private final Optional<Path> file;
+	private final byte[] fasta;
+	// the byte ranges of the file or in memory data that make up the input, or null for all
+	// the data
+	private final List<Range<Long>> ranges;
+
+	private QueryInput(
+			final Optional<Path> file,
+			final byte[] fasta,
+			final List<Range<Long>> ranges) {
+		this.file = file;
+		this.fasta = fasta;
+		this.ranges = ranges;
+	}
+
+	/** Create query input from a FASTA file.
+	 * @param file the file.
+	 * @return the query input.
+	 */
+	public static QueryInput fromFile(final Path file) {
+		checkNotNull(file, "file");
+		return new QueryInput(Optional.of(file), null, null);
+	}
+
+	/** Create query input from FASTA data in memory. The data is not copied and must not be
+	 * modified after the input is created.
+	 * @param fasta the FASTA data, encoded as UTF-8.
+	 * @return the query input.
+	 */
+	public static QueryInput fromBytes(final byte[] fasta) {
+		checkNotNull(fasta, "fasta");
+		return new QueryInput(Optional.absent(), fasta, null);
+	}
+
+	/** Create query input consisting of portions of this input. The data is not copied; if this
+	 * input is held in a file, the file must exist until the new input is no longer needed.
+	 * @param ranges the byte ranges of this input, in the order they are to be read. Each range
+	 * must be closed at the lower end and open at the upper end.
+	 * @return the query input.
+	 */
+	public QueryInput subset(final List<Range<Long>> ranges) {
+		checkNotNull(ranges, "ranges");
+		if (this.ranges != null) {
+			throw new IllegalStateException("Cannot take a subset of a subset");
+		}
+		final List<Range<Long>> merged = new ArrayList<>();
+		for (final Range<Long> r: ranges) {
+			checkNotNull(r, "null item in ranges");
+			if (!r.hasLowerBound() || r.lowerBoundType() != BoundType.CLOSED ||
+					!r.hasUpperBound() || r.upperBoundType() != BoundType.OPEN ||
+					r.lowerEndpoint() < 0) {
+				throw new IllegalArgumentException("Illegal range: " + r);
+			}
+			final int last = merged.size() - 1;
+			// coalesce adjacent ranges so fewer streams are opened
+			if (last >= 0 && merged.get(last).upperEndpoint().equals(r.lowerEndpoint())) {
+				merged.set(last, Range.closedOpen(
+						merged.get(last).lowerEndpoint(), r.upperEndpoint()));
+			} else if (!r.isEmpty()) {
+				merged.add(r);
+			}
+		}
+		return new QueryInput(file, fasta, Collections.unmodifiableList(merged));
+	}
+
+	/** Get the file containing the query sequences, if the query sequences are exactly the
+	 * contents of a file.
+	 * @return the file, or absent if the queries are held in memory or are a subset of a file.
+	 */
+	public Optional<Path> getFile() {
+		return ranges == null ? file : Optional.absent();
+	}
+
+	/** Open a stream of the FASTA data.
+	 * @return the stream.
+	 * @throws IOException if the file containing the query sequences couldn't be opened.
+	 */
+	public InputStream openStream() throws IOException {
+		if (ranges != null) {
+			return new RangesInputStream(ranges.iterator());
+		}
+		return openSource(0);
+	}
+
+	private InputStream openSource(final long start) throws IOException {
+		if (file.isPresent()) {
+			final SeekableByteChannel ch = Files.newByteChannel(file.get());
+			ch.position(start);
+			return Channels.newInputStream(ch);
+		}
+		final int s = (int) Math.min(start, fasta.length);
+		return new ByteArrayInputStream(fasta, s, fasta.length - s);
+	}
+
+	// concatenates byte ranges of the source data, opening each range as it's reached
+	private class RangesInputStream extends InputStream {
+
+		private final Iterator<Range<Long>> ranges;
+		private InputStream current = null;
+
+		private RangesInputStream(final Iterator<Range<Long>> ranges) {
+			this.ranges = ranges;
+		}
+
+		// returns false if there are no more ranges
+		private boolean next() throws IOException {
+			if (current == null && ranges.hasNext()) {
+				final Range<Long> r = ranges.next();
+				current = ByteStreams.limit(openSource(r.lowerEndpoint()),
+						r.upperEndpoint() - r.lowerEndpoint());
+			}
+			return current != null;
+		}
+
+		private void closeCurrent() throws IOException {
+			if (current != null) {
+				current.close();
+				current = null;
+			}
+		}
+
+		@Override
+		public int read() throws IOException {
+			while (next()) {
+				final int b = current.read();
+				if (b >= 0) {
+					return b;
+				}
+				closeCurrent();
+			}
+			return -1;
+		}
+
+		@Override
+		public int read(final byte[] b, final int off, final int len) throws IOException {
+			if (len == 0) {
+				return 0;
+			}
+			while (next()) {
+				final int read = current.read(b, off, len);
+				if (read > 0) {
+					return read;
+				}
+				closeCurrent();
+			}
+			return -1;
+		}
+
+		@Override
+		public void close() throws IOException {
+			closeCurrent();
+			while (ranges.hasNext()) {
+				ranges.next();
+			}
+		}
+	}
+}
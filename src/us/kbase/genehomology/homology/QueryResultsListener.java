@@ -0,0 +1,19 @@
+package us.kbase.genehomology.homology;
+
+import java.io.IOException;
+
+/** A receiver of the results of a search one query sequence at a time, as the results for each
+ * query become final.
+ * @author gaprice@lbl.gov
+ *
+ */
+public interface QueryResultsListener {
+
+	/** Receive the results for a query sequence. Called at most once per query, in the order of
+	 * the queries in the search input. Queries without results may not be reported.
+	 * @param queryID the ID of the query sequence.
+	 * @param results the results for the query.
+	 * @throws IOException if the results could not be handled, which fails the search.
+	 */
+	void onQueryResults(String queryID, ResultBatch results) throws IOException;
+}
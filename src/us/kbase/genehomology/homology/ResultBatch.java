@@ -0,0 +1,1386 @@
+package us.kbase.genehomology.homology;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+import java.util.function.IntPredicate;
+
+import com.google.common.base.Optional;
+
+/** An immutable batch of search results stored in columns - parallel primitive arrays - rather
+ * than as one {@link SequenceSearchResult} and two {@link AlignedSequence}s per result. The
+ * aligned sequences of all the results are stored in one shared residue buffer and the
+ * sequence IDs in a dictionary, so a batch consists of a few dozen objects regardless of the
+ * number of results.
+ *
+ * Aligned sequences are packed 5 bits per column, including gaps, unless they contain
+ * characters other than upper case letters, '*' and '-', in which case they're stored one byte
+ * per column. For aligned sequences averaging 199 columns, AlignedSequenceHeapBenchmark
+ * measures 167 bytes of heap per aligned sequence in a batch versus 242 bytes when stored one
+ * byte per column. The cost is that packed sequences are decoded whenever they're read, which
+ * makes writing the sequences somewhat slower, and that {@link #get(int)} decodes the
+ * sequences and re-encodes them as {@link AlignedSequence}s.
+ *
+ * The batch is a list of results, but the results are views that are created on demand by
+ * {@link #get(int)}. Serializers and filters should use the row accessors, e.g.
+ * {@link #getEValue(int)}, and the batch operations, e.g. {@link #filter(IntPredicate)}, to
+ * avoid creating the views. Derived batches share the columns of the batch from which they
+ * are derived.
+ *
+ * Batches are created with a {@link Builder}.
+ * @author gaprice@lbl.gov
+ *
+ */
+public final class ResultBatch extends AbstractList<SequenceSearchResult>
+		implements RandomAccess {
+
+	private static final byte QUERY_FORWARD = 1;
+	private static final byte TARGET_FORWARD = 2;
+	// marks a builder row discarded by the per query limit
+	private static final byte DISCARDED = 4;
+	// marks aligned sequences stored one byte per column
+	private static final byte QUERY_UNPACKED = 8;
+	private static final byte TARGET_UNPACKED = 16;
+	private static final int BITS_PER_COLUMN = 5;
+	private static final int CODE_MASK = (1 << BITS_PER_COLUMN) - 1;
+	private static final byte[] ALPHABET = "ABCDEFGHIJKLMNOPQRSTUVWXYZ*-"
+			.getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] CODES = new byte[256];
+	static {
+		Arrays.fill(CODES, (byte) -1);
+		for (int i = 0; i < ALPHABET.length; i++) {
+			CODES[ALPHABET[i]] = (byte) i;
+		}
+	}
+	// the buffer into which packed aligned sequences are decoded for consumers
+	private static final ThreadLocal<byte[]> DECODE_BUFFER =
+			ThreadLocal.withInitial(() -> new byte[1024]);
+	// approximate bytes per row in the columns
+	private static final int ROW_SIZE = 8 + 4 * 17 + 1 + 4;
+	private static final int BATCH_OVERHEAD = 512;
+
+	private final Columns columns;
+	// the rows of the columns in this batch, in order
+	private final int[] rows;
+	private final Optional<String> queryID;
+
+	private ResultBatch(final Columns columns, final int[] rows, final Optional<String> queryID) {
+		this.columns = columns;
+		this.rows = rows;
+		this.queryID = queryID;
+	}
+
+	private static class Columns {
+
+		private final String[] ids;
+		private final byte[] residues;
+		private final double[] eValues;
+		private final int[] bitScores;
+		private final int[] queryIDs;
+		private final int[] targetIDs;
+		private final int[] querySequenceLengths;
+		private final int[] targetSequenceLengths;
+		private final int[] queryStarts;
+		private final int[] targetStarts;
+		private final int[] queryAlignmentLengths;
+		private final int[] targetAlignmentLengths;
+		private final byte[] strands;
+		private final int[] queryResidueOffsets;
+		private final int[] targetResidueOffsets;
+		private final int[] alignmentColumns;
+		private final int[] matches;
+		private final int[] mismatches;
+		private final int[] positives;
+		private final int[] gapColumns;
+		private final int[] gapOpens;
+
+		private Columns(final Builder b) {
+			final int n = b.size;
+			ids = b.ids.toArray(new String[b.ids.size()]);
+			eValues = Arrays.copyOf(b.eValues, n);
+			bitScores = Arrays.copyOf(b.bitScores, n);
+			queryIDs = Arrays.copyOf(b.queryIDs, n);
+			targetIDs = Arrays.copyOf(b.targetIDs, n);
+			querySequenceLengths = Arrays.copyOf(b.querySequenceLengths, n);
+			targetSequenceLengths = Arrays.copyOf(b.targetSequenceLengths, n);
+			queryStarts = Arrays.copyOf(b.queryStarts, n);
+			targetStarts = Arrays.copyOf(b.targetStarts, n);
+			queryAlignmentLengths = Arrays.copyOf(b.queryAlignmentLengths, n);
+			targetAlignmentLengths = Arrays.copyOf(b.targetAlignmentLengths, n);
+			strands = Arrays.copyOf(b.strands, n);
+			alignmentColumns = Arrays.copyOf(b.alignmentColumns, n);
+			queryResidueOffsets = new int[n];
+			targetResidueOffsets = new int[n];
+			int encodedSize = 0;
+			for (int r = 0; r < n; r++) {
+				final int cols = alignmentColumns[r];
+				if (!isPackable(b.residues, b.queryResidueOffsets[r], cols)) {
+					strands[r] |= QUERY_UNPACKED;
+				}
+				if (!isPackable(b.residues, b.targetResidueOffsets[r], cols)) {
+					strands[r] |= TARGET_UNPACKED;
+				}
+				encodedSize += encodedSize(cols, (strands[r] & QUERY_UNPACKED) == 0) +
+						encodedSize(cols, (strands[r] & TARGET_UNPACKED) == 0);
+			}
+			residues = new byte[encodedSize];
+			int offset = 0;
+			for (int r = 0; r < n; r++) {
+				final int cols = alignmentColumns[r];
+				queryResidueOffsets[r] = offset;
+				offset = encode(b.residues, b.queryResidueOffsets[r], cols,
+						(strands[r] & QUERY_UNPACKED) == 0, residues, offset);
+				targetResidueOffsets[r] = offset;
+				offset = encode(b.residues, b.targetResidueOffsets[r], cols,
+						(strands[r] & TARGET_UNPACKED) == 0, residues, offset);
+			}
+			matches = Arrays.copyOf(b.matches, n);
+			mismatches = Arrays.copyOf(b.mismatches, n);
+			positives = Arrays.copyOf(b.positives, n);
+			gapColumns = Arrays.copyOf(b.gapColumns, n);
+			gapOpens = Arrays.copyOf(b.gapOpens, n);
+		}
+	}
+
+	private static boolean isPackable(final byte[] bytes, final int offset, final int length) {
+		for (int i = offset; i < offset + length; i++) {
+			if (CODES[bytes[i] & 0xFF] < 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static int encodedSize(final int columns, final boolean packed) {
+		return packed ? (columns * BITS_PER_COLUMN + 7) / 8 : columns;
+	}
+
+	// returns the offset following the encoded sequence
+	private static int encode(
+			final byte[] bytes,
+			final int offset,
+			final int length,
+			final boolean packed,
+			final byte[] encoded,
+			final int encodedOffset) {
+		if (!packed) {
+			System.arraycopy(bytes, offset, encoded, encodedOffset, length);
+			return encodedOffset + length;
+		}
+		for (int i = 0; i < length; i++) {
+			final int code = CODES[bytes[offset + i] & 0xFF];
+			final int bit = i * BITS_PER_COLUMN;
+			final int pos = encodedOffset + (bit >>> 3);
+			final int shift = bit & 7;
+			encoded[pos] |= code << shift;
+			if (shift > 8 - BITS_PER_COLUMN) {
+				encoded[pos + 1] |= code >>> (8 - shift);
+			}
+		}
+		return encodedOffset + encodedSize(length, true);
+	}
+
+	// decodes the aligned query or target sequence of a column row into an array
+	private static void decode(
+			final Columns c,
+			final int r,
+			final boolean target,
+			final byte[] dest,
+			final int destOffset) {
+		final int offset = target ? c.targetResidueOffsets[r] : c.queryResidueOffsets[r];
+		final int cols = c.alignmentColumns[r];
+		if (!isPacked(c, r, target)) {
+			System.arraycopy(c.residues, offset, dest, destOffset, cols);
+			return;
+		}
+		final byte[] res = c.residues;
+		// 8 columns are packed into every 5 bytes
+		int i = 0;
+		for (int pos = offset; i + 8 <= cols; i += 8, pos += BITS_PER_COLUMN) {
+			final long codes = (res[pos] & 0xFFL) | (res[pos + 1] & 0xFFL) << 8 |
+					(res[pos + 2] & 0xFFL) << 16 | (res[pos + 3] & 0xFFL) << 24 |
+					(res[pos + 4] & 0xFFL) << 32;
+			for (int j = 0; j < 8; j++) {
+				dest[destOffset + i + j] =
+						ALPHABET[(int) (codes >>> (j * BITS_PER_COLUMN)) & CODE_MASK];
+			}
+		}
+		for (; i < cols; i++) {
+			final int bit = i * BITS_PER_COLUMN;
+			final int pos = offset + (bit >>> 3);
+			final int shift = bit & 7;
+			int code = (res[pos] & 0xFF) >>> shift;
+			if (shift > 8 - BITS_PER_COLUMN) {
+				code |= (res[pos + 1] & 0xFF) << (8 - shift);
+			}
+			dest[destOffset + i] = ALPHABET[code & CODE_MASK];
+		}
+	}
+
+	private static boolean isPacked(final Columns c, final int r, final boolean target) {
+		return (c.strands[r] & (target ? TARGET_UNPACKED : QUERY_UNPACKED)) == 0;
+	}
+
+	/** Create a batch from a list of results. If the list is a batch, it is returned.
+	 * @param results the results.
+	 * @return a batch containing the results.
+	 */
+	public static ResultBatch copyOf(final List<SequenceSearchResult> results) {
+		checkNotNull(results, "results");
+		if (results instanceof ResultBatch) {
+			return (ResultBatch) results;
+		}
+		final Builder b = getBuilder();
+		for (final SequenceSearchResult r: results) {
+			b.add(r);
+		}
+		return b.build();
+	}
+
+	/** Merge batches of the best results for each query, as created by
+	 * {@link #bestPerQuery(int)}, into one batch of the best results for each query. Each
+	 * batch must be grouped by query, with the queries in the same relative order in every
+	 * batch, and each group must be sorted as {@link SequenceSearchResult#BEST_FIRST}. The
+	 * groups for each query are merged until the maximum is reached, so the work is
+	 * proportional to the number of results returned rather than the total number of results.
+	 * Ties are broken in batch order.
+	 *
+	 * The merged batch is grouped by query in the order of the queries in the batches.
+	 * @param batches the batches.
+	 * @param max the maximum number of results per query.
+	 * @return the merged batch.
+	 */
+	public static ResultBatch mergeBestPerQuery(final List<ResultBatch> batches, final int max) {
+		checkNotNull(batches, "batches");
+		if (max < 1) {
+			throw new IllegalArgumentException("max must be > 0");
+		}
+		final int n = batches.size();
+		// the query ID and start row of each group in each batch, with an end row sentinel
+		final List<List<String>> groupIDs = new ArrayList<>();
+		final List<List<Integer>> groupStarts = new ArrayList<>();
+		final List<Map<String, Integer>> groupIndexes = new ArrayList<>();
+		for (final ResultBatch b: batches) {
+			checkNotNull(b, "null item in batches");
+			final List<String> ids = new ArrayList<>();
+			final List<Integer> starts = new ArrayList<>();
+			final Map<String, Integer> indexes = new HashMap<>();
+			for (int i = 0; i < b.size(); i++) {
+				final String id = b.getQueryID(i);
+				if (ids.isEmpty() || !ids.get(ids.size() - 1).equals(id)) {
+					if (indexes.put(id, ids.size()) != null) {
+						throw new IllegalArgumentException(
+								"Batch results are not grouped by query");
+					}
+					ids.add(id);
+					starts.add(i);
+				}
+			}
+			starts.add(b.size());
+			groupIDs.add(ids);
+			groupStarts.add(starts);
+			groupIndexes.add(indexes);
+		}
+		final Builder merged = getBuilder();
+		final int[] cursors = new int[n];
+		final int[] next = new int[n];
+		final int[] ends = new int[n];
+		for (String query = nextQuery(groupIDs, groupIndexes, cursors); query != null;
+				query = nextQuery(groupIDs, groupIndexes, cursors)) {
+			for (int i = 0; i < n; i++) {
+				final int c = cursors[i];
+				if (c < groupIDs.get(i).size() && groupIDs.get(i).get(c).equals(query)) {
+					next[i] = groupStarts.get(i).get(c);
+					ends[i] = groupStarts.get(i).get(c + 1);
+					cursors[i]++;
+				} else {
+					next[i] = ends[i] = 0;
+				}
+			}
+			// the number of batches is small, so a linear scan is as fast as a heap
+			for (int count = 0; count < max; count++) {
+				int best = -1;
+				for (int i = 0; i < n; i++) {
+					if (next[i] < ends[i] && (best < 0 || compareBestFirst(
+							batches.get(i).getEValue(next[i]),
+							batches.get(i).getBitScore(next[i]),
+							batches.get(best).getEValue(next[best]),
+							batches.get(best).getBitScore(next[best])) < 0)) {
+						best = i;
+					}
+				}
+				if (best < 0) {
+					break;
+				}
+				merged.addResult(batches.get(best), next[best]++);
+			}
+		}
+		return merged.build();
+	}
+
+	/* Returns the first query at the current group of a batch that doesn't occur after the
+	 * current group of any other batch, or null if all the groups have been merged. If the
+	 * batches have inconsistent query orders, returns the first current query.
+	 */
+	private static String nextQuery(
+			final List<List<String>> groupIDs,
+			final List<Map<String, Integer>> groupIndexes,
+			final int[] cursors) {
+		String first = null;
+		for (int i = 0; i < cursors.length; i++) {
+			if (cursors[i] >= groupIDs.get(i).size()) {
+				continue;
+			}
+			final String query = groupIDs.get(i).get(cursors[i]);
+			first = first == null ? query : first;
+			boolean later = false;
+			for (int j = 0; !later && j < cursors.length; j++) {
+				final Integer index = groupIndexes.get(j).get(query);
+				later = index != null && index > cursors[j];
+			}
+			if (!later) {
+				return query;
+			}
+		}
+		return first;
+	}
+
+	@Override
+	public int size() {
+		return rows.length;
+	}
+
+	/** Get a view of a result. The view is created on every call.
+	 * @param row the row of the result.
+	 * @return the result.
+	 */
+	@Override
+	public SequenceSearchResult get(final int row) {
+		final int r = rows[row];
+		final Columns c = columns;
+		final int cols = c.alignmentColumns[r];
+		final byte[] aligned = new byte[2 * cols];
+		decode(c, r, false, aligned, 0);
+		decode(c, r, true, aligned, cols);
+		return new SequenceSearchResult(
+				new AlignedSequence(getQueryID(row), c.querySequenceLengths[r], aligned,
+						0, cols, c.queryStarts[r],
+						c.queryAlignmentLengths[r], isQueryForwardStrand(row)),
+				new AlignedSequence(getTargetID(row), c.targetSequenceLengths[r], aligned,
+						cols, cols, c.targetStarts[r],
+						c.targetAlignmentLengths[r], isTargetForwardStrand(row)),
+				c.eValues[r],
+				c.bitScores[r],
+				c.matches[r],
+				c.mismatches[r],
+				c.positives[r],
+				c.gapColumns[r]);
+	}
+
+	/** Get the E-value of a result.
+	 * @param row the row of the result.
+	 * @return the E-value.
+	 */
+	public double getEValue(final int row) {
+		return columns.eValues[rows[row]];
+	}
+
+	/** Get the bit score of a result.
+	 * @param row the row of the result.
+	 * @return the bit score.
+	 */
+	public int getBitScore(final int row) {
+		return columns.bitScores[rows[row]];
+	}
+
+	/** Get the query sequence ID of a result.
+	 * @param row the row of the result.
+	 * @return the ID.
+	 */
+	public String getQueryID(final int row) {
+		return queryID.isPresent() ? queryID.get() : columns.ids[columns.queryIDs[rows[row]]];
+	}
+
+	/** Get the target sequence ID of a result.
+	 * @param row the row of the result.
+	 * @return the ID.
+	 */
+	public String getTargetID(final int row) {
+		return columns.ids[columns.targetIDs[rows[row]]];
+	}
+
+	/** Get the length of the query sequence of a result.
+	 * @param row the row of the result.
+	 * @return the sequence length.
+	 */
+	public int getQuerySequenceLength(final int row) {
+		return columns.querySequenceLengths[rows[row]];
+	}
+
+	/** Get the length of the target sequence of a result.
+	 * @param row the row of the result.
+	 * @return the sequence length.
+	 */
+	public int getTargetSequenceLength(final int row) {
+		return columns.targetSequenceLengths[rows[row]];
+	}
+
+	/** Get the 0 based start of the alignment in the query sequence of a result.
+	 * @param row the row of the result.
+	 * @return the alignment start.
+	 */
+	public int getQueryAlignmentStart(final int row) {
+		return columns.queryStarts[rows[row]];
+	}
+
+	/** Get the 0 based start of the alignment in the target sequence of a result.
+	 * @param row the row of the result.
+	 * @return the alignment start.
+	 */
+	public int getTargetAlignmentStart(final int row) {
+		return columns.targetStarts[rows[row]];
+	}
+
+	/** Get the length of the aligned portion of the query sequence, without gaps, of a result.
+	 * @param row the row of the result.
+	 * @return the alignment length.
+	 */
+	public int getQueryAlignmentLength(final int row) {
+		return columns.queryAlignmentLengths[rows[row]];
+	}
+
+	/** Get the length of the aligned portion of the target sequence, without gaps, of a
+	 * result.
+	 * @param row the row of the result.
+	 * @return the alignment length.
+	 */
+	public int getTargetAlignmentLength(final int row) {
+		return columns.targetAlignmentLengths[rows[row]];
+	}
+
+	/** Check whether the query alignment of a result is on the forward strand.
+	 * @param row the row of the result.
+	 * @return true for the forward strand.
+	 */
+	public boolean isQueryForwardStrand(final int row) {
+		return (columns.strands[rows[row]] & QUERY_FORWARD) != 0;
+	}
+
+	/** Check whether the target alignment of a result is on the forward strand.
+	 * @param row the row of the result.
+	 * @return true for the forward strand.
+	 */
+	public boolean isTargetForwardStrand(final int row) {
+		return (columns.strands[rows[row]] & TARGET_FORWARD) != 0;
+	}
+
+	/** Get the number of columns, including gaps, in the alignment of a result.
+	 * @param row the row of the result.
+	 * @return the alignment length.
+	 */
+	public int getAlignmentLength(final int row) {
+		return columns.alignmentColumns[rows[row]];
+	}
+
+	/** Get the number of matching columns in the alignment of a result.
+	 * @param row the row of the result.
+	 * @return the number of matches.
+	 */
+	public int getMatches(final int row) {
+		return columns.matches[rows[row]];
+	}
+
+	/** Get the number of mismatched columns in the alignment of a result.
+	 * @param row the row of the result.
+	 * @return the number of mismatches.
+	 */
+	public int getMismatches(final int row) {
+		return columns.mismatches[rows[row]];
+	}
+
+	/** Get the number of columns with a positive BLOSUM62 score in the alignment of a result.
+	 * @param row the row of the result.
+	 * @return the number of positives.
+	 */
+	public int getPositives(final int row) {
+		return columns.positives[rows[row]];
+	}
+
+	/** Get the number of columns with a gap in either sequence in the alignment of a result.
+	 * @param row the row of the result.
+	 * @return the number of gap columns.
+	 */
+	public int getGapCount(final int row) {
+		return columns.gapColumns[rows[row]];
+	}
+
+	/** Get the number of gap runs in both sequences in the alignment of a result.
+	 * @param row the row of the result.
+	 * @return the gap open count.
+	 */
+	public int getGapOpenCount(final int row) {
+		return columns.gapOpens[rows[row]];
+	}
+
+	/** Get the fraction of matching columns in the alignment of a result.
+	 * @param row the row of the result.
+	 * @return the fraction of matches.
+	 */
+	public double getPercentID(final int row) {
+		final int r = rows[row];
+		return columns.matches[r] / (double) columns.alignmentColumns[r];
+	}
+
+	/** Get the aligned query sequence of a result.
+	 * @param row the row of the result.
+	 * @return the aligned sequence, including gaps.
+	 */
+	public String getQueryAlignedSequence(final int row) {
+		return getAlignedSequence(row, false);
+	}
+
+	/** Get the aligned target sequence of a result.
+	 * @param row the row of the result.
+	 * @return the aligned sequence, including gaps.
+	 */
+	public String getTargetAlignedSequence(final int row) {
+		return getAlignedSequence(row, true);
+	}
+
+	private String getAlignedSequence(final int row, final boolean target) {
+		final int r = rows[row];
+		final byte[] aligned = new byte[columns.alignmentColumns[r]];
+		decode(columns, r, target, aligned, 0);
+		return new String(aligned, StandardCharsets.ISO_8859_1);
+	}
+
+	/** A consumer of a range of bytes.
+	 * @author gaprice@lbl.gov
+	 *
+	 */
+	public interface BytesConsumer {
+
+		/** Consume bytes. The consumer must not modify the bytes, and the bytes are only
+		 * valid for the duration of the call.
+		 * @param bytes the array containing the bytes.
+		 * @param offset the offset of the bytes in the array.
+		 * @param length the number of bytes.
+		 * @throws IOException if an IO error occurs.
+		 */
+		void accept(byte[] bytes, int offset, int length) throws IOException;
+	}
+
+	/** Pass the aligned query sequence of a result, as ISO-8859-1 bytes, to a consumer
+	 * without creating a string. Packed sequences are decoded into a buffer that is reused by
+	 * each call in the same thread.
+	 * @param row the row of the result.
+	 * @param consumer the consumer.
+	 * @throws IOException if the consumer throws an IO exception.
+	 */
+	public void consumeQueryAlignedSequence(final int row, final BytesConsumer consumer)
+			throws IOException {
+		consumeAlignedSequence(row, false, consumer);
+	}
+
+	/** Pass the aligned target sequence of a result, as ISO-8859-1 bytes, to a consumer
+	 * without creating a string. Packed sequences are decoded into a buffer that is reused by
+	 * each call in the same thread.
+	 * @param row the row of the result.
+	 * @param consumer the consumer.
+	 * @throws IOException if the consumer throws an IO exception.
+	 */
+	public void consumeTargetAlignedSequence(final int row, final BytesConsumer consumer)
+			throws IOException {
+		consumeAlignedSequence(row, true, consumer);
+	}
+
+	private void consumeAlignedSequence(
+			final int row,
+			final boolean target,
+			final BytesConsumer consumer)
+			throws IOException {
+		checkNotNull(consumer, "consumer");
+		final int r = rows[row];
+		final int cols = columns.alignmentColumns[r];
+		if (!isPacked(columns, r, target)) {
+			consumer.accept(columns.residues, target ? columns.targetResidueOffsets[r] :
+				columns.queryResidueOffsets[r], cols);
+			return;
+		}
+		byte[] buf = DECODE_BUFFER.get();
+		if (buf.length < cols) {
+			buf = new byte[Math.max(cols, 2 * buf.length)];
+			DECODE_BUFFER.set(buf);
+		}
+		decode(columns, r, target, buf, 0);
+		consumer.accept(buf, 0, cols);
+	}
+
+	/** Get the approximate heap used by the batch, not including the shared columns of any
+	 * batch from which this batch was derived.
+	 * @return the approximate size in bytes.
+	 */
+	public long getEstimatedSize() {
+		long size = BATCH_OVERHEAD + 4L * rows.length;
+		if (rows.length == columns.eValues.length) {
+			size += (long) ROW_SIZE * rows.length + columns.residues.length;
+			for (final String id: columns.ids) {
+				size += 48 + 2L * id.length();
+			}
+		}
+		return size;
+	}
+
+	/** Get a batch that doesn't share columns with any other batch, copying the results in
+	 * this batch if necessary. Used to avoid retaining the columns of a large batch when only
+	 * a few results from the batch are kept, e.g. in a cache.
+	 * @return the compacted batch.
+	 */
+	public ResultBatch compact() {
+		if (!queryID.isPresent() && rows.length == columns.eValues.length) {
+			boolean ordered = true;
+			for (int i = 0; ordered && i < rows.length; i++) {
+				ordered = rows[i] == i;
+			}
+			if (ordered) {
+				return this;
+			}
+		}
+		return getBuilder().addAll(this).build();
+	}
+
+	/** Get a batch containing the results that match a filter. The filter is passed the row
+	 * of each result in this batch.
+	 * @param filter the filter.
+	 * @return the filtered batch.
+	 */
+	public ResultBatch filter(final IntPredicate filter) {
+		checkNotNull(filter, "filter");
+		final int[] selected = new int[rows.length];
+		int count = 0;
+		for (int i = 0; i < rows.length; i++) {
+			if (filter.test(i)) {
+				selected[count++] = rows[i];
+			}
+		}
+		return new ResultBatch(columns, Arrays.copyOf(selected, count), queryID);
+	}
+
+	/** Get a batch containing the same results with a different query ID.
+	 * @param id the new query ID.
+	 * @return the new batch.
+	 */
+	public ResultBatch withQueryID(final String id) {
+		checkNotNull(id, "id");
+		return new ResultBatch(columns, rows, Optional.of(id));
+	}
+
+	/** Split the batch by query ID.
+	 * @return a mapping of query ID to the results for that query, in the order the query IDs
+	 * first appear in the batch.
+	 */
+	public Map<String, ResultBatch> groupByQueryID() {
+		final Map<String, ResultBatch> ret = new LinkedHashMap<>();
+		if (queryID.isPresent()) {
+			if (!isEmpty()) {
+				ret.put(queryID.get(), this);
+			}
+			return ret;
+		}
+		final Map<Integer, List<Integer>> groups = new LinkedHashMap<>();
+		for (final int r: rows) {
+			groups.computeIfAbsent(columns.queryIDs[r], k -> new ArrayList<>()).add(r);
+		}
+		for (final Integer id: groups.keySet()) {
+			final List<Integer> group = groups.get(id);
+			final int[] grows = new int[group.size()];
+			for (int i = 0; i < grows.length; i++) {
+				grows[i] = group.get(i);
+			}
+			ret.put(columns.ids[id], new ResultBatch(columns, grows, queryID));
+		}
+		return ret;
+	}
+
+	/** Get a batch with the results sorted as {@link SequenceSearchResult#BEST_FIRST}. The sort
+	 * is stable.
+	 * @return the sorted batch.
+	 */
+	public ResultBatch sortedBestFirst() {
+		final int[] sorted = rows.clone();
+		sortRows(sorted, (r1, r2) -> compareBestFirst(
+				columns.eValues, columns.bitScores, r1, r2));
+		return new ResultBatch(columns, sorted, queryID);
+	}
+
+	/** Get a batch containing at most a given number of results for each query, keeping the
+	 * first results for each query in the current order.
+	 * @param max the maximum number of results per query.
+	 * @return the limited batch.
+	 */
+	public ResultBatch limitPerQuery(final int max) {
+		return new ResultBatch(columns, limitPerQuery(queryIDs(), columns.ids.length, rows, max),
+				queryID);
+	}
+
+	/** Get a batch containing the best results for each query. The results are grouped by
+	 * query in the order the query IDs first appear in the batch, and each group is sorted as
+	 * {@link SequenceSearchResult#BEST_FIRST}.
+	 * @param max the maximum number of results per query.
+	 * @return the batch of best results.
+	 */
+	public ResultBatch bestPerQuery(final int max) {
+		return new ResultBatch(columns, bestPerQuery(columns.eValues, columns.bitScores,
+				queryIDs(), columns.ids.length, rows, max), queryID);
+	}
+
+	// if the query ID has been replaced, all the rows have the same query
+	private int[] queryIDs() {
+		return queryID.isPresent() ? new int[columns.eValues.length] : columns.queryIDs;
+	}
+
+	private static int[] limitPerQuery(
+			final int[] queryIDs,
+			final int idCount,
+			final int[] rows,
+			final int max) {
+		if (max < 1) {
+			throw new IllegalArgumentException("max must be > 0");
+		}
+		final int[] counts = new int[Math.max(1, idCount)];
+		final int[] selected = new int[rows.length];
+		int count = 0;
+		for (final int r: rows) {
+			if (++counts[queryIDs[r]] <= max) {
+				selected[count++] = r;
+			}
+		}
+		return Arrays.copyOf(selected, count);
+	}
+
+	private static int[] bestPerQuery(
+			final double[] eValues,
+			final int[] bitScores,
+			final int[] queryIDs,
+			final int idCount,
+			final int[] rows,
+			final int max) {
+		// rank the queries by first appearance
+		final int[] queryRank = new int[Math.max(1, idCount)];
+		Arrays.fill(queryRank, -1);
+		int ranks = 0;
+		for (final int r: rows) {
+			if (queryRank[queryIDs[r]] < 0) {
+				queryRank[queryIDs[r]] = ranks++;
+			}
+		}
+		final int[] sorted = rows.clone();
+		sortRows(sorted, (r1, r2) -> {
+			final int qr1 = queryRank[queryIDs[r1]];
+			final int qr2 = queryRank[queryIDs[r2]];
+			return qr1 != qr2 ? Integer.compare(qr1, qr2) :
+				compareBestFirst(eValues, bitScores, r1, r2);
+		});
+		return limitPerQuery(queryIDs, idCount, sorted, max);
+	}
+
+	private static int compareBestFirst(
+			final double[] eValues,
+			final int[] bitScores,
+			final int r1,
+			final int r2) {
+		return compareBestFirst(eValues[r1], bitScores[r1], eValues[r2], bitScores[r2]);
+	}
+
+	private static int compareBestFirst(
+			final double eValue1,
+			final int bitScore1,
+			final double eValue2,
+			final int bitScore2) {
+		final int cmp = Double.compare(eValue1, eValue2);
+		return cmp != 0 ? cmp : Integer.compare(bitScore2, bitScore1);
+	}
+
+	private interface RowComparator {
+
+		int compare(int row1, int row2);
+	}
+
+	// stable merge sort of rows without boxing
+	private static void sortRows(final int[] rows, final RowComparator cmp) {
+		if (rows.length < 2) {
+			return;
+		}
+		final int[] buf = new int[rows.length];
+		for (int width = 1; width < rows.length; width *= 2) {
+			for (int lo = 0; lo < rows.length; lo += 2 * width) {
+				final int mid = Math.min(lo + width, rows.length);
+				final int hi = Math.min(lo + 2 * width, rows.length);
+				int i = lo;
+				int j = mid;
+				int k = lo;
+				while (i < mid && j < hi) {
+					buf[k++] = cmp.compare(rows[j], rows[i]) < 0 ? rows[j++] : rows[i++];
+				}
+				while (i < mid) {
+					buf[k++] = rows[i++];
+				}
+				while (j < hi) {
+					buf[k++] = rows[j++];
+				}
+			}
+			System.arraycopy(buf, 0, rows, 0, rows.length);
+		}
+	}
+
+	/** Get a {@link ResultBatch} builder.
+	 * @return a new builder.
+	 */
+	public static Builder getBuilder() {
+		return new Builder();
+	}
+
+	/** A {@link ResultBatch} builder. Each result is added by setting the query and target
+	 * sequences and then adding the row with {@link #addRow(double, int)}.
+	 *
+	 * The builder may be reused after building a batch.
+	 * @author gaprice@lbl.gov
+	 *
+	 */
+	public static class Builder {
+
+		private static final int INITIAL_ROWS = 16;
+
+		private final List<String> ids = new ArrayList<>();
+		private final Map<String, Integer> idIndex = new HashMap<>();
+		private byte[] residues = new byte[INITIAL_ROWS * 512];
+		private int residueSize = 0;
+		private int size = 0;
+		private double[] eValues = new double[INITIAL_ROWS];
+		private int[] bitScores = new int[INITIAL_ROWS];
+		private int[] queryIDs = new int[INITIAL_ROWS];
+		private int[] targetIDs = new int[INITIAL_ROWS];
+		private int[] querySequenceLengths = new int[INITIAL_ROWS];
+		private int[] targetSequenceLengths = new int[INITIAL_ROWS];
+		private int[] queryStarts = new int[INITIAL_ROWS];
+		private int[] targetStarts = new int[INITIAL_ROWS];
+		private int[] queryAlignmentLengths = new int[INITIAL_ROWS];
+		private int[] targetAlignmentLengths = new int[INITIAL_ROWS];
+		private byte[] strands = new byte[INITIAL_ROWS];
+		private int[] queryResidueOffsets = new int[INITIAL_ROWS];
+		private int[] targetResidueOffsets = new int[INITIAL_ROWS];
+		private int[] alignmentColumns = new int[INITIAL_ROWS];
+		private int[] matches = new int[INITIAL_ROWS];
+		private int[] mismatches = new int[INITIAL_ROWS];
+		private int[] positives = new int[INITIAL_ROWS];
+		private int[] gapColumns = new int[INITIAL_ROWS];
+		private int[] gapOpens = new int[INITIAL_ROWS];
+
+		// the per query limit, if any, and the rows of each query, indexed by query ID index.
+		// Discarded rows are removed when the builder is compacted
+		private int maxPerQuery = 0;
+		private int discarded = 0;
+		private int[][] queryRows = new int[0][];
+		private int[] queryRowCounts = new int[0];
+
+		// the aligned sequences of a row of another batch, decoded for copying
+		private byte[] decoded = new byte[1024];
+
+		// the sequences of the row in progress
+		private int rowResidueStart = 0;
+		private final PendingSequence query = new PendingSequence();
+		private final PendingSequence target = new PendingSequence();
+
+		private static class PendingSequence {
+
+			private boolean set = false;
+			private int id;
+			private int sequenceLength;
+			private int start;
+			private int alignmentLength;
+			private boolean forwardStrand;
+			private int residueOffset;
+			private int columns;
+		}
+
+		private Builder() {}
+
+		/** Limit the number of rows kept for each query. Once a query has twice the limit of
+		 * rows, all but the best rows for the query, as per {@link ResultBatch#bestPerQuery(int)},
+		 * are discarded, and the builder is compacted when the discarded rows outnumber the
+		 * kept rows. The memory used by the builder is therefore bounded by the limit and the
+		 * number of queries rather than by the number of rows added.
+		 * 
+		 * The built batch contains, for each query, at least the rows that
+		 * {@link ResultBatch#bestPerQuery(int)} would select with the limit. The kept rows of
+		 * each query stay in the order they were added, although the rows may be grouped by
+		 * query, so calling {@link ResultBatch#bestPerQuery(int)} on the built batch gives the
+		 * same result as if no rows had been discarded.
+		 * @param max the maximum number of rows to keep per query.
+		 * @return this builder.
+		 */
+		public Builder withMaxPerQuery(final int max) {
+			if (max < 1) {
+				throw new IllegalArgumentException("max must be > 0");
+			}
+			if (size > 0 || query.set || target.set) {
+				throw new IllegalStateException("Rows have already been added");
+			}
+			maxPerQuery = max;
+			return this;
+		}
+
+		/** Get the number of rows added to the builder and not discarded.
+		 * @return the number of rows.
+		 */
+		public int size() {
+			return size - discarded;
+		}
+
+		/** Set the query sequence of the row in progress.
+		 * @param id the sequence ID.
+		 * @param sequenceLength the length of the entire sequence.
+		 * @param alignedSequence an array containing the aligned portion of the sequence,
+		 * including gaps denoted by '-', as ISO-8859-1 encoded bytes. The bytes are copied.
+		 * @param offset the offset of the aligned sequence in the array.
+		 * @param length the length of the aligned sequence in the array.
+		 * @param alignmentStart the start of the alignment in the sequence, 0 based.
+		 * @param alignmentLength the length of the aligned portion of the sequence without
+		 * gaps.
+		 * @param forwardStrand true if the alignment is on the forward strand.
+		 * @return this builder.
+		 */
+		public Builder setQuery(
+				final String id,
+				final int sequenceLength,
+				final byte[] alignedSequence,
+				final int offset,
+				final int length,
+				final int alignmentStart,
+				final int alignmentLength,
+				final boolean forwardStrand) {
+			setSequence(query, id, sequenceLength, alignedSequence, offset, length,
+					alignmentStart, alignmentLength, forwardStrand);
+			return this;
+		}
+
+		/** Set the target sequence of the row in progress.
+		 * @param id the sequence ID.
+		 * @param sequenceLength the length of the entire sequence.
+		 * @param alignedSequence an array containing the aligned portion of the sequence,
+		 * including gaps denoted by '-', as ISO-8859-1 encoded bytes. The bytes are copied.
+		 * @param offset the offset of the aligned sequence in the array.
+		 * @param length the length of the aligned sequence in the array.
+		 * @param alignmentStart the start of the alignment in the sequence, 0 based.
+		 * @param alignmentLength the length of the aligned portion of the sequence without
+		 * gaps.
+		 * @param forwardStrand true if the alignment is on the forward strand.
+		 * @return this builder.
+		 */
+		public Builder setTarget(
+				final String id,
+				final int sequenceLength,
+				final byte[] alignedSequence,
+				final int offset,
+				final int length,
+				final int alignmentStart,
+				final int alignmentLength,
+				final boolean forwardStrand) {
+			setSequence(target, id, sequenceLength, alignedSequence, offset, length,
+					alignmentStart, alignmentLength, forwardStrand);
+			return this;
+		}
+
+		private void setSequence(
+				final PendingSequence seq,
+				final String id,
+				final int sequenceLength,
+				final byte[] alignedSequence,
+				final int offset,
+				final int length,
+				final int alignmentStart,
+				final int alignmentLength,
+				final boolean forwardStrand) {
+			checkNotNull(id, "id");
+			checkNotNull(alignedSequence, "alignedSequence");
+			if (offset < 0 || length < 0 || offset + length > alignedSequence.length) {
+				throw new IndexOutOfBoundsException("offset and length out of bounds of array");
+			}
+			if (seq.set) {
+				throw new IllegalStateException("Sequence already set for the current row");
+			}
+			if (!query.set && !target.set) {
+				rowResidueStart = residueSize;
+			}
+			seq.set = true;
+			seq.id = toIDIndex(id);
+			seq.sequenceLength = sequenceLength;
+			seq.start = alignmentStart;
+			seq.alignmentLength = alignmentLength;
+			seq.forwardStrand = forwardStrand;
+			seq.columns = length;
+			seq.residueOffset = appendResidues(alignedSequence, offset, length);
+		}
+
+		private int toIDIndex(final String id) {
+			Integer index = idIndex.get(id);
+			if (index == null) {
+				index = ids.size();
+				ids.add(id);
+				idIndex.put(id, index);
+			}
+			return index;
+		}
+
+		private int appendResidues(final byte[] bytes, final int offset, final int length) {
+			if (residueSize + length > residues.length) {
+				residues = Arrays.copyOf(residues,
+						Math.max(residues.length * 2, residueSize + length));
+			}
+			System.arraycopy(bytes, offset, residues, residueSize, length);
+			residueSize += length;
+			return residueSize - length;
+		}
+
+		/** Add a row consisting of the query and target sequences that have been set.
+		 * @param eValue the E-value of the alignment.
+		 * @param bitScore the bit score of the alignment.
+		 * @return this builder.
+		 */
+		public Builder addRow(final double eValue, final int bitScore) {
+			if (!query.set || !target.set) {
+				throw new IllegalStateException(
+						"Both the query and target must be set before adding a row");
+			}
+			query.set = false;
+			target.set = false;
+			if (query.columns != target.columns) {
+				residueSize = rowResidueStart;
+				throw new IllegalArgumentException("Alignment lengths are unequal");
+			}
+			ensureCapacity();
+			final int r = size++;
+			eValues[r] = eValue;
+			bitScores[r] = bitScore;
+			queryIDs[r] = query.id;
+			targetIDs[r] = target.id;
+			querySequenceLengths[r] = query.sequenceLength;
+			targetSequenceLengths[r] = target.sequenceLength;
+			queryStarts[r] = query.start;
+			targetStarts[r] = target.start;
+			queryAlignmentLengths[r] = query.alignmentLength;
+			targetAlignmentLengths[r] = target.alignmentLength;
+			strands[r] = (byte) ((query.forwardStrand ? QUERY_FORWARD : 0) |
+					(target.forwardStrand ? TARGET_FORWARD : 0));
+			final int cols = query.columns;
+			queryResidueOffsets[r] = query.residueOffset;
+			targetResidueOffsets[r] = target.residueOffset;
+			alignmentColumns[r] = cols;
+			final AlignmentStatistics stats = AlignmentStatistics.calculate(
+					residues, query.residueOffset, residues, target.residueOffset, cols);
+			matches[r] = stats.matches;
+			mismatches[r] = stats.mismatches;
+			positives[r] = stats.positives;
+			gapColumns[r] = stats.gapColumns;
+			gapOpens[r] = AlignmentStatistics.countGapOpens(residues, query.residueOffset, cols) +
+					AlignmentStatistics.countGapOpens(residues, target.residueOffset, cols);
+			if (maxPerQuery > 0) {
+				addQueryRow(query.id, r);
+				if (queryRowCounts[query.id] >= 2 * maxPerQuery) {
+					discardWorst(query.id);
+				}
+			}
+			return this;
+		}
+
+		private void addQueryRow(final int queryID, final int row) {
+			if (queryID >= queryRows.length) {
+				final int n = Math.max(queryID + 1, queryRows.length * 2);
+				queryRows = Arrays.copyOf(queryRows, n);
+				queryRowCounts = Arrays.copyOf(queryRowCounts, n);
+			}
+			final int count = queryRowCounts[queryID];
+			if (queryRows[queryID] == null) {
+				queryRows[queryID] = new int[Math.min(2 * maxPerQuery, INITIAL_ROWS)];
+			} else if (count == queryRows[queryID].length) {
+				queryRows[queryID] = Arrays.copyOf(queryRows[queryID], count * 2);
+			}
+			queryRows[queryID][count] = row;
+			queryRowCounts[queryID]++;
+		}
+
+		// the rows of a query are in the order they were added, so the stable sort breaks ties
+		// the same way as bestPerQuery
+		private void discardWorst(final int queryID) {
+			final int count = queryRowCounts[queryID];
+			final int[] best = Arrays.copyOf(queryRows[queryID], count);
+			sortRows(best, (r1, r2) -> compareBestFirst(eValues, bitScores, r1, r2));
+			for (int i = maxPerQuery; i < count; i++) {
+				strands[best[i]] |= DISCARDED;
+			}
+			discarded += count - maxPerQuery;
+			final int[] kept = Arrays.copyOf(best, maxPerQuery);
+			Arrays.sort(kept);
+			System.arraycopy(kept, 0, queryRows[queryID], 0, maxPerQuery);
+			queryRowCounts[queryID] = maxPerQuery;
+			if (discarded > size - discarded) {
+				retain(keptRows());
+			}
+		}
+
+		/* Returns the rows that haven't been discarded, grouped by query in the order the
+		 * queries first appeared, including discarded rows. Otherwise discarding the first row
+		 * of a query could change the order of the queries in bestPerQuery.
+		 */
+		private int[] keptRows() {
+			final int[] kept = new int[size - discarded];
+			final int[] queryRank = new int[Math.max(1, ids.size())];
+			Arrays.fill(queryRank, -1);
+			int ranks = 0;
+			int count = 0;
+			for (int i = 0; i < size; i++) {
+				if (queryRank[queryIDs[i]] < 0) {
+					queryRank[queryIDs[i]] = ranks++;
+				}
+				if ((strands[i] & DISCARDED) == 0) {
+					kept[count++] = i;
+				}
+			}
+			if (discarded > 0) {
+				sortRows(kept, (r1, r2) -> Integer.compare(
+						queryRank[queryIDs[r1]], queryRank[queryIDs[r2]]));
+			}
+			return kept;
+		}
+		private void ensureCapacity() {
+			if (size < eValues.length) {
+				return;
+			}
+			final int n = eValues.length * 2;
+			eValues = Arrays.copyOf(eValues, n);
+			bitScores = Arrays.copyOf(bitScores, n);
+			queryIDs = Arrays.copyOf(queryIDs, n);
+			targetIDs = Arrays.copyOf(targetIDs, n);
+			querySequenceLengths = Arrays.copyOf(querySequenceLengths, n);
+			targetSequenceLengths = Arrays.copyOf(targetSequenceLengths, n);
+			queryStarts = Arrays.copyOf(queryStarts, n);
+			targetStarts = Arrays.copyOf(targetStarts, n);
+			queryAlignmentLengths = Arrays.copyOf(queryAlignmentLengths, n);
+			targetAlignmentLengths = Arrays.copyOf(targetAlignmentLengths, n);
+			strands = Arrays.copyOf(strands, n);
+			queryResidueOffsets = Arrays.copyOf(queryResidueOffsets, n);
+			targetResidueOffsets = Arrays.copyOf(targetResidueOffsets, n);
+			alignmentColumns = Arrays.copyOf(alignmentColumns, n);
+			matches = Arrays.copyOf(matches, n);
+			mismatches = Arrays.copyOf(mismatches, n);
+			positives = Arrays.copyOf(positives, n);
+			gapColumns = Arrays.copyOf(gapColumns, n);
+			gapOpens = Arrays.copyOf(gapOpens, n);
+		}
+
+		/** Add a result.
+		 * @param result the result.
+		 * @return this builder.
+		 */
+		public Builder add(final SequenceSearchResult result) {
+			checkNotNull(result, "result");
+			final AlignedSequence q = result.getQuery();
+			final AlignedSequence t = result.getTarget();
+			final byte[] qb = q.getAlignedBytes();
+			final byte[] tb = t.getAlignedBytes();
+			setQuery(q.getId(), q.getSequenceLength(), qb, 0, qb.length, q.getAlignmentStart(),
+					q.getAlignmentLength(), q.isForwardStrand());
+			setTarget(t.getId(), t.getSequenceLength(), tb, 0, tb.length, t.getAlignmentStart(),
+					t.getAlignmentLength(), t.isForwardStrand());
+			return addRow(result.getEValue(), result.getBitScore());
+		}
+
+		/** Add all the results in a batch.
+		 * @param batch the batch.
+		 * @return this builder.
+		 */
+		public Builder addAll(final ResultBatch batch) {
+			checkNotNull(batch, "batch");
+			for (int i = 0; i < batch.size(); i++) {
+				addResult(batch, i);
+			}
+			return this;
+		}
+
+		private void addResult(final ResultBatch batch, final int row) {
+			final Columns c = batch.columns;
+			final int r = batch.rows[row];
+			final int cols = c.alignmentColumns[r];
+			if (decoded.length < 2 * cols) {
+				decoded = new byte[Math.max(2 * cols, 2 * decoded.length)];
+			}
+			decode(c, r, false, decoded, 0);
+			decode(c, r, true, decoded, cols);
+			setQuery(batch.getQueryID(row), c.querySequenceLengths[r], decoded,
+					0, cols, c.queryStarts[r],
+					c.queryAlignmentLengths[r], batch.isQueryForwardStrand(row));
+			setTarget(batch.getTargetID(row), c.targetSequenceLengths[r], decoded,
+					cols, cols, c.targetStarts[r],
+					c.targetAlignmentLengths[r], batch.isTargetForwardStrand(row));
+			addRow(c.eValues[r], c.bitScores[r]);
+		}
+
+		/** Discard all but the best results for each query, as per
+		 * {@link ResultBatch#bestPerQuery(int)}, compacting the builder. Used to bound the
+		 * memory used by the builder when only the best results are required.
+		 * 
+		 * The retained results are reordered as per {@link ResultBatch#bestPerQuery(int)}, which
+		 * preserves the order in which the queries first appeared in the builder, so calling
+		 * {@link ResultBatch#bestPerQuery(int)} on the built batch gives the same result as if
+		 * no results had been discarded.
+		 * @param max the maximum number of results to keep per query.
+		 * @return this builder.
+		 */
+		public Builder retainBestPerQuery(final int max) {
+			if (query.set || target.set) {
+				throw new IllegalStateException("A row is in progress");
+			}
+			retain(bestPerQuery(eValues, bitScores, queryIDs, ids.size(), keptRows(), max));
+			return this;
+		}
+
+		// keep the given rows, in the given order, and drop the rest
+		private void retain(final int[] keep) {
+			final byte[] newResidues = new byte[residues.length];
+			final int[] newQueryOffsets = new int[queryResidueOffsets.length];
+			final int[] newTargetOffsets = new int[targetResidueOffsets.length];
+			int residue = 0;
+			for (int i = 0; i < keep.length; i++) {
+				final int r = keep[i];
+				final int cols = alignmentColumns[r];
+				System.arraycopy(residues, queryResidueOffsets[r], newResidues, residue, cols);
+				newQueryOffsets[i] = residue;
+				residue += cols;
+				System.arraycopy(residues, targetResidueOffsets[r], newResidues, residue, cols);
+				newTargetOffsets[i] = residue;
+				residue += cols;
+			}
+			residues = newResidues;
+			residueSize = residue;
+			queryResidueOffsets = newQueryOffsets;
+			targetResidueOffsets = newTargetOffsets;
+			eValues = gather(eValues, keep);
+			bitScores = gather(bitScores, keep);
+			queryIDs = gather(queryIDs, keep);
+			targetIDs = gather(targetIDs, keep);
+			querySequenceLengths = gather(querySequenceLengths, keep);
+			targetSequenceLengths = gather(targetSequenceLengths, keep);
+			queryStarts = gather(queryStarts, keep);
+			targetStarts = gather(targetStarts, keep);
+			queryAlignmentLengths = gather(queryAlignmentLengths, keep);
+			targetAlignmentLengths = gather(targetAlignmentLengths, keep);
+			alignmentColumns = gather(alignmentColumns, keep);
+			matches = gather(matches, keep);
+			mismatches = gather(mismatches, keep);
+			positives = gather(positives, keep);
+			gapColumns = gather(gapColumns, keep);
+			gapOpens = gather(gapOpens, keep);
+			final byte[] newStrands = new byte[strands.length];
+			for (int i = 0; i < keep.length; i++) {
+				newStrands[i] = strands[keep[i]];
+			}
+			strands = newStrands;
+			size = keep.length;
+			discarded = 0;
+			compactIDs();
+			if (maxPerQuery > 0) {
+				// the query IDs and rows have changed
+				Arrays.fill(queryRowCounts, 0);
+				for (int i = 0; i < size; i++) {
+					addQueryRow(queryIDs[i], i);
+				}
+			}
+		}
+
+		private static int[] gather(final int[] column, final int[] rows) {
+			final int[] ret = new int[column.length];
+			for (int i = 0; i < rows.length; i++) {
+				ret[i] = column[rows[i]];
+			}
+			return ret;
+		}
+
+		private static double[] gather(final double[] column, final int[] rows) {
+			final double[] ret = new double[column.length];
+			for (int i = 0; i < rows.length; i++) {
+				ret[i] = column[rows[i]];
+			}
+			return ret;
+		}
+
+		// drop the IDs that are no longer referenced by any row
+		private void compactIDs() {
+			final int[] remap = new int[ids.size()];
+			Arrays.fill(remap, -1);
+			final List<String> kept = new ArrayList<>();
+			for (int i = 0; i < size; i++) {
+				queryIDs[i] = remapID(queryIDs[i], remap, kept);
+				targetIDs[i] = remapID(targetIDs[i], remap, kept);
+			}
+			ids.clear();
+			ids.addAll(kept);
+			idIndex.clear();
+			for (int i = 0; i < ids.size(); i++) {
+				idIndex.put(ids.get(i), i);
+			}
+		}
+
+		private int remapID(final int id, final int[] remap, final List<String> kept) {
+			if (remap[id] < 0) {
+				remap[id] = kept.size();
+				kept.add(ids.get(id));
+			}
+			return remap[id];
+		}
+
+		/** Remove all the rows from the builder, including any row in progress. The per query
+		 * limit, if any, is kept.
+		 * @return this builder.
+		 */
+		public Builder clear() {
+			ids.clear();
+			idIndex.clear();
+			residueSize = 0;
+			rowResidueStart = 0;
+			size = 0;
+			discarded = 0;
+			Arrays.fill(queryRowCounts, 0);
+			query.set = false;
+			target.set = false;
+			return this;
+		}
+
+		/** Build the {@link ResultBatch}. Any row in progress is discarded.
+		 * @return the batch.
+		 */
+		public ResultBatch build() {
+			if (query.set || target.set) {
+				residueSize = rowResidueStart;
+			}
+			query.set = false;
+			target.set = false;
+			if (discarded > 0) {
+				retain(keptRows());
+			}
+			final int[] rows = new int[size];
+			for (int i = 0; i < size; i++) {
+				rows[i] = i;
+			}
+			return new ResultBatch(new Columns(this), rows, Optional.absent());
+		}
+	}
+}
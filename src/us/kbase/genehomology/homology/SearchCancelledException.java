@@ -0,0 +1,13 @@
+package us.kbase.genehomology.homology;
+
+/** Thrown when a search is cancelled before it completes.
+ * @author gaprice@lbl.gov
+ *
+ */
+@SuppressWarnings("serial")
+public class SearchCancelledException extends GeneHomologyImplementationException {
+
+	public SearchCancelledException(final String message) {
+		super(message);
+	}
+}
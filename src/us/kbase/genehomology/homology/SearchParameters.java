@@ -0,0 +1,155 @@
+package us.kbase.genehomology.homology;
+
+import com.google.common.base.Optional;
+
+/** Parameters limiting the results of a homology search.
+ * @author gaprice@lbl.gov
+ *
+ */
+public class SearchParameters {
+
+	private final Optional<Integer> maxResults;
+	private final Optional<Double> maxEValue;
+	private final Optional<Integer> minBitScore;
+
+	private SearchParameters(
+			final Optional<Integer> maxResults,
+			final Optional<Double> maxEValue,
+			final Optional<Integer> minBitScore) {
+		this.maxResults = maxResults;
+		this.maxEValue = maxEValue;
+		this.minBitScore = minBitScore;
+	}
+
+	/** Get the maximum number of results to return per query sequence, if any. The best
+	 * results, as ordered by {@link SequenceSearchResult#BEST_FIRST}, are returned.
+	 * @return the maximum number of results.
+	 */
+	public Optional<Integer> getMaxResults() {
+		return maxResults;
+	}
+
+	/** Get the maximum E-value of a returned result, if any.
+	 * @return the maximum E-value.
+	 */
+	public Optional<Double> getMaxEValue() {
+		return maxEValue;
+	}
+
+	/** Get the minimum bit score of a returned result, if any.
+	 * @return the minimum bit score.
+	 */
+	public Optional<Integer> getMinBitScore() {
+		return minBitScore;
+	}
+
+	/** Check whether a result passes the E-value and bit score thresholds.
+	 * @param eValue the E-value of the result.
+	 * @param bitScore the bit score of the result.
+	 * @return true if the result passes the thresholds.
+	 */
+	public boolean isAccepted(final double eValue, final int bitScore) {
+		return (!maxEValue.isPresent() || eValue <= maxEValue.get()) &&
+				(!minBitScore.isPresent() || bitScore >= minBitScore.get());
+	}
+
+	/** Get a string representation of the parameters such that two sets of parameters have
+	 * equal representations if and only if they are equal.
+	 * @return the canonical representation of the parameters.
+	 */
+	public String getCanonicalForm() {
+		return String.format("maxresults=%s,maxevalue=%s,minbitscore=%s",
+				maxResults.orNull(), maxEValue.orNull(), minBitScore.orNull());
+	}
+
+	@Override
+	public int hashCode() {
+		final int prime = 31;
+		int result = 1;
+		result = prime * result + maxEValue.hashCode();
+		result = prime * result + maxResults.hashCode();
+		result = prime * result + minBitScore.hashCode();
+		return result;
+	}
+
+	@Override
+	public boolean equals(final Object obj) {
+		if (this == obj) {
+			return true;
+		}
+		if (obj == null) {
+			return false;
+		}
+		if (getClass() != obj.getClass()) {
+			return false;
+		}
+		final SearchParameters other = (SearchParameters) obj;
+		return maxEValue.equals(other.maxEValue) && maxResults.equals(other.maxResults) &&
+				minBitScore.equals(other.minBitScore);
+	}
+
+	@Override
+	public String toString() {
+		return "SearchParameters [" + getCanonicalForm() + "]";
+	}
+
+	/** Get a {@link SearchParameters} builder. By default there are no limits on the results.
+	 * @return a new builder.
+	 */
+	public static Builder getBuilder() {
+		return new Builder();
+	}
+
+	/** A {@link SearchParameters} builder.
+	 * @author gaprice@lbl.gov
+	 *
+	 */
+	public static class Builder {
+
+		private Optional<Integer> maxResults = Optional.absent();
+		private Optional<Double> maxEValue = Optional.absent();
+		private Optional<Integer> minBitScore = Optional.absent();
+
+		private Builder() {}
+
+		/** Set the maximum number of results to return per query sequence.
+		 * @param maxResults the maximum number of results, or null for no limit.
+		 * @return this builder.
+		 */
+		public Builder withNullableMaxResults(final Integer maxResults) {
+			if (maxResults != null && maxResults < 1) {
+				throw new IllegalArgumentException("maxResults must be > 0");
+			}
+			this.maxResults = Optional.fromNullable(maxResults);
+			return this;
+		}
+
+		/** Set the maximum E-value of a returned result.
+		 * @param maxEValue the maximum E-value, or null for no limit.
+		 * @return this builder.
+		 */
+		public Builder withNullableMaxEValue(final Double maxEValue) {
+			if (maxEValue != null && (maxEValue.isNaN() || maxEValue < 0)) {
+				throw new IllegalArgumentException("maxEValue must be >= 0");
+			}
+			this.maxEValue = Optional.fromNullable(maxEValue);
+			return this;
+		}
+
+		/** Set the minimum bit score of a returned result.
+		 * @param minBitScore the minimum bit score, or null for no limit.
+		 * @return this builder.
+		 */
+		public Builder withNullableMinBitScore(final Integer minBitScore) {
+			this.minBitScore = Optional.fromNullable(minBitScore);
+			return this;
+		}
+
+		/** Build the {@link SearchParameters}.
+		 * @return the parameters.
+		 */
+		public SearchParameters build() {
+			return new SearchParameters(maxResults, maxEValue, minBitScore);
+		}
+	}
+}
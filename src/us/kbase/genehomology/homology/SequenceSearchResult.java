@@ -1,16 +1,39 @@
 package us.kbase.genehomology.homology;
 
+import java.util.Comparator;
+
+/** The result of a sequence search - an alignment of a query sequence and a target sequence.
+ * 
+ * The alignment statistics are calculated in a single pass over the alignment when the result
+ * is created, and the result is immutable and so may be safely shared between threads.
+ * @author gaprice@lbl.gov
+ *
+ */
 public class SequenceSearchResult {
 	
-	// could do gaps, matches, and mismatches in same pass, but meh for now
+	/** Orders results from best to worst: by E-value, lowest first, and then by bit score,
+	 * highest first.
+	 */
+	public static final Comparator<SequenceSearchResult> BEST_FIRST =
+			Comparator.comparingDouble(SequenceSearchResult::getEValue)
+					.thenComparing(Comparator.comparingInt(
+							SequenceSearchResult::getBitScore).reversed());
 	
 	private final AlignedSequence query;
 	private final AlignedSequence target;
 	private final double eValue;
 	private final int bitScore;
-	private int matches = -1;
-	private int mismatches = -1;
+	private final int matches;
+	private final int mismatches;
+	private final int positives;
+	private final int gapColumns;
 	
+	/** Create a search result.
+	 * @param query the aligned query sequence.
+	 * @param target the aligned target sequence.
+	 * @param eValue the E-value of the alignment.
+	 * @param bitScore the bit score of the alignment.
+	 */
 	public SequenceSearchResult(
 			final AlignedSequence query,
 			final AlignedSequence target,
@@ -23,6 +46,33 @@ public class SequenceSearchResult {
 		this.target = target;
 		this.eValue = eValue;
 		this.bitScore = bitScore;
+		final AlignmentStatistics stats = AlignmentStatistics.calculate(
+				query.getAlignedBytes(), 0, target.getAlignedBytes(), 0,
+				query.getAlignmentLengthWithGaps());
+		this.matches = stats.matches;
+		this.mismatches = stats.mismatches;
+		this.positives = stats.positives;
+		this.gapColumns = stats.gapColumns;
+	}
+	
+	// for results with precalculated statistics
+	SequenceSearchResult(
+			final AlignedSequence query,
+			final AlignedSequence target,
+			final double eValue,
+			final int bitScore,
+			final int matches,
+			final int mismatches,
+			final int positives,
+			final int gapColumns) {
+		this.query = query;
+		this.target = target;
+		this.eValue = eValue;
+		this.bitScore = bitScore;
+		this.matches = matches;
+		this.mismatches = mismatches;
+		this.positives = positives;
+		this.gapColumns = gapColumns;
 	}
 
 	public double getEValue() {
@@ -41,6 +91,15 @@ public class SequenceSearchResult {
 		return target;
 	}
 	
+	/** Get a copy of this result with a different query sequence ID.
+	 * @param id the new query ID.
+	 * @return the new result.
+	 */
+	public SequenceSearchResult withQueryID(final String id) {
+		return new SequenceSearchResult(query.withID(id), target, eValue, bitScore, matches,
+				mismatches, positives, gapColumns);
+	}
+	
 	public int getAlignmentLength() {
 		return query.getAlignmentLengthWithGaps();
 	}
@@ -48,37 +107,38 @@ public class SequenceSearchResult {
 	public int getGapOpenCount() {
 		return query.getGapOpenCount() + target.getGapOpenCount();
 	}
+	
+	/** Get the number of alignment columns containing a gap in either sequence.
+	 * @return the number of gap columns.
+	 */
+	public int getGapCount() {
+		return gapColumns;
+	}
 
 	public double getPercentID() {
-		calculateMatchesAndMismatches();
 		return matches / (double) getAlignmentLength();
 	}
 	
+	public int getMatches() {
+		return matches;
+	}
+	
 	public int getMismatches() {
-		calculateMatchesAndMismatches();
 		return mismatches;
 	}
 	
-	private void calculateMatchesAndMismatches() {
-		if (matches != -1) { 
-			return;
-		}
-		matches = 0;
-		mismatches = 0;
-		final String qs = query.getAlignedSequence();
-		final String ts = target.getAlignedSequence();
-		for (int i = 0; i < getAlignmentLength(); i++) {
-			final char q = qs.charAt(i);
-			final char t = ts.charAt(i);
-			if (q != '-' && t != '-') {
-				if (q == t) {
-					matches++;
-				} else {
-					mismatches++;
-				}
-				
-			}
-		}
+	/** Get the number of aligned residue pairs with a positive BLOSUM62 substitution score.
+	 * @return the number of positives.
+	 */
+	public int getPositives() {
+		return positives;
+	}
+	
+	/** Get the positives as a fraction of the alignment length.
+	 * @return the fraction of positive columns.
+	 */
+	public double getPercentPositive() {
+		return positives / (double) getAlignmentLength();
 	}
 
 	@Override
@@ -6,32 +6,66 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
 
 import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.NullOutputStream;
+
+import com.google.common.base.Optional;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 import us.kbase.genehomology.core.exceptions.IllegalParameterException;
 import us.kbase.genehomology.core.exceptions.MissingParameterException;
 import us.kbase.genehomology.homology.AlignedSequence;
+import us.kbase.genehomology.homology.CancellationToken;
 import us.kbase.genehomology.homology.GeneHomologyDBLocation;
 import us.kbase.genehomology.homology.GeneHomologyDBName;
 import us.kbase.genehomology.homology.GeneHomologyDatabase;
 import us.kbase.genehomology.homology.GeneHomologyImplementationException;
 import us.kbase.genehomology.homology.GeneHomologyImplementationName;
+import us.kbase.genehomology.homology.QueryInput;
+import us.kbase.genehomology.homology.QueryResultsListener;
+import us.kbase.genehomology.homology.ResultBatch;
+import us.kbase.genehomology.homology.SearchCancelledException;
+import us.kbase.genehomology.homology.SearchParameters;
 import us.kbase.genehomology.homology.SequenceSearchResult;
+import us.kbase.genehomology.util.ProcessManager;
 
 public class LAST {
 	
 	private static final String LAST_ALIGN = "lastal";
+	private static final String NUM_SEQS = "numofsequences";
+	private static final String NUM_LETTERS = "numofletters";
+	// the lastal default -D option. By default lastal reports alignments with E-values up to
+	// the query length / D.
+	private static final double LASTAL_DEFAULT_D = 1e6;
 	private static final GeneHomologyImplementationName NAME;
 	static {
 		try {
@@ -43,21 +77,109 @@ public class LAST {
 	
 	private final Path tempFileDirectory;
 	private final int lastTimeoutSec;
+	private final boolean streamOutput;
+	private final ThreadBudget threadBudget;
+	private final int maxThreadsPerSearch;
+	private final ProcessManager processManager;
+	// true if the process manager was created by this instance and so is shut down with it
+	private final boolean ownsProcessManager;
+	private final AtomicLong cancelledProcesses = new AtomicLong();
+	
+	private final ExecutorService shardSearchers = Executors.newCachedThreadPool(
+			new ThreadFactoryBuilder().setDaemon(true).setNameFormat("lastal-shard-%d").build());
+	// only created when streaming output
+	private ExecutorService stderrReaders = null;
+	private ScheduledExecutorService timeoutKiller = null;
+	private final ExecutorService stdinWriters = Executors.newCachedThreadPool(
+			new ThreadFactoryBuilder().setDaemon(true).setNameFormat("lastal-stdin-%d").build());
 	
 	//TODO AAA All the code in this repo is prototype. It all needs to be rewritten to prod quality.
 	//TODO CODE there's quite a bit of similarity with the AssemblyHomologyService. Shared repo?
 	
+	/** Create a LAST wrapper that writes the LAST output to a temporary file and parses the
+	 * file after LAST completes. The wrapper creates its own process manager, which is shut down
+	 * by {@link #shutdown()}.
+	 * @param tempFileDirectory a directory for temporary files.
+	 * @param lastTimeoutSec the timeout for LAST runs in seconds.
+	 * @throws GeneHomologyImplementationException if the temporary directory couldn't be created.
+	 */
 	public LAST(final Path tempFileDirectory, final int lastTimeoutSec)
+			throws GeneHomologyImplementationException {
+		this(tempFileDirectory, lastTimeoutSec, false, 1, 1,
+				new ProcessManager(ProcessManager.DEFAULT_TERMINATION_GRACE_MS), true);
+	}
+	
+	/** Create a LAST wrapper.
+	 * 
+	 * Each LAST run is given a number of threads (the lastal -P option) based on the current
+	 * load. When few searches are running a search may use up to maxThreadsPerSearch threads;
+	 * as the system becomes busier searches get fewer threads, down to one. The total number
+	 * of threads used by running LAST processes never exceeds the thread budget - a search
+	 * waits for a thread if the budget is exhausted.
+	 * 
+	 * Note that lastal divides work between threads by query sequence, so a search is never
+	 * given more threads than it has query sequences.
+	 * 
+	 * LAST processes are started via the process manager. A process that times out, or whose
+	 * search fails or is cancelled, is terminated rather than left to run to completion.
+	 * 
+	 * @param tempFileDirectory a directory for temporary files.
+	 * @param lastTimeoutSec the timeout for LAST runs in seconds.
+	 * @param streamOutput true to parse the LAST output as LAST writes it to standard out,
+	 * rather than writing the output to a temporary file and parsing it after LAST completes.
+	 * @param threadBudget the maximum total number of threads used by all running LAST
+	 * processes.
+	 * @param maxThreadsPerSearch the maximum number of threads used by any one search.
+	 * @param processManager the manager that starts and tracks LAST processes. The caller is
+	 * responsible for shutting down the manager.
+	 * @throws GeneHomologyImplementationException if the temporary directory couldn't be created.
+	 */
+	public LAST(
+			final Path tempFileDirectory,
+			final int lastTimeoutSec,
+			final boolean streamOutput,
+			final int threadBudget,
+			final int maxThreadsPerSearch,
+			final ProcessManager processManager)
+			throws GeneHomologyImplementationException {
+		this(tempFileDirectory, lastTimeoutSec, streamOutput, threadBudget, maxThreadsPerSearch,
+				processManager, false);
+	}
+	
+	private LAST(
+			final Path tempFileDirectory,
+			final int lastTimeoutSec,
+			final boolean streamOutput,
+			final int threadBudget,
+			final int maxThreadsPerSearch,
+			final ProcessManager processManager,
+			final boolean ownsProcessManager)
 			throws GeneHomologyImplementationException { //TODO CODE make init exception
 		checkNotNull(tempFileDirectory, "tempFileDirectory");
+		checkNotNull(processManager, "processManager");
 		if (lastTimeoutSec < 1) {
 			throw new IllegalArgumentException("mashTimeout must be > 0");
 		}
+		if (maxThreadsPerSearch < 1) {
+			throw new IllegalArgumentException("maxThreadsPerSearch must be > 0");
+		}
 		this.lastTimeoutSec = lastTimeoutSec;
 		this.tempFileDirectory = tempFileDirectory;
+		this.streamOutput = streamOutput;
+		this.threadBudget = new ThreadBudget(threadBudget);
+		this.maxThreadsPerSearch = maxThreadsPerSearch;
+		this.processManager = processManager;
+		this.ownsProcessManager = ownsProcessManager;
+		if (streamOutput) {
+			stderrReaders = Executors.newCachedThreadPool(new ThreadFactoryBuilder()
+					.setDaemon(true).setNameFormat("lastal-stderr-%d").build());
+			timeoutKiller = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+					.setDaemon(true).setNameFormat("lastal-timeout").build());
+		}
 		try {
 			Files.createDirectories(tempFileDirectory);
 		} catch (IOException e) {
+			shutdown();
 			throw new GeneHomologyImplementationException( //TODO CODE init exception
 					"Couldn't create temporary directory: " + e.getMessage(), e);
 		}
@@ -69,40 +191,486 @@ public class LAST {
 			throws GeneHomologyImplementationException {
 		checkNotNull(dbName, "dbName");
 		checkNotNull(loc, "loc");
+		int sequences = 0;
+		for (final Path shard: loc.getShards()) {
+			sequences += Integer.parseInt(readProjectFile(shard).getProperty(NUM_SEQS));
+		}
+		return new GeneHomologyDatabase(dbName, NAME, loc, sequences);
+	}
+	
+	private Properties readProjectFile(final Path prj)
+			throws GeneHomologyImplementationException {
 		final Properties props = new Properties();
-		try (final InputStream is = Files.newInputStream(loc.getPathToFile().get())) {
+		try (final InputStream is = Files.newInputStream(prj)) {
 			props.load(is);
 		} catch (IOException e) {
 			throw new GeneHomologyImplementationException(String.format(
-					"Couldn't open LAST database file %s: %s",
-					loc.getPathToFile().get(), e.getMessage()), e);
+					"Couldn't open LAST database file %s: %s", prj, e.getMessage()), e);
 		}
-		if (!props.containsKey("numofsequences")) { // could check a couple more keys
+		if (!props.containsKey(NUM_SEQS)) { // could check a couple more keys
 			throw new GeneHomologyImplementationException(String.format(
-					"File %s is not a LAST database file", loc.getPathToFile().get()));
+					"File %s is not a LAST database file", prj));
 		}
-		return new GeneHomologyDatabase(
-				dbName,
-				NAME,
-				loc,
-				Integer.parseInt(props.getProperty("numofsequences")));
+		return props;
 	}
 	
-	public List<SequenceSearchResult> search(
+	/** Search a database with no limits on the results.
+	 * @param dbName the name of the database.
+	 * @param searchDB the location of the database.
+	 * @param queryFasta a FASTA file containing the query sequences.
+	 * @return the search results.
+	 * @throws GeneHomologyImplementationException if the search failed.
+	 */
+	public ResultBatch search(
 			final GeneHomologyDBName dbName,
 			final GeneHomologyDBLocation searchDB,
 			final Path queryFasta)
 			throws GeneHomologyImplementationException {
+		return search(dbName, searchDB, queryFasta, SearchParameters.getBuilder().build());
+	}
+	
+	/** Search a database.
+	 * 
+	 * The E-value and bit score thresholds and the result limit in the search parameters are
+	 * enforced while the LAST output is parsed, and only the best results for each query
+	 * sequence are kept in memory. The maximum E-value is also passed to lastal as the
+	 * equivalent maximum EG2 (-E) when it is stricter than the lastal default, which allows
+	 * lastal to skip alignments that would be discarded anyway. lastal has no equivalent of the
+	 * result limit, and its score threshold (-e) is a raw score rather than a bit score, so
+	 * those are only enforced by the parser. If a maximum number of results is provided,
+	 * the results for each query are ordered by
+	 * {@link SequenceSearchResult#BEST_FIRST}.
+	 * 
+	 * If the database is sharded, each shard is searched in parallel and the results are
+	 * merged into one list grouped by query, with the results for each query ordered by
+	 * E-value, lowest first, and then bit score, highest first.
+	 * The E-values of results from a shard are scaled by the ratio of the size of the entire
+	 * database to the size of the shard so that they are relative to the entire database.
+	 * 
+	 * @param dbName the name of the database.
+	 * @param searchDB the location of the database.
+	 * @param queryFasta a FASTA file containing the query sequences.
+	 * @param params the search parameters.
+	 * @return the search results.
+	 * @throws GeneHomologyImplementationException if the search failed.
+	 */
+	public ResultBatch search(
+			final GeneHomologyDBName dbName,
+			final GeneHomologyDBLocation searchDB,
+			final Path queryFasta,
+			final SearchParameters params)
+			throws GeneHomologyImplementationException {
+		return search(dbName, searchDB, queryFasta, params, new CancellationToken());
+	}
+	
+	/** Search a database, stopping if the search is cancelled.
+	 * 
+	 * See {@link #search(GeneHomologyDBName, GeneHomologyDBLocation, Path, SearchParameters)}
+	 * for details. If the search is cancelled, any running LAST processes are terminated and
+	 * a {@link SearchCancelledException} is thrown.
+	 * 
+	 * @param dbName the name of the database.
+	 * @param searchDB the location of the database.
+	 * @param queryFasta a FASTA file containing the query sequences.
+	 * @param params the search parameters.
+	 * @param token a token that signals the search is cancelled.
+	 * @return the search results.
+	 * @throws SearchCancelledException if the search was cancelled.
+	 * @throws GeneHomologyImplementationException if the search failed.
+	 */
+	public ResultBatch search(
+			final GeneHomologyDBName dbName,
+			final GeneHomologyDBLocation searchDB,
+			final Path queryFasta,
+			final SearchParameters params,
+			final CancellationToken token)
+			throws GeneHomologyImplementationException {
 		checkNotNull(queryFasta, "queryFasta");
+		return search(dbName, searchDB, QueryInput.fromFile(queryFasta), params, token);
+	}
+	
+	/** Search a database, stopping if the search is cancelled.
+	 * 
+	 * See {@link #search(GeneHomologyDBName, GeneHomologyDBLocation, Path, SearchParameters,
+	 * CancellationToken)} for details. Queries held in memory are written to the standard input
+	 * of each lastal process rather than to a file.
+	 * 
+	 * @param dbName the name of the database.
+	 * @param searchDB the location of the database.
+	 * @param query the query sequences.
+	 * @param params the search parameters.
+	 * @param token a token that signals the search is cancelled.
+	 * @return the search results.
+	 * @throws SearchCancelledException if the search was cancelled.
+	 * @throws GeneHomologyImplementationException if the search failed.
+	 */
+	public ResultBatch search(
+			final GeneHomologyDBName dbName,
+			final GeneHomologyDBLocation searchDB,
+			final QueryInput query,
+			final SearchParameters params,
+			final CancellationToken token)
+			throws GeneHomologyImplementationException {
+		return search(dbName, searchDB, query, params, token, Optional.absent());
+	}
+	
+	/** Search a database, passing the results for each query sequence to a listener as soon as
+	 * they are final rather than returning all the results when the search is complete.
+	 * 
+	 * See {@link #search(GeneHomologyDBName, GeneHomologyDBLocation, QueryInput,
+	 * SearchParameters, CancellationToken)} for details. lastal writes the results for each
+	 * query sequence together, in the order of the query sequences in the input, so the
+	 * results for a query are passed to the listener when the results for the next query start
+	 * or the search completes. For a sharded database, the results for a query are passed to
+	 * the listener once every shard has completed the query. Only the results for a query are
+	 * held in memory, rather than the results for the entire search. If the LAST output is not
+	 * streamed, no results are passed to the listener until LAST completes.
+	 * 
+	 * The listener is called from the thread running the search, or, for a sharded database,
+	 * from the shard search threads, one call at a time. If the search fails, the listener
+	 * may already have received the results for some queries.
+	 * 
+	 * @param dbName the name of the database.
+	 * @param searchDB the location of the database.
+	 * @param query the query sequences.
+	 * @param params the search parameters.
+	 * @param token a token that signals the search is cancelled.
+	 * @param listener the receiver of the results for each query.
+	 * @throws SearchCancelledException if the search was cancelled.
+	 * @throws GeneHomologyImplementationException if the search failed.
+	 */
+	public void search(
+			final GeneHomologyDBName dbName,
+			final GeneHomologyDBLocation searchDB,
+			final QueryInput query,
+			final SearchParameters params,
+			final CancellationToken token,
+			final QueryResultsListener listener)
+			throws GeneHomologyImplementationException {
+		checkNotNull(listener, "listener");
+		search(dbName, searchDB, query, params, token, Optional.of(listener));
+	}
+	
+	// returns an empty batch if a listener is present
+	private ResultBatch search(
+			final GeneHomologyDBName dbName,
+			final GeneHomologyDBLocation searchDB,
+			final QueryInput query,
+			final SearchParameters params,
+			final CancellationToken token,
+			final Optional<QueryResultsListener> listener)
+			throws GeneHomologyImplementationException {
+		checkNotNull(query, "query");
+		checkNotNull(params, "params");
+		checkNotNull(token, "token");
+		token.throwIfCancelled();
 		@SuppressWarnings("unused")
 		final GeneHomologyDatabase db = getDatabase(dbName, searchDB); //TODO NOW return
-		Path tempFile = null;
-		String dbpath = searchDB.getPathToFile().get().toString();
+		final QueryStats stats = getQueryStats(query);
+		final List<Long> shardSizes = new ArrayList<>();
+		long dbSize = 0;
+		for (final Path shard: searchDB.getShards()) {
+			final long size = getDatabaseSize(shard);
+			shardSizes.add(size);
+			dbSize += size;
+		}
+		final List<String> thresholdArgs = getThresholdArgs(params, stats, dbSize);
+		if (!searchDB.isSharded()) {
+			return searchShard(searchDB.getShards().get(0), query, stats.sequences,
+					thresholdArgs, params, 1, token, listener);
+		}
+		final Optional<ShardMerger> merger = listener.isPresent() ? Optional.of(new ShardMerger(
+				listener.get(), params, stats.ids, searchDB.getShards().size())) :
+				Optional.absent();
+		final List<Future<ResultBatch>> shardSearches = new ArrayList<>();
+		for (int i = 0; i < searchDB.getShards().size(); i++) {
+			final Path shard = searchDB.getShards().get(i);
+			final double eValueScale = dbSize / (double) shardSizes.get(i);
+			final int shardIndex = i;
+			shardSearches.add(shardSearchers.submit(() -> {
+				if (!merger.isPresent()) {
+					return searchShard(shard, query, stats.sequences, thresholdArgs, params,
+							eValueScale, token, Optional.absent());
+				}
+				final ResultBatch res = searchShard(shard, query, stats.sequences,
+						thresholdArgs, params, eValueScale, token, Optional.of(
+								(id, r) -> merger.get().add(shardIndex, id, r)));
+				merger.get().shardComplete(shardIndex);
+				return res;
+			}));
+		}
+		final List<ResultBatch> shardResults = new ArrayList<>();
+		GeneHomologyImplementationException error = null;
+		for (int i = 0; i < shardSearches.size(); i++) {
+			// wait for all the shards to complete before returning, even on an error
+			try {
+				shardResults.add(shardSearches.get(i).get());
+			} catch (InterruptedException e) {
+				error = error != null ? error : new GeneHomologyImplementationException(
+						"Interrupted while waiting for database shard search", e);
+			} catch (ExecutionException e) {
+				error = error != null ? error : e.getCause() instanceof
+						GeneHomologyImplementationException ?
+						(GeneHomologyImplementationException) e.getCause() :
+						new GeneHomologyImplementationException(
+								e.getCause().getMessage(), e.getCause());
+			}
+		}
+		// shards fail in arbitrary ways when their processes are killed
+		token.throwIfCancelled();
+		if (error != null) {
+			throw error;
+		}
+		return mergeShards(shardResults, params);
+	}
+	
+	private static ResultBatch mergeShards(
+			final List<ResultBatch> shardResults,
+			final SearchParameters params) {
+		// with a maximum, shard results are already grouped by query and sorted
+		if (params.getMaxResults().isPresent()) {
+			return ResultBatch.mergeBestPerQuery(shardResults, params.getMaxResults().get());
+		}
+		final List<ResultBatch> sorted = new ArrayList<>();
+		for (final ResultBatch b: shardResults) {
+			sorted.add(b.bestPerQuery(Integer.MAX_VALUE));
+		}
+		return ResultBatch.mergeBestPerQuery(sorted, Integer.MAX_VALUE);
+	}
+	
+	/* Passes the results of each query in a sharded search to a listener once every shard has
+	 * completed the query, in input order. lastal reports the queries in input order, so a
+	 * shard has completed every query up to the last query it reported. A shard that fails
+	 * never completes its remaining queries, so no results are passed on that are missing the
+	 * results from that shard.
+	 */
+	private static class ShardMerger {
+		
+		private final QueryResultsListener listener;
+		private final SearchParameters params;
+		private final List<String> queryIDs;
+		private final Map<String, Integer> queryIndexes = new HashMap<>();
+		// the index of the last query completed by each shard
+		private final int[] completed;
+		// the results from each shard for queries not yet passed to the listener
+		private final Map<Integer, List<ResultBatch>> pending = new HashMap<>();
+		private int next = 0;
+		
+		private ShardMerger(
+				final QueryResultsListener listener,
+				final SearchParameters params,
+				final List<String> queryIDs,
+				final int shards) {
+			this.listener = listener;
+			this.params = params;
+			this.queryIDs = queryIDs;
+			for (int i = 0; i < queryIDs.size(); i++) {
+				queryIndexes.put(queryIDs.get(i), i);
+			}
+			completed = new int[shards];
+			Arrays.fill(completed, -1);
+		}
+		
+		private synchronized void add(
+				final int shard,
+				final String queryID,
+				final ResultBatch results)
+				throws IOException {
+			final Integer index = queryIndexes.get(queryID);
+			if (index == null || index <= completed[shard]) {
+				throw new IOException(String.format(
+						"%s reported results for query %s out of input order",
+						LAST_ALIGN, queryID));
+			}
+			completed[shard] = index;
+			pending.computeIfAbsent(index, k -> new ArrayList<>()).add(results);
+			passOnCompleted();
+		}
+		
+		private synchronized void shardComplete(final int shard) throws IOException {
+			completed[shard] = queryIDs.size() - 1;
+			passOnCompleted();
+		}
+		
+		private void passOnCompleted() throws IOException {
+			final int done = Arrays.stream(completed).min().getAsInt();
+			for (; next <= done; next++) {
+				final List<ResultBatch> res = pending.remove(next);
+				if (res != null) {
+					listener.onQueryResults(queryIDs.get(next), mergeShards(res, params));
+				}
+			}
+		}
+	}
+	
+	/* LAST's E-value is EG2 * query length * database length / 1e18, so the EG2 threshold
+	 * for the shortest query guarantees no result under the maximum E-value is skipped for
+	 * any query. The total database size is used for shards since shard E-values are scaled
+	 * to the entire database. The threshold is only passed to lastal if it's stricter than the
+	 * default threshold for every query, which is the case when it's stricter for the
+	 * shortest query.
+	 */
+	private List<String> getThresholdArgs(
+			final SearchParameters params,
+			final QueryStats query,
+			final long dbSize) {
+		if (!params.getMaxEValue().isPresent() || query.minLength < 1 || dbSize < 1) {
+			return Collections.emptyList();
+		}
+		final double maxEValue = params.getMaxEValue().get();
+		if (maxEValue >= query.minLength / LASTAL_DEFAULT_D) {
+			return Collections.emptyList();
+		}
+		final double maxEG2 = maxEValue * 1e18 / (query.minLength * (double) dbSize);
+		return Arrays.asList("-E", Double.toString(maxEG2));
+	}
+	
+	// the database size used by LAST for E-value calculations is the number of letters
+	private long getDatabaseSize(final Path shard) throws GeneHomologyImplementationException {
+		final Properties props = readProjectFile(shard);
+		final String size = props.getProperty(NUM_LETTERS, props.getProperty(NUM_SEQS));
+		try {
+			return Long.parseLong(size);
+		} catch (NumberFormatException e) {
+			throw new GeneHomologyImplementationException(String.format(
+					"Illegal database size %s in LAST database file %s", size, shard));
+		}
+	}
+	
+	private ResultBatch searchShard(
+			final Path shardPrj,
+			final QueryInput query,
+			final long sequences,
+			final List<String> thresholdArgs,
+			final SearchParameters params,
+			final double eValueScale,
+			final CancellationToken token,
+			final Optional<QueryResultsListener> listener)
+			throws GeneHomologyImplementationException {
+		String dbpath = shardPrj.toString();
 		dbpath = dbpath.substring(0, dbpath.length() - 4); // remove .prj
+		final int threads = acquireThreads(sequences, token);
+		try {
+			final List<String> args = new LinkedList<>(Arrays.asList("-P", threads + ""));
+			args.addAll(thresholdArgs);
+			args.add(dbpath);
+			// with no query file lastal reads the query from standard input
+			if (query.getFile().isPresent()) {
+				args.add(query.getFile().get().toString());
+			}
+			final ResultCollector results = new ResultCollector(params, eValueScale, listener);
+			if (streamOutput) {
+				runLASTStreaming(results, args, query, token);
+			} else {
+				runLASTViaFile(results, args, query, token);
+			}
+			return results.getResults();
+		} catch (IOException e) {
+			throw new GeneHomologyImplementationException(e.getMessage(), e);
+		} finally {
+			threadBudget.release(threads);
+		}
+	}
+	
+	private static class QueryStats {
+		
+		private long sequences = 0;
+		private long minLength = Long.MAX_VALUE;
+		// LAST uses the first whitespace delimited token in the header as the sequence ID
+		private final List<String> ids = new ArrayList<>();
+	}
+	
+	private QueryStats getQueryStats(final QueryInput query)
+			throws GeneHomologyImplementationException {
+		final QueryStats stats = new QueryStats();
+		long length = -1;
+		try (final BufferedReader br = new BufferedReader(new InputStreamReader(
+					query.openStream(), StandardCharsets.UTF_8));
+				final Stream<String> lines = br.lines()) {
+			for (final String l: (Iterable<String>) lines::iterator) {
+				if (l.startsWith(">")) {
+					if (length >= 0) {
+						stats.minLength = Math.min(stats.minLength, length);
+					}
+					stats.sequences++;
+					stats.ids.add(l.substring(1).trim().split("\\s+", 2)[0]);
+					length = 0;
+				} else if (length >= 0) {
+					length += l.trim().length();
+				}
+			}
+		} catch (IOException | UncheckedIOException e) {
+			throw new GeneHomologyImplementationException(e.getMessage(), e);
+		}
+		if (length >= 0) {
+			stats.minLength = Math.min(stats.minLength, length);
+		}
+		return stats;
+	}
+	
+	private int acquireThreads(final long sequences, final CancellationToken token)
+			throws GeneHomologyImplementationException {
+		try {
+			return threadBudget.acquire(
+					(int) Math.max(1, Math.min(sequences, maxThreadsPerSearch)), token);
+		} catch (InterruptedException e) {
+			throw new GeneHomologyImplementationException(String.format(
+					"Interrupted while waiting for threads to run %s", LAST_ALIGN), e);
+		}
+	}
+	
+	/** Get the number of threads currently in use by LAST processes.
+	 * @return the number of threads.
+	 */
+	public int getThreadsInUse() {
+		return threadBudget.getInUse();
+	}
+	
+	/** Get the number of LAST processes that were terminated because their search was
+	 * cancelled.
+	 * @return the number of cancelled processes.
+	 */
+	public long getCancelledProcessCount() {
+		return cancelledProcesses.get();
+	}
+	
+	/** Stop the threads used to run LAST. If this instance created its own process manager, the
+	 * manager is shut down, terminating any running LAST processes. Searches started after
+	 * shutdown fail.
+	 */
+	public void shutdown() {
+		shardSearchers.shutdownNow();
+		stdinWriters.shutdownNow();
+		if (stderrReaders != null) {
+			stderrReaders.shutdownNow();
+			timeoutKiller.shutdownNow();
+		}
+		if (ownsProcessManager) {
+			processManager.shutdown();
+		}
+	}
+	
+	// terminates the process when the search is cancelled. Remove the listener when done.
+	private Runnable terminateOnCancel(final Process last) {
+		return () -> {
+			if (last.isAlive()) {
+				cancelledProcesses.incrementAndGet();
+			}
+			processManager.terminate(last);
+		};
+	}
+	
+	private void runLASTViaFile(
+			final ResultCollector results,
+			final List<String> arguments,
+			final QueryInput query,
+			final CancellationToken token)
+			throws GeneHomologyImplementationException {
+		Path tempFile = null;
 		try {
 			tempFile = Files.createTempFile(tempFileDirectory, "last_output", ".tmp");
-			runLASTToOutputFile(tempFile, dbpath, queryFasta.toString());
-			return processLASTOutput(tempFile);
+			runLASTToOutputFile(tempFile, arguments, query, token);
+			processLASTOutput(tempFile, results);
 			// all of the below is really hard to test
 		} catch (IOException e) {
 			throw new GeneHomologyImplementationException(e.getMessage(), e);
@@ -117,27 +685,47 @@ public class LAST {
 		}
 	}
 	
-	private void runLASTToOutputFile(final Path outputPath, final String... arguments)
+	private void runLASTToOutputFile(
+			final Path outputPath,
+			final List<String> arguments,
+			final QueryInput query,
+			final CancellationToken token)
 			throws GeneHomologyImplementationException {
 		final List<String> command = new LinkedList<>(Arrays.asList(LAST_ALIGN));
-		command.addAll(Arrays.asList(arguments));
+		command.addAll(arguments);
 		try {
 			final ProcessBuilder pb = new ProcessBuilder(command);
 			// it's far less complicated if we just redirect to a file rather than have
 			// threads consuming output and error so they don't deadlock
 			pb.redirectOutput(outputPath.toFile());
-			final Process last = pb.start();
-			if (!last.waitFor(lastTimeoutSec, TimeUnit.SECONDS)) {
-				// not sure how to test this
-				throw new GeneHomologyImplementationException(String.format(
-						"Timed out waiting for %s to run", LAST_ALIGN));
-			}
-			if (last.exitValue() != 0) {
-				try (final InputStream is = last.getErrorStream()) {
+			final Process last = processManager.start(pb);
+			final Runnable terminator = terminateOnCancel(last);
+			token.addListener(terminator);
+			// releasing the process terminates it if it's still running, e.g. on a timeout
+			try {
+				final Future<?> stdin = writeQuery(last, query);
+				final boolean exited = last.waitFor(lastTimeoutSec, TimeUnit.SECONDS);
+				throwIfCancelled(token);
+				if (!exited) {
+					// not sure how to test this
 					throw new GeneHomologyImplementationException(String.format(
-							"Error running %s: %s", LAST_ALIGN, IOUtils.toString(is).trim()));
+							"Timed out waiting for %s to run", LAST_ALIGN));
+				}
+				if (last.exitValue() != 0) {
+					try (final InputStream is = last.getErrorStream()) {
+						throw new GeneHomologyImplementationException(String.format(
+								"Error running %s: %s", LAST_ALIGN,
+								IOUtils.toString(is).trim()));
+					}
 				}
+				stdin.get();
+			} finally {
+				token.removeListener(terminator);
+				processManager.release(last);
 			}
+		} catch (ExecutionException e) {
+			throw new GeneHomologyImplementationException(String.format(
+					"Error running %s: ", LAST_ALIGN) + e.getCause().getMessage(), e.getCause());
 		} catch (IOException | InterruptedException e) {
 			// this is also very difficult to test
 			throw new GeneHomologyImplementationException(String.format(
@@ -145,108 +733,230 @@ public class LAST {
 		}
 	}
 	
-	final List<SequenceSearchResult> processLASTOutput(final Path output)
-			throws IOException, GeneHomologyImplementationException {
-		final List<SequenceSearchResult> ret = new ArrayList<>();
-		try (final InputStream is = Files.newInputStream(output)) {
-			final BufferedReader br = new BufferedReader(new InputStreamReader(
-					is, StandardCharsets.UTF_8));
-			final List<String> recordLines = new ArrayList<String>(3);
-			final List<Double> lambdaAndK = getKAndLambda(br);
-			final double lambda = lambdaAndK.get(0);
-			final double K = lambdaAndK.get(1);
-			for (String line = br.readLine(); line != null; line = br.readLine()) {
-				if (line.startsWith("#") || line.trim().isEmpty()) {
-					continue;
+	/* Writes a query held in memory to standard input in a separate thread so LAST can't
+	 * deadlock on a full output pipe while the query is being written. Otherwise closes standard
+	 * input. Errors writing the query are only relevant if LAST exits successfully, since LAST
+	 * closes its input when it fails.
+	 */
+	private Future<?> writeQuery(final Process last, final QueryInput query) throws IOException {
+		if (query.getFile().isPresent()) {
+			last.getOutputStream().close();
+			return CompletableFuture.completedFuture(null);
+		}
+		try {
+			return stdinWriters.submit(() -> {
+				try (final OutputStream os = last.getOutputStream();
+						final InputStream is = query.openStream()) {
+					IOUtils.copy(is, os);
 				}
-				set3Lines(recordLines, line, br);
-				ret.add(processLASTRecord(recordLines, lambda, K));
-			}
+				return null;
+			});
+		} catch (RejectedExecutionException e) {
+			throw new IOException("The LAST wrapper is shut down", e);
 		}
-		return ret;
 	}
 	
-	// list is 2 elements, lambda then K
-	private List<Double> getKAndLambda(final BufferedReader lastOutput)
-			throws GeneHomologyImplementationException, IOException {
-		for (String line = lastOutput.readLine(); line != null; line = lastOutput.readLine()) {
-			// super fragile and hacky, yuck.
-			if (line.startsWith("#") && line.contains("K=") && line.contains("lambda=")) {
-				final String[] chunks = line.split("\\s+");
-				try {
-					final double lambda = Double.parseDouble(chunks[1].substring(7));
-					final double K = Double.parseDouble(chunks[2].substring(2));
-					return Arrays.asList(lambda, K);
-				} catch (NumberFormatException e) {
-					// basically impossible to test
+	/* Runs LAST with standard out parsed as it is produced and standard error read in a
+	 * separate thread so neither pipe can fill and deadlock LAST. Errors are reported in the
+	 * same order of precedence as the file based path: cancellation, then timeouts, then LAST
+	 * errors, then output parsing errors.
+	 */
+	private void runLASTStreaming(
+			final ResultCollector results,
+			final List<String> arguments,
+			final QueryInput query,
+			final CancellationToken token)
+			throws GeneHomologyImplementationException {
+		final List<String> command = new LinkedList<>(Arrays.asList(LAST_ALIGN));
+		command.addAll(arguments);
+		try {
+			final Process last = processManager.start(new ProcessBuilder(command));
+			final Runnable terminator = terminateOnCancel(last);
+			token.addListener(terminator);
+			// releasing the process terminates it if it's still running, e.g. on an error
+			try {
+				final Future<?> stdin = writeQuery(last, query);
+				final Future<String> stderr = stderrReaders.submit(() -> {
+					try (final InputStream is = last.getErrorStream()) {
+						return IOUtils.toString(is);
+					}
+				});
+				final AtomicBoolean timedOut = new AtomicBoolean(false);
+				final ScheduledFuture<?> killer = timeoutKiller.schedule(() -> {
+					timedOut.set(true);
+					processManager.terminate(last);
+				}, lastTimeoutSec, TimeUnit.SECONDS);
+				Exception parseError = null;
+				try (final InputStream is = last.getInputStream()) {
+					try {
+						processLASTOutput(is, results);
+					} catch (IOException | GeneHomologyImplementationException |
+							RuntimeException e) {
+						parseError = e;
+					}
+					// don't leave LAST blocked on a full pipe if parsing stopped early
+					IOUtils.copy(is, new NullOutputStream());
+				}
+				last.waitFor();
+				killer.cancel(false);
+				throwIfCancelled(token);
+				if (timedOut.get()) {
+					// not sure how to test this
+					throw new GeneHomologyImplementationException(String.format(
+							"Timed out waiting for %s to run", LAST_ALIGN));
+				}
+				if (last.exitValue() != 0) {
+					throw new GeneHomologyImplementationException(String.format(
+							"Error running %s: %s", LAST_ALIGN, stderr.get().trim()));
+				}
+				stdin.get();
+				if (parseError instanceof IOException) {
 					throw new GeneHomologyImplementationException(
-							"Improperly formatted K and lambda in LAST output line: " + line);
+							parseError.getMessage(), parseError);
+				} else if (parseError instanceof GeneHomologyImplementationException) {
+					throw (GeneHomologyImplementationException) parseError;
+				} else if (parseError != null) {
+					throw (RuntimeException) parseError;
 				}
+			} finally {
+				token.removeListener(terminator);
+				processManager.release(last);
 			}
+		} catch (ExecutionException e) {
+			throw new GeneHomologyImplementationException(String.format(
+					"Error running %s: ", LAST_ALIGN) + e.getCause().getMessage(), e.getCause());
+		} catch (IOException | InterruptedException e) {
+			// this is also very difficult to test
+			throw new GeneHomologyImplementationException(String.format(
+					"Error running %s: ", LAST_ALIGN) + e.getMessage(), e);
 		}
-		// also basically impossible to test
-		throw new GeneHomologyImplementationException("Couldn't find lambda and K in LAST output");
 	}
-
-	private SequenceSearchResult processLASTRecord(
-			final List<String> recordLines,
-			final double lambda,
-			final double K) {
-		//TODO CODE lots of error checking here
-		//TODO CODE nasty & brittle
-		final String[] line1 = recordLines.get(0).split("\\s+");
-		final double eVal = Double.parseDouble(line1[3].substring(2));
-		final int score = Integer.parseInt(line1[1].substring(6));
-		return new SequenceSearchResult(
-				toAlignedSequence(recordLines.get(2)), // query is 2nd sequence
-				toAlignedSequence(recordLines.get(1)),
-				eVal,
-				toBitScore(score, lambda, K));
-	}
-	
-	final private static double ln2 = Math.log(2);
-	
-	private int toBitScore(final int score, final double lambda, final double K) {
-		return (int) Math.round((lambda * score - Math.log(K)) / ln2);
+	
+	private void throwIfCancelled(final CancellationToken token)
+			throws SearchCancelledException {
+		if (token.isCancelled()) {
+			throw new SearchCancelledException(String.format(
+					"The search was cancelled and %s was terminated", LAST_ALIGN));
+		}
 	}
-
-	private AlignedSequence toAlignedSequence(final String sequenceLine) {
-		//TODO CODE lots of error checking here
-		//TODO CODE nasty & brittle
-		final String[] seqline = sequenceLine.split("\\s+");
-		return new AlignedSequence(
-				seqline[1],
-				Integer.parseInt(seqline[5]),
-				seqline[6],
-				Integer.parseInt(seqline[2]),
-				Integer.parseInt(seqline[3]),
-				seqline[4].equals("+"));
+	
+	final void processLASTOutput(final Path output, final ResultCollector results)
+			throws IOException, GeneHomologyImplementationException {
+		try (final InputStream is = Files.newInputStream(output)) {
+			processLASTOutput(is, results);
+		}
+	}
+	
+	final void processLASTOutput(final InputStream output, final ResultCollector results)
+			throws IOException, GeneHomologyImplementationException {
+		new MAFParser(output).parse(results.eValueScale, results, results.batch);
 	}
 
-	private void set3Lines(
-			final List<String> recordLines,
-			final String firstLine,
-			final BufferedReader br)
-			throws GeneHomologyImplementationException, IOException {
-		recordLines.clear();
-		if (firstLine == null) {
-			//TODO CODE better info about record
-			throw new GeneHomologyImplementationException("Bad record in LAST output");
-		}
-		recordLines.add(firstLine);
-		for (int i = 1; i <= 2; i++) {
-			final String line = br.readLine();
-			if (line == null) {
-				//TODO CODE better info about record
-				throw new GeneHomologyImplementationException("Bad record in LAST output");
+	/* Collects the results of a LAST run into a batch, enforcing the search parameters. If
+	 * there's a maximum number of results, the worst results for each query are discarded as
+	 * the batch grows so memory use is bounded by the number of results returned rather than
+	 * the size of the LAST output.
+	 * 
+	 * With a listener, the results for each query are passed to the listener and dropped
+	 * from the batch when the next query starts, so the batch only holds one query's results.
+	 */
+	static class ResultCollector implements MAFParser.RecordFilter {
+		
+		private final SearchParameters params;
+		private final double eValueScale;
+		private final Optional<QueryResultsListener> listener;
+		private final ResultBatch.Builder batch = ResultBatch.getBuilder();
+		// the queries passed to the listener and the query in progress
+		private final Set<String> queries = new HashSet<>();
+		private String query = null;
+		
+		/** Create a collector.
+		 * @param params the search parameters to enforce.
+		 * @param eValueScale a factor by which to scale LAST E-values.
+		 * @param listener a receiver of the results for each query, if any.
+		 */
+		ResultCollector(
+				final SearchParameters params,
+				final double eValueScale,
+				final Optional<QueryResultsListener> listener) {
+			this.params = params;
+			this.eValueScale = eValueScale;
+			this.listener = listener;
+			if (params.getMaxResults().isPresent()) {
+				batch.withMaxPerQuery(params.getMaxResults().get());
+			}
+		}
+		
+		@Override
+		public boolean isAccepted(final double eValue, final int bitScore) {
+			return params.isAccepted(eValue, bitScore);
+		}
+		
+		@Override
+		public void newQuery(final String queryID)
+				throws IOException, GeneHomologyImplementationException {
+			if (!listener.isPresent()) {
+				return;
+			}
+			if (!queries.add(queryID)) {
+				throw new GeneHomologyImplementationException(String.format(
+						"%s output is not grouped by query, query %s was reported twice",
+						LAST_ALIGN, queryID));
+			}
+			if (query != null) {
+				// the batch holds the previous query's results and the new query's first result
+				final ResultBatch rows = batch.build();
+				batch.clear();
+				report(rows.filter(r -> !rows.getQueryID(r).equals(queryID)));
+				batch.addAll(rows.filter(r -> rows.getQueryID(r).equals(queryID)));
+			}
+			query = queryID;
+		}
+		
+		private ResultBatch best(final ResultBatch results) {
+			if (!params.getMaxResults().isPresent()) {
+				return results;
+			}
+			return results.bestPerQuery(params.getMaxResults().get());
+		}
+		
+		private void report(final ResultBatch results) throws IOException {
+			listener.get().onQueryResults(query, best(results));
+		}
+		
+		/** Get the collected results. If a maximum number of results is provided, the results
+		 * are grouped by query in LAST output order and the results for each query are ordered
+		 * by {@link SequenceSearchResult#BEST_FIRST}.
+		 * 
+		 * With a listener, the results for the last query are passed to the listener and an
+		 * empty batch is returned.
+		 * @return the results.
+		 * @throws IOException if the listener failed.
+		 */
+		ResultBatch getResults() throws IOException {
+			final ResultBatch results = batch.build();
+			if (!listener.isPresent()) {
+				return best(results);
+			}
+			batch.clear();
+			if (query != null) {
+				report(results);
+				query = null;
 			}
-			recordLines.add(line);
+			return ResultBatch.getBuilder().build();
 		}
 	}
-
+	
 	public static void main(final String[] args) throws Exception {
 		final LAST l = new LAST(Paths.get("./temp_delete"), 300);
-		
+		try {
+			search(l);
+		} finally {
+			l.shutdown();
+		}
+	}
+	
+	private static void search(final LAST l) throws Exception {
 		final GeneHomologyDatabase db = l.getDatabase(
 				new GeneHomologyDBName("foo"),
 				new GeneHomologyDBLocation(Paths.get(
@@ -254,7 +964,7 @@ public class LAST {
 		
 		System.out.println(db);
 		
-		final List<SequenceSearchResult> seqs = l.search(
+		final ResultBatch seqs = l.search(
 				new GeneHomologyDBName("foo"),
 				new GeneHomologyDBLocation(Paths.get(
 						"/media/mongohd/genehom/LAST/uniref50_40Mlines.last.prj")),
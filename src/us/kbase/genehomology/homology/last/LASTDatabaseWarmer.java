@@ -0,0 +1,170 @@
+package us.kbase.genehomology.homology.last;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import us.kbase.genehomology.homology.GeneHomologyDBLocation;
+import us.kbase.genehomology.homology.GeneHomologyImplementationException;
+import us.kbase.genehomology.util.PageCacheResidency;
+import us.kbase.genehomology.util.PageCacheResidency.Residency;
+
+/** Loads the files of a LAST database into the operating system page cache so that the first
+ * searches against the database don't have to read the database from disk, and reports how
+ * much of each file is resident in the page cache.
+ * @author gaprice@lbl.gov
+ *
+ */
+public class LASTDatabaseWarmer {
+
+	// note - this class is not unit tested. If changes are made test manually.
+
+	private static final int BUFFER_SIZE = 1 << 20;
+
+	private final int threads;
+
+	/** Create the warmer.
+	 * @param threads the maximum number of files to read in parallel.
+	 */
+	public LASTDatabaseWarmer(final int threads) {
+		if (threads < 1) {
+			throw new IllegalArgumentException("threads must be > 0");
+		}
+		this.threads = threads;
+	}
+
+	/** Get the files that make up a LAST database, including any volume files.
+	 * @param loc the location of the database.
+	 * @return the database files.
+	 * @throws GeneHomologyImplementationException if the database directory could not be read.
+	 */
+	public static List<Path> getDatabaseFiles(final GeneHomologyDBLocation loc)
+			throws GeneHomologyImplementationException {
+		checkNotNull(loc, "loc");
+		final List<Path> ret = new LinkedList<>();
+		for (final Path prj: loc.getShards()) {
+			final String prjName = prj.getFileName().toString();
+			final String base = prjName.substring(0, prjName.length() - 4); // remove .prj
+			// files are named <base>.<ext>, or <base><volume number>.<ext> for multi volume dbs
+			final Pattern dbFile = Pattern.compile(Pattern.quote(base) + "\\d*\\.[a-z]+");
+			final Path dir = prj.toAbsolutePath().getParent();
+			try (final DirectoryStream<Path> files = Files.newDirectoryStream(
+					dir, p -> dbFile.matcher(p.getFileName().toString()).matches())) {
+				for (final Path f: files) {
+					if (Files.isRegularFile(f)) {
+						ret.add(f);
+					}
+				}
+			} catch (IOException e) {
+				throw new GeneHomologyImplementationException(String.format(
+						"Couldn't list LAST database files in %s: %s", dir, e.getMessage()), e);
+			}
+		}
+		return ret;
+	}
+
+	/** Read every file of a LAST database, in parallel, to load the files into the page cache.
+	 * Logs progress and the page cache residency of each file after it is read.
+	 * @param loc the location of the database.
+	 * @throws GeneHomologyImplementationException if a database file could not be read.
+	 */
+	public void warm(final GeneHomologyDBLocation loc)
+			throws GeneHomologyImplementationException {
+		final List<Path> files = getDatabaseFiles(loc);
+		final long start = System.nanoTime();
+		logInfo("Warming {} LAST database files with {} threads", files.size(), threads);
+		final ExecutorService exe = Executors.newFixedThreadPool(threads,
+				new ThreadFactoryBuilder().setDaemon(true).setNameFormat("lastwarm-%d").build());
+		try {
+			final List<Future<Long>> reads = new ArrayList<>();
+			for (final Path f: files) {
+				reads.add(exe.submit(() -> read(f)));
+			}
+			long total = 0;
+			for (int i = 0; i < reads.size(); i++) {
+				total += reads.get(i).get();
+				logInfo("Warmed LAST database file {} of {}: {}",
+						i + 1, files.size(), describe(getResidency(files.get(i))));
+			}
+			logInfo("Warmed {} bytes of LAST database files in {} ms", total,
+					TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+		} catch (InterruptedException e) {
+			throw new GeneHomologyImplementationException(
+					"Interrupted while warming LAST database", e);
+		} catch (ExecutionException e) {
+			throw new GeneHomologyImplementationException(
+					"Couldn't read LAST database file: " + e.getCause().getMessage(),
+					e.getCause());
+		} finally {
+			exe.shutdownNow();
+		}
+	}
+
+	private long read(final Path file) throws IOException {
+		final ByteBuffer buf = ByteBuffer.allocateDirect(BUFFER_SIZE);
+		long total = 0;
+		try (final FileChannel fc = FileChannel.open(file, StandardOpenOption.READ)) {
+			for (int read = fc.read(buf); read >= 0; read = fc.read(buf)) {
+				total += read;
+				buf.clear();
+			}
+		}
+		return total;
+	}
+
+	/** Get the page cache residency of every file of a LAST database.
+	 * @param loc the location of the database.
+	 * @return the residency of each file.
+	 * @throws GeneHomologyImplementationException if a database file could not be accessed.
+	 */
+	public static List<Residency> getResidency(final GeneHomologyDBLocation loc)
+			throws GeneHomologyImplementationException {
+		final List<Residency> ret = new LinkedList<>();
+		for (final Path f: getDatabaseFiles(loc)) {
+			ret.add(getResidency(f));
+		}
+		return ret;
+	}
+
+	private static Residency getResidency(final Path f)
+			throws GeneHomologyImplementationException {
+		try {
+			return PageCacheResidency.getResidency(f);
+		} catch (IOException e) {
+			throw new GeneHomologyImplementationException(String.format(
+					"Couldn't access LAST database file %s: %s", f, e.getMessage()), e);
+		}
+	}
+
+	private String describe(final Residency r) {
+		if (r.getResidentBytes().isPresent()) {
+			return String.format("%s, %s of %s bytes resident (%.1f%%)", r.getFile(),
+					r.getResidentBytes().get(), r.getSize(),
+					r.getResidentFraction().get() * 100);
+		}
+		return String.format("%s, %s bytes, residency unknown", r.getFile(), r.getSize());
+	}
+
+	private void logInfo(final String format, final Object... args) {
+		LoggerFactory.getLogger(getClass()).info(format, args);
+	}
+}
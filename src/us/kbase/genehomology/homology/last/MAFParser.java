@@ -0,0 +1,505 @@
+package us.kbase.genehomology.homology.last;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+import us.kbase.genehomology.homology.AlignedSequence;
+import us.kbase.genehomology.homology.GeneHomologyImplementationException;
+import us.kbase.genehomology.homology.ResultBatch;
+import us.kbase.genehomology.homology.SequenceSearchResult;
+
+/** A parser for the MAF output of lastal. Parses the raw bytes of the output in a reusable
+ * buffer rather than decoding it to strings and splitting lines with regular expressions, and
+ * only creates the sequence ID strings and encoded aligned sequences of accepted records.
+ *
+ * The lambda and K parameters are read from the first comment line containing both, and every
+ * subsequent line that is neither blank nor a comment starts a record consisting of an
+ * alignment (<code>a</code>) line followed by two sequence (<code>s</code>) lines, the
+ * target and then the query. The E-value and score are read from the <code>E=</code> and
+ * <code>score=</code> fields of the alignment line, and the score is converted to a bit score.
+ *
+ * Errors in the output are reported with the line number of the error.
+ * @author gaprice@lbl.gov
+ *
+ */
+public class MAFParser {
+
+	/** A filter for parsed records.
+	 * @author gaprice@lbl.gov
+	 *
+	 */
+	public interface RecordFilter {
+
+		/** Check whether a record should be parsed and kept. The sequence lines of records
+		 * that are not accepted are not parsed.
+		 * @param eValue the E-value of the record, after scaling.
+		 * @param bitScore the bit score of the record.
+		 * @return true to keep the record.
+		 */
+		boolean isAccepted(double eValue, int bitScore);
+
+		/** Called when parsing directly into a batch, after an accepted record is added to the
+		 * batch, if the query sequence of the record differs from that of the previous accepted
+		 * record. lastal writes the records for each query sequence together, so the records
+		 * for the previous query are complete. Does nothing by default.
+		 * @param queryID the ID of the query sequence of the record.
+		 * @throws IOException if the records for the previous query could not be handled.
+		 * @throws GeneHomologyImplementationException if the LAST output is not as expected.
+		 */
+		default void newQuery(String queryID)
+				throws IOException, GeneHomologyImplementationException {}
+	}
+
+	/** A receiver of parsed records.
+	 * @author gaprice@lbl.gov
+	 *
+	 */
+	public interface RecordSink extends RecordFilter {
+
+		/** Add a record to the sink.
+		 * @param result the record.
+		 */
+		void add(SequenceSearchResult result);
+	}
+
+	private static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+	private static final double LN2 = Math.log(2);
+	// exact powers of 10 for the fast path of double parsing
+	private static final double[] POWERS_OF_10 = new double[23];
+	static {
+		POWERS_OF_10[0] = 1;
+		for (int i = 1; i < POWERS_OF_10.length; i++) {
+			POWERS_OF_10[i] = POWERS_OF_10[i - 1] * 10;
+		}
+	}
+	// 2^53, the largest integer that's exactly representable as a double
+	private static final long MAX_EXACT_LONG = 1L << 53;
+
+	private final InputStream input;
+	private byte[] buf;
+	private int pos = 0;
+	private int limit = 0;
+	private boolean eof = false;
+	private long lineNumber = 0;
+	// the bounds of the current line, not including the line terminator
+	private int lineStart;
+	private int lineEnd;
+	// the starts of the fields after the 's' in the current sequence line
+	private final int[] fieldStarts = new int[6];
+	// the query ID of the last record added to a batch
+	private String queryID = null;
+
+	/** Create a parser.
+	 * @param input the lastal MAF output. The parser does not close the stream.
+	 */
+	public MAFParser(final InputStream input) {
+		this(input, DEFAULT_BUFFER_SIZE);
+	}
+
+	/** Create a parser.
+	 * @param input the lastal MAF output. The parser does not close the stream.
+	 * @param bufferSize the initial size of the read buffer. The buffer grows to fit the longest
+	 * line in the output.
+	 */
+	public MAFParser(final InputStream input, final int bufferSize) {
+		checkNotNull(input, "input");
+		if (bufferSize < 1) {
+			throw new IllegalArgumentException("bufferSize must be > 0");
+		}
+		this.input = input;
+		this.buf = new byte[bufferSize];
+	}
+
+	/** Parse the output.
+	 * @param eValueScale a factor by which to scale the E-values in the output.
+	 * @param sink the receiver of the parsed records.
+	 * @throws IOException if the output could not be read.
+	 * @throws GeneHomologyImplementationException if the output is not valid MAF.
+	 */
+	public void parse(final double eValueScale, final RecordSink sink)
+			throws IOException, GeneHomologyImplementationException {
+		checkNotNull(sink, "sink");
+		parse(eValueScale, sink, sink, null);
+	}
+
+	/** Parse the output directly into a batch of results, without creating objects for each
+	 * record.
+	 * @param eValueScale a factor by which to scale the E-values in the output.
+	 * @param filter a filter for the records.
+	 * @param batch the builder to which accepted records are added.
+	 * @throws IOException if the output could not be read.
+	 * @throws GeneHomologyImplementationException if the output is not valid MAF.
+	 */
+	public void parse(
+			final double eValueScale,
+			final RecordFilter filter,
+			final ResultBatch.Builder batch)
+			throws IOException, GeneHomologyImplementationException {
+		checkNotNull(filter, "filter");
+		checkNotNull(batch, "batch");
+		parse(eValueScale, filter, null, batch);
+	}
+
+	// exactly one of sink and batch is non-null
+	private void parse(
+			final double eValueScale,
+			final RecordFilter filter,
+			final RecordSink sink,
+			final ResultBatch.Builder batch)
+			throws IOException, GeneHomologyImplementationException {
+		final double[] lambdaAndK = getLambdaAndK();
+		final double lambda = lambdaAndK[0];
+		final double logK = Math.log(lambdaAndK[1]);
+		while (nextLine()) {
+			if (isBlank() || buf[lineStart] == '#') {
+				continue;
+			}
+			parseRecord(eValueScale, lambda, logK, filter, sink, batch);
+		}
+	}
+
+	private double[] getLambdaAndK() throws IOException, GeneHomologyImplementationException {
+		while (nextLine()) {
+			if (lineEnd > lineStart && buf[lineStart] == '#') {
+				int lambda = -1;
+				int K = -1;
+				for (int i = nextToken(lineStart); i < lineEnd; i = nextToken(tokenEnd(i))) {
+					if (lambda < 0 && startsWith(i, "lambda=")) {
+						lambda = i;
+					} else if (K < 0 && startsWith(i, "K=")) {
+						K = i;
+					}
+				}
+				if (lambda >= 0 && K >= 0) {
+					try {
+						return new double[] {
+								parseDouble(lambda + 7, tokenEnd(lambda)),
+								parseDouble(K + 2, tokenEnd(K))};
+					} catch (NumberFormatException e) {
+						// basically impossible to test
+						throw error("Improperly formatted K and lambda in LAST output line");
+					}
+				}
+			}
+		}
+		// also basically impossible to test
+		throw new GeneHomologyImplementationException("Couldn't find lambda and K in LAST output");
+	}
+
+	private void parseRecord(
+			final double eValueScale,
+			final double lambda,
+			final double logK,
+			final RecordFilter filter,
+			final RecordSink sink,
+			final ResultBatch.Builder batch)
+			throws IOException, GeneHomologyImplementationException {
+		if (buf[lineStart] != 'a' || tokenEnd(lineStart) != lineStart + 1) {
+			throw error("Expected an alignment line starting with 'a'");
+		}
+		int score = -1;
+		int eValue = -1;
+		for (int i = nextToken(lineStart + 1); i < lineEnd; i = nextToken(tokenEnd(i))) {
+			if (score < 0 && startsWith(i, "score=")) {
+				score = i;
+			} else if (eValue < 0 && startsWith(i, "E=")) {
+				eValue = i;
+			}
+		}
+		if (score < 0) {
+			throw error("Missing score= field in alignment line");
+		}
+		if (eValue < 0) {
+			throw error("Missing E= field in alignment line");
+		}
+		final double eVal;
+		final int bitScore;
+		try {
+			eVal = parseDouble(eValue + 2, tokenEnd(eValue)) * eValueScale;
+			bitScore = (int) Math.round((lambda * parseInt(score + 6, tokenEnd(score)) - logK)
+					/ LN2);
+		} catch (NumberFormatException e) {
+			throw error("Illegal score or E-value in alignment line");
+		}
+		// check before parsing the sequence lines, most records are rejected on a broad search
+		final boolean accepted = filter.isAccepted(eVal, bitScore);
+		nextSequenceLine();
+		if (!accepted) {
+			nextSequenceLine();
+		} else if (batch != null) {
+			// the builder copies the target before the buffer is refilled
+			parseSequenceFields();
+			batch.setTarget(getSequenceID(), getSequenceField(4), buf, fieldStarts[5],
+					tokenEnd(fieldStarts[5]) - fieldStarts[5], getSequenceField(1),
+					getSequenceField(2), buf[fieldStarts[3]] == '+');
+			nextSequenceLine();
+			parseSequenceFields();
+			final String id = getSequenceID();
+			batch.setQuery(id, getSequenceField(4), buf, fieldStarts[5],
+					tokenEnd(fieldStarts[5]) - fieldStarts[5], getSequenceField(1),
+					getSequenceField(2), buf[fieldStarts[3]] == '+');
+			try {
+				batch.addRow(eVal, bitScore);
+			} catch (IllegalArgumentException e) {
+				throw error("Sequence alignment lengths differ");
+			}
+			if (!id.equals(queryID)) {
+				queryID = id;
+				filter.newQuery(id);
+			}
+		} else {
+			final AlignedSequence target = toAlignedSequence();
+			nextSequenceLine();
+			final AlignedSequence query = toAlignedSequence();
+			try {
+				sink.add(new SequenceSearchResult(query, target, eVal, bitScore));
+			} catch (IllegalArgumentException e) {
+				throw error("Sequence alignment lengths differ");
+			}
+		}
+	}
+
+	private void nextSequenceLine() throws IOException, GeneHomologyImplementationException {
+		if (!nextLine()) {
+			throw new GeneHomologyImplementationException(String.format(
+					"Bad record in LAST output at line %s: Unexpected end of output, " +
+					"expected a sequence line", lineNumber + 1));
+		}
+		if (buf[lineStart] != 's' || tokenEnd(lineStart) != lineStart + 1) {
+			throw error("Expected a sequence line starting with 's'");
+		}
+	}
+
+	// s id start alignmentSize strand sequenceSize alignedSequence
+	private void parseSequenceFields() throws GeneHomologyImplementationException {
+		int i = nextToken(lineStart + 1);
+		for (int t = 0; t < fieldStarts.length; t++) {
+			if (i >= lineEnd) {
+				throw error("Expected 6 fields after 's' in sequence line");
+			}
+			fieldStarts[t] = i;
+			i = nextToken(tokenEnd(i));
+		}
+		final int strand = fieldStarts[3];
+		if (tokenEnd(strand) != strand + 1 || (buf[strand] != '+' && buf[strand] != '-')) {
+			throw error("Illegal strand in sequence line");
+		}
+	}
+
+	private String getSequenceID() {
+		return new String(buf, fieldStarts[0], tokenEnd(fieldStarts[0]) - fieldStarts[0],
+				StandardCharsets.UTF_8);
+	}
+
+	private int getSequenceField(final int field) throws GeneHomologyImplementationException {
+		try {
+			return parseInt(fieldStarts[field], tokenEnd(fieldStarts[field]));
+		} catch (NumberFormatException e) {
+			throw error("Illegal number in sequence line");
+		}
+	}
+
+	private AlignedSequence toAlignedSequence() throws GeneHomologyImplementationException {
+		parseSequenceFields();
+		return new AlignedSequence(
+				getSequenceID(),
+				getSequenceField(4),
+				buf, fieldStarts[5], tokenEnd(fieldStarts[5]) - fieldStarts[5],
+				getSequenceField(1),
+				getSequenceField(2),
+				buf[fieldStarts[3]] == '+');
+	}
+
+	private GeneHomologyImplementationException error(final String message) {
+		return new GeneHomologyImplementationException(String.format(
+				"Bad record in LAST output at line %s: %s", lineNumber, message));
+	}
+
+	/* Advances to the next line and returns true, or returns false at the end of the input.
+	 * Lines may be terminated by \n or \r\n.
+	 */
+	private boolean nextLine() throws IOException {
+		int scan = pos;
+		while (true) {
+			for (; scan < limit; scan++) {
+				if (buf[scan] == '\n') {
+					setLine(pos, scan);
+					pos = scan + 1;
+					return true;
+				}
+			}
+			if (eof) {
+				if (pos < limit) {
+					setLine(pos, limit);
+					pos = limit;
+					return true;
+				}
+				return false;
+			}
+			scan -= pos;
+			fill();
+		}
+	}
+
+	private void setLine(final int start, int end) {
+		if (end > start && buf[end - 1] == '\r') {
+			end--;
+		}
+		lineStart = start;
+		lineEnd = end;
+		lineNumber++;
+	}
+
+	// moves the unconsumed bytes to the start of the buffer, growing it if full, and reads
+	private void fill() throws IOException {
+		final int remaining = limit - pos;
+		if (remaining == buf.length) {
+			final byte[] newbuf = new byte[buf.length * 2];
+			System.arraycopy(buf, pos, newbuf, 0, remaining);
+			buf = newbuf;
+		} else if (pos > 0) {
+			System.arraycopy(buf, pos, buf, 0, remaining);
+		}
+		pos = 0;
+		limit = remaining;
+		final int read = input.read(buf, limit, buf.length - limit);
+		if (read < 0) {
+			eof = true;
+		} else {
+			limit += read;
+		}
+	}
+
+	private boolean isBlank() {
+		for (int i = lineStart; i < lineEnd; i++) {
+			if ((buf[i] & 0xFF) > ' ') {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	// returns the start of the token at or after i, or the line end
+	private int nextToken(int i) {
+		while (i < lineEnd && isSpace(buf[i])) {
+			i++;
+		}
+		return i;
+	}
+
+	// returns the end of the token starting at i
+	private int tokenEnd(int i) {
+		while (i < lineEnd && !isSpace(buf[i])) {
+			i++;
+		}
+		return i;
+	}
+
+	// the same characters as the \s regular expression class
+	private static boolean isSpace(final byte b) {
+		return b == ' ' || (b >= '\t' && b <= '\r');
+	}
+
+	private boolean startsWith(final int i, final String prefix) {
+		if (lineEnd - i < prefix.length()) {
+			return false;
+		}
+		for (int j = 0; j < prefix.length(); j++) {
+			if (buf[i + j] != prefix.charAt(j)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private int parseInt(final int start, final int end) {
+		int i = start;
+		final boolean negative = i < end && buf[i] == '-';
+		if (negative || (i < end && buf[i] == '+')) {
+			i++;
+		}
+		if (i == end) {
+			throw new NumberFormatException();
+		}
+		long val = 0;
+		for (; i < end; i++) {
+			final int d = buf[i] - '0';
+			if (d < 0 || d > 9) {
+				throw new NumberFormatException();
+			}
+			val = val * 10 + d;
+			if (val > Integer.MAX_VALUE + 1L) {
+				throw new NumberFormatException();
+			}
+		}
+		val = negative ? -val : val;
+		if (val > Integer.MAX_VALUE) {
+			throw new NumberFormatException();
+		}
+		return (int) val;
+	}
+
+	/* Parses simple decimals, e.g. 1.5e-10, with 15 or fewer significant digits and a small
+	 * exponent directly, since both the significand and the power of 10 are exact doubles and
+	 * so the product or quotient is correctly rounded. Anything else, including malformed
+	 * tokens with no digits before the exponent such as "." or "e5", is passed to
+	 * Double.parseDouble, so the result is always identical to Double.parseDouble and malformed
+	 * tokens throw a NumberFormatException.
+	 */
+	private double parseDouble(final int start, final int end) {
+		int i = start;
+		final boolean negative = i < end && buf[i] == '-';
+		if (negative || (i < end && buf[i] == '+')) {
+			i++;
+		}
+		long significand = 0;
+		int digits = 0;
+		int exponent = 0;
+		boolean point = false;
+		boolean mantissa = false;
+		boolean simple = i < end;
+		for (; i < end && simple; i++) {
+			final byte b = buf[i];
+			if (b >= '0' && b <= '9') {
+				mantissa = true;
+				if (significand > 0 || b != '0') {
+					digits++;
+				}
+				significand = significand * 10 + (b - '0');
+				if (point) {
+					exponent--;
+				}
+				simple = digits <= 15;
+			} else if (b == '.' && !point) {
+				point = true;
+			} else {
+				break;
+			}
+		}
+		if (simple && i < end && (buf[i] == 'e' || buf[i] == 'E')) {
+			i++;
+			final boolean negexp = i < end && buf[i] == '-';
+			if (negexp || (i < end && buf[i] == '+')) {
+				i++;
+			}
+			int exp = 0;
+			simple = i < end;
+			for (; i < end && simple; i++) {
+				final int d = buf[i] - '0';
+				simple = d >= 0 && d <= 9 && exp < 1000;
+				exp = exp * 10 + d;
+			}
+			exponent += negexp ? -exp : exp;
+		}
+		if (simple && mantissa && i == end && significand <= MAX_EXACT_LONG &&
+				Math.abs(exponent) < POWERS_OF_10.length) {
+			final double val = exponent < 0 ? significand / POWERS_OF_10[-exponent] :
+					significand * POWERS_OF_10[exponent];
+			return negative ? -val : val;
+		}
+		return Double.parseDouble(new String(buf, start, end - start, StandardCharsets.US_ASCII));
+	}
+}
@@ -0,0 +1,95 @@
+package us.kbase.genehomology.homology.last;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import us.kbase.genehomology.homology.CancellationToken;
+import us.kbase.genehomology.homology.SearchCancelledException;
+
+/** A budget of threads shared between concurrently running LAST processes. Threads are
+ * granted from the unused portion of the budget, split evenly between the processes waiting
+ * for threads, so a process started on an idle system may use the whole budget while
+ * processes started on a busy system get a single thread. A process is never granted threads
+ * beyond the budget; if the budget is exhausted the caller waits until threads are released.
+ * @author gaprice@lbl.gov
+ *
+ */
+public class ThreadBudget {
+	
+	private final int budget;
+	private int available;
+	private int waiting = 0;
+
+	/** Create a thread budget.
+	 * @param budget the maximum number of threads that may be in use at any time.
+	 */
+	public ThreadBudget(final int budget) {
+		if (budget < 1) {
+			throw new IllegalArgumentException("budget must be > 0");
+		}
+		this.budget = budget;
+		this.available = budget;
+	}
+	
+	/** Get threads from the budget, waiting for at least one thread to become available if
+	 * necessary. The threads must be returned with {@link #release(int)}.
+	 * @param wanted the maximum number of threads the caller can use.
+	 * @param token a token that signals the caller is cancelled. A cancelled caller stops
+	 * waiting.
+	 * @return the number of threads granted, at least one and no more than wanted.
+	 * @throws InterruptedException if the thread is interrupted while waiting.
+	 * @throws SearchCancelledException if the caller was cancelled.
+	 */
+	public int acquire(final int wanted, final CancellationToken token)
+			throws InterruptedException, SearchCancelledException {
+		checkNotNull(token, "token");
+		if (wanted < 1) {
+			throw new IllegalArgumentException("wanted must be > 0");
+		}
+		final Runnable wakeup = () -> {
+			synchronized (this) {
+				notifyAll();
+			}
+		};
+		token.addListener(wakeup);
+		try {
+			return waitForThreads(wanted, token);
+		} finally {
+			token.removeListener(wakeup);
+		}
+	}
+	
+	private synchronized int waitForThreads(final int wanted, final CancellationToken token)
+			throws InterruptedException, SearchCancelledException {
+		waiting++;
+		try {
+			while (available < 1 && !token.isCancelled()) {
+				wait();
+			}
+			if (token.isCancelled()) {
+				throw new SearchCancelledException(
+						"The search was cancelled while waiting for threads");
+			}
+			// leave a share of the remaining threads for processes that are also waiting
+			final int granted = Math.min(wanted, Math.max(1, available / waiting));
+			available -= granted;
+			return granted;
+		} finally {
+			waiting--;
+		}
+	}
+	
+	/** Return threads to the budget.
+	 * @param threads the number of threads to return.
+	 */
+	public synchronized void release(final int threads) {
+		available = Math.min(budget, available + threads);
+		notifyAll();
+	}
+	
+	/** Get the number of threads currently in use.
+	 * @return the number of threads in use.
+	 */
+	public synchronized int getInUse() {
+		return budget - available;
+	}
+}
@@ -0,0 +1,72 @@
+package us.kbase.genehomology.load;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static us.kbase.genehomology.load.ParseHelpers.fromYAML;
+
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+
+import us.kbase.genehomology.loader.exceptions.LoadInputParseException;
+
+/** Represents the list of shards of a sharded sequence database instantiated from a YAML
+ * or JSON input. Relative paths are resolved against a provided directory, typically the
+ * directory containing the input file.
+ * 
+ * Example input:
+ * 
+ * <pre>
+ * - /path/to/shard1.prj
+ * - /path/to/shard2.prj
+ * - shard3.prj
+ * </pre>
+ * 
+ * @author gaprice@lbl.gov
+ *
+ */
+public class ShardListLoadInfo {
+	
+	private final List<Path> shards;
+
+	/** Generate load information for a sharded database.
+	 * @param input the input to parse.
+	 * @param sourceInfo information about the source, often a file name.
+	 * @param baseDirectory the directory against which relative paths are resolved.
+	 * @throws LoadInputParseException if the input could not be parsed.
+	 */
+	public ShardListLoadInfo(
+			final InputStream input,
+			final String sourceInfo,
+			final Path baseDirectory)
+			throws LoadInputParseException {
+		checkNotNull(baseDirectory, "baseDirectory");
+		final Object predata = fromYAML(input, sourceInfo);
+		if (!(predata instanceof List)) {
+			throw new LoadInputParseException("Expected list at / in " + sourceInfo);
+		}
+		final List<Path> shards = new LinkedList<>();
+		int index = 0;
+		for (final Object shard: (List<?>) predata) {
+			if (!(shard instanceof String) || ((String) shard).trim().isEmpty()) {
+				throw new LoadInputParseException(String.format(
+						"Expected non-empty string, got %s at /%s in %s",
+						shard, index, sourceInfo));
+			}
+			shards.add(baseDirectory.resolve(((String) shard).trim()));
+			index++;
+		}
+		if (shards.isEmpty()) {
+			throw new LoadInputParseException("No shards found in " + sourceInfo);
+		}
+		this.shards = Collections.unmodifiableList(shards);
+	}
+
+	/** Get the paths to the database shards.
+	 * @return the shard paths.
+	 */
+	public List<Path> getShards() {
+		return shards;
+	}
+}
@@ -0,0 +1,619 @@
+package us.kbase.genehomology.search;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Optional;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import us.kbase.genehomology.core.NamespaceID;
+import us.kbase.genehomology.core.exceptions.IllegalParameterException;
+import us.kbase.genehomology.core.exceptions.MissingParameterException;
+import us.kbase.genehomology.homology.AlignedSequence;
+import us.kbase.genehomology.homology.SequenceSearchResult;
+import us.kbase.genehomology.util.MetricsRegistry;
+
+/** A persistent cache of search results, stored in a local directory so that the results
+ * survive restarts.
+ *
+ * The results are stored in an append-only log file of binary records, each containing a
+ * {@link SearchCacheKey} and the results for that key. An index from key to record location is
+ * held in memory. The index is built in the background when the cache is created, so creating
+ * the cache is fast; lookups miss until the index is built.
+ *
+ * Several processes on the same host may share a cache directory. Appends and compactions are
+ * serialized between processes with a lock file, and each process indexes records appended by
+ * other processes before each lookup. Lookups do not lock.
+ *
+ * When the log exceeds the maximum size it is compacted by rewriting the most recently used
+ * records to a new file that atomically replaces the log. Records for outdated versions of a
+ * namespace are dropped from the index, and therefore from the compacted log.
+ *
+ * Writes are performed by a single background thread and are best effort - if the thread
+ * falls too far behind, results are not written.
+ *
+ * This class relies on POSIX file semantics and is not expected to work on Windows.
+ *
+ * Reports the metrics {@link #METRIC_HITS}, {@link #METRIC_MISSES}, {@link #METRIC_ENTRIES},
+ * {@link #METRIC_BYTES}, and {@link #METRIC_COMPACTIONS}.
+ * @author gaprice@lbl.gov
+ *
+ */
+public class DiskResultCache {
+
+	/** The number of lookups that found results. */
+	public static final String METRIC_HITS = "search.diskcache.hits";
+	/** The number of lookups that did not find results. */
+	public static final String METRIC_MISSES = "search.diskcache.misses";
+	/** The number of indexed sets of results. */
+	public static final String METRIC_ENTRIES = "search.diskcache.entries";
+	/** The size of the cache log file in bytes. */
+	public static final String METRIC_BYTES = "search.diskcache.bytes";
+	/** The number of times the log file has been compacted by this process. */
+	public static final String METRIC_COMPACTIONS = "search.diskcache.compactions";
+
+	private static final String LOG_FILE = "results.log";
+	private static final String LOCK_FILE = "results.lock";
+	private static final String COMPACT_FILE = "results.log.compact";
+
+	// file header is the magic number and format version
+	private static final int FILE_MAGIC = 0x47484331;
+	private static final int FILE_VERSION = 1;
+	private static final int FILE_HEADER_SIZE = 8;
+	// record header is the magic number, key length, data length, and CRC32 of key + data
+	private static final int RECORD_MAGIC = 0x52454331;
+	private static final int RECORD_HEADER_SIZE = 16;
+
+	// compaction shrinks the log to this fraction of the maximum size
+	private static final double COMPACTION_TARGET = 0.5;
+	private static final int MAX_PENDING_WRITES = 1000;
+	private static final int SHUTDOWN_WAIT_SEC = 10;
+
+	private final Path logFile;
+	private final Path lockFile;
+	private final Path compactFile;
+	private final long maxBytes;
+	private final MetricsRegistry metrics;
+	private final ExecutorService writer;
+
+	// all guarded by this
+	private FileChannel channel = null;
+	private Object fileKey = null;
+	private long indexedTo = 0;
+	private long useCounter = 0;
+	private final Map<SearchCacheKey, IndexEntry> index = new HashMap<>();
+	private final Map<NamespaceID, Instant> latestModification = new HashMap<>();
+
+	private volatile boolean loaded = false;
+
+	/** Create the cache. The cache is loaded in the background.
+	 * @param dir the directory in which to store the cache. Created if it does not exist.
+	 * @param maxBytes the maximum size of the cache log file in bytes.
+	 * @param metrics the metrics registry in which to record cache metrics.
+	 * @throws IOException if the directory could not be created.
+	 */
+	public DiskResultCache(final Path dir, final long maxBytes, final MetricsRegistry metrics)
+			throws IOException {
+		checkNotNull(dir, "dir");
+		checkNotNull(metrics, "metrics");
+		if (maxBytes < 1) {
+			throw new IllegalArgumentException("maxBytes must be > 0");
+		}
+		Files.createDirectories(dir);
+		this.logFile = dir.resolve(LOG_FILE);
+		this.lockFile = dir.resolve(LOCK_FILE);
+		this.compactFile = dir.resolve(COMPACT_FILE);
+		this.maxBytes = maxBytes;
+		this.metrics = metrics;
+		this.writer = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<>(MAX_PENDING_WRITES),
+				new ThreadFactoryBuilder().setDaemon(true).setNameFormat("diskcache-%d").build(),
+				new ThreadPoolExecutor.DiscardPolicy());
+		metrics.increment(METRIC_HITS, 0);
+		metrics.increment(METRIC_MISSES, 0);
+		metrics.increment(METRIC_COMPACTIONS, 0);
+		metrics.gauge(METRIC_ENTRIES, () -> getEntryCount());
+		metrics.gauge(METRIC_BYTES, () -> getIndexedBytes());
+		writer.submit(() -> load());
+	}
+
+	private synchronized int getEntryCount() {
+		return index.size();
+	}
+
+	private synchronized long getIndexedBytes() {
+		return indexedTo;
+	}
+
+	private void load() {
+		try {
+			withFileLock(() -> {
+				if (!Files.exists(logFile) || !hasValidHeader(logFile)) {
+					writeLog(Collections.emptyList(), null);
+				}
+				synchronized (this) {
+					reopen();
+				}
+			});
+			loaded = true;
+			logInfo("Loaded disk result cache {} with {} entries", logFile, getEntryCount());
+		} catch (IOException | RuntimeException e) {
+			LoggerFactory.getLogger(getClass()).error(
+					"Could not load disk result cache, cache is disabled", e);
+		}
+	}
+
+	/** Returns true if the cache has been loaded. Until then, lookups miss and results are
+	 * not added to the cache.
+	 * @return true if the cache is loaded.
+	 */
+	public boolean isLoaded() {
+		return loaded;
+	}
+
+	/** Get results from the cache.
+	 * @param key the key for the results.
+	 * @return the results, or absent if the results are not in the cache.
+	 */
+	public Optional<List<SequenceSearchResult>> get(final SearchCacheKey key) {
+		checkNotNull(key, "key");
+		if (!loaded) {
+			metrics.increment(METRIC_MISSES);
+			return Optional.absent();
+		}
+		try {
+			final IndexEntry e;
+			final FileChannel ch;
+			synchronized (this) {
+				refresh();
+				e = index.get(key);
+				if (e != null) {
+					e.lastUsed = ++useCounter;
+				}
+				ch = channel;
+			}
+			if (e != null) {
+				final Optional<byte[]> data = readData(ch, e);
+				if (data.isPresent()) {
+					metrics.increment(METRIC_HITS);
+					return Optional.of(deserializeResults(data.get()));
+				}
+			}
+		} catch (IOException e) {
+			// the log may have been replaced by a compaction while the record was being read,
+			// or is corrupt. Either way treat as a miss.
+			logInfo("Disk result cache read failed: {}", e.getMessage());
+		}
+		metrics.increment(METRIC_MISSES);
+		return Optional.absent();
+	}
+
+	/** Add results to the cache. The results are written in the background.
+	 * @param key the key for the results.
+	 * @param results the results.
+	 */
+	public void put(final SearchCacheKey key, final List<SequenceSearchResult> results) {
+		checkNotNull(key, "key");
+		checkNotNull(results, "results");
+		if (!loaded) {
+			return;
+		}
+		synchronized (this) {
+			if (index.containsKey(key)) {
+				return;
+			}
+		}
+		// serialize now, since the caller may modify the list
+		final byte[] keyBytes;
+		final byte[] data;
+		try {
+			keyBytes = serializeKey(key);
+			data = serializeResults(results);
+		} catch (IOException e) {
+			throw new RuntimeException("This should be impossible", e);
+		}
+		writer.submit(() -> append(key, keyBytes, data));
+	}
+
+	/** Stop the cache. Lookups miss and results are not added after shutdown. Writes that are
+	 * already queued are completed, waiting up to 10 seconds, after which the remaining writes
+	 * are dropped and the number dropped is logged.
+	 */
+	public void shutdown() {
+		loaded = false;
+		writer.shutdown();
+		boolean done = false;
+		try {
+			done = writer.awaitTermination(SHUTDOWN_WAIT_SEC, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		if (!done) {
+			final int dropped = writer.shutdownNow().size();
+			LoggerFactory.getLogger(getClass()).warn(
+					"Disk result cache {} shut down with {} queued writes dropped",
+					logFile, dropped);
+		}
+		synchronized (this) {
+			if (channel != null) {
+				try {
+					channel.close();
+				} catch (IOException e) {
+					logInfo("Could not close disk result cache {}: {}", logFile, e.getMessage());
+				}
+			}
+		}
+	}
+
+	private void append(final SearchCacheKey key, final byte[] keyBytes, final byte[] data) {
+		try {
+			withFileLock(() -> appendLocked(key, keyBytes, data));
+		} catch (IOException | RuntimeException e) {
+			LoggerFactory.getLogger(getClass()).error("Disk result cache write failed", e);
+		}
+	}
+
+	// must hold the file lock
+	private void appendLocked(final SearchCacheKey key, final byte[] keyBytes, final byte[] data)
+			throws IOException {
+		final long size;
+		synchronized (this) {
+			refresh();
+			if (index.containsKey(key)) {
+				return; // another process cached the results
+			}
+			// since this process holds the lock, any unindexed bytes at the end of the log
+			// are from a writer that died mid write
+			size = indexedTo;
+			channel.truncate(size);
+			final CRC32 crc = new CRC32();
+			crc.update(keyBytes);
+			crc.update(data);
+			final ByteBuffer buf = ByteBuffer.allocate(
+					RECORD_HEADER_SIZE + keyBytes.length + data.length);
+			buf.putInt(RECORD_MAGIC).putInt(keyBytes.length).putInt(data.length)
+					.putInt((int) crc.getValue()).put(keyBytes).put(data).flip();
+			writeFully(channel, buf, size);
+			indexTail();
+		}
+		if (size > maxBytes) {
+			compact();
+		}
+	}
+
+	// must hold the file lock
+	private void compact() throws IOException {
+		final List<IndexEntry> entries;
+		final FileChannel ch;
+		synchronized (this) {
+			entries = new ArrayList<>(index.values());
+			Collections.sort(entries, (e1, e2) -> Long.compare(e2.lastUsed, e1.lastUsed));
+			ch = channel;
+		}
+		final long target = (long) (maxBytes * COMPACTION_TARGET);
+		long total = FILE_HEADER_SIZE;
+		final List<IndexEntry> keep = new ArrayList<>();
+		for (final IndexEntry e: entries) {
+			if (total + e.getRecordSize() > target) {
+				break;
+			}
+			keep.add(e);
+			total += e.getRecordSize();
+		}
+		// write least recently used first, so the order of the records reflects use on reload
+		Collections.reverse(keep);
+		writeLog(keep, ch);
+		synchronized (this) {
+			reopen();
+		}
+		metrics.increment(METRIC_COMPACTIONS);
+		logInfo("Compacted disk result cache {} from {} to {} entries",
+				logFile, entries.size(), keep.size());
+	}
+
+	// must hold the file lock
+	private void writeLog(final List<IndexEntry> records, final FileChannel source)
+			throws IOException {
+		try (final FileChannel out = FileChannel.open(compactFile, StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+			final ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_SIZE);
+			header.putInt(FILE_MAGIC).putInt(FILE_VERSION).flip();
+			// relative write, so the records are transferred after the header
+			while (header.hasRemaining()) {
+				out.write(header);
+			}
+			for (final IndexEntry e: records) {
+				long copied = 0;
+				while (copied < e.getRecordSize()) {
+					copied += source.transferTo(
+							e.offset + copied, e.getRecordSize() - copied, out);
+				}
+			}
+			out.force(true);
+		}
+		Files.move(compactFile, logFile, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	private interface LockedAction {
+
+		void run() throws IOException;
+	}
+
+	// serializes the action with other processes sharing the cache directory
+	private void withFileLock(final LockedAction action) throws IOException {
+		try (final FileChannel lockChannel = FileChannel.open(
+				lockFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+			final FileLock lock = lockChannel.lock();
+			try {
+				action.run();
+			} finally {
+				lock.release();
+			}
+		}
+	}
+
+	private boolean hasValidHeader(final Path file) throws IOException {
+		try (final FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+			final ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_SIZE);
+			if (ch.size() < FILE_HEADER_SIZE) {
+				return false;
+			}
+			readFully(ch, header, 0);
+			return header.getInt() == FILE_MAGIC && header.getInt() == FILE_VERSION;
+		}
+	}
+
+	// must hold this object's lock
+	private void reopen() throws IOException {
+		if (channel != null) {
+			channel.close();
+		}
+		channel = FileChannel.open(logFile, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		fileKey = Files.readAttributes(logFile, BasicFileAttributes.class).fileKey();
+		index.clear();
+		latestModification.clear();
+		indexedTo = FILE_HEADER_SIZE;
+		indexTail();
+	}
+
+	// must hold this object's lock. Picks up any changes made by other processes.
+	private void refresh() throws IOException {
+		final Object fk = Files.readAttributes(logFile, BasicFileAttributes.class).fileKey();
+		if (!Objects.equals(fk, fileKey)) {
+			reopen(); // another process compacted the log
+		} else {
+			indexTail();
+		}
+	}
+
+	// must hold this object's lock
+	private void indexTail() throws IOException {
+		final long size = channel.size();
+		final ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+		long pos = indexedTo;
+		while (pos + RECORD_HEADER_SIZE <= size) {
+			header.clear();
+			readFully(channel, header, pos);
+			final int magic = header.getInt();
+			final int keyLength = header.getInt();
+			final int dataLength = header.getInt();
+			if (magic != RECORD_MAGIC || keyLength < 0 || dataLength < 0) {
+				// can only happen if the file is corrupt. Ignore the rest of the file; it'll
+				// be dropped at the next compaction.
+				logInfo("Corrupt record at position {} in disk result cache {}", pos, logFile);
+				pos = size;
+				break;
+			}
+			final IndexEntry e = new IndexEntry(pos, keyLength, dataLength, ++useCounter);
+			if (pos + e.getRecordSize() > size) {
+				break; // partially written by another process, index later
+			}
+			final ByteBuffer key = ByteBuffer.allocate(keyLength);
+			readFully(channel, key, pos + RECORD_HEADER_SIZE);
+			final Optional<SearchCacheKey> k = deserializeKey(key.array());
+			if (k.isPresent()) {
+				addToIndex(k.get(), e);
+			}
+			pos += e.getRecordSize();
+		}
+		indexedTo = pos;
+	}
+
+	// must hold this object's lock
+	private void addToIndex(final SearchCacheKey key, final IndexEntry e) {
+		final NamespaceID nsid = key.getNamespaceID();
+		final Instant latest = latestModification.get(nsid);
+		if (latest != null && key.getModification().isBefore(latest)) {
+			return;
+		}
+		if (latest == null || key.getModification().isAfter(latest)) {
+			latestModification.put(nsid, key.getModification());
+			index.keySet().removeIf(k -> k.getNamespaceID().equals(nsid));
+		}
+		index.put(key, e);
+	}
+
+	private Optional<byte[]> readData(final FileChannel ch, final IndexEntry e)
+			throws IOException {
+		final ByteBuffer rec = ByteBuffer.allocate((int) e.getRecordSize());
+		readFully(ch, rec, e.offset);
+		final int magic = rec.getInt();
+		rec.getInt();
+		rec.getInt();
+		final int crc = rec.getInt();
+		final CRC32 check = new CRC32();
+		check.update(rec.array(), RECORD_HEADER_SIZE, e.keyLength + e.dataLength);
+		if (magic != RECORD_MAGIC || crc != (int) check.getValue()) {
+			return Optional.absent();
+		}
+		final byte[] data = new byte[e.dataLength];
+		System.arraycopy(rec.array(), RECORD_HEADER_SIZE + e.keyLength, data, 0, e.dataLength);
+		return Optional.of(data);
+	}
+
+	private static void readFully(final FileChannel ch, final ByteBuffer buf, final long pos)
+			throws IOException {
+		long p = pos;
+		while (buf.hasRemaining()) {
+			final int read = ch.read(buf, p);
+			if (read < 0) {
+				throw new IOException("Unexpected end of disk result cache file");
+			}
+			p += read;
+		}
+		buf.flip();
+	}
+
+	private static void writeFully(final FileChannel ch, final ByteBuffer buf, final long pos)
+			throws IOException {
+		long p = pos;
+		while (buf.hasRemaining()) {
+			p += ch.write(buf, p);
+		}
+	}
+
+	private static byte[] serializeKey(final SearchCacheKey key) throws IOException {
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		final DataOutputStream out = new DataOutputStream(bytes);
+		writeString(out, key.getNamespaceID().getName());
+		out.writeLong(key.getModification().getEpochSecond());
+		out.writeInt(key.getModification().getNano());
+		writeString(out, key.getParameters());
+		writeString(out, key.getResidueHash());
+		out.flush();
+		return bytes.toByteArray();
+	}
+
+	private Optional<SearchCacheKey> deserializeKey(final byte[] key) throws IOException {
+		final DataInputStream in = new DataInputStream(new ByteArrayInputStream(key));
+		try {
+			return Optional.of(new SearchCacheKey(
+					new NamespaceID(readString(in)),
+					Instant.ofEpochSecond(in.readLong(), in.readInt()),
+					readString(in),
+					readString(in)));
+		} catch (MissingParameterException | IllegalParameterException e) {
+			logInfo("Invalid key in disk result cache {}: {}", logFile, e.getMessage());
+			return Optional.absent();
+		}
+	}
+
+	private static byte[] serializeResults(final List<SequenceSearchResult> results)
+			throws IOException {
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		final DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(results.size());
+		for (final SequenceSearchResult ssr: results) {
+			out.writeDouble(ssr.getEValue());
+			out.writeInt(ssr.getBitScore());
+			writeSequence(out, ssr.getQuery());
+			writeSequence(out, ssr.getTarget());
+		}
+		out.flush();
+		return bytes.toByteArray();
+	}
+
+	private static List<SequenceSearchResult> deserializeResults(final byte[] data)
+			throws IOException {
+		final DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+		final int count = in.readInt();
+		final List<SequenceSearchResult> ret = new ArrayList<>(count);
+		for (int i = 0; i < count; i++) {
+			final double eValue = in.readDouble();
+			final int bitScore = in.readInt();
+			ret.add(new SequenceSearchResult(
+					readSequence(in), readSequence(in), eValue, bitScore));
+		}
+		return ret;
+	}
+
+	private static void writeSequence(final DataOutputStream out, final AlignedSequence seq)
+			throws IOException {
+		writeString(out, seq.getId());
+		out.writeInt(seq.getSequenceLength());
+		writeString(out, seq.getAlignedSequence());
+		out.writeInt(seq.getAlignmentStart());
+		out.writeInt(seq.getAlignmentLength());
+		out.writeBoolean(seq.isForwardStrand());
+	}
+
+	private static AlignedSequence readSequence(final DataInputStream in) throws IOException {
+		final String id = readString(in);
+		final int sequenceLength = in.readInt();
+		final String alignedSequence = readString(in);
+		final int alignmentStart = in.readInt();
+		final int alignmentLength = in.readInt();
+		final boolean forwardStrand = in.readBoolean();
+		return new AlignedSequence(id, sequenceLength, alignedSequence, alignmentStart,
+				alignmentLength, forwardStrand);
+	}
+
+	// DataOutputStream.writeUTF is limited to 64KB
+	private static void writeString(final DataOutputStream out, final String s)
+			throws IOException {
+		final byte[] b = s.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(b.length);
+		out.write(b);
+	}
+
+	private static String readString(final DataInputStream in) throws IOException {
+		final byte[] b = new byte[in.readInt()];
+		in.readFully(b);
+		return new String(b, StandardCharsets.UTF_8);
+	}
+
+	private void logInfo(final String format, final Object... args) {
+		LoggerFactory.getLogger(getClass()).info(format, args);
+	}
+
+	private static class IndexEntry {
+
+		private final long offset;
+		private final int keyLength;
+		private final int dataLength;
+		private long lastUsed;
+
+		private IndexEntry(
+				final long offset,
+				final int keyLength,
+				final int dataLength,
+				final long lastUsed) {
+			this.offset = offset;
+			this.keyLength = keyLength;
+			this.dataLength = dataLength;
+			this.lastUsed = lastUsed;
+		}
+
+		private long getRecordSize() {
+			return RECORD_HEADER_SIZE + (long) keyLength + dataLength;
+		}
+	}
+}
@@ -0,0 +1,246 @@
+package us.kbase.genehomology.search;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.google.common.io.BaseEncoding;
+
+import us.kbase.genehomology.core.exceptions.IllegalParameterException;
+
+/** A query sequence read from FASTA data. The sequence residues are normalized by removing
+ * white space and converting to upper case, so that queries that differ only in line wrapping,
+ * case, or header text have the same residue hash.
+ *
+ * The FASTA data itself is not retained. Instead the location of the sequence in the data is
+ * recorded so the sequence can be read from the data again if needed.
+ * @author gaprice@lbl.gov
+ *
+ */
+public class QuerySequence {
+
+	private final String id;
+	private final String residueHash;
+	private final int length;
+	private final long start;
+	private final long end;
+
+	private QuerySequence(
+			final String id,
+			final String residueHash,
+			final int length,
+			final long start,
+			final long end) {
+		this.id = id;
+		this.residueHash = residueHash;
+		this.length = length;
+		this.start = start;
+		this.end = end;
+	}
+
+	/** Parse and validate query sequences from FASTA data.
+	 * 
+	 * Each sequence must have a header line starting with '&gt;' and containing a sequence ID,
+	 * and at least one residue. Residues may be letters, '*', or '-'. Blank lines and comment
+	 * lines starting with ';' are ignored.
+	 * 
+	 * Parsing stops after more than the maximum number of sequences is read, so the caller can
+	 * detect input with too many sequences without reading all of it.
+	 * @param fasta the FASTA data, encoded as UTF-8. The stream is not closed.
+	 * @param maxSequences the maximum number of sequences to read.
+	 * @return the query sequences, in the order they appear in the input. At most
+	 * maxSequences + 1 sequences are returned.
+	 * @throws IOException if the input could not be read.
+	 * @throws IllegalParameterException if the input is not valid FASTA.
+	 */
+	public static List<QuerySequence> parseFASTA(final InputStream fasta, final int maxSequences)
+			throws IOException, IllegalParameterException {
+		checkNotNull(fasta, "fasta");
+		if (maxSequences < 1) {
+			throw new IllegalArgumentException("maxSequences must be > 0");
+		}
+		final List<QuerySequence> ret = new ArrayList<>();
+		String id = null;
+		int headerLine = 0;
+		long start = 0;
+		final StringBuilder residues = new StringBuilder();
+		final LineReader lr = new LineReader(fasta);
+		int lineNum = 0;
+		for (String line = lr.readLine(); line != null; line = lr.readLine()) {
+			lineNum++;
+			if (line.startsWith(">")) {
+				if (id != null) {
+					ret.add(build(id, headerLine, residues, start, lr.getLineStart()));
+					if (ret.size() > maxSequences) {
+						return ret;
+					}
+				}
+				// LAST uses the first whitespace delimited token as the sequence ID
+				id = line.substring(1).trim().split("\\s+", 2)[0];
+				if (id.isEmpty()) {
+					throw invalid(lineNum, "missing sequence ID");
+				}
+				headerLine = lineNum;
+				start = lr.getLineStart();
+				residues.setLength(0);
+			} else if (!line.startsWith(";")) {
+				for (int i = 0; i < line.length(); i++) {
+					final char c = line.charAt(i);
+					if (Character.isWhitespace(c)) {
+						continue;
+					}
+					if (id == null) {
+						throw invalid(lineNum, "sequence data before the first header line");
+					}
+					if (!isResidue(c)) {
+						throw invalid(lineNum, String.format("illegal character '%s'", c));
+					}
+					residues.append(Character.toUpperCase(c));
+				}
+			}
+		}
+		if (id == null) {
+			throw new IllegalParameterException("Empty input FASTA file");
+		}
+		ret.add(build(id, headerLine, residues, start, lr.getOffset()));
+		return ret;
+	}
+
+	/* Reads lines terminated by \n or \r\n, tracking the byte offset of each line. Only the
+	 * current line is held in memory.
+	 */
+	private static class LineReader {
+
+		private final InputStream in;
+		private final byte[] buf = new byte[8192];
+		private int pos = 0;
+		private int limit = 0;
+		private byte[] line = new byte[256];
+		private long offset = 0;
+		private long lineStart = 0;
+
+		private LineReader(final InputStream in) {
+			this.in = in;
+		}
+
+		// returns null at the end of the input
+		private String readLine() throws IOException {
+			lineStart = offset;
+			int len = 0;
+			while (true) {
+				if (pos == limit) {
+					final int read = in.read(buf);
+					if (read < 0) {
+						if (offset == lineStart) {
+							return null;
+						}
+						break;
+					}
+					pos = 0;
+					limit = read;
+					continue;
+				}
+				final byte b = buf[pos++];
+				offset++;
+				if (b == '\n') {
+					break;
+				}
+				if (len == line.length) {
+					line = Arrays.copyOf(line, len * 2);
+				}
+				line[len++] = b;
+			}
+			if (len > 0 && line[len - 1] == '\r') {
+				len--;
+			}
+			return new String(line, 0, len, StandardCharsets.UTF_8);
+		}
+
+		// the offset of the line most recently read
+		private long getLineStart() {
+			return lineStart;
+		}
+
+		// the number of bytes read
+		private long getOffset() {
+			return offset;
+		}
+	}
+
+	private static boolean isResidue(final char c) {
+		return (c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z') || c == '*' || c == '-';
+	}
+
+	private static IllegalParameterException invalid(final int line, final String error) {
+		return new IllegalParameterException(String.format(
+				"Invalid input FASTA: line %s: %s", line, error));
+	}
+
+	private static QuerySequence build(
+			final String id,
+			final int headerLine,
+			final StringBuilder residues,
+			final long start,
+			final long end)
+			throws IllegalParameterException {
+		if (residues.length() < 1) {
+			throw invalid(headerLine, "no sequence for ID " + id);
+		}
+		return new QuerySequence(id, hash(residues), residues.length(), start, end);
+	}
+
+	private static String hash(final CharSequence residues) {
+		final MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException("This should be impossible", e);
+		}
+		return BaseEncoding.base16().lowerCase().encode(
+				digest.digest(residues.toString().getBytes(StandardCharsets.UTF_8)));
+	}
+
+	/** Get the ID of the sequence.
+	 * @return the sequence ID.
+	 */
+	public String getID() {
+		return id;
+	}
+
+	/** Get the SHA-256 hash, as a lower case hex string, of the normalized sequence residues.
+	 * @return the residue hash.
+	 */
+	public String getResidueHash() {
+		return residueHash;
+	}
+
+	/** Get the number of residues in the sequence.
+	 * @return the sequence length.
+	 */
+	public int getLength() {
+		return length;
+	}
+
+	/** Get the byte offset in the FASTA data of the sequence's header line.
+	 * @return the start of the sequence.
+	 */
+	public long getStart() {
+		return start;
+	}
+
+	/** Get the byte offset in the FASTA data immediately after the sequence, including any
+	 * blank or comment lines following the sequence. This is the start of the next sequence or
+	 * the end of the data.
+	 * @return the end of the sequence.
+	 */
+	public long getEnd() {
+		return end;
+	}
+}
@@ -0,0 +1,466 @@
+package us.kbase.genehomology.search;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.io.IOUtils;
+
+import us.kbase.genehomology.core.exceptions.TooManyRequestsException;
+import us.kbase.genehomology.homology.CancellationToken;
+import us.kbase.genehomology.homology.GeneHomologyDBLocation;
+import us.kbase.genehomology.homology.GeneHomologyDBName;
+import us.kbase.genehomology.homology.GeneHomologyImplementationException;
+import us.kbase.genehomology.homology.QueryInput;
+import us.kbase.genehomology.homology.QueryResultsListener;
+import us.kbase.genehomology.homology.SearchCancelledException;
+import us.kbase.genehomology.homology.ResultBatch;
+import us.kbase.genehomology.homology.SearchParameters;
+import us.kbase.genehomology.homology.last.LAST;
+import us.kbase.genehomology.search.SearchScheduler.SearchPermit;
+import us.kbase.genehomology.util.MetricsRegistry;
+
+/** Coalesces concurrent single sequence searches against the same database with the same
+ * search parameters into one multi-sequence search.
+ *
+ * The first search to arrive for a database opens a batch and waits for the batch window to
+ * expire or for the batch to fill, whichever happens first. Searches that arrive while the
+ * batch is open are added to the batch. The query sequences are then combined, with unique
+ * internal IDs, into a single in memory FASTA input, which is searched with one run of the
+ * homology implementation. The results are split by query and returned to each waiting search
+ * with the original query ID restored.
+ *
+ * The thread of the first search in a batch runs the batch, so no threads are created by the
+ * batcher. Every run of the homology implementation, batched or not, holds a permit from the
+ * {@link SearchScheduler}. A batch acquires its permit after the batch window closes, so a
+ * batch counts as one search against the concurrent search limit. If the permit can't be
+ * acquired every search in the batch fails with the same error.
+ *
+ * A search that is cancelled before its batch starts running is removed from the batch. If
+ * every search in a running batch is cancelled the batch is cancelled, which terminates the
+ * homology implementation run. A cancelled search returns immediately, even if its batch is
+ * still running. The thread of the first search runs the batch to completion regardless of
+ * whether that search is cancelled.
+ *
+ * Reports the metrics {@link #METRIC_BATCH_SIZE} and {@link #METRIC_BATCH_WAIT}.
+ * @author gaprice@lbl.gov
+ *
+ */
+public class SearchBatcher {
+
+	/** The distribution of the number of queries per batch. */
+	public static final String METRIC_BATCH_SIZE = "search.batch.size";
+	/** The distribution of the time, in milliseconds, each query waited for its batch to
+	 * start running.
+	 */
+	public static final String METRIC_BATCH_WAIT = "search.batch.waitms";
+
+	private static final String ID_PREFIX = "ghq";
+
+	private final LAST last;
+	private final SearchScheduler scheduler;
+	private final int windowMS;
+	private final int maxBatchSize;
+	private final MetricsRegistry metrics;
+	private final AtomicLong idCounter = new AtomicLong();
+
+	// key is the db name, location, and search parameters
+	private final Map<List<Object>, Batch> openBatches = new HashMap<>();
+
+	/** Create a batcher.
+	 * @param last the LAST implementation to use for searches.
+	 * @param scheduler the scheduler that limits the number of concurrent searches.
+	 * @param windowMS the maximum time in milliseconds to hold a batch open waiting for more
+	 * searches. If 0, batching is disabled and searches are passed directly to LAST.
+	 * @param maxBatchSize the maximum number of queries in a batch. If 1, batching is disabled.
+	 * @param metrics the metrics registry in which to record batching metrics.
+	 */
+	public SearchBatcher(
+			final LAST last,
+			final SearchScheduler scheduler,
+			final int windowMS,
+			final int maxBatchSize,
+			final MetricsRegistry metrics) {
+		checkNotNull(last, "last");
+		checkNotNull(scheduler, "scheduler");
+		checkNotNull(metrics, "metrics");
+		if (windowMS < 0) {
+			throw new IllegalArgumentException("windowMS must be >= 0");
+		}
+		if (maxBatchSize < 1) {
+			throw new IllegalArgumentException("maxBatchSize must be > 0");
+		}
+		this.last = last;
+		this.scheduler = scheduler;
+		this.windowMS = windowMS;
+		this.maxBatchSize = maxBatchSize;
+		this.metrics = metrics;
+	}
+
+	/** Search a database with any number of query sequences in a single search run. The search
+	 * is not batched with other searches.
+	 * @param dbName the name of the database to search.
+	 * @param searchDB the location of the database to search.
+	 * @param query the query sequences. The sequence IDs must be unique.
+	 * @param params the search parameters. Any result limit applies to each query sequence.
+	 * @param token a token that signals the search is cancelled.
+	 * @return the search results.
+	 * @throws SearchCancelledException if the search was cancelled.
+	 * @throws GeneHomologyImplementationException if the search failed.
+	 * @throws TooManyRequestsException if the search was rejected by the scheduler.
+	 * @throws InterruptedException if the thread was interrupted while waiting to run.
+	 */
+	public ResultBatch searchAll(
+			final GeneHomologyDBName dbName,
+			final GeneHomologyDBLocation searchDB,
+			final QueryInput query,
+			final SearchParameters params,
+			final CancellationToken token)
+			throws GeneHomologyImplementationException, TooManyRequestsException,
+				InterruptedException {
+		checkNotNull(dbName, "dbName");
+		checkNotNull(searchDB, "searchDB");
+		checkNotNull(query, "query");
+		checkNotNull(params, "params");
+		checkNotNull(token, "token");
+		return searchWithPermit(dbName, searchDB, query, params, token);
+	}
+
+	/** Search a database with any number of query sequences in a single search run, passing
+	 * the results for each query sequence to a listener as soon as they are final. The search
+	 * is not batched with other searches.
+	 * @param dbName the name of the database to search.
+	 * @param searchDB the location of the database to search.
+	 * @param query the query sequences. The sequence IDs must be unique.
+	 * @param params the search parameters. Any result limit applies to each query sequence.
+	 * @param token a token that signals the search is cancelled.
+	 * @param listener the receiver of the results for each query.
+	 * @throws SearchCancelledException if the search was cancelled.
+	 * @throws GeneHomologyImplementationException if the search failed.
+	 * @throws TooManyRequestsException if the search was rejected by the scheduler.
+	 * @throws InterruptedException if the thread was interrupted while waiting to run.
+	 * @see LAST#search(GeneHomologyDBName, GeneHomologyDBLocation, QueryInput,
+	 * SearchParameters, CancellationToken, QueryResultsListener)
+	 */
+	public void searchAll(
+			final GeneHomologyDBName dbName,
+			final GeneHomologyDBLocation searchDB,
+			final QueryInput query,
+			final SearchParameters params,
+			final CancellationToken token,
+			final QueryResultsListener listener)
+			throws GeneHomologyImplementationException, TooManyRequestsException,
+				InterruptedException {
+		checkNotNull(dbName, "dbName");
+		checkNotNull(searchDB, "searchDB");
+		checkNotNull(query, "query");
+		checkNotNull(params, "params");
+		checkNotNull(token, "token");
+		checkNotNull(listener, "listener");
+		final SearchPermit permit = scheduler.acquire(token);
+		try {
+			last.search(dbName, searchDB, query, params, token, listener);
+		} finally {
+			permit.close();
+		}
+	}
+
+	private ResultBatch searchWithPermit(
+			final GeneHomologyDBName dbName,
+			final GeneHomologyDBLocation searchDB,
+			final QueryInput query,
+			final SearchParameters params,
+			final CancellationToken token)
+			throws GeneHomologyImplementationException, TooManyRequestsException,
+				InterruptedException {
+		final SearchPermit permit = scheduler.acquire(token);
+		try {
+			return last.search(dbName, searchDB, query, params, token);
+		} finally {
+			permit.close();
+		}
+	}
+
+	/** Search a database, possibly as part of a batch with other searches.
+	 * @param dbName the name of the database to search.
+	 * @param searchDB the location of the database to search.
+	 * @param queryInput the query, containing exactly one sequence.
+	 * @param params the search parameters.
+	 * @param token a token that signals the search is cancelled.
+	 * @return the search results.
+	 * @throws SearchCancelledException if the search was cancelled.
+	 * @throws GeneHomologyImplementationException if the search failed.
+	 * @throws TooManyRequestsException if the search, or the batch containing the search, was
+	 * rejected by the scheduler.
+	 * @throws InterruptedException if the thread was interrupted while waiting to run an
+	 * unbatched search.
+	 */
+	public ResultBatch search(
+			final GeneHomologyDBName dbName,
+			final GeneHomologyDBLocation searchDB,
+			final QueryInput queryInput,
+			final SearchParameters params,
+			final CancellationToken token)
+			throws GeneHomologyImplementationException, TooManyRequestsException,
+				InterruptedException {
+		checkNotNull(dbName, "dbName");
+		checkNotNull(searchDB, "searchDB");
+		checkNotNull(queryInput, "queryInput");
+		checkNotNull(params, "params");
+		checkNotNull(token, "token");
+		if (windowMS == 0 || maxBatchSize == 1) {
+			metrics.record(METRIC_BATCH_SIZE, 1);
+			metrics.record(METRIC_BATCH_WAIT, 0);
+			return searchWithPermit(dbName, searchDB, queryInput, params, token);
+		}
+		// read the query now, a query file may be deleted if the search is cancelled
+		final List<String> fasta;
+		try (final InputStream is = queryInput.openStream()) {
+			fasta = IOUtils.readLines(is, StandardCharsets.UTF_8);
+		} catch (IOException e) {
+			throw new GeneHomologyImplementationException(e.getMessage(), e);
+		}
+		final Query query = new Query(fasta, ID_PREFIX + idCounter.incrementAndGet(), token);
+		final List<Object> key = Arrays.asList(dbName, searchDB, params);
+		final Batch batch;
+		final boolean leader;
+		synchronized (openBatches) {
+			final Batch open = openBatches.get(key);
+			if (open == null) {
+				batch = new Batch(dbName, searchDB, params);
+				openBatches.put(key, batch);
+				leader = true;
+			} else {
+				batch = open;
+				leader = false;
+			}
+			synchronized (batch) {
+				batch.queries.add(query);
+				if (batch.queries.size() >= maxBatchSize) {
+					openBatches.remove(key);
+					batch.closed = true;
+					batch.notifyAll();
+				}
+			}
+		}
+		final Runnable canceller = () -> cancel(batch, query);
+		token.addListener(canceller);
+		try {
+			if (leader) {
+				waitForBatch(key, batch);
+				runBatch(batch);
+			}
+			return getResult(query);
+		} finally {
+			token.removeListener(canceller);
+		}
+	}
+	
+	private void cancel(final Batch batch, final Query query) {
+		final boolean cancelBatch;
+		synchronized (batch) {
+			if (batch.started) {
+				cancelBatch = batch.queries.stream().allMatch(q -> q.token.isCancelled());
+			} else {
+				batch.queries.remove(query);
+				// stops a closed batch from waiting for a search permit
+				cancelBatch = batch.closed && batch.queries.isEmpty();
+			}
+		}
+		query.result.completeExceptionally(new SearchCancelledException(
+				"The search was cancelled"));
+		if (cancelBatch) {
+			batch.token.cancel();
+		}
+	}
+
+	private void waitForBatch(final List<Object> key, final Batch batch)
+			throws GeneHomologyImplementationException {
+		final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(windowMS);
+		try {
+			synchronized (batch) {
+				long remaining = deadline - System.nanoTime();
+				while (!batch.closed && remaining > 0) {
+					TimeUnit.NANOSECONDS.timedWait(batch, remaining);
+					remaining = deadline - System.nanoTime();
+				}
+			}
+		} catch (InterruptedException e) {
+			closeBatch(key, batch);
+			final GeneHomologyImplementationException ex = new GeneHomologyImplementationException(
+					"Interrupted while waiting for search batch", e);
+			getQueries(batch).stream().forEach(q -> q.result.completeExceptionally(ex));
+			throw ex;
+		}
+		closeBatch(key, batch);
+	}
+
+	private void closeBatch(final List<Object> key, final Batch batch) {
+		synchronized (openBatches) {
+			if (openBatches.get(key) == batch) {
+				openBatches.remove(key);
+			}
+			synchronized (batch) {
+				batch.closed = true;
+			}
+		}
+	}
+
+	private ResultBatch getResult(final Query query)
+			throws GeneHomologyImplementationException, TooManyRequestsException {
+		try {
+			return query.result.get();
+		} catch (InterruptedException e) {
+			throw new GeneHomologyImplementationException(
+					"Interrupted while waiting for search batch", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof GeneHomologyImplementationException) {
+				throw (GeneHomologyImplementationException) e.getCause();
+			}
+			if (e.getCause() instanceof TooManyRequestsException) {
+				throw (TooManyRequestsException) e.getCause();
+			}
+			throw new GeneHomologyImplementationException(e.getCause().getMessage(), e.getCause());
+		}
+	}
+
+	private List<Query> getQueries(final Batch batch) {
+		synchronized (batch) {
+			return new ArrayList<>(batch.queries);
+		}
+	}
+
+	// the batch is closed at this point, so no queries are added to the batch
+	private void runBatch(final Batch batch) throws GeneHomologyImplementationException {
+		if (getQueries(batch).isEmpty()) {
+			return; // all cancelled
+		}
+		final SearchPermit permit;
+		try {
+			permit = scheduler.acquire(batch.token);
+		} catch (TooManyRequestsException | SearchCancelledException e) {
+			// if cancelled, every query has already been completed
+			getQueries(batch).stream().forEach(q -> q.result.completeExceptionally(e));
+			return;
+		} catch (InterruptedException e) {
+			final GeneHomologyImplementationException ex = new GeneHomologyImplementationException(
+					"Interrupted while waiting for search batch", e);
+			getQueries(batch).stream().forEach(q -> q.result.completeExceptionally(ex));
+			throw ex;
+		}
+		try {
+			searchBatch(batch);
+		} finally {
+			permit.close();
+		}
+	}
+
+	private void searchBatch(final Batch batch) {
+		final long start = System.nanoTime();
+		final List<Query> queries;
+		synchronized (batch) {
+			batch.started = true;
+			queries = new ArrayList<>(batch.queries);
+		}
+		if (queries.isEmpty()) {
+			return; // all cancelled
+		}
+		metrics.record(METRIC_BATCH_SIZE, queries.size());
+		for (final Query q: queries) {
+			metrics.record(METRIC_BATCH_WAIT,
+					TimeUnit.NANOSECONDS.toMillis(start - q.enqueued));
+		}
+		try {
+			final StringBuilder batchFasta = new StringBuilder();
+			for (final Query q: queries) {
+				q.appendRenamedFASTA(batchFasta);
+			}
+			final Map<String, ResultBatch> results = last.search(
+					batch.dbName, batch.location,
+					QueryInput.fromBytes(batchFasta.toString().getBytes(StandardCharsets.UTF_8)),
+					batch.params, batch.token)
+					.groupByQueryID();
+			for (final Query q: queries) {
+				final ResultBatch res = results.get(q.internalID);
+				q.result.complete(res == null ? ResultBatch.getBuilder().build() :
+					res.withQueryID(q.originalID));
+			}
+		} catch (GeneHomologyImplementationException | RuntimeException e) {
+			final GeneHomologyImplementationException ex =
+					e instanceof GeneHomologyImplementationException ?
+							(GeneHomologyImplementationException) e :
+							new GeneHomologyImplementationException(e.getMessage(), e);
+			queries.stream().forEach(q -> q.result.completeExceptionally(ex));
+		}
+	}
+
+	private static class Batch {
+
+		private final GeneHomologyDBName dbName;
+		private final GeneHomologyDBLocation location;
+		private final SearchParameters params;
+		private final List<Query> queries = new LinkedList<>();
+		private final CancellationToken token = new CancellationToken();
+		private boolean closed = false;
+		private boolean started = false;
+
+		private Batch(
+				final GeneHomologyDBName dbName,
+				final GeneHomologyDBLocation location,
+				final SearchParameters params) {
+			this.dbName = dbName;
+			this.location = location;
+			this.params = params;
+		}
+	}
+
+	private static class Query {
+
+		private final List<String> fasta;
+		private final String internalID;
+		private final CancellationToken token;
+		private final long enqueued = System.nanoTime();
+		private final CompletableFuture<ResultBatch> result =
+				new CompletableFuture<>();
+		private String originalID = null;
+
+		private Query(
+				final List<String> fasta,
+				final String internalID,
+				final CancellationToken token) {
+			this.fasta = fasta;
+			this.internalID = internalID;
+			this.token = token;
+		}
+
+		// LAST uses the first whitespace delimited token in the header as the sequence ID
+		private void appendRenamedFASTA(final StringBuilder batchFasta) {
+			for (final String line: fasta) {
+				if (line.startsWith(">")) {
+					if (originalID != null) {
+						throw new IllegalStateException(
+								"Batched FASTA input must contain exactly one sequence");
+					}
+					final String[] header = line.substring(1).trim().split("\\s+", 2);
+					originalID = header[0];
+					batchFasta.append(">").append(internalID);
+				} else {
+					batchFasta.append(line);
+				}
+				batchFasta.append("\n");
+			}
+		}
+	}
+}
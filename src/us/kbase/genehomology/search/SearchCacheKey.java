@@ -0,0 +1,116 @@
+package us.kbase.genehomology.search;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.time.Instant;
+
+import us.kbase.genehomology.core.NamespaceID;
+
+/** The key for a set of cached search results. Results are keyed by the namespace searched,
+ * the modification time of the namespace, the search parameters, and a hash of the query
+ * sequence residues.
+ * @author gaprice@lbl.gov
+ *
+ */
+public class SearchCacheKey {
+
+	private final NamespaceID namespaceID;
+	private final Instant modification;
+	private final String parameters;
+	private final String residueHash;
+
+	/** Create a key.
+	 * @param namespaceID the ID of the namespace searched.
+	 * @param modification the modification time of the namespace.
+	 * @param parameters a canonical representation of the search parameters. Searches with
+	 * the same parameters must have the same representation.
+	 * @param residueHash the hash of the normalized query residues.
+	 * @see QuerySequence#getResidueHash()
+	 */
+	public SearchCacheKey(
+			final NamespaceID namespaceID,
+			final Instant modification,
+			final String parameters,
+			final String residueHash) {
+		checkNotNull(namespaceID, "namespaceID");
+		checkNotNull(modification, "modification");
+		checkNotNull(parameters, "parameters");
+		checkNotNull(residueHash, "residueHash");
+		this.namespaceID = namespaceID;
+		this.modification = modification;
+		this.parameters = parameters;
+		this.residueHash = residueHash;
+	}
+
+	/** Get the ID of the namespace searched.
+	 * @return the namespace ID.
+	 */
+	public NamespaceID getNamespaceID() {
+		return namespaceID;
+	}
+
+	/** Get the modification time of the namespace.
+	 * @return the modification time.
+	 */
+	public Instant getModification() {
+		return modification;
+	}
+
+	/** Get the canonical representation of the search parameters.
+	 * @return the search parameters.
+	 */
+	public String getParameters() {
+		return parameters;
+	}
+
+	/** Get the hash of the normalized query residues.
+	 * @return the residue hash.
+	 */
+	public String getResidueHash() {
+		return residueHash;
+	}
+
+	@Override
+	public int hashCode() {
+		final int prime = 31;
+		int result = 1;
+		result = prime * result + modification.hashCode();
+		result = prime * result + namespaceID.hashCode();
+		result = prime * result + parameters.hashCode();
+		result = prime * result + residueHash.hashCode();
+		return result;
+	}
+
+	@Override
+	public boolean equals(final Object obj) {
+		if (this == obj) {
+			return true;
+		}
+		if (obj == null) {
+			return false;
+		}
+		if (getClass() != obj.getClass()) {
+			return false;
+		}
+		final SearchCacheKey other = (SearchCacheKey) obj;
+		return modification.equals(other.modification) &&
+				namespaceID.equals(other.namespaceID) &&
+				parameters.equals(other.parameters) &&
+				residueHash.equals(other.residueHash);
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder builder = new StringBuilder();
+		builder.append("SearchCacheKey [namespaceID=");
+		builder.append(namespaceID);
+		builder.append(", modification=");
+		builder.append(modification);
+		builder.append(", parameters=");
+		builder.append(parameters);
+		builder.append(", residueHash=");
+		builder.append(residueHash);
+		builder.append("]");
+		return builder.toString();
+	}
+}
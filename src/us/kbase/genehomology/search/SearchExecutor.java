@@ -0,0 +1,76 @@
+package us.kbase.genehomology.search;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import us.kbase.genehomology.core.exceptions.TooManyRequestsException;
+import us.kbase.genehomology.util.MetricsRegistry;
+
+/** Runs searches on a dedicated, bounded, pool of threads so that searches don't occupy the
+ * threads of the web server. Searches are not queued by the executor - if all the threads are
+ * busy the search is rejected with a {@link TooManyRequestsException}. Searches that need to
+ * wait to run should wait in a {@link SearchScheduler} on a search thread.
+ *
+ * Reports the metrics {@link #METRIC_ACTIVE} and {@link #METRIC_REJECTED}.
+ * @author gaprice@lbl.gov
+ *
+ */
+public class SearchExecutor {
+
+	/** The number of search threads currently running or waiting to run a search. */
+	public static final String METRIC_ACTIVE = "search.executor.active";
+	/** The number of searches rejected because all the search threads were busy. */
+	public static final String METRIC_REJECTED = "search.executor.rejected";
+
+	// idle threads are stopped after this time
+	private static final long KEEP_ALIVE_SEC = 60;
+	// when all the threads are busy, a search is likely to be running for a while
+	private static final int RETRY_AFTER_SEC = 10;
+
+	private final MetricsRegistry metrics;
+	private final ThreadPoolExecutor executor;
+
+	/** Create an executor.
+	 * @param threads the maximum number of searches that may be processed at once.
+	 * @param metrics the metrics registry in which to record executor metrics.
+	 */
+	public SearchExecutor(final int threads, final MetricsRegistry metrics) {
+		checkNotNull(metrics, "metrics");
+		if (threads < 1) {
+			throw new IllegalArgumentException("threads must be > 0");
+		}
+		this.metrics = metrics;
+		executor = new ThreadPoolExecutor(threads, threads, KEEP_ALIVE_SEC, TimeUnit.SECONDS,
+				new SynchronousQueue<>(), new ThreadFactoryBuilder().setDaemon(true)
+						.setNameFormat("search-%d").build());
+		executor.allowCoreThreadTimeOut(true);
+		metrics.gauge(METRIC_ACTIVE, () -> executor.getActiveCount());
+		metrics.increment(METRIC_REJECTED, 0);
+	}
+
+	/** Run a search.
+	 * @param search the search.
+	 * @throws TooManyRequestsException if all the search threads are busy.
+	 */
+	public void execute(final Runnable search) throws TooManyRequestsException {
+		checkNotNull(search, "search");
+		try {
+			executor.execute(search);
+		} catch (RejectedExecutionException e) {
+			metrics.increment(METRIC_REJECTED);
+			throw new TooManyRequestsException(
+					"The service is busy, all search threads are in use", RETRY_AFTER_SEC);
+		}
+	}
+
+	/** Stop the executor. Running searches are interrupted. */
+	public void shutdown() {
+		executor.shutdownNow();
+	}
+}
@@ -0,0 +1,190 @@
+package us.kbase.genehomology.search;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.base.Optional;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalCause;
+
+import us.kbase.genehomology.core.NamespaceID;
+import us.kbase.genehomology.homology.ResultBatch;
+import us.kbase.genehomology.homology.SequenceSearchResult;
+import us.kbase.genehomology.util.MetricsRegistry;
+
+/** A bounded in-memory cache of search results. The cache is bounded by the estimated
+ * size in bytes of the cached results, and evicts the least recently used results first.
+ *
+ * Optionally backed by a {@link DiskResultCache}. Results not found in memory are looked up
+ * in the disk cache, and results added to the cache are written to both.
+ *
+ * When a key with a newer namespace modification time than any previously seen for the
+ * namespace is used, all the results for older versions of the namespace are dropped.
+ *
+ * Reports the metrics {@link #METRIC_HITS}, {@link #METRIC_MISSES}, {@link #METRIC_HIT_RATE},
+ * {@link #METRIC_EVICTIONS}, {@link #METRIC_ENTRIES}, and {@link #METRIC_BYTES}.
+ * @author gaprice@lbl.gov
+ *
+ */
+public class SearchResultCache {
+
+	/** The number of cache lookups that found results. */
+	public static final String METRIC_HITS = "search.cache.hits";
+	/** The number of cache lookups that did not find results. */
+	public static final String METRIC_MISSES = "search.cache.misses";
+	/** The fraction of cache lookups that found results. */
+	public static final String METRIC_HIT_RATE = "search.cache.hitrate";
+	/** The number of results evicted from the cache to stay within the size limit. */
+	public static final String METRIC_EVICTIONS = "search.cache.evictions";
+	/** The number of sets of results in the cache. */
+	public static final String METRIC_ENTRIES = "search.cache.entries";
+	/** The estimated size in bytes of the results in the cache. */
+	public static final String METRIC_BYTES = "search.cache.bytes";
+
+	private final boolean enabled;
+	private final Optional<DiskResultCache> disk;
+	private final Cache<SearchCacheKey, Entry> cache;
+	private final AtomicLong bytes = new AtomicLong();
+	private final Map<NamespaceID, Instant> latestModification = new ConcurrentHashMap<>();
+
+	/** Create a cache.
+	 * @param maxBytes the maximum estimated size of the cached results in bytes. If 0, caching
+	 * is disabled.
+	 * @param disk a persistent cache backing the in-memory cache, if any.
+	 * @param metrics the metrics registry in which to record cache metrics.
+	 */
+	public SearchResultCache(
+			final long maxBytes,
+			final Optional<DiskResultCache> disk,
+			final MetricsRegistry metrics) {
+		checkNotNull(disk, "disk");
+		checkNotNull(metrics, "metrics");
+		if (maxBytes < 0) {
+			throw new IllegalArgumentException("maxBytes must be >= 0");
+		}
+		this.enabled = maxBytes > 0;
+		this.disk = disk;
+		this.cache = CacheBuilder.newBuilder()
+				.maximumWeight(maxBytes)
+				.weigher((final SearchCacheKey k, final Entry e) -> e.size)
+				.removalListener(n -> {
+					bytes.addAndGet(-n.getValue().size);
+					if (n.getCause() == RemovalCause.SIZE) {
+						metrics.increment(METRIC_EVICTIONS);
+					}
+				})
+				.recordStats()
+				.build();
+		metrics.increment(METRIC_EVICTIONS, 0);
+		metrics.gauge(METRIC_HITS, () -> cache.stats().hitCount());
+		metrics.gauge(METRIC_MISSES, () -> cache.stats().missCount());
+		metrics.gauge(METRIC_HIT_RATE, () -> cache.stats().hitRate());
+		metrics.gauge(METRIC_ENTRIES, () -> cache.size());
+		metrics.gauge(METRIC_BYTES, () -> bytes.get());
+	}
+
+	/** Get cached search results from memory or, if not in memory, from the disk cache.
+	 * @param key the key for the results.
+	 * @param queryID the ID of the query sequence. The query IDs of the returned results are
+	 * replaced with this ID.
+	 * @return the results, or absent if the results are not in the cache.
+	 */
+	public Optional<ResultBatch> get(
+			final SearchCacheKey key,
+			final String queryID) {
+		checkNotNull(key, "key");
+		checkNotNull(queryID, "queryID");
+		if (!isCurrent(key)) {
+			return Optional.absent();
+		}
+		final ResultBatch results;
+		final Entry e = enabled ? cache.getIfPresent(key) : null;
+		if (e != null) {
+			results = e.results;
+		} else if (disk.isPresent()) {
+			final Optional<List<SequenceSearchResult>> diskres = disk.get().get(key);
+			if (!diskres.isPresent()) {
+				return Optional.absent();
+			}
+			results = ResultBatch.copyOf(diskres.get());
+			putInMemory(key, results);
+		} else {
+			return Optional.absent();
+		}
+		return Optional.of(results.withQueryID(queryID));
+	}
+
+	/** Add search results to the cache and the disk cache, if any. Results for an outdated
+	 * version of a namespace are ignored.
+	 * @param key the key for the results.
+	 * @param results the results.
+	 */
+	public void put(final SearchCacheKey key, final List<SequenceSearchResult> results) {
+		checkNotNull(key, "key");
+		checkNotNull(results, "results");
+		if (!isCurrent(key)) {
+			return;
+		}
+		putInMemory(key, results);
+		if (disk.isPresent()) {
+			disk.get().put(key, results);
+		}
+	}
+	
+	private void putInMemory(
+			final SearchCacheKey key,
+			final List<SequenceSearchResult> results) {
+		if (enabled) {
+			final Entry e = new Entry(results);
+			bytes.addAndGet(e.size);
+			cache.put(key, e);
+		}
+	}
+
+	/** Get the estimated size in bytes of the results in the cache.
+	 * @return the size of the cache.
+	 */
+	public long getBytes() {
+		return bytes.get();
+	}
+
+	// returns false if the key is for an outdated version of the namespace. Drops all results
+	// for older versions if the key is for a newer version.
+	private boolean isCurrent(final SearchCacheKey key) {
+		final NamespaceID nsid = key.getNamespaceID();
+		final Instant mod = key.getModification();
+		final Instant prev = latestModification.get(nsid);
+		if (prev != null && mod.isBefore(prev)) {
+			return false;
+		}
+		if (prev == null || mod.isAfter(prev)) {
+			final Instant latest = latestModification.merge(
+					nsid, mod, (old, nu) -> nu.isAfter(old) ? nu : old);
+			if (mod.isBefore(latest)) {
+				return false;
+			}
+			// namespaces change rarely, so scanning the whole cache is ok
+			cache.asMap().keySet().removeIf(
+					k -> k.getNamespaceID().equals(nsid) && k.getModification().isBefore(mod));
+		}
+		return true;
+	}
+
+	private static class Entry {
+
+		private final ResultBatch results;
+		private final int size;
+
+		private Entry(final List<SequenceSearchResult> results) {
+			// don't retain the columns of a larger batch from which the results were taken
+			this.results = ResultBatch.copyOf(results).compact();
+			this.size = (int) Math.min(Integer.MAX_VALUE, this.results.getEstimatedSize());
+		}
+	}
+}
@@ -0,0 +1,199 @@
+package us.kbase.genehomology.search;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import us.kbase.genehomology.core.exceptions.TooManyRequestsException;
+import us.kbase.genehomology.homology.CancellationToken;
+import us.kbase.genehomology.homology.SearchCancelledException;
+import us.kbase.genehomology.util.MetricsRegistry;
+
+/** Limits the number of searches that may run concurrently. Searches that cannot run
+ * immediately wait in a bounded queue for a limited time. If the queue is full or the wait
+ * time is exceeded the search is rejected with a {@link TooManyRequestsException}. A waiting
+ * search that is cancelled leaves the queue. A batch of searches run together by the
+ * {@link SearchBatcher} counts as one search.
+ *
+ * Reports the metrics {@link #METRIC_RUNNING}, {@link #METRIC_QUEUED}, {@link #METRIC_WAIT},
+ * {@link #METRIC_REJECTED}, and {@link #METRIC_CANCELLED}.
+ * @author gaprice@lbl.gov
+ *
+ */
+public class SearchScheduler {
+
+	/** The number of searches currently running. */
+	public static final String METRIC_RUNNING = "search.scheduler.running";
+	/** The number of searches currently waiting to run. */
+	public static final String METRIC_QUEUED = "search.scheduler.queued";
+	/** The distribution of the time, in milliseconds, searches waited to run. */
+	public static final String METRIC_WAIT = "search.scheduler.waitms";
+	/** The number of searches rejected because the service was too busy. */
+	public static final String METRIC_REJECTED = "search.scheduler.rejected";
+	/** The number of searches cancelled while waiting to run. */
+	public static final String METRIC_CANCELLED = "search.scheduler.cancelled";
+
+	// weight of the latest search time in the moving average of search times
+	private static final double SEARCH_TIME_ALPHA = 0.2;
+
+	private final int maxConcurrent;
+	private final int maxQueueSize;
+	private final int maxQueueTimeSec;
+	private final MetricsRegistry metrics;
+	private final Semaphore permits;
+	private final AtomicInteger queued = new AtomicInteger();
+	// in milliseconds. Used to estimate when a rejected client should retry.
+	private double meanSearchTimeMS = 0;
+
+	/** Create a scheduler.
+	 * @param maxConcurrent the maximum number of searches that may run concurrently.
+	 * @param maxQueueSize the maximum number of searches that may wait to run.
+	 * @param maxQueueTimeSec the maximum time, in seconds, a search may wait to run.
+	 * @param metrics the metrics registry in which to record scheduler metrics.
+	 */
+	public SearchScheduler(
+			final int maxConcurrent,
+			final int maxQueueSize,
+			final int maxQueueTimeSec,
+			final MetricsRegistry metrics) {
+		checkNotNull(metrics, "metrics");
+		if (maxConcurrent < 1) {
+			throw new IllegalArgumentException("maxConcurrent must be > 0");
+		}
+		if (maxQueueSize < 0) {
+			throw new IllegalArgumentException("maxQueueSize must be >= 0");
+		}
+		if (maxQueueTimeSec < 0) {
+			throw new IllegalArgumentException("maxQueueTimeSec must be >= 0");
+		}
+		this.maxConcurrent = maxConcurrent;
+		this.maxQueueSize = maxQueueSize;
+		this.maxQueueTimeSec = maxQueueTimeSec;
+		this.metrics = metrics;
+		this.permits = new Semaphore(maxConcurrent, true);
+		metrics.gauge(METRIC_RUNNING, () -> maxConcurrent - permits.availablePermits());
+		metrics.gauge(METRIC_QUEUED, () -> queued.get());
+		metrics.increment(METRIC_REJECTED, 0);
+		metrics.increment(METRIC_CANCELLED, 0);
+	}
+
+	/** Get permission to run a search. The permit must be closed when the search is complete.
+	 * @param token a token that signals the search is cancelled. A cancelled search stops
+	 * waiting and leaves the queue.
+	 * @return the search permit.
+	 * @throws TooManyRequestsException if the wait queue is full or the search waited longer
+	 * than the maximum queue time.
+	 * @throws SearchCancelledException if the search was cancelled.
+	 * @throws InterruptedException if the thread was interrupted while waiting to run.
+	 */
+	public SearchPermit acquire(final CancellationToken token)
+			throws TooManyRequestsException, SearchCancelledException, InterruptedException {
+		checkNotNull(token, "token");
+		token.throwIfCancelled();
+		final long start = System.nanoTime();
+		// unlike tryAcquire(), a timed tryAcquire doesn't take a permit ahead of queued searches
+		if (permits.tryAcquire(0, TimeUnit.NANOSECONDS)) {
+			metrics.record(METRIC_WAIT, 0);
+			return new SearchPermit();
+		}
+		if (queued.incrementAndGet() > maxQueueSize) {
+			queued.decrementAndGet();
+			throw reject("search queue is full");
+		}
+		// wait once so the search keeps its place in the fair semaphore's queue
+		final Interrupter interrupter = new Interrupter();
+		token.addListener(interrupter);
+		boolean acquired = false;
+		try {
+			acquired = permits.tryAcquire(TimeUnit.SECONDS.toNanos(maxQueueTimeSec) -
+					(System.nanoTime() - start), TimeUnit.NANOSECONDS);
+		} catch (InterruptedException e) {
+			if (!token.isCancelled()) {
+				throw e;
+			}
+		} finally {
+			interrupter.done();
+			token.removeListener(interrupter);
+			queued.decrementAndGet();
+		}
+		metrics.record(METRIC_WAIT, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+		if (token.isCancelled()) {
+			// clear any interrupt from the cancellation listener
+			Thread.interrupted();
+			if (acquired) {
+				permits.release();
+			}
+			metrics.increment(METRIC_CANCELLED);
+			throw new SearchCancelledException("The search was cancelled while queued");
+		}
+		if (!acquired) {
+			throw reject("timed out waiting in the search queue");
+		}
+		return new SearchPermit();
+	}
+
+	/* Interrupts the waiting thread when the search is cancelled. The listener may be called
+	 * after it is removed from the token, so it does nothing once the wait is done.
+	 */
+	private static class Interrupter implements Runnable {
+
+		private final Thread waiter = Thread.currentThread();
+		private boolean waiting = true;
+
+		@Override
+		public synchronized void run() {
+			if (waiting) {
+				waiter.interrupt();
+			}
+		}
+
+		private synchronized void done() {
+			waiting = false;
+		}
+	}
+
+	private TooManyRequestsException reject(final String reason) {
+		metrics.increment(METRIC_REJECTED);
+		final double meanTimeMS;
+		synchronized (this) {
+			meanTimeMS = meanSearchTimeMS;
+		}
+		// roughly the time for the searches ahead of the client to run
+		final double retryMS = meanTimeMS * (queued.get() / (double) maxConcurrent + 1);
+		return new TooManyRequestsException("The service is busy, " + reason,
+				(int) Math.max(1, Math.ceil(retryMS / 1000)));
+	}
+
+	private synchronized void recordSearchTime(final long searchTimeMS) {
+		if (meanSearchTimeMS == 0) {
+			meanSearchTimeMS = searchTimeMS;
+		} else {
+			meanSearchTimeMS = SEARCH_TIME_ALPHA * searchTimeMS +
+					(1 - SEARCH_TIME_ALPHA) * meanSearchTimeMS;
+		}
+	}
+
+	/** Permission to run a search. Close the permit to allow another search to run.
+	 * @author gaprice@lbl.gov
+	 *
+	 */
+	public class SearchPermit implements AutoCloseable {
+
+		private final long start = System.nanoTime();
+		private final AtomicBoolean closed = new AtomicBoolean(false);
+
+		private SearchPermit() {}
+
+		@Override
+		public void close() {
+			if (closed.compareAndSet(false, true)) {
+				recordSearchTime(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+				permits.release();
+			}
+		}
+	}
+
+}
@@ -0,0 +1,191 @@
+package us.kbase.genehomology.service;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.lang.reflect.Method;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletRequestWrapper;
+
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Optional;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import us.kbase.genehomology.homology.CancellationToken;
+import us.kbase.genehomology.util.MetricsRegistry;
+import us.kbase.genehomology.util.SocketStatus;
+
+/** Cancels searches when the client that requested the search disconnects. Requests are
+ * registered with a cancellation token while the search runs, and the client connections of
+ * the registered requests are checked periodically. If a client connection is closed the
+ * token is cancelled.
+ *
+ * The connection is retrieved from the Jetty request via reflection, since the Jetty classes
+ * are hidden from the web application. Jetty does not read from a connection while a request
+ * is being processed, and so does not notice that the client has closed the connection until
+ * it writes the response. Hence the connection socket is checked directly with
+ * {@link SocketStatus} where possible, and otherwise a disconnect is only detected if Jetty
+ * closes the connection, for example on an idle timeout. Requests from other containers are
+ * never cancelled.
+ *
+ * Reports the metric {@link #METRIC_CANCELLED}.
+ * @author gaprice@lbl.gov
+ *
+ */
+public class ClientConnectionMonitor {
+
+	/** The number of searches cancelled because the client disconnected. */
+	public static final String METRIC_CANCELLED = "search.cancelled";
+
+	private final MetricsRegistry metrics;
+	private final Map<CancellationToken, Connection> connections = new ConcurrentHashMap<>();
+	private final ScheduledExecutorService poller = Executors.newSingleThreadScheduledExecutor(
+			new ThreadFactoryBuilder().setDaemon(true)
+					.setNameFormat("client-connection-monitor").build());
+
+	/** Create a monitor.
+	 * @param pollIntervalMS how often, in milliseconds, to check the client connections.
+	 * @param metrics the metrics registry in which to record the cancellation count.
+	 */
+	public ClientConnectionMonitor(final long pollIntervalMS, final MetricsRegistry metrics) {
+		checkNotNull(metrics, "metrics");
+		if (pollIntervalMS < 1) {
+			throw new IllegalArgumentException("pollIntervalMS must be > 0");
+		}
+		this.metrics = metrics;
+		metrics.increment(METRIC_CANCELLED, 0);
+		poller.scheduleWithFixedDelay(() -> poll(), pollIntervalMS, pollIntervalMS,
+				TimeUnit.MILLISECONDS);
+	}
+
+	/** Cancel a token if the client that sent a request disconnects. Must be called before the
+	 * response is committed. The returned registration must be closed before the request
+	 * completes.
+	 * @param request the request.
+	 * @param token the token to cancel.
+	 * @return the registration.
+	 */
+	public Registration register(final ServletRequest request, final CancellationToken token) {
+		checkNotNull(request, "request");
+		checkNotNull(token, "token");
+		final Optional<Connection> conn = getConnection(request);
+		if (conn.isPresent()) {
+			connections.put(token, conn.get());
+		}
+		return new Registration(token);
+	}
+
+	/** Get the number of requests with monitored connections.
+	 * @return the number of monitored requests.
+	 */
+	public int getMonitoredCount() {
+		return connections.size();
+	}
+
+	private void poll() {
+		for (final CancellationToken token: connections.keySet()) {
+			final Connection conn = connections.get(token);
+			// the registration may have been closed
+			if (conn != null && conn.isClosed() && connections.remove(token) != null) {
+				metrics.increment(METRIC_CANCELLED);
+				try {
+					token.cancel();
+				} catch (RuntimeException e) {
+					LoggerFactory.getLogger(getClass()).error(
+							"Error cancelling search for disconnected client", e);
+				}
+			}
+		}
+	}
+
+	/** Stop monitoring client connections. Searches are no longer cancelled when their clients
+	 * disconnect.
+	 */
+	public void shutdown() {
+		poller.shutdownNow();
+		connections.clear();
+	}
+
+	/** A registration of a request with the monitor. Closing the registration stops
+	 * monitoring the request.
+	 * @author gaprice@lbl.gov
+	 *
+	 */
+	public class Registration implements AutoCloseable {
+
+		private final CancellationToken token;
+
+		private Registration(final CancellationToken token) {
+			this.token = token;
+		}
+
+		@Override
+		public void close() {
+			connections.remove(token);
+		}
+	}
+
+	/* Jetty 9.3: Request.getHttpChannel().getEndPoint() is the connection, and
+	 * ChannelEndPoint.getChannel() is the socket channel. The endpoint, rather than the
+	 * request, is kept since Jetty recycles requests.
+	 */
+	private Optional<Connection> getConnection(ServletRequest request) {
+		while (request instanceof ServletRequestWrapper) {
+			request = ((ServletRequestWrapper) request).getRequest();
+		}
+		try {
+			final Object channel = request.getClass().getMethod("getHttpChannel")
+					.invoke(request);
+			final Object endPoint = channel.getClass().getMethod("getEndPoint")
+					.invoke(channel);
+			final Method isOpen = endPoint.getClass().getMethod("isOpen");
+			Optional<Integer> fd = Optional.absent();
+			if (SocketStatus.isAvailable()) {
+				try {
+					fd = SocketStatus.getFileDescriptor(endPoint.getClass()
+							.getMethod("getChannel").invoke(endPoint));
+				} catch (NoSuchMethodException e) {
+					// not a channel based endpoint
+				}
+			}
+			return Optional.of(new Connection(endPoint, isOpen, fd));
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			// not jetty, or an incompatible version
+			return Optional.absent();
+		}
+	}
+
+	private static class Connection {
+
+		private final Object endPoint;
+		private final Method isOpen;
+		private final Optional<Integer> fd;
+
+		private Connection(
+				final Object endPoint,
+				final Method isOpen,
+				final Optional<Integer> fd) {
+			this.endPoint = endPoint;
+			this.isOpen = isOpen;
+			this.fd = fd;
+		}
+
+		private boolean isClosed() {
+			try {
+				if (!(Boolean) isOpen.invoke(endPoint)) {
+					return true;
+				}
+			} catch (ReflectiveOperationException | RuntimeException e) {
+				return false;
+			}
+			// check the endpoint first, since the fd may be reused after jetty closes it
+			return fd.isPresent() && SocketStatus.isPeerClosed(fd.get()).or(false);
+		}
+	}
+}
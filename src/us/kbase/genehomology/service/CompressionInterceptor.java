@@ -0,0 +1,102 @@
+package us.kbase.genehomology.service;
+
+import static us.kbase.genehomology.util.Util.isNullOrEmpty;
+
+import java.io.IOException;
+
+import javax.inject.Inject;
+import javax.servlet.http.HttpServletRequest;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.MultivaluedMap;
+import javax.ws.rs.ext.WriterInterceptor;
+import javax.ws.rs.ext.WriterInterceptorContext;
+
+import us.kbase.genehomology.config.GeneHomologyConfig;
+import us.kbase.genehomology.util.ThresholdGZIPOutputStream;
+
+/** Gzip compresses response bodies for clients that accept gzip encoding, as specified by the
+ * Accept-Encoding header. Bodies no larger than the configured minimum size are not compressed.
+ *
+ * The body is compressed as it is written, so streamed responses are not buffered other than
+ * to determine whether they exceed the minimum size.
+ * @author gaprice@lbl.gov
+ *
+ */
+public class CompressionInterceptor implements WriterInterceptor {
+
+	private static final String GZIP = "gzip";
+
+	private final HttpServletRequest servletRequest;
+	private final int level;
+	private final int minBytes;
+
+	/** Create the interceptor. This is normally done by the Jersey framework.
+	 * @param servletRequest the request for which the response will be written.
+	 * @param cfg the service configuration.
+	 */
+	@Inject
+	public CompressionInterceptor(
+			final HttpServletRequest servletRequest,
+			final GeneHomologyConfig cfg) {
+		this.servletRequest = servletRequest;
+		this.level = cfg.getResponseCompressionLevel();
+		this.minBytes = cfg.getResponseCompressionMinBytes();
+	}
+
+	@Override
+	public void aroundWriteTo(final WriterInterceptorContext context)
+			throws IOException, WebApplicationException {
+		final MultivaluedMap<String, Object> headers = context.getHeaders();
+		if (level < 1 || headers.containsKey(HttpHeaders.CONTENT_ENCODING)) {
+			context.proceed();
+			return;
+		}
+		headers.add(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+		if (!acceptsGZIP(servletRequest.getHeader(HttpHeaders.ACCEPT_ENCODING))) {
+			context.proceed();
+			return;
+		}
+		// headers are sent when the first byte reaches the container, so they can be changed
+		// until the threshold is exceeded
+		context.setOutputStream(new ThresholdGZIPOutputStream(
+				context.getOutputStream(), minBytes, level, () -> {
+					headers.putSingle(HttpHeaders.CONTENT_ENCODING, GZIP);
+					headers.remove(HttpHeaders.CONTENT_LENGTH);
+				}));
+		context.proceed();
+	}
+
+	private static boolean acceptsGZIP(final String acceptEncoding) {
+		if (isNullOrEmpty(acceptEncoding)) {
+			return false;
+		}
+		// an explicit gzip entry takes precedence over the wildcard, regardless of order
+		boolean wildcard = false;
+		for (final String enc: acceptEncoding.split(",")) {
+			final String[] parts = enc.split(";");
+			final String coding = parts[0].trim();
+			if (GZIP.equalsIgnoreCase(coding)) {
+				return !isZeroQuality(parts);
+			}
+			if ("*".equals(coding)) {
+				wildcard = !isZeroQuality(parts);
+			}
+		}
+		return wildcard;
+	}
+
+	private static boolean isZeroQuality(final String[] parts) {
+		for (int i = 1; i < parts.length; i++) {
+			final String[] param = parts[i].split("=", 2);
+			if (param.length == 2 && "q".equalsIgnoreCase(param[0].trim())) {
+				try {
+					return Double.parseDouble(param[1].trim()) <= 0;
+				} catch (NumberFormatException e) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+}
@@ -42,6 +42,8 @@ public class Fields {
 	/* Aligment results */
 	/** A set of alignments from a query sequence to one or more reference sequences. */
 	public static final String ALIGNMENTS = "alignments";
+	/** The results for each query sequence of a search with multiple query sequences. */
+	public static final String ALIGN_QUERIES = "queries";
 	/** The implementation used to calculate the alignments. */
 	public static final String ALIGN_IMPLEMENTATION = "impl";
 	/** A set of namespaces. */
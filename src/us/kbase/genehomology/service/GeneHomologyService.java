@@ -4,12 +4,19 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.nio.file.Files;
 import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.TreeMap;
 
 import org.glassfish.hk2.utilities.binding.AbstractBinder;
 import org.glassfish.jersey.server.ResourceConfig;
+import org.glassfish.jersey.server.ServerProperties;
+import org.glassfish.jersey.server.spi.Container;
+import org.glassfish.jersey.server.spi.ContainerLifecycleListener;
 import org.slf4j.LoggerFactory;
 
 import com.fasterxml.jackson.jaxrs.json.JacksonJaxbJsonProvider;
+import com.google.common.base.Optional;
 
 import ch.qos.logback.classic.Level;
 import ch.qos.logback.classic.Logger;
@@ -21,15 +28,28 @@ import us.kbase.genehomology.homology.GeneHomologyDBName;
 import us.kbase.genehomology.homology.GeneHomologyDatabase;
 import us.kbase.genehomology.homology.GeneHomologyImplementationException;
 import us.kbase.genehomology.homology.last.LAST;
+import us.kbase.genehomology.homology.last.LASTDatabaseWarmer;
 import us.kbase.genehomology.load.NamespaceLoadInfo;
+import us.kbase.genehomology.load.ShardListLoadInfo;
 import us.kbase.genehomology.loader.exceptions.LoadInputParseException;
+import us.kbase.genehomology.search.DiskResultCache;
+import us.kbase.genehomology.search.SearchBatcher;
+import us.kbase.genehomology.search.SearchExecutor;
+import us.kbase.genehomology.search.SearchResultCache;
+import us.kbase.genehomology.search.SearchScheduler;
 import us.kbase.genehomology.service.exceptions.ExceptionHandler;
+import us.kbase.genehomology.util.MetricsRegistry;
+import us.kbase.genehomology.util.PageCacheResidency.Residency;
+import us.kbase.genehomology.util.ProcessManager;
 
 public class GeneHomologyService extends ResourceConfig {
 	
 	//TODO TEST
 	//TODO JAVADOC
 	
+	// how often to check whether clients with running searches have disconnected
+	private static final long CLIENT_CONNECTION_POLL_MS = 500;
+	
 	@SuppressWarnings("unused")
 	private final SLF4JAutoLogger logger; //keep a reference to prevent GC
 	
@@ -59,29 +79,155 @@ public class GeneHomologyService extends ResourceConfig {
 		packages("us.kbase.genehomology.service.api");
 		register(JacksonJaxbJsonProvider.class);
 		register(LoggingFilter.class);
+		register(CompressionInterceptor.class);
 		register(ExceptionHandler.class);
-		final Namespace ns = getNamespaceBySuperHackyMethod(c);
+		// jersey buffers the start of each response to set the content length and ignores
+		// flushes until the buffer is full, so streamed output wouldn't reach the client
+		property(ServerProperties.OUTBOUND_CONTENT_LENGTH_BUFFER, 0);
+		final ProcessManager processManager = new ProcessManager(
+				ProcessManager.DEFAULT_TERMINATION_GRACE_MS);
+		final MetricsRegistry metrics = new MetricsRegistry();
+		final SearchExecutor executor = new SearchExecutor(c.getSearchThreads(), metrics);
+		final LAST last = getLAST(c, processManager);
+		// jersey doesn't always call the lifecycle listener, e.g. on a SIGTERM
+		Runtime.getRuntime().addShutdownHook(new Thread(() -> processManager.shutdown()));
+		final GeneHomologyDBLocation dbLoc = getDBLocation(c);
+		final Namespace ns = getNamespaceBySuperHackyMethod(c, last, dbLoc);
+		if (c.isLASTWarmup()) {
+			warmDatabase(dbLoc);
+		}
+		metrics.gauge("last.threads.inuse", () -> last.getThreadsInUse());
+		metrics.gauge("last.processes.running", () -> processManager.getRunningCount());
+		metrics.gauge("last.processes.orphaned", () -> processManager.getOrphanedCount());
+		metrics.gauge("last.processes.cancelled", () -> last.getCancelledProcessCount());
+		metrics.gauge("last.db.residency", () -> getResidency(dbLoc));
+		final SearchScheduler scheduler = new SearchScheduler(
+				c.getMaxConcurrentSearches(),
+				c.getMaxSearchQueueSize(),
+				c.getMaxSearchQueueTimeSec(),
+				metrics);
+		final SearchBatcher batcher = new SearchBatcher(
+				last,
+				scheduler,
+				c.getSearchBatchWindowMS(),
+				c.getSearchBatchMaxSize(),
+				metrics);
+		final Optional<DiskResultCache> diskCache = getDiskCache(c, metrics);
+		final SearchResultCache cache = new SearchResultCache(
+				c.getSearchCacheMaxMB() * 1024L * 1024L, diskCache, metrics);
+		final ClientConnectionMonitor connectionMonitor = new ClientConnectionMonitor(
+				CLIENT_CONNECTION_POLL_MS, metrics);
+		register(new ContainerLifecycleListener() {
+			
+			@Override
+			public void onStartup(final Container container) {}
+			
+			@Override
+			public void onReload(final Container container) {}
+			
+			@Override
+			public void onShutdown(final Container container) {
+				connectionMonitor.shutdown();
+				executor.shutdown();
+				last.shutdown();
+				processManager.shutdown();
+				if (diskCache.isPresent()) {
+					diskCache.get().shutdown();
+				}
+			}
+		});
 		register(new AbstractBinder() {
 			@Override
 			protected void configure() {
 				bind(c).to(GeneHomologyConfig.class);
 				bind(c.getLogger()).to(SLF4JAutoLogger.class);
 				bind(ns).to(Namespace.class);
+				bind(metrics).to(MetricsRegistry.class);
+				bind(batcher).to(SearchBatcher.class);
+				bind(cache).to(SearchResultCache.class);
+				bind(connectionMonitor).to(ClientConnectionMonitor.class);
+				bind(executor).to(SearchExecutor.class);
 			}
 		});
 	}
+	
+	private LAST getLAST(final GeneHomologyConfig c, final ProcessManager processManager)
+			throws GeneHomologyConfigurationException {
+		try {
+			return new LAST(c.getPathToTemporaryFileDirectory(), c.getHomologyTimeoutSec(),
+					c.isLASTStreamOutput(), c.getLASTThreadBudget(),
+					c.getLASTMaxThreadsPerSearch(), processManager);
+		} catch (GeneHomologyImplementationException e) {
+			throw new GeneHomologyConfigurationException(e.getMessage(), e);
+		}
+	}
 
+	private GeneHomologyDBLocation getDBLocation(final GeneHomologyConfig c)
+			throws GeneHomologyConfigurationException {
+		if (c.getLASTProjectFile().isPresent()) {
+			return new GeneHomologyDBLocation(c.getLASTProjectFile().get());
+		}
+		final Path shardsFile = c.getLASTShardsFile().get();
+		try (final InputStream is = Files.newInputStream(shardsFile)) {
+			return new GeneHomologyDBLocation(new ShardListLoadInfo(
+					is, shardsFile.toString(), shardsFile.toAbsolutePath().getParent())
+					.getShards());
+		} catch (NoSuchFileException e) {
+			throw new GeneHomologyConfigurationException("File not found: " + e.getMessage(), e);
+		} catch (IOException | LoadInputParseException e) {
+			throw new GeneHomologyConfigurationException(e.getMessage(), e);
+		}
+	}
+	
+	private Optional<DiskResultCache> getDiskCache(
+			final GeneHomologyConfig c,
+			final MetricsRegistry metrics)
+			throws GeneHomologyConfigurationException {
+		if (!c.getSearchDiskCacheDirectory().isPresent()) {
+			return Optional.absent();
+		}
+		try {
+			return Optional.of(new DiskResultCache(c.getSearchDiskCacheDirectory().get(),
+					c.getSearchDiskCacheMaxMB() * 1024L * 1024L, metrics));
+		} catch (IOException e) {
+			throw new GeneHomologyConfigurationException(e.getMessage(), e);
+		}
+	}
+	
+	private void warmDatabase(final GeneHomologyDBLocation dbLoc)
+			throws GeneHomologyConfigurationException {
+		try {
+			new LASTDatabaseWarmer(Runtime.getRuntime().availableProcessors()).warm(dbLoc);
+		} catch (GeneHomologyImplementationException e) {
+			throw new GeneHomologyConfigurationException(e.getMessage(), e);
+		}
+	}
+	
+	private Object getResidency(final GeneHomologyDBLocation dbLoc) {
+		final Map<String, Object> ret = new TreeMap<>();
+		try {
+			for (final Residency r: LASTDatabaseWarmer.getResidency(dbLoc)) {
+				ret.put(r.getFile().toString(), r.getResidentFraction().isPresent() ?
+						r.getResidentFraction().get() : "unknown");
+			}
+		} catch (GeneHomologyImplementationException e) {
+			return e.getMessage();
+		}
+		return ret;
+	}
+	
 	// this should be replaced by a database and a loader that allows multiple namespaces.
-	private Namespace getNamespaceBySuperHackyMethod(final GeneHomologyConfig c)
+	private Namespace getNamespaceBySuperHackyMethod(
+			final GeneHomologyConfig c,
+			final LAST last,
+			final GeneHomologyDBLocation dbLoc)
 			throws GeneHomologyConfigurationException {
 		try (final InputStream is = Files.newInputStream(c.getNamespaceYAMLFile())) {
 			final NamespaceLoadInfo nsli = new NamespaceLoadInfo(
 					is, c.getNamespaceYAMLFile().toString());
-			final GeneHomologyDatabase db = new LAST(
-					c.getPathToTemporaryFileDirectory(), c.getHomologyTimeoutSec())
-					.getDatabase(
+			final GeneHomologyDatabase db = last.getDatabase(
 							new GeneHomologyDBName(nsli.getId().getName()),
-							new GeneHomologyDBLocation(c.getLASTProjectFile()));
+							dbLoc);
 			return nsli.toNamespace(db);
 		} catch (NoSuchFileException e) {
 			throw new GeneHomologyConfigurationException("File not found: " + e.getMessage(), e);
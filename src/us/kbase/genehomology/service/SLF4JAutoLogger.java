@@ -19,8 +19,23 @@ public interface SLF4JAutoLogger {
 			final String id,
 			final String ipAddress);
 	
+	/** Remove any call information for this thread, for threads that are reused for
+	 * different calls.
+	 */
+	public void clearCallInfo();
+	
 	/** Get the call ID for the call being handled in this thread.
 	 * @return the call ID.
 	 */
 	public String getCallID();
+	
+	/** Get the method called for the call being handled in this thread.
+	 * @return the method.
+	 */
+	public String getCallMethod();
+	
+	/** Get the IP address of the client for the call being handled in this thread.
+	 * @return the IP address.
+	 */
+	public String getCallIPAddress();
 }
@@ -0,0 +1,260 @@
+package us.kbase.genehomology.service.api;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+
+import us.kbase.genehomology.homology.AlignedSequence;
+import us.kbase.genehomology.homology.ResultBatch;
+import us.kbase.genehomology.homology.SequenceSearchResult;
+
+/** Writes search results in the BLAST tabular format, without comment lines, as UTF-8.
+ *
+ * Each line contains the query ID, target ID, percent identity, alignment length, mismatches,
+ * gap opens, query start and end, target start and end, E-value and bit score, separated by
+ * tabs. Coordinates are 1 based.
+ *
+ * Lines are formatted by hand into a reusable buffer which is written to the output stream when
+ * full, so writing a line creates few or no objects. The output is identical to formatting
+ * each line with
+ * <code>String.format("%s\t%s\t%.2f\t%s\t%s\t%s\t%s\t%s\t%s\t%s\t%s\t%s\n", ...)</code>
+ * in a locale that uses '.' as the decimal separator.
+ *
+ * Results may be written as they become available, either singly or in batches. The writer
+ * is not thread safe.
+ * @author gaprice@lbl.gov
+ *
+ */
+public class BlastTabWriter {
+
+	private static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+	// enough for any line without the IDs and the E-value
+	private static final int MAX_FIXED_LINE_SIZE = 200;
+	// if the percent identity is this close to a rounding tie, fall back to String.format
+	private static final double TIE_MARGIN = 1e-6;
+
+	private final OutputStream os;
+	private final byte[] buf;
+	private int pos = 0;
+
+	/** Create a writer with a 64KB buffer.
+	 * @param os the stream to which the results will be written. The stream is not closed.
+	 */
+	public BlastTabWriter(final OutputStream os) {
+		this(os, DEFAULT_BUFFER_SIZE);
+	}
+
+	/** Create a writer.
+	 * @param os the stream to which the results will be written. The stream is not closed.
+	 * @param bufferSize the size of the buffer. The buffer is written to the stream when it is
+	 * full. Lines that don't fit in the buffer are written directly.
+	 */
+	public BlastTabWriter(final OutputStream os, final int bufferSize) {
+		checkNotNull(os, "os");
+		if (bufferSize < MAX_FIXED_LINE_SIZE) {
+			throw new IllegalArgumentException("bufferSize must be at least " +
+					MAX_FIXED_LINE_SIZE);
+		}
+		this.os = os;
+		this.buf = new byte[bufferSize];
+	}
+
+	/** Write a batch of results.
+	 * @param results the results.
+	 * @throws IOException if the results could not be written.
+	 */
+	public void write(final ResultBatch results) throws IOException {
+		checkNotNull(results, "results");
+		for (int i = 0; i < results.size(); i++) {
+			final int qstart = results.getQueryAlignmentStart(i);
+			final int tstart = results.getTargetAlignmentStart(i);
+			writeLine(
+					results.getQueryID(i),
+					results.getTargetID(i),
+					results.getPercentID(i),
+					results.getAlignmentLength(i),
+					results.getMismatches(i),
+					results.getGapOpenCount(i),
+					qstart + 1,
+					qstart + results.getQueryAlignmentLength(i),
+					tstart + 1,
+					tstart + results.getTargetAlignmentLength(i),
+					results.getEValue(i),
+					results.getBitScore(i));
+		}
+	}
+
+	/** Write a result.
+	 * @param result the result.
+	 * @throws IOException if the result could not be written.
+	 */
+	public void write(final SequenceSearchResult result) throws IOException {
+		checkNotNull(result, "result");
+		final AlignedSequence q = result.getQuery();
+		final AlignedSequence t = result.getTarget();
+		writeLine(
+				q.getId(),
+				t.getId(),
+				result.getPercentID(),
+				result.getAlignmentLength(),
+				result.getMismatches(),
+				result.getGapOpenCount(),
+				q.getAlignmentStart() + 1,
+				q.getAlignmentStart() + q.getAlignmentLength(),
+				t.getAlignmentStart() + 1,
+				t.getAlignmentStart() + t.getAlignmentLength(),
+				result.getEValue(),
+				result.getBitScore());
+	}
+
+	/** Write any buffered output to the output stream and flush the stream.
+	 * @throws IOException if the output could not be written.
+	 */
+	public void flush() throws IOException {
+		writeBuffer();
+		os.flush();
+	}
+
+	private void writeLine(
+			final String queryID,
+			final String targetID,
+			final double percentID,
+			final int alignmentLength,
+			final int mismatches,
+			final int gapOpens,
+			final int queryStart,
+			final int queryEnd,
+			final int targetStart,
+			final int targetEnd,
+			final double eValue,
+			final int bitScore)
+			throws IOException {
+		writeString(queryID);
+		writeByte('\t');
+		writeString(targetID);
+		ensureCapacity(MAX_FIXED_LINE_SIZE);
+		buf[pos++] = '\t';
+		writePercent(percentID * 100);
+		buf[pos++] = '\t';
+		writeInt(alignmentLength);
+		buf[pos++] = '\t';
+		writeInt(mismatches);
+		buf[pos++] = '\t';
+		writeInt(gapOpens);
+		buf[pos++] = '\t';
+		writeInt(queryStart);
+		buf[pos++] = '\t';
+		writeInt(queryEnd);
+		buf[pos++] = '\t';
+		writeInt(targetStart);
+		buf[pos++] = '\t';
+		writeInt(targetEnd);
+		buf[pos++] = '\t';
+		// matching Double.toString by hand isn't worth the risk
+		writeString(Double.toString(eValue));
+		ensureCapacity(MAX_FIXED_LINE_SIZE);
+		buf[pos++] = '\t';
+		writeInt(bitScore);
+		buf[pos++] = '\n';
+	}
+
+	/* String.format rounds half up on the decimal representation of the value. Away from a
+	 * tie, rounding the binary value gives the same result, so only values very close to a
+	 * tie, and NaN or infinite values, need String.format.
+	 */
+	private void writePercent(final double percent) {
+		final double scaled = percent * 100;
+		final double floor = Math.floor(scaled);
+		if (!(scaled >= 0 && scaled < Integer.MAX_VALUE) ||
+				Math.abs(scaled - floor - 0.5) < TIE_MARGIN) {
+			writeASCII(String.format(Locale.ROOT, "%.2f", percent));
+			return;
+		}
+		final int hundredths = (int) floor + (scaled - floor > 0.5 ? 1 : 0);
+		writeInt(hundredths / 100);
+		buf[pos++] = '.';
+		final int fraction = hundredths % 100;
+		buf[pos++] = (byte) ('0' + fraction / 10);
+		buf[pos++] = (byte) ('0' + fraction % 10);
+	}
+
+	// assumes the string is ASCII and there's enough space in the buffer
+	private void writeASCII(final String s) {
+		for (int i = 0; i < s.length(); i++) {
+			buf[pos++] = (byte) s.charAt(i);
+		}
+	}
+
+	// assumes there's enough space in the buffer
+	private void writeInt(final int value) {
+		if (value < 0) {
+			if (value == Integer.MIN_VALUE) {
+				writeASCII(Integer.toString(value));
+				return;
+			}
+			buf[pos++] = '-';
+			writeInt(-value);
+			return;
+		}
+		int digits = 1;
+		for (int v = value; v >= 10; v /= 10) {
+			digits++;
+		}
+		int v = value;
+		for (int i = pos + digits - 1; i >= pos; i--) {
+			buf[i] = (byte) ('0' + v % 10);
+			v /= 10;
+		}
+		pos += digits;
+	}
+
+	private void writeString(final String s) throws IOException {
+		final int len = s.length();
+		boolean ascii = true;
+		for (int i = 0; ascii && i < len; i++) {
+			ascii = s.charAt(i) < 0x80;
+		}
+		if (!ascii) {
+			writeBytes(s.getBytes(StandardCharsets.UTF_8));
+		} else if (len > buf.length) {
+			writeBytes(s.getBytes(StandardCharsets.US_ASCII));
+		} else {
+			ensureCapacity(len);
+			for (int i = 0; i < len; i++) {
+				buf[pos++] = (byte) s.charAt(i);
+			}
+		}
+	}
+
+	private void writeBytes(final byte[] bytes) throws IOException {
+		if (bytes.length > buf.length) {
+			writeBuffer();
+			os.write(bytes);
+		} else {
+			ensureCapacity(bytes.length);
+			System.arraycopy(bytes, 0, buf, pos, bytes.length);
+			pos += bytes.length;
+		}
+	}
+
+	private void writeByte(final char b) throws IOException {
+		ensureCapacity(1);
+		buf[pos++] = (byte) b;
+	}
+
+	private void ensureCapacity(final int bytes) throws IOException {
+		if (pos + bytes > buf.length) {
+			writeBuffer();
+		}
+	}
+
+	private void writeBuffer() throws IOException {
+		if (pos > 0) {
+			os.write(buf, 0, pos);
+			pos = 0;
+		}
+	}
+}
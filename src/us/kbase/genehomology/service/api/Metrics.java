@@ -0,0 +1,40 @@
+package us.kbase.genehomology.service.api;
+
+import java.util.Map;
+
+import javax.inject.Inject;
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.MediaType;
+
+import us.kbase.genehomology.util.MetricsRegistry;
+
+/** Handler for the {@link ServicePaths#METRICS_ROOT} endpoint. Returns the current values of
+ * the service metrics, e.g. search batch sizes.
+ * @author gaprice@lbl.gov
+ *
+ */
+@Path(ServicePaths.METRICS_ROOT)
+public class Metrics {
+	
+	private final MetricsRegistry metrics;
+	
+	/** Construct the handler. This is typically done by the Jersey framework.
+	 * @param metrics the metrics registry for the service.
+	 */
+	@Inject
+	public Metrics(final MetricsRegistry metrics) {
+		this.metrics = metrics;
+	}
+	
+	/** Get the service metrics.
+	 * @return the metrics, sorted by name.
+	 */
+	@GET
+	@Produces(MediaType.APPLICATION_JSON)
+	public Map<String, Object> getMetrics() {
+		return metrics.snapshot();
+	}
+
+}
@@ -1,36 +1,44 @@
 package us.kbase.genehomology.service.api;
 
-import java.io.BufferedWriter;
+import static us.kbase.genehomology.util.Util.isNullOrEmpty;
+
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStreamWriter;
-import java.io.Writer;
+import java.io.OutputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Map.Entry;
 import java.util.Set;
-import java.util.stream.Collectors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
 
 import javax.inject.Inject;
-import javax.servlet.ServletOutputStream;
 import javax.servlet.http.HttpServletRequest;
-import javax.servlet.http.HttpServletResponse;
 import javax.ws.rs.GET;
 import javax.ws.rs.POST;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.Suspended;
 import javax.ws.rs.core.Context;
 import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.StreamingOutput;
+
+import org.glassfish.jersey.server.internal.process.MappableException;
+import org.slf4j.LoggerFactory;
 
-import org.yeastrc.proteomics.fasta.FASTADataErrorException;
-import org.yeastrc.proteomics.fasta.FASTAFileParser;
-import org.yeastrc.proteomics.fasta.FASTAFileParserFactory;
+import com.google.common.base.Optional;
+import com.google.common.collect.Range;
+import com.google.common.io.ByteStreams;
 
 import us.kbase.genehomology.config.GeneHomologyConfig;
 import us.kbase.genehomology.core.Namespace;
@@ -38,11 +46,25 @@ import us.kbase.genehomology.core.NamespaceID;
 import us.kbase.genehomology.core.exceptions.IllegalParameterException;
 import us.kbase.genehomology.core.exceptions.MissingParameterException;
 import us.kbase.genehomology.core.exceptions.NoSuchNamespaceException;
-import us.kbase.genehomology.homology.AlignedSequence;
+import us.kbase.genehomology.core.exceptions.RequestTimeoutException;
+import us.kbase.genehomology.core.exceptions.TooManyRequestsException;
+import us.kbase.genehomology.homology.CancellationToken;
 import us.kbase.genehomology.homology.GeneHomologyImplementationException;
-import us.kbase.genehomology.homology.SequenceSearchResult;
-import us.kbase.genehomology.homology.last.LAST;
+import us.kbase.genehomology.homology.QueryInput;
+import us.kbase.genehomology.homology.QueryResultsListener;
+import us.kbase.genehomology.homology.ResultBatch;
+import us.kbase.genehomology.homology.SearchParameters;
+import us.kbase.genehomology.search.QuerySequence;
+import us.kbase.genehomology.search.SearchBatcher;
+import us.kbase.genehomology.search.SearchCacheKey;
+import us.kbase.genehomology.search.SearchExecutor;
+import us.kbase.genehomology.search.SearchResultCache;
+import us.kbase.genehomology.service.ClientConnectionMonitor;
+import us.kbase.genehomology.service.ClientConnectionMonitor.Registration;
 import us.kbase.genehomology.service.Fields;
+import us.kbase.genehomology.service.SLF4JAutoLogger;
+import us.kbase.genehomology.service.api.SearchResultWriter.QueryNDJSONWriter;
+import us.kbase.genehomology.util.MetricsRegistry;
 
 /** Handler for the endpoints under the {@link ServicePaths#NAMESPACE_ROOT} endpoints.
  * @author gaprice@lbl.gov
@@ -51,16 +73,62 @@ import us.kbase.genehomology.service.Fields;
 @javax.ws.rs.Path(ServicePaths.NAMESPACE_ROOT)
 public class Namespaces {
 	
+	/** The number of searches that timed out. */
+	public static final String METRIC_TIMEOUTS = "search.timeouts";
+	
 	private final java.nio.file.Path tempDir;
 	private final Namespace ns;
+	private final SearchBatcher batcher;
+	private final SearchResultCache cache;
+	private final ClientConnectionMonitor connectionMonitor;
+	private final SearchExecutor executor;
+	private final MetricsRegistry metrics;
+	private final SLF4JAutoLogger logger;
+	private final int searchTimeoutSec;
+	private final int maxResultsLimit;
+	private final double maxEValueLimit;
+	private final int minBitScoreLimit;
+	private final int multiSearchMaxSequences;
+	private final long multiSearchMaxBytes;
+	private final int multiSearchMaxTotalResults;
+	private final long queryMemoryMaxBytes;
 	
 	/** Construct the handler. This is typically done by the Jersey framework.
+	 * @param ns the namespace served by the service.
 	 * @param cfg the configuration for the gene homology service.
+	 * @param batcher the search batcher through which searches are run.
+	 * @param cache the search result cache.
+	 * @param connectionMonitor the monitor that cancels searches when the client disconnects.
+	 * @param executor the executor on which searches run.
+	 * @param metrics the service metrics.
+	 * @param logger the service logger.
 	 */
 	@Inject
-	public Namespaces(final Namespace ns, final GeneHomologyConfig cfg) {
+	public Namespaces(
+			final Namespace ns,
+			final GeneHomologyConfig cfg,
+			final SearchBatcher batcher,
+			final SearchResultCache cache,
+			final ClientConnectionMonitor connectionMonitor,
+			final SearchExecutor executor,
+			final MetricsRegistry metrics,
+			final SLF4JAutoLogger logger) {
 		this.ns = ns;
 		this.tempDir = cfg.getPathToTemporaryFileDirectory();
+		this.batcher = batcher;
+		this.cache = cache;
+		this.connectionMonitor = connectionMonitor;
+		this.executor = executor;
+		this.metrics = metrics;
+		this.logger = logger;
+		this.searchTimeoutSec = cfg.getSearchTimeoutSec();
+		this.maxResultsLimit = cfg.getSearchMaxResultsLimit();
+		this.maxEValueLimit = cfg.getSearchMaxEValueLimit();
+		this.minBitScoreLimit = cfg.getSearchMinBitScoreLimit();
+		this.multiSearchMaxSequences = cfg.getMultiSearchMaxSequences();
+		this.multiSearchMaxBytes = cfg.getMultiSearchMaxMB() * 1024L * 1024L;
+		this.multiSearchMaxTotalResults = cfg.getMultiSearchMaxTotalResults();
+		this.queryMemoryMaxBytes = cfg.getSearchQueryMemoryMaxKB() * 1024L;
 	}
 
 	/** Get the extant namespaces.
@@ -107,125 +175,671 @@ public class Namespaces {
 	}
 	
 	/** Search a namespace. Expects a fasta file with one sequence in the request body.
+	 * 
+	 * The search runs asynchronously on a search thread.
 	 * @param request the incoming servlet request.
 	 * @param namespace a namespace ID.
-	 * @return the matches.
+	 * @param maxResults the maximum number of results to return. Defaults to, and may not
+	 * exceed, the configured limit.
+	 * @param maxEValue the maximum E-value of returned results. Defaults to, and may not exceed,
+	 * the configured limit.
+	 * @param minBitScore the minimum bit score of returned results. Defaults to, and may not be
+	 * less than, the configured limit.
+	 * @param asyncResponse the response, which is resumed with the matches when the search is
+	 * complete.
 	 * @throws IOException if an error occurs retrieving the fasta file from the
 	 * request or saving the file to a temporary file.
 	 * @throws NoSuchNamespaceException if the requested namespace does not exist.
 	 * @throws MissingParameterException if the namespace ID parameter is missing.
-	 * @throws IllegalParameterException if namespace ID is illegal.
-	 * @throws GeneHomologyImplementationException if the homology implementation throws an
-	 * error.
+	 * @throws IllegalParameterException if namespace ID or a search parameter is illegal.
+	 * @throws TooManyRequestsException if the service is too busy to run the search.
 	 */
 	@POST
 	@Produces(MediaType.APPLICATION_JSON)
 	@javax.ws.rs.Path(ServicePaths.NAMESPACE_SEARCH)
-	public Map<String, Object> searchNamespacesJson(
+	public void searchNamespacesJson(
 			@Context final HttpServletRequest request,
-			@PathParam(ServicePaths.NAMESPACE_SELECT_PARAM) final String namespace)
+			@PathParam(ServicePaths.NAMESPACE_SELECT_PARAM) final String namespace,
+			@QueryParam(ServicePaths.SEARCH_MAX_RESULTS) final String maxResults,
+			@QueryParam(ServicePaths.SEARCH_MAX_E_VALUE) final String maxEValue,
+			@QueryParam(ServicePaths.SEARCH_MIN_BIT_SCORE) final String minBitScore,
+			@Suspended final AsyncResponse asyncResponse)
 			throws IOException, NoSuchNamespaceException, MissingParameterException,
-				IllegalParameterException, GeneHomologyImplementationException {
-		final List<SequenceSearchResult> seqs = getAlignments(request, namespace);
-		//TODO NOW add impl version
-		final Map<String, Object> ret = new HashMap<>();
-		ret.put(Fields.ALIGN_NAMESPACES, new HashSet<>(Arrays.asList(fromNamespace(ns))));
-		ret.put(Fields.ALIGN_IMPLEMENTATION, ns.getDatabase().getImplementationName().getName());
-		ret.put(Fields.ALIGNMENTS, seqs.stream()
-				.map(s -> fromSearchResult(s))
-				.collect(Collectors.toList()));
-		return ret;
+				IllegalParameterException, TooManyRequestsException {
+		final SearchParameters params = getSearchParameters(maxResults, maxEValue, minBitScore);
+		searchAsync(request, namespace, params, false, asyncResponse,
+				(query, token) -> getAlignments(query, params, token),
+				//TODO NOW add impl version
+				seqs -> (StreamingOutput) os -> SearchResultWriter.writeJSON(
+						os,
+						new HashSet<>(Arrays.asList(fromNamespace(ns))),
+						ns.getDatabase().getImplementationName().getName(),
+						seqs));
 	}
 	
+	/** Search a namespace, returning the results in BlastTab format. See
+	 * {@link #searchNamespacesJson(HttpServletRequest, String, String, String, String,
+	 * AsyncResponse)} for the parameters.
+	 * 
+	 * The BlastTab lines are written from the same parsed results as the JSON output rather
+	 * than taken from lastal's own tabular output. lastal's output can't be passed through
+	 * as is: the results are limited to the best results per query, E-values from database
+	 * shards are rescaled, batched queries are renamed, and the bit scores and coordinates
+	 * follow different conventions than lastal's.
+	 */
 	@POST
 	@Produces("application/blasttab")
 	@javax.ws.rs.Path(ServicePaths.NAMESPACE_SEARCH)
 	public void searchNamespacesBlastTab(
 			@Context final HttpServletRequest request,
-			@Context final HttpServletResponse response,
-			@PathParam(ServicePaths.NAMESPACE_SELECT_PARAM) final String namespace)
+			@PathParam(ServicePaths.NAMESPACE_SELECT_PARAM) final String namespace,
+			@QueryParam(ServicePaths.SEARCH_MAX_RESULTS) final String maxResults,
+			@QueryParam(ServicePaths.SEARCH_MAX_E_VALUE) final String maxEValue,
+			@QueryParam(ServicePaths.SEARCH_MIN_BIT_SCORE) final String minBitScore,
+			@Suspended final AsyncResponse asyncResponse)
 			throws NoSuchNamespaceException, MissingParameterException, IllegalParameterException,
-				FileNotFoundException, IOException, GeneHomologyImplementationException {
-		final List<SequenceSearchResult> seqs = getAlignments(request, namespace);
-		try (final ServletOutputStream sos = response.getOutputStream()) {
-			final Writer out = new BufferedWriter(new OutputStreamWriter(sos));
-			for (final SequenceSearchResult s: seqs) {
-				final AlignedSequence q = s.getQuery();
-				final AlignedSequence t = s.getTarget();
-				out.write(String.format("%s\t%s\t%.2f\t%s\t%s\t%s\t%s\t%s\t%s\t%s\t%s\t%s\n",
-						q.getId(), t.getId(),
-						s.getPercentID() * 100,
-						s.getAlignmentLength(), s.getMismatches(), s.getGapOpenCount(),
-						q.getAlignmentStart() + 1, q.getAlignmentStart() + q.getAlignmentLength(),
-						t.getAlignmentStart() + 1, t.getAlignmentStart() + t.getAlignmentLength(),
-						s.getEValue(),
-						s.getBitScore()));
-			}
-			out.close();
+				FileNotFoundException, IOException, TooManyRequestsException {
+		final SearchParameters params = getSearchParameters(maxResults, maxEValue, minBitScore);
+		searchAsync(request, namespace, params, false, asyncResponse,
+				(query, token) -> getAlignments(query, params, token),
+				seqs -> (StreamingOutput) os -> {
+					final BlastTabWriter writer = new BlastTabWriter(os);
+					writer.write(seqs);
+					writer.flush();
+				});
+	}
+	
+	/** Search a namespace, returning the results as newline delimited JSON with one alignment
+	 * per line followed by a summary line. See
+	 * {@link #searchNamespacesJson(HttpServletRequest, String, String, String, String,
+	 * AsyncResponse)} for the parameters.
+	 * 
+	 * Each line is flushed to the client as soon as it is written, so the client can start
+	 * processing alignments before the response is complete.
+	 */
+	@POST
+	@Produces("application/x-ndjson")
+	@javax.ws.rs.Path(ServicePaths.NAMESPACE_SEARCH)
+	public void searchNamespacesNDJSON(
+			@Context final HttpServletRequest request,
+			@PathParam(ServicePaths.NAMESPACE_SELECT_PARAM) final String namespace,
+			@QueryParam(ServicePaths.SEARCH_MAX_RESULTS) final String maxResults,
+			@QueryParam(ServicePaths.SEARCH_MAX_E_VALUE) final String maxEValue,
+			@QueryParam(ServicePaths.SEARCH_MIN_BIT_SCORE) final String minBitScore,
+			@Suspended final AsyncResponse asyncResponse)
+			throws IOException, NoSuchNamespaceException, MissingParameterException,
+				IllegalParameterException, TooManyRequestsException {
+		final SearchParameters params = getSearchParameters(maxResults, maxEValue, minBitScore);
+		searchAsync(request, namespace, params, false, asyncResponse,
+				(query, token) -> getAlignments(query, params, token),
+				seqs -> (StreamingOutput) os -> SearchResultWriter.writeNDJSON(
+						os,
+						new HashSet<>(Arrays.asList(fromNamespace(ns))),
+						ns.getDatabase().getImplementationName().getName(),
+						seqs));
+	}
+	
+	/** Search a namespace, returning the results in the Smile binary encoding with the same
+	 * structure as the JSON results. See
+	 * {@link #searchNamespacesJson(HttpServletRequest, String, String, String, String,
+	 * AsyncResponse)} for the parameters.
+	 */
+	@POST
+	@Produces(SearchResultWriter.SMILE_MEDIA_TYPE)
+	@javax.ws.rs.Path(ServicePaths.NAMESPACE_SEARCH)
+	public void searchNamespacesSmile(
+			@Context final HttpServletRequest request,
+			@PathParam(ServicePaths.NAMESPACE_SELECT_PARAM) final String namespace,
+			@QueryParam(ServicePaths.SEARCH_MAX_RESULTS) final String maxResults,
+			@QueryParam(ServicePaths.SEARCH_MAX_E_VALUE) final String maxEValue,
+			@QueryParam(ServicePaths.SEARCH_MIN_BIT_SCORE) final String minBitScore,
+			@Suspended final AsyncResponse asyncResponse)
+			throws IOException, NoSuchNamespaceException, MissingParameterException,
+				IllegalParameterException, TooManyRequestsException {
+		final SearchParameters params = getSearchParameters(maxResults, maxEValue, minBitScore);
+		searchAsync(request, namespace, params, false, asyncResponse,
+				(query, token) -> getAlignments(query, params, token),
+				seqs -> (StreamingOutput) os -> SearchResultWriter.writeSmile(
+						os,
+						new HashSet<>(Arrays.asList(fromNamespace(ns))),
+						ns.getDatabase().getImplementationName().getName(),
+						seqs));
+	}
+	
+	/** Search a namespace with multiple query sequences. Expects a fasta file with one or more
+	 * sequences, each with a unique ID, in the request body. The number of sequences, the size
+	 * of the file, and the number of sequences times the maximum number of results per sequence
+	 * are limited by the service configuration.
+	 * 
+	 * Sequences without cached results are searched together in a single search, which is much
+	 * more efficient than searching each sequence separately. The results are grouped by query
+	 * sequence, in the order of the sequences in the input. The search parameters apply to each
+	 * query sequence. See {@link #searchNamespacesJson(HttpServletRequest, String, String,
+	 * String, String, AsyncResponse)} for the parameters.
+	 */
+	@POST
+	@Produces(MediaType.APPLICATION_JSON)
+	@javax.ws.rs.Path(ServicePaths.NAMESPACE_MULTI_SEARCH)
+	public void multiSearchNamespacesJson(
+			@Context final HttpServletRequest request,
+			@PathParam(ServicePaths.NAMESPACE_SELECT_PARAM) final String namespace,
+			@QueryParam(ServicePaths.SEARCH_MAX_RESULTS) final String maxResults,
+			@QueryParam(ServicePaths.SEARCH_MAX_E_VALUE) final String maxEValue,
+			@QueryParam(ServicePaths.SEARCH_MIN_BIT_SCORE) final String minBitScore,
+			@Suspended final AsyncResponse asyncResponse)
+			throws IOException, NoSuchNamespaceException, MissingParameterException,
+				IllegalParameterException, TooManyRequestsException {
+		final SearchParameters params = getSearchParameters(maxResults, maxEValue, minBitScore);
+		searchAsync(request, namespace, params, true, asyncResponse,
+				(query, token) -> getMultiAlignments(query, params, token),
+				seqs -> (StreamingOutput) os -> SearchResultWriter.writeJSON(
+						os,
+						new HashSet<>(Arrays.asList(fromNamespace(ns))),
+						ns.getDatabase().getImplementationName().getName(),
+						seqs));
+	}
+	
+	/** Search a namespace with multiple query sequences, returning the results in BlastTab
+	 * format. See {@link #multiSearchNamespacesJson(HttpServletRequest, String, String, String,
+	 * String, AsyncResponse)}.
+	 */
+	@POST
+	@Produces("application/blasttab")
+	@javax.ws.rs.Path(ServicePaths.NAMESPACE_MULTI_SEARCH)
+	public void multiSearchNamespacesBlastTab(
+			@Context final HttpServletRequest request,
+			@PathParam(ServicePaths.NAMESPACE_SELECT_PARAM) final String namespace,
+			@QueryParam(ServicePaths.SEARCH_MAX_RESULTS) final String maxResults,
+			@QueryParam(ServicePaths.SEARCH_MAX_E_VALUE) final String maxEValue,
+			@QueryParam(ServicePaths.SEARCH_MIN_BIT_SCORE) final String minBitScore,
+			@Suspended final AsyncResponse asyncResponse)
+			throws IOException, NoSuchNamespaceException, MissingParameterException,
+				IllegalParameterException, TooManyRequestsException {
+		final SearchParameters params = getSearchParameters(maxResults, maxEValue, minBitScore);
+		searchAsync(request, namespace, params, true, asyncResponse,
+				(query, token) -> getMultiAlignments(query, params, token),
+				seqs -> (StreamingOutput) os -> {
+					final BlastTabWriter writer = new BlastTabWriter(os);
+					for (final ResultBatch res: seqs.values()) {
+						writer.write(res);
+					}
+					writer.flush();
+				});
+	}
+	
+	/** Search a namespace with multiple query sequences, returning the results as newline
+	 * delimited JSON with one line per query sequence followed by a summary line. See
+	 * {@link #multiSearchNamespacesJson(HttpServletRequest, String, String, String, String,
+	 * AsyncResponse)}.
+	 * 
+	 * The line for each query sequence is written and flushed to the client as soon as the
+	 * results for the sequence are final, rather than when the search of all the sequences is
+	 * complete, if the search implementation reports results as it runs. Since lines must be
+	 * written in input order, a line for a sequence with cached results may wait for the search
+	 * of earlier sequences. If the search fails before the first line is written, an error
+	 * response is returned as for the other formats. If it fails afterwards, the response ends
+	 * without the summary line.
+	 * 
+	 * Since the response is started before the search runs, the search is not subject to the
+	 * search timeout. It is still subject to the timeouts of the search queue and the search
+	 * implementation.
+	 */
+	@POST
+	@Produces("application/x-ndjson")
+	@javax.ws.rs.Path(ServicePaths.NAMESPACE_MULTI_SEARCH)
+	public void multiSearchNamespacesNDJSON(
+			@Context final HttpServletRequest request,
+			@PathParam(ServicePaths.NAMESPACE_SELECT_PARAM) final String namespace,
+			@QueryParam(ServicePaths.SEARCH_MAX_RESULTS) final String maxResults,
+			@QueryParam(ServicePaths.SEARCH_MAX_E_VALUE) final String maxEValue,
+			@QueryParam(ServicePaths.SEARCH_MIN_BIT_SCORE) final String minBitScore,
+			@Suspended final AsyncResponse asyncResponse)
+			throws IOException, NoSuchNamespaceException, MissingParameterException,
+				IllegalParameterException, TooManyRequestsException {
+		final SearchParameters params = getSearchParameters(maxResults, maxEValue, minBitScore);
+		// the search runs on the search thread as the output is written
+		searchAsync(request, namespace, params, true, asyncResponse,
+				(query, token) -> (StreamingOutput) os -> writeMultiAlignmentsNDJSON(
+						os, query, params, token),
+				output -> output);
+	}
+	
+	/** Search a namespace with multiple query sequences, returning the results in the Smile
+	 * binary encoding with the same structure as the JSON results. See
+	 * {@link #multiSearchNamespacesJson(HttpServletRequest, String, String, String, String,
+	 * AsyncResponse)}.
+	 */
+	@POST
+	@Produces(SearchResultWriter.SMILE_MEDIA_TYPE)
+	@javax.ws.rs.Path(ServicePaths.NAMESPACE_MULTI_SEARCH)
+	public void multiSearchNamespacesSmile(
+			@Context final HttpServletRequest request,
+			@PathParam(ServicePaths.NAMESPACE_SELECT_PARAM) final String namespace,
+			@QueryParam(ServicePaths.SEARCH_MAX_RESULTS) final String maxResults,
+			@QueryParam(ServicePaths.SEARCH_MAX_E_VALUE) final String maxEValue,
+			@QueryParam(ServicePaths.SEARCH_MIN_BIT_SCORE) final String minBitScore,
+			@Suspended final AsyncResponse asyncResponse)
+			throws IOException, NoSuchNamespaceException, MissingParameterException,
+				IllegalParameterException, TooManyRequestsException {
+		final SearchParameters params = getSearchParameters(maxResults, maxEValue, minBitScore);
+		searchAsync(request, namespace, params, true, asyncResponse,
+				(query, token) -> getMultiAlignments(query, params, token),
+				seqs -> (StreamingOutput) os -> SearchResultWriter.writeSmile(
+						os,
+						new HashSet<>(Arrays.asList(fromNamespace(ns))),
+						ns.getDatabase().getImplementationName().getName(),
+						seqs));
+	}
+	
+	// the query sequences, held in memory or, if large, in a temporary file
+	private static class Query {
+		
+		private final QueryInput input;
+		private final List<QuerySequence> sequences;
+		
+		private Query(final QueryInput input, final List<QuerySequence> sequences) {
+			this.input = input;
+			this.sequences = sequences;
 		}
 	}
-
-	private List<SequenceSearchResult> getAlignments(
+	
+	private interface Search<T> {
+		
+		T search(Query query, CancellationToken token)
+				throws IOException, GeneHomologyImplementationException,
+					TooManyRequestsException, InterruptedException;
+	}
+	
+	/* The query is read and validated, and the connection monitor registered, in the request
+	 * thread. Everything else happens on a search thread. The search is cancelled if it times
+	 * out.
+	 */
+	private <T> void searchAsync(
 			final HttpServletRequest request,
-			final String namespace)
+			final String namespace,
+			final SearchParameters params,
+			final boolean multipleQueries,
+			final AsyncResponse asyncResponse,
+			final Search<T> search,
+			final Function<T, Object> toEntity)
 			throws MissingParameterException, IllegalParameterException, NoSuchNamespaceException,
-				IOException, FileNotFoundException, GeneHomologyImplementationException {
+				IOException, TooManyRequestsException {
 		final NamespaceID nsid = new NamespaceID(namespace);
 		if (!nsid.equals(ns.getID())) {
 			throw new NoSuchNamespaceException(namespace);
 		}
+		final Query query = readQuery(request, params, multipleQueries);
+		// cancel the search if the client goes away or the search takes too long
+		final CancellationToken token = new CancellationToken();
+		final Registration reg = connectionMonitor.register(request, token);
+		asyncResponse.setTimeout(searchTimeoutSec, TimeUnit.SECONDS);
+		asyncResponse.setTimeoutHandler(ar -> {
+			token.cancel();
+			if (ar.resume(new RequestTimeoutException(String.format(
+					"The search did not complete within %s seconds", searchTimeoutSec)))) {
+				metrics.increment(METRIC_TIMEOUTS);
+			}
+		});
+		final String callID = logger.getCallID();
+		final String method = logger.getCallMethod();
+		final String ipAddress = logger.getCallIPAddress();
+		try {
+			executor.execute(() -> {
+				logger.setCallInfo(method, callID, ipAddress);
+				try {
+					asyncResponse.resume(toEntity.apply(search.search(query, token)));
+				} catch (Throwable e) {
+					asyncResponse.resume(e);
+				} finally {
+					reg.close();
+					deleteQuietly(query);
+					// executor threads are reused, don't attribute later log events to this call
+					logger.clearCallInfo();
+				}
+			});
+		} catch (TooManyRequestsException e) {
+			reg.close();
+			deleteQuietly(query);
+			throw e;
+		}
+	}
+	
+	private void deleteQuietly(final Query query) {
+		if (!query.input.getFile().isPresent()) {
+			return;
+		}
+		final Path tempFile = query.input.getFile().get();
+		try {
+			Files.delete(tempFile);
+		} catch (IOException e) {
+			LoggerFactory.getLogger(getClass()).error(
+					"Couldn't delete temporary file " + tempFile, e);
+		}
+	}
+
+	private SearchParameters getSearchParameters(
+			final String maxResults,
+			final String maxEValue,
+			final String minBitScore)
+			throws IllegalParameterException {
+		final int max = getInt(ServicePaths.SEARCH_MAX_RESULTS, maxResults, maxResultsLimit);
+		if (max < 1 || max > maxResultsLimit) {
+			throw new IllegalParameterException(String.format(
+					"%s must be between 1 and %s", ServicePaths.SEARCH_MAX_RESULTS,
+					maxResultsLimit));
+		}
+		final double maxE;
+		try {
+			maxE = isNullOrEmpty(maxEValue) ? maxEValueLimit : Double.parseDouble(maxEValue);
+		} catch (NumberFormatException e) {
+			throw new IllegalParameterException(String.format(
+					"%s must be a number", ServicePaths.SEARCH_MAX_E_VALUE));
+		}
+		if (Double.isNaN(maxE) || maxE < 0 || maxE > maxEValueLimit) {
+			throw new IllegalParameterException(String.format(
+					"%s must be between 0 and %s", ServicePaths.SEARCH_MAX_E_VALUE,
+					maxEValueLimit));
+		}
+		final int minBits = getInt(
+				ServicePaths.SEARCH_MIN_BIT_SCORE, minBitScore, minBitScoreLimit);
+		if (minBits < minBitScoreLimit) {
+			throw new IllegalParameterException(String.format(
+					"%s must be at least %s", ServicePaths.SEARCH_MIN_BIT_SCORE,
+					minBitScoreLimit));
+		}
+		return SearchParameters.getBuilder()
+				.withNullableMaxResults(max)
+				.withNullableMaxEValue(maxE)
+				.withNullableMinBitScore(minBits)
+				.build();
+	}
+	
+	private int getInt(final String name, final String value, final int default_)
+			throws IllegalParameterException {
+		if (isNullOrEmpty(value)) {
+			return default_;
+		}
+		try {
+			return Integer.parseInt(value.trim());
+		} catch (NumberFormatException e) {
+			throw new IllegalParameterException(String.format("%s must be an integer", name));
+		}
+	}
+	
+	/* The body is read into memory, validated, and passed to LAST on standard input, so the
+	 * query is never written to the file system. Bodies larger than the in memory limit are
+	 * written to a temporary file instead.
+	 */
+	private Query readQuery(
+			final HttpServletRequest request,
+			final SearchParameters params,
+			final boolean multipleQueries)
+			throws IOException, IllegalParameterException {
+		final long maxBytes = multipleQueries ? multiSearchMaxBytes : Long.MAX_VALUE;
 		Path tempFile = null;
-		final List<SequenceSearchResult> seqs;
+		boolean ok = false;
 		// should catch IOException and do something with it?
 		try (final InputStream is = request.getInputStream()) {
-			tempFile = Files.createTempFile(tempDir, "genehomol_input", ".tmp.fasta");
-			Files.copy(is, tempFile, StandardCopyOption.REPLACE_EXISTING);
-			validateFASTA(tempFile);
-			seqs = new LAST(tempDir, 120).search(
-					ns.getDatabase().getName(), ns.getDatabase().getLocation(), tempFile);
+			// read one byte past the limits to detect oversize input
+			final byte[] head = ByteStreams.toByteArray(
+					ByteStreams.limit(is, queryMemoryMaxBytes + 1));
+			final QueryInput input;
+			final long size;
+			if (head.length <= queryMemoryMaxBytes) {
+				input = QueryInput.fromBytes(head);
+				size = head.length;
+			} else {
+				tempFile = Files.createTempFile(tempDir, "genehomol_input", ".tmp.fasta");
+				try (final OutputStream os = Files.newOutputStream(tempFile)) {
+					os.write(head);
+					ByteStreams.copy(ByteStreams.limit(is, maxBytes - head.length + 1), os);
+				}
+				input = QueryInput.fromFile(tempFile);
+				size = Files.size(tempFile);
+			}
+			if (size > maxBytes) {
+				throw new IllegalParameterException(String.format(
+						"FASTA input is larger than the limit of %s MB",
+						maxBytes / 1024 / 1024));
+			}
+			final Query query = parseQuery(input, params, multipleQueries);
+			ok = true;
+			return query;
 		} finally {
-			if (tempFile != null) {
+			if (!ok && tempFile != null) {
 				Files.delete(tempFile);
 			}
 		}
-		return seqs;
 	}
-
+	
 	// this should live in the core code when it exists
-	private void validateFASTA(final Path tempFile)
-			throws IllegalParameterException, FileNotFoundException, IOException {
-		try (final FASTAFileParser p = FASTAFileParserFactory.getInstance()
-				.getFASTAFileParser(tempFile.toFile())) {
-			if (p.getNextEntry() == null) {
-				throw new IllegalParameterException("Empty input FASTA file");
-			}
-			if (p.getNextEntry() != null) {
+	private Query parseQuery(
+			final QueryInput input,
+			final SearchParameters params,
+			final boolean multipleQueries)
+			throws IOException, IllegalParameterException {
+		// limits the total number of results, and so the memory needed to hold them
+		final int maxResults = params.getMaxResults().get();
+		final int resultsMaxSequences = multiSearchMaxTotalResults / maxResults;
+		final int maxSequences = multipleQueries ?
+				Math.min(multiSearchMaxSequences, resultsMaxSequences) : 1;
+		final List<QuerySequence> sequences;
+		try (final InputStream is = input.openStream()) {
+			sequences = QuerySequence.parseFASTA(is, maxSequences);
+		}
+		if (sequences.size() > maxSequences) {
+			if (!multipleQueries) {
 				throw new IllegalParameterException(
 						"FASTA input must contain exactly one sequence");
 			}
-		} catch (FASTADataErrorException e) {
-			throw new IllegalParameterException("Invalid input FASTA: " + e.getMessage(), e);
+			throw new IllegalParameterException(String.format(
+					"FASTA input contains more than the limit of %s sequences%s", maxSequences,
+					maxSequences < multiSearchMaxSequences ? String.format(
+							" when %s is %s", ServicePaths.SEARCH_MAX_RESULTS, maxResults) : ""));
+		}
+		// results are grouped by ID, so the IDs must be unique
+		final Set<String> ids = new HashSet<>();
+		for (final QuerySequence q: sequences) {
+			if (!ids.add(q.getID())) {
+				throw new IllegalParameterException(
+						"Duplicate sequence ID in FASTA input: " + q.getID());
+			}
+		}
+		return new Query(input, sequences);
+	}
+	
+	private ResultBatch getAlignments(
+			final Query queryInput,
+			final SearchParameters params,
+			final CancellationToken token)
+			throws IOException, GeneHomologyImplementationException, TooManyRequestsException,
+				InterruptedException {
+		final QuerySequence query = queryInput.sequences.get(0);
+		final SearchCacheKey key = new SearchCacheKey(ns.getID(), ns.getModification(),
+				params.getCanonicalForm(), query.getResidueHash());
+		final Optional<ResultBatch> cached = cache.get(key, query.getID());
+		if (cached.isPresent()) {
+			return cached.get();
 		}
+		final ResultBatch seqs = batcher.search(ns.getDatabase().getName(),
+				ns.getDatabase().getLocation(), queryInput.input, params, token);
+		cache.put(key, seqs);
+		return seqs;
 	}
 
+	/* Queries with cached results are removed from the search, and the remaining queries are
+	 * searched together in one search run. Returns the results in input order.
+	 */
+	private Map<String, ResultBatch> getMultiAlignments(
+			final Query query,
+			final SearchParameters params,
+			final CancellationToken token)
+			throws IOException, GeneHomologyImplementationException, TooManyRequestsException,
+				InterruptedException {
+		final List<QuerySequence> queries = query.sequences;
+		final Map<String, ResultBatch> ret = new LinkedHashMap<>();
+		final Map<String, SearchCacheKey> uncached = new HashMap<>();
+		final List<Range<Long>> uncachedFASTA = new ArrayList<>();
+		for (final QuerySequence q: queries) {
+			final SearchCacheKey key = new SearchCacheKey(ns.getID(), ns.getModification(),
+					params.getCanonicalForm(), q.getResidueHash());
+			final Optional<ResultBatch> cached = cache.get(key, q.getID());
+			// add uncached queries now to keep the input order
+			ret.put(q.getID(), cached.orNull());
+			if (!cached.isPresent()) {
+				uncached.put(q.getID(), key);
+				uncachedFASTA.add(Range.closedOpen(q.getStart(), q.getEnd()));
+			}
+		}
+		if (uncached.isEmpty()) {
+			return ret;
+		}
+		// the uncached queries are streamed from the input without copying them
+		final QueryInput searchInput = uncached.size() == queries.size() ? query.input :
+				query.input.subset(uncachedFASTA);
+		final Map<String, ResultBatch> results = batcher.searchAll(ns.getDatabase().getName(),
+				ns.getDatabase().getLocation(), searchInput, params, token)
+				.groupByQueryID();
+		for (final Entry<String, SearchCacheKey> e: uncached.entrySet()) {
+			final ResultBatch res = results.containsKey(e.getKey()) ?
+					results.get(e.getKey()) : ResultBatch.getBuilder().build();
+			cache.put(e.getValue(), res);
+			ret.put(e.getKey(), res);
+		}
+		return ret;
+	}
 
-	private Map<String, Object> fromSearchResult(final SequenceSearchResult ssr) {
-		final Map<String, Object> ret = new HashMap<>();
-		ret.put(Fields.ALIGN_E_VAL, ssr.getEValue());
-		ret.put(Fields.ALIGN_BIT_SCORE, ssr.getBitScore());
+	/* Exceptions thrown before any output is written to the stream are mapped to an error
+	 * response by the exception handler. Afterwards the response can only be ended early.
+	 */
+	private void writeMultiAlignmentsNDJSON(
+			final OutputStream os,
+			final Query query,
+			final SearchParameters params,
+			final CancellationToken token)
+			throws IOException {
+		final MultiNDJSONWriter writer = new MultiNDJSONWriter(os, query, params, token);
+		try {
+			writer.search();
+		} catch (GeneHomologyImplementationException | TooManyRequestsException |
+				InterruptedException e) {
+			if (writer.writeError != null) {
+				throw writer.writeError;
+			}
+			// Jersey passes the cause to the exception handler
+			throw new MappableException(e);
+		}
+		writer.finish();
+	}
+	
+	/* Writes the NDJSON line for each query of a multiple sequence search, in input order, as
+	 * soon as the results for the query are final. Queries with cached results are removed from
+	 * the search as in getMultiAlignments(). The search reports the results for each query in
+	 * input order once it moves on to the next query, so any unreported earlier queries have no
+	 * results. Nothing is written until the search reports the first query.
+	 */
+	private class MultiNDJSONWriter implements QueryResultsListener {
 		
-		ret.put(Fields.ALIGN_QUERY_ID, ssr.getQuery().getId());
-		ret.put(Fields.ALIGN_QUERY_SEQ, ssr.getQuery().getAlignedSequence());
-		ret.put(Fields.ALIGN_QUERY_LEN, ssr.getQuery().getSequenceLength());
-		ret.put(Fields.ALIGN_QUERY_ALIGN_START, ssr.getQuery().getAlignmentStart());
-		ret.put(Fields.ALIGN_QUERY_ALIGN_LEN, ssr.getQuery().getAlignmentLength());
+		private final OutputStream os;
+		private final Query query;
+		private final SearchParameters params;
+		private final CancellationToken token;
+		private final List<SearchCacheKey> keys = new ArrayList<>();
+		// null for uncached queries
+		private final List<ResultBatch> cached = new ArrayList<>();
+		private final Map<String, Integer> uncached = new HashMap<>();
+		private final List<Range<Long>> uncachedFASTA = new ArrayList<>();
+		private QueryNDJSONWriter writer = null;
+		// the index of the next query to write
+		private int next = 0;
+		private IOException writeError = null;
 		
-		ret.put(Fields.ALIGN_TARGET_ID, ssr.getTarget().getId());
-		ret.put(Fields.ALIGN_TARGET_SEQ, ssr.getTarget().getAlignedSequence());
-		ret.put(Fields.ALIGN_TARGET_LEN, ssr.getTarget().getSequenceLength());
-		ret.put(Fields.ALIGN_TARGET_ALIGN_START, ssr.getTarget().getAlignmentStart());
-		ret.put(Fields.ALIGN_TARGET_ALIGN_LEN, ssr.getTarget().getAlignmentLength());
-		return ret;
+		private MultiNDJSONWriter(
+				final OutputStream os,
+				final Query query,
+				final SearchParameters params,
+				final CancellationToken token) {
+			this.os = os;
+			this.query = query;
+			this.params = params;
+			this.token = token;
+			for (int i = 0; i < query.sequences.size(); i++) {
+				final QuerySequence q = query.sequences.get(i);
+				final SearchCacheKey key = new SearchCacheKey(ns.getID(), ns.getModification(),
+						params.getCanonicalForm(), q.getResidueHash());
+				final Optional<ResultBatch> res = cache.get(key, q.getID());
+				keys.add(key);
+				cached.add(res.orNull());
+				if (!res.isPresent()) {
+					uncached.put(q.getID(), i);
+					uncachedFASTA.add(Range.closedOpen(q.getStart(), q.getEnd()));
+				}
+			}
+		}
+		
+		private void search()
+				throws GeneHomologyImplementationException, TooManyRequestsException,
+					InterruptedException {
+			if (uncached.isEmpty()) {
+				return;
+			}
+			// the uncached queries are streamed from the input without copying them
+			final QueryInput searchInput = uncached.size() == query.sequences.size() ?
+					query.input : query.input.subset(uncachedFASTA);
+			batcher.searchAll(ns.getDatabase().getName(), ns.getDatabase().getLocation(),
+					searchInput, params, token, this);
+		}
+		
+		@Override
+		public void onQueryResults(final String queryID, final ResultBatch results)
+				throws IOException {
+			final Integer index = uncached.get(queryID);
+			if (index == null || index < next) {
+				throw new IOException(String.format(
+						"The search reported unexpected results for query %s", queryID));
+			}
+			writeUpTo(index);
+			cache.put(keys.get(index), results);
+			write(index, results);
+		}
+		
+		private void finish() throws IOException {
+			writeUpTo(query.sequences.size());
+			if (writer == null) {
+				writer = new QueryNDJSONWriter(os);
+			}
+			writer.finish(new HashSet<>(Arrays.asList(fromNamespace(ns))),
+					ns.getDatabase().getImplementationName().getName());
+		}
+		
+		// writes the queries before the index that haven't been written yet
+		private void writeUpTo(final int index) throws IOException {
+			while (next < index) {
+				final ResultBatch res;
+				if (cached.get(next) == null) {
+					// the search has moved past the query, so the query has no results
+					res = ResultBatch.getBuilder().build();
+					cache.put(keys.get(next), res);
+				} else {
+					res = cached.get(next);
+				}
+				write(next, res);
+			}
+		}
+		
+		private void write(final int index, final ResultBatch results) throws IOException {
+			try {
+				if (writer == null) {
+					writer = new QueryNDJSONWriter(os);
+				}
+				writer.write(query.sequences.get(index).getID(), results);
+			} catch (IOException e) {
+				// most likely the client has gone away, so stop the search
+				writeError = e;
+				token.cancel();
+				throw e;
+			}
+			next = index + 1;
+		}
 	}
-	
 }
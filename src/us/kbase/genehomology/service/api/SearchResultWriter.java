@@ -0,0 +1,374 @@
+package us.kbase.genehomology.service.api;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileGenerator;
+
+import us.kbase.genehomology.homology.ResultBatch;
+import us.kbase.genehomology.service.Fields;
+
+/** Writes search results as JSON directly from a {@link ResultBatch} to an output stream,
+ * without building an intermediate map per result. Memory use is independent of the number of
+ * results and the start of the output is sent while the rest is being written.
+ *
+ * The fields of each object are written in the order in which they were written when the
+ * response was built from {@link java.util.HashMap}s, so the output is identical.
+ * @author gaprice@lbl.gov
+ *
+ */
+public class SearchResultWriter {
+
+	/** The media type for Smile encoded results. */
+	public static final String SMILE_MEDIA_TYPE = "application/x-jackson-smile";
+	
+	// the codec is only needed for the namespaces, which are small
+	private static final ObjectMapper MAPPER = new ObjectMapper();
+	// back references to repeated short strings, like target IDs, as well as field names
+	private static final ObjectMapper SMILE_MAPPER = new ObjectMapper(new SmileFactory()
+			.enable(SmileGenerator.Feature.CHECK_SHARED_STRING_VALUES));
+
+	private SearchResultWriter() {}
+
+	/** Write search results as a JSON object.
+	 * @param os the stream to which the results will be written. The stream is not closed.
+	 * @param namespaces the namespaces that were searched.
+	 * @param implementation the name of the implementation that performed the search.
+	 * @param results the search results.
+	 * @throws IOException if the results could not be written.
+	 */
+	public static void writeJSON(
+			final OutputStream os,
+			final Set<Map<String, Object>> namespaces,
+			final String implementation,
+			final ResultBatch results)
+			throws IOException {
+		write(MAPPER, os, namespaces, implementation, results);
+	}
+	
+	/** Write search results as a Smile encoded object. Smile is a binary encoding of JSON, and
+	 * the object has the same structure as the
+	 * {@link #writeJSON(OutputStream, Set, String, ResultBatch)} output. Repeated field names and
+	 * short strings are written as references to their first occurrence.
+	 * @param os the stream to which the results will be written. The stream is not closed.
+	 * @param namespaces the namespaces that were searched.
+	 * @param implementation the name of the implementation that performed the search.
+	 * @param results the search results.
+	 * @throws IOException if the results could not be written.
+	 */
+	public static void writeSmile(
+			final OutputStream os,
+			final Set<Map<String, Object>> namespaces,
+			final String implementation,
+			final ResultBatch results)
+			throws IOException {
+		write(SMILE_MAPPER, os, namespaces, implementation, results);
+	}
+	
+	private static void write(
+			final ObjectMapper mapper,
+			final OutputStream os,
+			final Set<Map<String, Object>> namespaces,
+			final String implementation,
+			final ResultBatch results)
+			throws IOException {
+		checkNotNull(os, "os");
+		checkNotNull(namespaces, "namespaces");
+		checkNotNull(implementation, "implementation");
+		checkNotNull(results, "results");
+		final JsonGenerator gen = start(mapper, os, implementation);
+		writeAlignments(gen, results, new SequenceBuffer());
+		end(gen, namespaces);
+	}
+	
+	/** Write the results of a search with multiple query sequences as a JSON object. The
+	 * results for each query are written as an object with the query ID and the alignments in
+	 * the {@link Fields#ALIGN_QUERIES} list.
+	 * @param os the stream to which the results will be written. The stream is not closed.
+	 * @param namespaces the namespaces that were searched.
+	 * @param implementation the name of the implementation that performed the search.
+	 * @param results the search results, mapped from query ID to the results for that query.
+	 * The queries are written in the iteration order of the map.
+	 * @throws IOException if the results could not be written.
+	 */
+	public static void writeJSON(
+			final OutputStream os,
+			final Set<Map<String, Object>> namespaces,
+			final String implementation,
+			final Map<String, ResultBatch> results)
+			throws IOException {
+		write(MAPPER, os, namespaces, implementation, results);
+	}
+	
+	/** Write the results of a search with multiple query sequences as a Smile encoded object,
+	 * with the same structure as the {@link #writeJSON(OutputStream, Set, String, Map)} output.
+	 * See {@link #writeSmile(OutputStream, Set, String, ResultBatch)}.
+	 * @param os the stream to which the results will be written. The stream is not closed.
+	 * @param namespaces the namespaces that were searched.
+	 * @param implementation the name of the implementation that performed the search.
+	 * @param results the search results, mapped from query ID to the results for that query.
+	 * The queries are written in the iteration order of the map.
+	 * @throws IOException if the results could not be written.
+	 */
+	public static void writeSmile(
+			final OutputStream os,
+			final Set<Map<String, Object>> namespaces,
+			final String implementation,
+			final Map<String, ResultBatch> results)
+			throws IOException {
+		write(SMILE_MAPPER, os, namespaces, implementation, results);
+	}
+	
+	private static void write(
+			final ObjectMapper mapper,
+			final OutputStream os,
+			final Set<Map<String, Object>> namespaces,
+			final String implementation,
+			final Map<String, ResultBatch> results)
+			throws IOException {
+		checkNotNull(os, "os");
+		checkNotNull(namespaces, "namespaces");
+		checkNotNull(implementation, "implementation");
+		checkNotNull(results, "results");
+		final JsonGenerator gen = start(mapper, os, implementation);
+		gen.writeArrayFieldStart(Fields.ALIGN_QUERIES);
+		final SequenceBuffer buf = new SequenceBuffer();
+		for (final Entry<String, ResultBatch> e: results.entrySet()) {
+			gen.writeStartObject();
+			gen.writeStringField(Fields.ALIGN_QUERY_ID, e.getKey());
+			writeAlignments(gen, e.getValue(), buf);
+			gen.writeEndObject();
+		}
+		gen.writeEndArray();
+		end(gen, namespaces);
+	}
+	
+	/** Write search results as newline delimited JSON. Each alignment is written as a JSON
+	 * object on its own line, followed by a summary line containing the implementation and
+	 * namespaces, which has the same fields as the {@link #writeJSON(OutputStream, Set, String,
+	 * ResultBatch)} output other than the alignments.
+	 * 
+	 * The output stream is flushed after each line, so a client can start processing the
+	 * alignments before the last one is written.
+	 * @param os the stream to which the results will be written. The stream is not closed.
+	 * @param namespaces the namespaces that were searched.
+	 * @param implementation the name of the implementation that performed the search.
+	 * @param results the search results.
+	 * @throws IOException if the results could not be written.
+	 */
+	public static void writeNDJSON(
+			final OutputStream os,
+			final Set<Map<String, Object>> namespaces,
+			final String implementation,
+			final ResultBatch results)
+			throws IOException {
+		checkNotNull(os, "os");
+		checkNotNull(namespaces, "namespaces");
+		checkNotNull(implementation, "implementation");
+		checkNotNull(results, "results");
+		final JsonGenerator gen = startNDJSON(os);
+		final SequenceBuffer buf = new SequenceBuffer();
+		for (int i = 0; i < results.size(); i++) {
+			writeAlignment(gen, results, i, buf);
+			gen.writeRaw('\n');
+			gen.flush();
+		}
+		endNDJSON(gen, namespaces, implementation);
+	}
+	
+	/** Write the results of a search with multiple query sequences as newline delimited JSON.
+	 * The results for each query are written as a JSON object on its own line, with the same
+	 * fields as the entries in the {@link Fields#ALIGN_QUERIES} list of the
+	 * {@link #writeJSON(OutputStream, Set, String, Map)} output, followed by a summary line
+	 * containing the implementation and namespaces.
+	 * 
+	 * The output stream is flushed after each query. See {@link QueryNDJSONWriter} to write the
+	 * results for each query as they become available.
+	 * @param os the stream to which the results will be written. The stream is not closed.
+	 * @param namespaces the namespaces that were searched.
+	 * @param implementation the name of the implementation that performed the search.
+	 * @param results the search results, mapped from query ID to the results for that query.
+	 * The queries are written in the iteration order of the map.
+	 * @throws IOException if the results could not be written.
+	 */
+	public static void writeNDJSON(
+			final OutputStream os,
+			final Set<Map<String, Object>> namespaces,
+			final String implementation,
+			final Map<String, ResultBatch> results)
+			throws IOException {
+		checkNotNull(os, "os");
+		checkNotNull(namespaces, "namespaces");
+		checkNotNull(implementation, "implementation");
+		checkNotNull(results, "results");
+		final QueryNDJSONWriter writer = new QueryNDJSONWriter(os);
+		for (final Entry<String, ResultBatch> e: results.entrySet()) {
+			writer.write(e.getKey(), e.getValue());
+		}
+		writer.finish(namespaces, implementation);
+	}
+	
+	/** Writes the results of a search with multiple query sequences as newline delimited JSON
+	 * one query at a time, in the same format as the
+	 * {@link SearchResultWriter#writeNDJSON(OutputStream, Set, String, Map)} output. Each line
+	 * is flushed to the output stream when it is written, so the results for a query can be
+	 * sent to the client while later queries are still being searched.
+	 * @author gaprice@lbl.gov
+	 *
+	 */
+	public static class QueryNDJSONWriter {
+		
+		private final JsonGenerator gen;
+		private final SequenceBuffer buf = new SequenceBuffer();
+		
+		/** Create the writer.
+		 * @param os the stream to which the results will be written. The stream is not closed.
+		 * @throws IOException if the writer could not be created.
+		 */
+		public QueryNDJSONWriter(final OutputStream os) throws IOException {
+			checkNotNull(os, "os");
+			gen = startNDJSON(os);
+		}
+		
+		/** Write the line for a query.
+		 * @param queryID the ID of the query.
+		 * @param results the results for the query.
+		 * @throws IOException if the results could not be written.
+		 */
+		public void write(final String queryID, final ResultBatch results) throws IOException {
+			checkNotNull(queryID, "queryID");
+			checkNotNull(results, "results");
+			gen.writeStartObject();
+			gen.writeStringField(Fields.ALIGN_QUERY_ID, queryID);
+			writeAlignments(gen, results, buf);
+			gen.writeEndObject();
+			gen.writeRaw('\n');
+			gen.flush();
+		}
+		
+		/** Write the summary line. No further queries may be written.
+		 * @param namespaces the namespaces that were searched.
+		 * @param implementation the name of the implementation that performed the search.
+		 * @throws IOException if the summary could not be written.
+		 */
+		public void finish(
+				final Set<Map<String, Object>> namespaces,
+				final String implementation)
+				throws IOException {
+			checkNotNull(namespaces, "namespaces");
+			checkNotNull(implementation, "implementation");
+			endNDJSON(gen, namespaces, implementation);
+		}
+	}
+	
+	private static JsonGenerator startNDJSON(final OutputStream os) throws IOException {
+		final JsonGenerator gen = MAPPER.getFactory().createGenerator(os, JsonEncoding.UTF8);
+		gen.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+		// lines are separated explicitly
+		gen.setRootValueSeparator(null);
+		return gen;
+	}
+	
+	private static void endNDJSON(
+			final JsonGenerator gen,
+			final Set<Map<String, Object>> namespaces,
+			final String implementation)
+			throws IOException {
+		gen.writeStartObject();
+		gen.writeStringField(Fields.ALIGN_IMPLEMENTATION, implementation);
+		gen.writeFieldName(Fields.ALIGN_NAMESPACES);
+		gen.writeObject(namespaces);
+		gen.writeEndObject();
+		gen.writeRaw('\n');
+		gen.close();
+	}
+	
+	private static JsonGenerator start(
+			final ObjectMapper mapper,
+			final OutputStream os,
+			final String implementation)
+			throws IOException {
+		final JsonGenerator gen = mapper.getFactory().createGenerator(os, JsonEncoding.UTF8);
+		gen.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+		gen.writeStartObject();
+		gen.writeStringField(Fields.ALIGN_IMPLEMENTATION, implementation);
+		return gen;
+	}
+	
+	private static void end(
+			final JsonGenerator gen,
+			final Set<Map<String, Object>> namespaces)
+			throws IOException {
+		gen.writeFieldName(Fields.ALIGN_NAMESPACES);
+		gen.writeObject(namespaces);
+		gen.writeEndObject();
+		gen.close();
+	}
+	
+	private static void writeAlignments(
+			final JsonGenerator gen,
+			final ResultBatch results,
+			final SequenceBuffer buf)
+			throws IOException {
+		gen.writeArrayFieldStart(Fields.ALIGNMENTS);
+		for (int i = 0; i < results.size(); i++) {
+			writeAlignment(gen, results, i, buf);
+		}
+		gen.writeEndArray();
+	}
+
+	// a reusable buffer for writing aligned sequences without creating strings
+	private static class SequenceBuffer {
+
+		private char[] chars = new char[1024];
+		private int length;
+
+		private void set(final byte[] bytes, final int offset, final int length) {
+			if (length > chars.length) {
+				chars = new char[Math.max(length, 2 * chars.length)];
+			}
+			// the sequences are ISO-8859-1, which maps directly to chars
+			for (int i = 0; i < length; i++) {
+				chars[i] = (char) (bytes[offset + i] & 0xFF);
+			}
+			this.length = length;
+		}
+	}
+
+	private static void writeAlignment(
+			final JsonGenerator gen,
+			final ResultBatch results,
+			final int row,
+			final SequenceBuffer buf)
+			throws IOException {
+		gen.writeStartObject();
+		gen.writeNumberField(Fields.ALIGN_TARGET_LEN, results.getTargetSequenceLength(row));
+		gen.writeNumberField(Fields.ALIGN_TARGET_ALIGN_START,
+				results.getTargetAlignmentStart(row));
+		gen.writeNumberField(Fields.ALIGN_BIT_SCORE, results.getBitScore(row));
+		gen.writeNumberField(Fields.ALIGN_QUERY_ALIGN_LEN, results.getQueryAlignmentLength(row));
+		gen.writeStringField(Fields.ALIGN_TARGET_ID, results.getTargetID(row));
+		gen.writeFieldName(Fields.ALIGN_TARGET_SEQ);
+		results.consumeTargetAlignedSequence(row, buf::set);
+		gen.writeString(buf.chars, 0, buf.length);
+		gen.writeNumberField(Fields.ALIGN_QUERY_ALIGN_START, results.getQueryAlignmentStart(row));
+		gen.writeNumberField(Fields.ALIGN_E_VAL, results.getEValue(row));
+		gen.writeNumberField(Fields.ALIGN_QUERY_LEN, results.getQuerySequenceLength(row));
+		gen.writeFieldName(Fields.ALIGN_QUERY_SEQ);
+		results.consumeQueryAlignedSequence(row, buf::set);
+		gen.writeString(buf.chars, 0, buf.length);
+		gen.writeNumberField(Fields.ALIGN_TARGET_ALIGN_LEN,
+				results.getTargetAlignmentLength(row));
+		gen.writeStringField(Fields.ALIGN_QUERY_ID, results.getQueryID(row));
+		gen.writeEndObject();
+	}
+}
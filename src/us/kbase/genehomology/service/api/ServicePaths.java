@@ -14,6 +14,8 @@ public class ServicePaths {
 	private static final String NAMESPACE = "namespace";
 	private static final String NAMESPACE_ID = "{" + NAMESPACE + "}";
 	private static final String SEARCH = "search";
+	private static final String MULTI_SEARCH = "multisearch";
+	private static final String METRICS = "metrics";
 	
 	
 	/* Root endpoint */
@@ -31,6 +33,18 @@ public class ServicePaths {
 	public static final String NAMESPACE_SELECT_PARAM = NAMESPACE;
 	/** The location for searching a namespace with a sketch file. */
 	public static final String NAMESPACE_SEARCH = NAMESPACE_SELECT + SEP + SEARCH;
+	/** The location for searching a namespace with multiple query sequences. */
+	public static final String NAMESPACE_MULTI_SEARCH = NAMESPACE_SELECT + SEP + MULTI_SEARCH;
+	/** The query parameter for the maximum number of search results. */
+	public static final String SEARCH_MAX_RESULTS = "max";
+	/** The query parameter for the maximum E-value of search results. */
+	public static final String SEARCH_MAX_E_VALUE = "maxevalue";
+	/** The query parameter for the minimum bit score of search results. */
+	public static final String SEARCH_MIN_BIT_SCORE = "minbitscore";
 	
+	/* Metrics */
+	
+	/** The metrics endpoint location. */
+	public static final String METRICS_ROOT = SEP + METRICS;
 	
 }
@@ -15,12 +15,16 @@ import com.fasterxml.jackson.databind.JsonMappingException;
 import us.kbase.genehomology.core.exceptions.AuthenticationException;
 import us.kbase.genehomology.core.exceptions.GeneHomologyException;
 import us.kbase.genehomology.core.exceptions.NoDataException;
+import us.kbase.genehomology.core.exceptions.RequestTimeoutException;
+import us.kbase.genehomology.core.exceptions.TooManyRequestsException;
 
 /** An error message to be returned to the server client. Expected to be serialized to JSON.
  * 
  * Exception classes are mapped to response status as:
  * {@link GeneHomologyException} and subclasses - 400
  * {@link NoDataException} and subclasses - 404
+ * {@link TooManyRequestsException} and subclasses - 429
+ * {@link RequestTimeoutException} and subclasses - 503
  * {@link WebApplicationException} and subclasses - as exception
  * {@link JsonMappingException} - 400
  * All others - 500
@@ -30,6 +34,25 @@ import us.kbase.genehomology.core.exceptions.NoDataException;
 @JsonInclude(Include.NON_NULL)
 public class ErrorMessage {
 	
+	// not available in JAX-RS 2.0
+	private static final StatusType TOO_MANY_REQUESTS = new StatusType() {
+		
+		@Override
+		public int getStatusCode() {
+			return 429;
+		}
+		
+		@Override
+		public Response.Status.Family getFamily() {
+			return Response.Status.Family.CLIENT_ERROR;
+		}
+		
+		@Override
+		public String getReasonPhrase() {
+			return "Too Many Requests";
+		}
+	};
+	
 	private final int httpcode;
 	private final String httpstatus;
 	private final Integer appcode;
@@ -66,6 +89,10 @@ public class ErrorMessage {
 //				status = Response.Status.FORBIDDEN;
 			} else if (ae instanceof NoDataException) {
 				status = Response.Status.NOT_FOUND;
+			} else if (ae instanceof TooManyRequestsException) {
+				status = TOO_MANY_REQUESTS;
+			} else if (ae instanceof RequestTimeoutException) {
+				status = Response.Status.SERVICE_UNAVAILABLE;
 			} else {
 				status = Response.Status.BAD_REQUEST;
 			}
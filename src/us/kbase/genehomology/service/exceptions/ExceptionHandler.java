@@ -11,6 +11,8 @@ import org.slf4j.LoggerFactory;
 
 import com.google.common.collect.ImmutableMap;
 
+import us.kbase.genehomology.core.exceptions.TooManyRequestsException;
+import us.kbase.genehomology.homology.SearchCancelledException;
 import us.kbase.genehomology.service.SLF4JAutoLogger;
 import us.kbase.genehomology.service.Fields;
 
@@ -21,6 +23,8 @@ import us.kbase.genehomology.service.Fields;
  */
 public class ExceptionHandler implements ExceptionMapper<Throwable> {
 
+	private static final String RETRY_AFTER = "Retry-After";
+
 	private final SLF4JAutoLogger logger;
 	private final Clock clock;
 	
@@ -41,14 +45,22 @@ public class ExceptionHandler implements ExceptionMapper<Throwable> {
 	@Override
 	public Response toResponse(final Throwable ex) {
 		
-		LoggerFactory.getLogger(getClass()).error("Logging exception:", ex);
+		if (ex instanceof SearchCancelledException) {
+			// the client has gone away, so this isn't really an error
+			LoggerFactory.getLogger(getClass()).info(ex.getMessage());
+		} else {
+			LoggerFactory.getLogger(getClass()).error("Logging exception:", ex);
+		}
 
 		//TODO CODE get rid of the logger.getCallID() method and instead make own call ID handler to decouple logger and exception handler.
 		final ErrorMessage em = new ErrorMessage(ex, logger.getCallID(), clock.instant());
-		return Response
+		final Response.ResponseBuilder rb = Response
 				.status(em.getHttpcode())
 				.entity(ImmutableMap.of(Fields.ERROR, em))
-				.type(MediaType.APPLICATION_JSON)
-				.build();
+				.type(MediaType.APPLICATION_JSON);
+		if (ex instanceof TooManyRequestsException) {
+			rb.header(RETRY_AFTER, ((TooManyRequestsException) ex).getRetryAfterSec());
+		}
+		return rb.build();
 	}
 }
@@ -0,0 +1,118 @@
+package us.kbase.genehomology.util;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static us.kbase.genehomology.util.Util.exceptOnEmpty;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/** A minimal, thread safe registry of service metrics. Supports three kinds of metrics:
+ *
+ * <ul>
+ * <li>counters, which only increase.</li>
+ * <li>distributions, which record the count, sum, minimum, and maximum of a set of values.</li>
+ * <li>gauges, which are calculated on demand when a snapshot of the metrics is requested.</li>
+ * </ul>
+ * @author gaprice@lbl.gov
+ *
+ */
+public class MetricsRegistry {
+
+	private final Map<String, AtomicLong> counters = new ConcurrentHashMap<>();
+	private final Map<String, Distribution> distributions = new ConcurrentHashMap<>();
+	private final Map<String, Supplier<Object>> gauges = new ConcurrentHashMap<>();
+
+	/** Create a new, empty, registry. */
+	public MetricsRegistry() {}
+
+	/** Increment a counter by one.
+	 * @param name the name of the counter.
+	 */
+	public void increment(final String name) {
+		increment(name, 1);
+	}
+
+	/** Increment a counter.
+	 * @param name the name of the counter.
+	 * @param amount the amount by which to increment the counter.
+	 */
+	public void increment(final String name, final long amount) {
+		exceptOnEmpty(name, "name");
+		counters.computeIfAbsent(name, k -> new AtomicLong()).addAndGet(amount);
+	}
+
+	/** Record a value in a distribution.
+	 * @param name the name of the distribution.
+	 * @param value the value to record.
+	 */
+	public void record(final String name, final long value) {
+		exceptOnEmpty(name, "name");
+		distributions.computeIfAbsent(name, k -> new Distribution()).record(value);
+	}
+
+	/** Register a gauge. Any previously registered gauge with the same name is replaced.
+	 * @param name the name of the gauge.
+	 * @param gauge a supplier for the current value of the gauge. The value must be serializable
+	 * to JSON.
+	 */
+	public void gauge(final String name, final Supplier<Object> gauge) {
+		exceptOnEmpty(name, "name");
+		checkNotNull(gauge, "gauge");
+		gauges.put(name, gauge);
+	}
+
+	/** Get the current value of a counter.
+	 * @param name the name of the counter.
+	 * @return the counter value, or 0 if the counter has never been incremented.
+	 */
+	public long getCount(final String name) {
+		final AtomicLong c = counters.get(name);
+		return c == null ? 0 : c.get();
+	}
+
+	/** Get a snapshot of all the metrics in the registry, sorted by metric name.
+	 * Distributions are represented as maps with the keys count, sum, min, max, and mean.
+	 * @return the metrics.
+	 */
+	public Map<String, Object> snapshot() {
+		final Map<String, Object> ret = new TreeMap<>();
+		for (final String name: counters.keySet()) {
+			ret.put(name, counters.get(name).get());
+		}
+		for (final String name: distributions.keySet()) {
+			ret.put(name, distributions.get(name).toMap());
+		}
+		for (final String name: gauges.keySet()) {
+			ret.put(name, gauges.get(name).get());
+		}
+		return ret;
+	}
+
+	private static class Distribution {
+
+		private long count = 0;
+		private long sum = 0;
+		private long min = Long.MAX_VALUE;
+		private long max = Long.MIN_VALUE;
+
+		private synchronized void record(final long value) {
+			count++;
+			sum += value;
+			min = Math.min(min, value);
+			max = Math.max(max, value);
+		}
+
+		private synchronized Map<String, Object> toMap() {
+			final Map<String, Object> ret = new TreeMap<>();
+			ret.put("count", count);
+			ret.put("sum", sum);
+			ret.put("min", count == 0 ? null : min);
+			ret.put("max", count == 0 ? null : max);
+			ret.put("mean", count == 0 ? null : sum / (double) count);
+			return ret;
+		}
+	}
+}
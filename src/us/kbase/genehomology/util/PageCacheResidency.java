@@ -0,0 +1,169 @@
+package us.kbase.genehomology.util;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import com.google.common.base.Optional;
+import com.sun.jna.Library;
+import com.sun.jna.Native;
+import com.sun.jna.NativeLong;
+import com.sun.jna.Pointer;
+
+/** Reports how much of a file is resident in the operating system page cache. Uses the POSIX
+ * mincore system call via JNA, and so is only available on POSIX systems.
+ * @author gaprice@lbl.gov
+ *
+ */
+public class PageCacheResidency {
+
+	// note - this class is not unit tested. If changes are made test manually.
+
+	// these values are the same on Linux and OS X
+	private static final int O_RDONLY = 0;
+	private static final int PROT_READ = 1;
+	private static final int MAP_SHARED = 1;
+	private static final Pointer MAP_FAILED = new Pointer(-1);
+
+	// map the file in chunks to keep the mincore result vector small. Must be a multiple
+	// of the page size.
+	private static final long CHUNK_SIZE = 1L << 30;
+
+	private interface CLibrary extends Library {
+		int open(String path, int flags);
+		int close(int fd);
+		Pointer mmap(Pointer addr, NativeLong length, int prot, int flags, int fd,
+				NativeLong offset);
+		int munmap(Pointer addr, NativeLong length);
+		int mincore(Pointer addr, NativeLong length, byte[] vec);
+		int getpagesize();
+	}
+
+	private static final CLibrary LIBC;
+	static {
+		CLibrary libc;
+		try {
+			libc = (CLibrary) Native.loadLibrary("c", CLibrary.class);
+		} catch (Throwable e) {
+			// not a POSIX system, or JNA isn't available
+			libc = null;
+		}
+		LIBC = libc;
+	}
+
+	/** The page cache residency of a file. */
+	public static class Residency {
+
+		private final Path file;
+		private final long size;
+		private final Optional<Long> residentBytes;
+
+		private Residency(final Path file, final long size, final Optional<Long> residentBytes) {
+			this.file = file;
+			this.size = size;
+			this.residentBytes = residentBytes;
+		}
+
+		/** Get the file.
+		 * @return the file.
+		 */
+		public Path getFile() {
+			return file;
+		}
+
+		/** Get the size of the file.
+		 * @return the file size in bytes.
+		 */
+		public long getSize() {
+			return size;
+		}
+
+		/** Get the number of bytes of the file that are resident in the page cache.
+		 * @return the resident bytes, or absent if residency could not be determined.
+		 */
+		public Optional<Long> getResidentBytes() {
+			return residentBytes;
+		}
+
+		/** Get the fraction of the file that is resident in the page cache.
+		 * @return the resident fraction, from 0 to 1, or absent if residency could not be
+		 * determined.
+		 */
+		public Optional<Double> getResidentFraction() {
+			if (!residentBytes.isPresent()) {
+				return Optional.absent();
+			}
+			return Optional.of(size == 0 ? 1.0 : residentBytes.get() / (double) size);
+		}
+	}
+
+	/** Check whether residency reporting is available on this system.
+	 * @return true if residency can be determined.
+	 */
+	public static boolean isAvailable() {
+		return LIBC != null;
+	}
+
+	/** Get the page cache residency of a file.
+	 * @param file the file to check.
+	 * @return the residency of the file. The resident bytes are absent if residency reporting
+	 * is not available or the file could not be mapped into memory.
+	 * @throws IOException if the file size could not be determined.
+	 */
+	public static Residency getResidency(final Path file) throws IOException {
+		checkNotNull(file, "file");
+		final long size = Files.size(file);
+		if (LIBC == null) {
+			return new Residency(file, size, Optional.absent());
+		}
+		final int fd = LIBC.open(file.toAbsolutePath().toString(), O_RDONLY);
+		if (fd < 0) {
+			return new Residency(file, size, Optional.absent());
+		}
+		try {
+			final long pageSize = LIBC.getpagesize();
+			long resident = 0;
+			for (long offset = 0; offset < size; offset += CHUNK_SIZE) {
+				final long length = Math.min(CHUNK_SIZE, size - offset);
+				final Optional<Long> residentPages = getResidentPages(
+						fd, offset, length, pageSize);
+				if (!residentPages.isPresent()) {
+					return new Residency(file, size, Optional.absent());
+				}
+				// the last page may be partial
+				resident += Math.min(residentPages.get() * pageSize, length);
+			}
+			return new Residency(file, size, Optional.of(resident));
+		} finally {
+			LIBC.close(fd);
+		}
+	}
+
+	private static Optional<Long> getResidentPages(
+			final int fd,
+			final long offset,
+			final long length,
+			final long pageSize) {
+		final NativeLong len = new NativeLong(length);
+		final Pointer addr = LIBC.mmap(
+				null, len, PROT_READ, MAP_SHARED, fd, new NativeLong(offset));
+		if (addr == null || MAP_FAILED.equals(addr)) {
+			return Optional.absent();
+		}
+		try {
+			final byte[] vec = new byte[(int) ((length + pageSize - 1) / pageSize)];
+			if (LIBC.mincore(addr, len, vec) != 0) {
+				return Optional.absent();
+			}
+			long pages = 0;
+			for (final byte b: vec) {
+				pages += b & 1;
+			}
+			return Optional.of(pages);
+		} finally {
+			LIBC.munmap(addr, len);
+		}
+	}
+}
@@ -0,0 +1,156 @@
+package us.kbase.genehomology.util;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/** Starts and tracks child processes so that no child outlives its usefulness.
+ *
+ * Processes that are terminated, or released while still running, are orphaned - the
+ * caller no longer cares about them - and are sent a termination signal. If an orphaned process
+ * is still running after a grace period it is killed forcibly. Exited processes are removed from
+ * the manager periodically by a reaper thread.
+ *
+ * On {@link #shutdown()} all the tracked processes are terminated.
+ * @author gaprice@lbl.gov
+ *
+ */
+public class ProcessManager {
+
+	/** The default time, in milliseconds, to wait for a terminated process to exit before
+	 * killing it forcibly.
+	 */
+	public static final long DEFAULT_TERMINATION_GRACE_MS = 5000;
+
+	private static final long REAP_INTERVAL_MS = 1000;
+
+	private final long terminationGraceMS;
+	// value is true if the process is orphaned
+	private final Map<Process, Boolean> processes = new ConcurrentHashMap<>();
+	private final ScheduledExecutorService reaper = Executors.newSingleThreadScheduledExecutor(
+			new ThreadFactoryBuilder().setDaemon(true).setNameFormat("process-reaper").build());
+	private final AtomicBoolean shutdown = new AtomicBoolean(false);
+
+	/** Create a process manager.
+	 * @param terminationGraceMS the time, in milliseconds, to wait after sending a terminated
+	 * process a termination signal before killing the process forcibly.
+	 */
+	public ProcessManager(final long terminationGraceMS) {
+		if (terminationGraceMS < 0) {
+			throw new IllegalArgumentException("terminationGraceMS must be >= 0");
+		}
+		this.terminationGraceMS = terminationGraceMS;
+		reaper.scheduleWithFixedDelay(() -> reap(), REAP_INTERVAL_MS, REAP_INTERVAL_MS,
+				TimeUnit.MILLISECONDS);
+	}
+
+	/** Start and track a process.
+	 * @param pb the builder for the process.
+	 * @return the started process.
+	 * @throws IOException if the process could not be started or the manager has been shut
+	 * down.
+	 */
+	public Process start(final ProcessBuilder pb) throws IOException {
+		checkNotNull(pb, "pb");
+		if (shutdown.get()) {
+			throw new IOException("The process manager is shut down");
+		}
+		final Process p = pb.start();
+		processes.put(p, false);
+		if (shutdown.get()) {
+			// the shutdown may have missed this process
+			terminate(p);
+			throw new IOException("The process manager is shut down");
+		}
+		return p;
+	}
+
+	/** Release a process when the caller no longer needs it. If the process is still running
+	 * it is terminated, otherwise it is no longer tracked.
+	 * @param p the process.
+	 */
+	public void release(final Process p) {
+		checkNotNull(p, "p");
+		if (p.isAlive()) {
+			terminate(p);
+		} else {
+			processes.remove(p);
+		}
+	}
+
+	/** Terminate a process. The process is sent a termination signal immediately and is
+	 * killed forcibly if it has not exited after the grace period. Returns without waiting for
+	 * the process to exit.
+	 * @param p the process.
+	 */
+	public void terminate(final Process p) {
+		checkNotNull(p, "p");
+		if (processes.computeIfPresent(p, (k, v) -> true) == null) {
+			return; // not tracked or already reaped
+		}
+		p.destroy();
+		if (reaper.isShutdown()) {
+			p.destroyForcibly();
+		} else {
+			reaper.schedule(() -> {
+				if (p.isAlive()) {
+					p.destroyForcibly();
+				}
+			}, terminationGraceMS, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	private void reap() {
+		processes.keySet().removeIf(p -> !p.isAlive());
+	}
+
+	/** Get the number of tracked processes that are running and not orphaned.
+	 * @return the number of running processes.
+	 */
+	public int getRunningCount() {
+		return (int) processes.entrySet().stream()
+				.filter(e -> !e.getValue() && e.getKey().isAlive()).count();
+	}
+
+	/** Get the number of orphaned processes that have not yet exited.
+	 * @return the number of orphaned processes.
+	 */
+	public int getOrphanedCount() {
+		return (int) processes.entrySet().stream()
+				.filter(e -> e.getValue() && e.getKey().isAlive()).count();
+	}
+
+	/** Terminate all tracked processes and stop accepting new processes. Waits up to the grace
+	 * period for the processes to exit, and then kills any remaining processes forcibly.
+	 * Calling this method more than once has no effect.
+	 */
+	public void shutdown() {
+		if (!shutdown.compareAndSet(false, true)) {
+			return;
+		}
+		reaper.shutdownNow();
+		final List<Process> procs = new ArrayList<>(processes.keySet());
+		procs.stream().forEach(p -> p.destroy());
+		final long deadline = System.nanoTime() +
+				TimeUnit.MILLISECONDS.toNanos(terminationGraceMS);
+		try {
+			for (final Process p: procs) {
+				p.waitFor(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		procs.stream().filter(p -> p.isAlive()).forEach(p -> p.destroyForcibly());
+		processes.clear();
+	}
+}
@@ -0,0 +1,120 @@
+package us.kbase.genehomology.util;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.FileDescriptor;
+import java.lang.reflect.Field;
+
+import com.google.common.base.Optional;
+import com.sun.jna.Library;
+import com.sun.jna.Native;
+import com.sun.jna.Platform;
+
+/** Determines whether the remote end of a socket has closed the connection without reading
+ * from the socket. Peeks at the socket via the POSIX recv system call via JNA, and so is only
+ * available on Linux and OS X.
+ *
+ * The file descriptor of a socket channel is not part of the public Java API and is retrieved
+ * via reflection. On Java 9 and later this requires the JVM options
+ * <code>--add-opens java.base/sun.nio.ch=ALL-UNNAMED
+ * --add-opens java.base/java.io=ALL-UNNAMED</code>.
+ * @author gaprice@lbl.gov
+ *
+ */
+public class SocketStatus {
+
+	// note - this class is not unit tested. If changes are made test manually.
+
+	private static final int MSG_PEEK = 2;
+	private static final int MSG_DONTWAIT = Platform.isMac() ? 0x80 : 0x40;
+	// errors that mean the connection is closed. Others, e.g. EAGAIN or EINTR, are transient
+	private static final int EBADF = 9;
+	private static final int EPIPE = 32;
+	private static final int ECONNRESET = Platform.isMac() ? 54 : 104;
+	private static final int ENOTCONN = Platform.isMac() ? 57 : 107;
+
+	private interface CLibrary extends Library {
+		int recv(int sockfd, byte[] buf, int len, int flags);
+	}
+
+	private static final CLibrary LIBC;
+	static {
+		CLibrary libc;
+		try {
+			libc = Platform.isLinux() || Platform.isMac() ?
+					(CLibrary) Native.loadLibrary("c", CLibrary.class) : null;
+		} catch (Throwable e) {
+			// JNA isn't available
+			libc = null;
+		}
+		LIBC = libc;
+	}
+
+	/** Check whether socket status reporting is available on this system.
+	 * @return true if socket status can be determined.
+	 */
+	public static boolean isAvailable() {
+		return LIBC != null;
+	}
+
+	/** Get the file descriptor of a socket channel.
+	 * @param channel the channel, typically a {@link java.nio.channels.SocketChannel}.
+	 * @return the file descriptor, or absent if it could not be determined.
+	 */
+	public static Optional<Integer> getFileDescriptor(final Object channel) {
+		checkNotNull(channel, "channel");
+		try {
+			final Optional<Object> fd = getField(channel, "fd");
+			if (!fd.isPresent() || !(fd.get() instanceof FileDescriptor)) {
+				return Optional.absent();
+			}
+			final Optional<Object> fdval = getField(fd.get(), "fd");
+			if (!fdval.isPresent() || !(fdval.get() instanceof Integer) ||
+					(Integer) fdval.get() < 0) {
+				return Optional.absent();
+			}
+			return Optional.of((Integer) fdval.get());
+		} catch (RuntimeException | IllegalAccessException e) {
+			// java 9+ without --add-opens throws InaccessibleObjectException
+			return Optional.absent();
+		}
+	}
+
+	private static Optional<Object> getField(final Object o, final String name)
+			throws IllegalAccessException {
+		for (Class<?> c = o.getClass(); c != null; c = c.getSuperclass()) {
+			try {
+				final Field f = c.getDeclaredField(name);
+				f.setAccessible(true);
+				return Optional.fromNullable(f.get(o));
+			} catch (NoSuchFieldException e) {
+				// try the superclass
+			}
+		}
+		return Optional.absent();
+	}
+
+	/** Check whether the remote end of a connected socket has closed the connection or the
+	 * connection has failed. No data is read from the socket.
+	 *
+	 * Note that a closed connection is only detected once any data sent by the remote end
+	 * before closing the connection has been read.
+	 * @param fd the file descriptor of the socket.
+	 * @return true if the connection is closed, false if it is open or the check failed with
+	 * a transient error, or absent if status reporting is not available.
+	 */
+	public static Optional<Boolean> isPeerClosed(final int fd) {
+		if (LIBC == null) {
+			return Optional.absent();
+		}
+		final int read = LIBC.recv(fd, new byte[1], 1, MSG_PEEK | MSG_DONTWAIT);
+		if (read > 0) {
+			return Optional.of(false); // unread data
+		}
+		if (read == 0) {
+			return Optional.of(true); // orderly shutdown
+		}
+		final int err = Native.getLastError();
+		return Optional.of(err == ECONNRESET || err == EBADF || err == ENOTCONN || err == EPIPE);
+	}
+}
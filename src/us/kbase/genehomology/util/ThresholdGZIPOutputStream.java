@@ -0,0 +1,138 @@
+package us.kbase.genehomology.util;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/** An output stream that gzip compresses its output only if the output exceeds a size
+ * threshold.
+ *
+ * Output is buffered until more than the threshold has been written, at which point a callback
+ * is run, for example to set a content encoding header, and the buffered and subsequent output
+ * is compressed. If the stream is closed before the threshold is exceeded the buffered output is
+ * written uncompressed. Flushing the stream before the threshold is exceeded has no effect, so
+ * that small outputs remain uncompressed. After the threshold is exceeded, flushing the stream
+ * flushes the compressor so that all the output written so far can be decompressed.
+ *
+ * Closing the stream closes the underlying stream.
+ * @author gaprice@lbl.gov
+ *
+ */
+public class ThresholdGZIPOutputStream extends OutputStream {
+
+	private static final int GZIP_BUFFER_SIZE = 8192;
+
+	private final OutputStream out;
+	private final int level;
+	private final Runnable onCompress;
+	private byte[] buf;
+	private int pos = 0;
+	// null until the threshold is exceeded
+	private OutputStream gzip = null;
+	private boolean closed = false;
+
+	/** Create the stream.
+	 * @param out the stream to which the output will be written.
+	 * @param threshold the maximum size of output, in bytes, that is not compressed.
+	 * @param level the compression level, from 1 to 9.
+	 * @param onCompress a callback run when the threshold is exceeded, before any compressed
+	 * output is written to the underlying stream.
+	 */
+	public ThresholdGZIPOutputStream(
+			final OutputStream out,
+			final int threshold,
+			final int level,
+			final Runnable onCompress) {
+		checkNotNull(out, "out");
+		checkNotNull(onCompress, "onCompress");
+		if (threshold < 0) {
+			throw new IllegalArgumentException("threshold must be at least 0");
+		}
+		if (level < 1 || level > 9) {
+			throw new IllegalArgumentException("level must be between 1 and 9");
+		}
+		this.out = out;
+		this.level = level;
+		this.onCompress = onCompress;
+		this.buf = new byte[threshold];
+	}
+
+	/** Returns true if the output is being compressed.
+	 * @return true if the threshold has been exceeded.
+	 */
+	public boolean isCompressing() {
+		return gzip != null;
+	}
+
+	@Override
+	public void write(final int b) throws IOException {
+		checkOpen();
+		if (gzip != null) {
+			gzip.write(b);
+		} else if (pos < buf.length) {
+			buf[pos++] = (byte) b;
+		} else {
+			startCompressing();
+			gzip.write(b);
+		}
+	}
+
+	@Override
+	public void write(final byte[] b, final int off, final int len) throws IOException {
+		checkOpen();
+		if (gzip != null) {
+			gzip.write(b, off, len);
+		} else if (pos + len <= buf.length) {
+			System.arraycopy(b, off, buf, pos, len);
+			pos += len;
+		} else {
+			startCompressing();
+			gzip.write(b, off, len);
+		}
+	}
+
+	private void checkOpen() throws IOException {
+		if (closed) {
+			throw new IOException("Stream closed");
+		}
+	}
+
+	private void startCompressing() throws IOException {
+		onCompress.run();
+		final int compressionLevel = level;
+		gzip = new GZIPOutputStream(out, GZIP_BUFFER_SIZE, true) {
+			{
+				def.setLevel(compressionLevel);
+			}
+		};
+		gzip.write(buf, 0, pos);
+		buf = null;
+	}
+
+	@Override
+	public void flush() throws IOException {
+		if (gzip != null) {
+			gzip.flush();
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		if (gzip != null) {
+			gzip.close();
+		} else {
+			try {
+				out.write(buf, 0, pos);
+			} finally {
+				buf = null;
+				out.close();
+			}
+		}
+	}
+}
@@ -0,0 +1,98 @@
+package us.kbase.test.genehomology.homology;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import org.junit.Test;
+
+import us.kbase.genehomology.homology.AlignedSequence;
+import us.kbase.test.genehomology.TestCommon;
+
+public class AlignedSequenceTest {
+	
+	private void assertRoundTrip(final String alignedSequence, final int gapOpens) {
+		final AlignedSequence as = new AlignedSequence(
+				"id", 1000, alignedSequence, 10, 20, true);
+		assertThat("incorrect sequence", as.getAlignedSequence(), is(alignedSequence));
+		assertThat("incorrect length", as.getAlignmentLengthWithGaps(),
+				is(alignedSequence.length()));
+		assertThat("incorrect gap opens", as.getGapOpenCount(), is(gapOpens));
+		assertThat("incorrect gaps", as.getGapCount(),
+				is(alignedSequence.replaceAll("[^-]", "").length()));
+		
+		final byte[] b = ("xx" + alignedSequence + "yy").getBytes(StandardCharsets.ISO_8859_1);
+		final AlignedSequence fromBytes = new AlignedSequence(
+				"id", 1000, b, 2, b.length - 4, 10, 20, true);
+		assertThat("incorrect equals", fromBytes, is(as));
+		assertThat("incorrect hash", fromBytes.hashCode(), is(as.hashCode()));
+		assertThat("incorrect bytes", new String(fromBytes.getAlignedBytes(),
+				StandardCharsets.ISO_8859_1), is(alignedSequence));
+	}
+	
+	@Test
+	public void roundTrip() throws Exception {
+		assertRoundTrip("", 0);
+		assertRoundTrip("-", 1);
+		assertRoundTrip("M", 0);
+		assertRoundTrip("MKV*--AB---ZZ-", 3);
+		assertRoundTrip("--ABCDEFGHIJKLMNOPQRSTUVWXYZ*", 1);
+		// not packable
+		assertRoundTrip("acgt--NNn-é", 2);
+	}
+	
+	@Test
+	public void roundTripRandom() throws Exception {
+		final String packable = "ABCDEFGHIJKLMNOPQRSTUVWXYZ*---";
+		final Random r = new Random(42);
+		for (int i = 0; i < 1000; i++) {
+			final StringBuilder sb = new StringBuilder();
+			final int len = r.nextInt(100);
+			final boolean lower = r.nextInt(10) == 0;
+			for (int j = 0; j < len; j++) {
+				sb.append(lower && r.nextInt(20) == 0 ? 'x' :
+						packable.charAt(r.nextInt(packable.length())));
+			}
+			final String s = sb.toString();
+			int gapOpens = 0;
+			for (int j = 0; j < s.length(); j++) {
+				if (s.charAt(j) == '-' && (j == 0 || s.charAt(j - 1) != '-')) {
+					gapOpens++;
+				}
+			}
+			assertRoundTrip(s, gapOpens);
+		}
+	}
+	
+	@Test
+	public void equality() throws Exception {
+		final AlignedSequence as = new AlignedSequence("id", 1000, "MK-V", 10, 3, true);
+		assertThat("incorrect equals", as.equals(
+				new AlignedSequence("id", 1000, "MKV-", 10, 3, true)), is(false));
+		assertThat("incorrect equals", as.equals(
+				new AlignedSequence("id", 1000, "MK-W", 10, 3, true)), is(false));
+		assertThat("incorrect equals", as.equals(
+				new AlignedSequence("id", 1000, "mK-V", 10, 3, true)), is(false));
+		assertThat("incorrect withID", as.withID("id2"),
+				is(new AlignedSequence("id2", 1000, "MK-V", 10, 3, true)));
+	}
+	
+	@Test
+	public void constructFail() throws Exception {
+		failConstruct(null, new NullPointerException("alignedSequence"));
+		failConstruct("MKψ", new IllegalArgumentException(
+				"alignedSequence contains characters outside the ISO-8859-1 range"));
+	}
+	
+	private void failConstruct(final String alignedSequence, final Exception expected) {
+		try {
+			new AlignedSequence("id", 1000, alignedSequence, 10, 3, true);
+			fail("expected exception");
+		} catch (Exception got) {
+			TestCommon.assertExceptionCorrect(got, expected);
+		}
+	}
+}
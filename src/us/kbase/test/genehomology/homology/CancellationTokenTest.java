@@ -0,0 +1,84 @@
+package us.kbase.test.genehomology.homology;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+import us.kbase.genehomology.homology.CancellationToken;
+import us.kbase.genehomology.homology.SearchCancelledException;
+import us.kbase.test.genehomology.TestCommon;
+
+public class CancellationTokenTest {
+
+	@Test
+	public void cancel() throws Exception {
+		final List<String> called = new ArrayList<>();
+		final CancellationToken token = new CancellationToken();
+		final Runnable removed = () -> called.add("removed");
+		token.addListener(() -> called.add("l1"));
+		token.addListener(removed);
+		token.addListener(() -> called.add("l2"));
+		token.removeListener(removed);
+		assertThat("incorrect cancelled", token.isCancelled(), is(false));
+		token.throwIfCancelled();
+		assertThat("listeners called", called, is(Collections.emptyList()));
+
+		token.cancel();
+		assertThat("incorrect cancelled", token.isCancelled(), is(true));
+		assertThat("incorrect listeners", called, is(Arrays.asList("l1", "l2")));
+		try {
+			token.throwIfCancelled();
+			fail("expected exception");
+		} catch (SearchCancelledException got) {
+			TestCommon.assertExceptionCorrect(got,
+					new SearchCancelledException("The search was cancelled"));
+		}
+
+		// cancelling again has no effect
+		token.cancel();
+		assertThat("incorrect listeners", called, is(Arrays.asList("l1", "l2")));
+	}
+
+	@Test
+	public void addListenerAfterCancel() throws Exception {
+		final List<String> called = new ArrayList<>();
+		final CancellationToken token = new CancellationToken();
+		// listeners are called without holding the token lock, so may add listeners
+		token.addListener(() -> token.addListener(() -> called.add("inner")));
+		token.cancel();
+		assertThat("incorrect listeners", called, is(Arrays.asList("inner")));
+
+		token.addListener(() -> called.add("late"));
+		assertThat("incorrect listeners", called, is(Arrays.asList("inner", "late")));
+	}
+
+	@Test
+	public void listenersRunInCancellingThread() throws Exception {
+		final CancellationToken token = new CancellationToken();
+		final List<Thread> threads = Collections.synchronizedList(new ArrayList<>());
+		token.addListener(() -> threads.add(Thread.currentThread()));
+		final Thread canceller = new Thread(() -> token.cancel());
+		canceller.start();
+		canceller.join(10000);
+
+		assertThat("not cancelled", token.isCancelled(), is(true));
+		assertThat("incorrect thread", threads, is(Arrays.asList(canceller)));
+	}
+
+	@Test
+	public void addListenerFail() throws Exception {
+		try {
+			new CancellationToken().addListener(null);
+			fail("expected exception");
+		} catch (Exception got) {
+			TestCommon.assertExceptionCorrect(got, new NullPointerException("listener"));
+		}
+	}
+}
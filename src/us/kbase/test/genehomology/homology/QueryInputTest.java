@@ -0,0 +1,111 @@
+package us.kbase.test.genehomology.homology;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+
+import com.google.common.base.Optional;
+import com.google.common.collect.Range;
+
+import us.kbase.genehomology.homology.QueryInput;
+import us.kbase.test.genehomology.TestCommon;
+
+public class QueryInputTest {
+
+	private static final String FASTA = ">q1\nMKV\n>q2\nLLL\n>q3\nKKK\n>q4\nVVV\n";
+
+	private static String read(final QueryInput input) throws Exception {
+		try (final InputStream is = input.openStream()) {
+			return IOUtils.toString(is, StandardCharsets.UTF_8);
+		}
+	}
+
+	private static List<Range<Long>> ranges() {
+		return Arrays.asList(
+				Range.closedOpen(8L, 16L), // q2
+				Range.closedOpen(24L, 32L), // q4
+				Range.closedOpen(0L, 8L), // q1
+				Range.closedOpen(8L, 8L),
+				Range.closedOpen(8L, 16L)); // q2 again, coalesced with q1
+	}
+
+	@Test
+	public void bytes() throws Exception {
+		final QueryInput qi = QueryInput.fromBytes(FASTA.getBytes(StandardCharsets.UTF_8));
+
+		assertThat("incorrect file", qi.getFile(), is(Optional.absent()));
+		assertThat("incorrect data", read(qi), is(FASTA));
+		final QueryInput sub = qi.subset(ranges());
+		assertThat("incorrect file", sub.getFile(), is(Optional.absent()));
+		assertThat("incorrect data", read(sub), is(">q2\nLLL\n>q4\nVVV\n>q1\nMKV\n>q2\nLLL\n"));
+		// can be read more than once
+		assertThat("incorrect data", read(sub), is(">q2\nLLL\n>q4\nVVV\n>q1\nMKV\n>q2\nLLL\n"));
+		assertThat("incorrect data", read(qi.subset(Collections.emptyList())), is(""));
+	}
+
+	@Test
+	public void file() throws Exception {
+		final Path f = Files.createTempFile("QueryInputTest", ".fasta");
+		try {
+			Files.write(f, FASTA.getBytes(StandardCharsets.UTF_8));
+			final QueryInput qi = QueryInput.fromFile(f);
+
+			assertThat("incorrect file", qi.getFile(), is(Optional.of(f)));
+			assertThat("incorrect data", read(qi), is(FASTA));
+			final QueryInput sub = qi.subset(ranges());
+			assertThat("incorrect file", sub.getFile(), is(Optional.absent()));
+			assertThat("incorrect data", read(sub),
+					is(">q2\nLLL\n>q4\nVVV\n>q1\nMKV\n>q2\nLLL\n"));
+			// single byte reads
+			final StringBuilder sb = new StringBuilder();
+			try (final InputStream is = sub.openStream()) {
+				for (int b = is.read(); b >= 0; b = is.read()) {
+					sb.append((char) b);
+				}
+			}
+			assertThat("incorrect data", sb.toString(),
+					is(">q2\nLLL\n>q4\nVVV\n>q1\nMKV\n>q2\nLLL\n"));
+		} finally {
+			Files.delete(f);
+		}
+	}
+
+	@Test
+	public void subsetFail() throws Exception {
+		final QueryInput qi = QueryInput.fromBytes(FASTA.getBytes(StandardCharsets.UTF_8));
+		failSubset(qi, null, new NullPointerException("ranges"));
+		failSubset(qi, Arrays.asList(Range.closedOpen(0L, 1L), null),
+				new NullPointerException("null item in ranges"));
+		failSubset(qi, Arrays.asList(Range.closed(0L, 1L)),
+				new IllegalArgumentException("Illegal range: [0‥1]"));
+		failSubset(qi, Arrays.asList(Range.atLeast(0L)),
+				new IllegalArgumentException("Illegal range: [0‥+∞)"));
+		failSubset(qi, Arrays.asList(Range.closedOpen(-1L, 1L)),
+				new IllegalArgumentException("Illegal range: [-1‥1)"));
+		failSubset(qi.subset(Collections.emptyList()), Collections.emptyList(),
+				new IllegalStateException("Cannot take a subset of a subset"));
+	}
+
+	private void failSubset(
+			final QueryInput qi,
+			final List<Range<Long>> ranges,
+			final Exception expected) {
+		try {
+			qi.subset(ranges);
+			fail("expected exception");
+		} catch (Exception got) {
+			TestCommon.assertExceptionCorrect(got, expected);
+		}
+	}
+}
@@ -0,0 +1,171 @@
+package us.kbase.test.genehomology.homology;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+import us.kbase.genehomology.homology.AlignedSequence;
+import us.kbase.genehomology.homology.ResultBatch;
+import us.kbase.genehomology.homology.SequenceSearchResult;
+
+public class ResultBatchTest {
+	
+	private static SequenceSearchResult result(
+			final String query,
+			final String target,
+			final double eValue,
+			final int bitScore) {
+		return new SequenceSearchResult(
+				new AlignedSequence(query, 100, "MIWLL-Xk", 3, 7, true),
+				new AlignedSequence(target, 200, "MVA--GXR", 10, 6, false),
+				eValue,
+				bitScore);
+	}
+	
+	private static final SequenceSearchResult Q1A = result("q1", "a", 1e-5, 40);
+	private static final SequenceSearchResult Q2A = result("q2", "a", 1e-20, 90);
+	private static final SequenceSearchResult Q1B = result("q1", "b", 1e-10, 60);
+	private static final SequenceSearchResult Q1C = result("q1", "c", 1e-10, 70);
+	private static final List<SequenceSearchResult> RESULTS = Arrays.asList(Q1A, Q2A, Q1B, Q1C);
+	
+	@Test
+	public void rowAccessors() throws Exception {
+		final ResultBatch b = ResultBatch.copyOf(RESULTS);
+		
+		assertThat("incorrect results", b, is(RESULTS));
+		assertThat("incorrect e-value", b.getEValue(2), is(1e-10));
+		assertThat("incorrect bit score", b.getBitScore(2), is(60));
+		assertThat("incorrect query", b.getQueryID(2), is("q1"));
+		assertThat("incorrect target", b.getTargetID(2), is("b"));
+		assertThat("incorrect query length", b.getQuerySequenceLength(2), is(100));
+		assertThat("incorrect target start", b.getTargetAlignmentStart(2), is(10));
+		assertThat("incorrect target alignment length", b.getTargetAlignmentLength(2), is(6));
+		assertThat("incorrect strand", b.isQueryForwardStrand(2), is(true));
+		assertThat("incorrect strand", b.isTargetForwardStrand(2), is(false));
+		assertThat("incorrect query sequence", b.getQueryAlignedSequence(2), is("MIWLL-Xk"));
+		assertThat("incorrect target sequence", b.getTargetAlignedSequence(2), is("MVA--GXR"));
+		assertThat("incorrect mismatches", b.getMismatches(2), is(3));
+		assertThat("incorrect gap opens", b.getGapOpenCount(2), is(2));
+		assertThat("incorrect percent ID", b.getPercentID(2), is(0.25));
+	}
+	
+	@Test
+	public void alignedSequenceEncoding() throws Exception {
+		// the query sequences are packed and end at every bit offset. The target sequences
+		// end with a lower case character, so they're stored one byte per column
+		final List<SequenceSearchResult> results = new ArrayList<>();
+		final StringBuilder all = new StringBuilder("ABCDEFGHIJKLMNOPQRSTUVWXYZ*-");
+		while (all.length() < 50) {
+			all.append("MKV-L");
+		}
+		for (int len = 1; len <= all.length(); len++) {
+			final String seq = all.substring(all.length() - len);
+			final String lower = seq.substring(0, len - 1) + "x";
+			results.add(new SequenceSearchResult(
+					new AlignedSequence("q" + len, 100, seq, 0, len, true),
+					new AlignedSequence("t" + len, 100, lower, 0, len, true),
+					1e-5, 40));
+		}
+		final ResultBatch b = ResultBatch.copyOf(results);
+		
+		assertThat("incorrect results", b, is(results));
+		for (int i = 0; i < b.size(); i++) {
+			final List<String> consumed = new ArrayList<>();
+			b.consumeQueryAlignedSequence(i, (bytes, off, len) -> consumed.add(
+					new String(bytes, off, len, StandardCharsets.ISO_8859_1)));
+			b.consumeTargetAlignedSequence(i, (bytes, off, len) -> consumed.add(
+					new String(bytes, off, len, StandardCharsets.ISO_8859_1)));
+			assertThat("incorrect sequences", consumed, is(Arrays.asList(
+					results.get(i).getQuery().getAlignedSequence(),
+					results.get(i).getTarget().getAlignedSequence())));
+		}
+		assertThat("incorrect copy", ResultBatch.getBuilder().addAll(b).build(), is(results));
+	}
+	
+	@Test
+	public void bestPerQuery() throws Exception {
+		final ResultBatch b = ResultBatch.copyOf(RESULTS);
+		
+		assertThat("incorrect sort", b.sortedBestFirst(), is(Arrays.asList(Q2A, Q1C, Q1B, Q1A)));
+		assertThat("incorrect limit", b.limitPerQuery(1), is(Arrays.asList(Q1A, Q2A)));
+		assertThat("incorrect best", b.bestPerQuery(2), is(Arrays.asList(Q1C, Q1B, Q2A)));
+		
+		final ResultBatch.Builder builder = ResultBatch.getBuilder();
+		for (final SequenceSearchResult r: RESULTS) {
+			builder.add(r).retainBestPerQuery(2);
+		}
+		assertThat("incorrect best", builder.build().bestPerQuery(2),
+				is(Arrays.asList(Q1C, Q1B, Q2A)));
+	}
+	
+	@Test
+	public void maxPerQuery() throws Exception {
+		// few distinct scores, so there are many ties
+		final Random rand = new Random(42);
+		final List<SequenceSearchResult> results = new ArrayList<>();
+		for (int i = 0; i < 1000; i++) {
+			results.add(result("q" + rand.nextInt(3), "t" + i, rand.nextInt(5) * 1e-5,
+					rand.nextInt(3)));
+		}
+		final ResultBatch.Builder builder = ResultBatch.getBuilder().withMaxPerQuery(5);
+		for (final SequenceSearchResult r: results) {
+			builder.add(r);
+			assertThat("too many rows " + builder.size(), builder.size() < 3 * 2 * 5, is(true));
+		}
+		assertThat("incorrect best", builder.build().bestPerQuery(5),
+				is(ResultBatch.copyOf(results).bestPerQuery(5)));
+		
+		try {
+			builder.withMaxPerQuery(5);
+			fail("expected exception");
+		} catch (IllegalStateException got) {
+			assertThat("incorrect message", got.getMessage(), is("Rows have already been added"));
+		}
+	}
+
+	@Test
+	public void mergeBestPerQuery() throws Exception {
+		final SequenceSearchResult q3a = result("q3", "a", 1e-3, 20);
+		final SequenceSearchResult q1d = result("q1", "d", 1e-5, 40);
+		final SequenceSearchResult q2b = result("q2", "b", 1e-30, 95);
+		final ResultBatch b1 = ResultBatch.copyOf(Arrays.asList(Q1C, Q1A, Q2A));
+		final ResultBatch b2 = ResultBatch.copyOf(Arrays.asList(Q1B, q1d, q3a));
+		final ResultBatch b3 = ResultBatch.copyOf(Arrays.asList(q2b, q3a))
+				.withQueryID("q2");
+
+		assertThat("incorrect merge", ResultBatch.mergeBestPerQuery(
+				Arrays.asList(b1, b2, b3), 10), is(Arrays.asList(
+						Q1C, Q1B, Q1A, q1d, q2b, Q2A, result("q2", "a", 1e-3, 20), q3a)));
+		assertThat("incorrect merge", ResultBatch.mergeBestPerQuery(
+				Arrays.asList(b2, b1), 2), is(Arrays.asList(Q1C, Q1B, q3a, Q2A)));
+		assertThat("incorrect merge", ResultBatch.mergeBestPerQuery(
+				Arrays.asList(b1), 1), is(Arrays.asList(Q1C, Q2A)));
+		assertThat("incorrect merge", ResultBatch.mergeBestPerQuery(
+				Arrays.asList(ResultBatch.getBuilder().build(), b2), 1),
+				is(Arrays.asList(Q1B, q3a)));
+	}
+
+	@Test
+	public void groupAndRename() throws Exception {
+		final Map<String, ResultBatch> groups = ResultBatch.copyOf(RESULTS).groupByQueryID();
+		
+		assertThat("incorrect groups", groups.keySet(),
+				is(new LinkedHashSet<>(Arrays.asList("q1", "q2"))));
+		assertThat("incorrect group", groups.get("q1"), is(Arrays.asList(Q1A, Q1B, Q1C)));
+		
+		final ResultBatch renamed = groups.get("q2").withQueryID("foo");
+		assertThat("incorrect query", renamed.getQueryID(0), is("foo"));
+		assertThat("incorrect result", renamed.get(0), is(Q2A.withQueryID("foo")));
+		assertThat("incorrect compact", renamed.compact(), is(renamed));
+	}
+}
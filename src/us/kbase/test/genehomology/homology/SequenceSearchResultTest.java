@@ -0,0 +1,37 @@
+package us.kbase.test.genehomology.homology;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import org.junit.Test;
+
+import us.kbase.genehomology.homology.AlignedSequence;
+import us.kbase.genehomology.homology.SequenceSearchResult;
+
+public class SequenceSearchResultTest {
+	
+	@Test
+	public void statistics() throws Exception {
+		// columns: match, positive mismatch (I/V), negative mismatch (W/A), 2 column gap in
+		// the target, gap in the query, X/X match, lower case positive match (k/R)
+		final SequenceSearchResult ssr = new SequenceSearchResult(
+				new AlignedSequence("q", 100, "MIWLL-Xk", 0, 7, true),
+				new AlignedSequence("t", 100, "MVA--GXR", 0, 6, true),
+				1e-10,
+				50);
+		
+		assertThat("incorrect length", ssr.getAlignmentLength(), is(8));
+		assertThat("incorrect matches", ssr.getMatches(), is(2));
+		assertThat("incorrect mismatches", ssr.getMismatches(), is(3));
+		assertThat("incorrect positives", ssr.getPositives(), is(3));
+		assertThat("incorrect gaps", ssr.getGapCount(), is(3));
+		assertThat("incorrect gap opens", ssr.getGapOpenCount(), is(2));
+		assertThat("incorrect percent ID", ssr.getPercentID(), is(0.25));
+		assertThat("incorrect percent positive", ssr.getPercentPositive(), is(0.375));
+		
+		final SequenceSearchResult copy = ssr.withQueryID("q2");
+		assertThat("incorrect query", copy.getQuery().getId(), is("q2"));
+		assertThat("incorrect matches", copy.getMatches(), is(2));
+		assertThat("incorrect positives", copy.getPositives(), is(3));
+	}
+}
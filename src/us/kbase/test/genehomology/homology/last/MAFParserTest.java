@@ -0,0 +1,162 @@
+package us.kbase.test.genehomology.homology.last;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import us.kbase.genehomology.homology.AlignedSequence;
+import us.kbase.genehomology.homology.GeneHomologyImplementationException;
+import us.kbase.genehomology.homology.ResultBatch;
+import us.kbase.genehomology.homology.SequenceSearchResult;
+import us.kbase.genehomology.homology.last.MAFParser;
+import us.kbase.test.genehomology.TestCommon;
+
+public class MAFParserTest {
+	
+	private static final String HEADER =
+			"# LAST version 900\n" +
+			"#\n" +
+			"# a=11 b=2 A=11 B=2 e=37 d=25 x=36 y=15 z=36 D=1e+06 E=44.9051\n" +
+			"# lambda=0.267004 K=0.0410581\n" +
+			"#\n";
+	
+	private static class Sink implements MAFParser.RecordSink {
+		
+		private final double minBitScore;
+		private final List<SequenceSearchResult> results = new ArrayList<>();
+		
+		private Sink(final double minBitScore) {
+			this.minBitScore = minBitScore;
+		}
+
+		@Override
+		public boolean isAccepted(final double eValue, final int bitScore) {
+			return bitScore >= minBitScore;
+		}
+
+		@Override
+		public void add(final SequenceSearchResult result) {
+			results.add(result);
+		}
+	}
+	
+	private List<SequenceSearchResult> parse(
+			final String maf,
+			final double eValueScale,
+			final int bufferSize,
+			final double minBitScore)
+			throws Exception {
+		final Sink sink = new Sink(minBitScore);
+		new MAFParser(new ByteArrayInputStream(maf.getBytes(StandardCharsets.UTF_8)), bufferSize)
+				.parse(eValueScale, sink);
+		return sink.results;
+	}
+	
+	@Test
+	public void parse() throws Exception {
+		final String maf = HEADER +
+				"a score=231 EG2=2.1e-25 E=1.7e-31\n" +
+				"s tgt1|\u03c8 12 8 + 300 MKV-LLAT\n" +
+				"s q1    0 7 - 50  MKVALL-T\n" +
+				"\n" +
+				"# Query sequences=1\r\n" +
+				"a score=40 EG2=32 E=0.5\r\n" +
+				"s tgt2 0 3 + 10 MKV\r\n" +
+				"s q1 4 3 + 50 MRV"; // no final line terminator
+		
+		final List<SequenceSearchResult> expected = Arrays.asList(
+				new SequenceSearchResult(
+						new AlignedSequence("q1", 50, "MKVALL-T", 0, 7, false),
+						new AlignedSequence("tgt1|\u03c8", 300, "MKV-LLAT", 12, 8, true),
+						1.7e-31 * 2,
+						94),
+				new SequenceSearchResult(
+						new AlignedSequence("q1", 50, "MRV", 4, 3, true),
+						new AlignedSequence("tgt2", 10, "MKV", 0, 3, true),
+						0.5 * 2,
+						20));
+		// small buffers exercise buffer compaction and growth
+		for (final int bufferSize: Arrays.asList(1, 7, 64, 65536)) {
+			assertThat("incorrect results", parse(maf, 2, bufferSize, 0), is(expected));
+		}
+		assertThat("incorrect results", parse(maf, 2, 16, 21), is(expected.subList(0, 1)));
+		
+		for (final int bufferSize: Arrays.asList(1, 7, 65536)) {
+			final ResultBatch.Builder b = ResultBatch.getBuilder();
+			new MAFParser(new ByteArrayInputStream(maf.getBytes(StandardCharsets.UTF_8)),
+					bufferSize).parse(2, new Sink(0), b);
+			assertThat("incorrect batch", b.build(), is(expected));
+		}
+	}
+	
+	@Test
+	public void parseNoRecords() throws Exception {
+		assertThat("incorrect results", parse(HEADER, 1, 16, 0),
+				is(new ArrayList<SequenceSearchResult>()));
+	}
+	
+	@Test
+	public void parseFail() throws Exception {
+		final String a = "a score=40 EG2=32 E=0.5\n";
+		final String s = "s tgt2 0 3 + 10 MKV\n";
+		failParse("# Query sequences=1\n", new GeneHomologyImplementationException(
+				"Couldn't find lambda and K in LAST output"));
+		failParse("# lambda=foo K=0.04\n", new GeneHomologyImplementationException(
+				"Bad record in LAST output at line 1: " +
+				"Improperly formatted K and lambda in LAST output line"));
+		failParse(HEADER + "b score=40 E=0.5\n", new GeneHomologyImplementationException(
+				"Bad record in LAST output at line 6: Expected an alignment line starting " +
+				"with 'a'"));
+		failParse(HEADER + "a EG2=32 E=0.5\n", new GeneHomologyImplementationException(
+				"Bad record in LAST output at line 6: Missing score= field in alignment line"));
+		failParse(HEADER + "a score=40 EG2=32\n", new GeneHomologyImplementationException(
+				"Bad record in LAST output at line 6: Missing E= field in alignment line"));
+		failParse(HEADER + "a score=4x E=0.5\n", new GeneHomologyImplementationException(
+				"Bad record in LAST output at line 6: Illegal score or E-value in alignment " +
+				"line"));
+		failParse(HEADER + "a score=40 E=.\n", new GeneHomologyImplementationException(
+				"Bad record in LAST output at line 6: Illegal score or E-value in alignment " +
+				"line"));
+		failParse(HEADER + "a score=40 E=e5\n", new GeneHomologyImplementationException(
+				"Bad record in LAST output at line 6: Illegal score or E-value in alignment " +
+				"line"));
+		failParse(HEADER + "a score=40 E=-.e5\n", new GeneHomologyImplementationException(
+				"Bad record in LAST output at line 6: Illegal score or E-value in alignment " +
+				"line"));
+		failParse(HEADER + "a score=40 E=1e\n", new GeneHomologyImplementationException(
+				"Bad record in LAST output at line 6: Illegal score or E-value in alignment " +
+				"line"));
+		failParse(HEADER + a + s, new GeneHomologyImplementationException(
+				"Bad record in LAST output at line 8: Unexpected end of output, expected a " +
+				"sequence line"));
+		failParse(HEADER + a + s + a, new GeneHomologyImplementationException(
+				"Bad record in LAST output at line 8: Expected a sequence line starting " +
+				"with 's'"));
+		failParse(HEADER + a + s + "s q1 4 3 + 50\n", new GeneHomologyImplementationException(
+				"Bad record in LAST output at line 8: Expected 6 fields after 's' in " +
+				"sequence line"));
+		failParse(HEADER + a + s + "s q1 4 3 * 50 MRV\n",
+				new GeneHomologyImplementationException(
+						"Bad record in LAST output at line 8: Illegal strand in sequence line"));
+		failParse(HEADER + a + s + "s q1 4 3x + 50 MRV\n",
+				new GeneHomologyImplementationException(
+						"Bad record in LAST output at line 8: Illegal number in sequence line"));
+	}
+	
+	private void failParse(final String maf, final Exception expected) {
+		try {
+			parse(maf, 1, 16, 0);
+			fail("expected exception");
+		} catch (Exception got) {
+			TestCommon.assertExceptionCorrect(got, expected);
+		}
+	}
+}
@@ -0,0 +1,132 @@
+package us.kbase.test.genehomology.homology.last;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import us.kbase.genehomology.homology.CancellationToken;
+import us.kbase.genehomology.homology.SearchCancelledException;
+import us.kbase.genehomology.homology.last.ThreadBudget;
+import us.kbase.test.genehomology.TestCommon;
+
+public class ThreadBudgetTest {
+
+	// acquires threads in a new thread, returning once the thread is waiting for the budget
+	private static CompletableFuture<Integer> acquireWaiting(
+			final ThreadBudget budget,
+			final int wanted,
+			final CancellationToken token)
+			throws Exception {
+		final CompletableFuture<Integer> ret = new CompletableFuture<>();
+		final Thread t = new Thread(() -> {
+			try {
+				ret.complete(budget.acquire(wanted, token));
+			} catch (Exception e) {
+				ret.completeExceptionally(e);
+			}
+		});
+		t.start();
+		final long end = System.nanoTime() + 10_000_000_000L;
+		while (t.getState() != Thread.State.WAITING) {
+			if (System.nanoTime() > end || ret.isDone()) {
+				fail("thread is not waiting for the budget");
+			}
+			Thread.sleep(10);
+		}
+		return ret;
+	}
+
+	@Test
+	public void acquireAndRelease() throws Exception {
+		final ThreadBudget budget = new ThreadBudget(8);
+		final CancellationToken token = new CancellationToken();
+		assertThat("incorrect threads", budget.acquire(3, token), is(3));
+		// a single caller may use all the remaining threads
+		assertThat("incorrect threads", budget.acquire(10, token), is(5));
+		assertThat("incorrect in use", budget.getInUse(), is(8));
+
+		budget.release(5);
+		assertThat("incorrect in use", budget.getInUse(), is(3));
+		// releasing more threads than are in use doesn't exceed the budget
+		budget.release(10);
+		assertThat("incorrect in use", budget.getInUse(), is(0));
+		assertThat("incorrect threads", budget.acquire(10, token), is(8));
+	}
+
+	@Test
+	public void waitForThreads() throws Exception {
+		final ThreadBudget budget = new ThreadBudget(4);
+		final CancellationToken token = new CancellationToken();
+		budget.acquire(4, token);
+		final CompletableFuture<Integer> t1 = acquireWaiting(budget, 4, token);
+		final CompletableFuture<Integer> t2 = acquireWaiting(budget, 4, token);
+
+		// the released threads are split between the waiting callers
+		budget.release(4);
+		assertThat("incorrect threads", t1.get(10, TimeUnit.SECONDS), is(2));
+		assertThat("incorrect threads", t2.get(10, TimeUnit.SECONDS), is(2));
+		assertThat("incorrect in use", budget.getInUse(), is(4));
+	}
+
+	@Test
+	public void cancel() throws Exception {
+		final ThreadBudget budget = new ThreadBudget(1);
+		final CancellationToken token = new CancellationToken();
+		budget.acquire(1, new CancellationToken());
+		final CompletableFuture<Integer> waiting = acquireWaiting(budget, 1, token);
+
+		token.cancel();
+		final SearchCancelledException expected = new SearchCancelledException(
+				"The search was cancelled while waiting for threads");
+		try {
+			waiting.get(10, TimeUnit.SECONDS);
+			fail("expected exception");
+		} catch (ExecutionException got) {
+			TestCommon.assertExceptionCorrect((Exception) got.getCause(), expected);
+		}
+		assertThat("incorrect in use", budget.getInUse(), is(1));
+
+		// a cancelled caller gets no threads even if threads are available
+		budget.release(1);
+		failAcquire(budget, 1, token, expected);
+		assertThat("incorrect in use", budget.getInUse(), is(0));
+	}
+
+	@Test
+	public void acquireFail() throws Exception {
+		final ThreadBudget budget = new ThreadBudget(1);
+		failAcquire(budget, 1, null, new NullPointerException("token"));
+		failAcquire(budget, 0, new CancellationToken(),
+				new IllegalArgumentException("wanted must be > 0"));
+	}
+
+	private void failAcquire(
+			final ThreadBudget budget,
+			final int wanted,
+			final CancellationToken token,
+			final Exception expected) {
+		try {
+			budget.acquire(wanted, token);
+			fail("expected exception");
+		} catch (Exception got) {
+			TestCommon.assertExceptionCorrect(got, expected);
+		}
+	}
+
+	@Test
+	public void constructFail() throws Exception {
+		try {
+			new ThreadBudget(0);
+			fail("expected exception");
+		} catch (Exception got) {
+			TestCommon.assertExceptionCorrect(got,
+					new IllegalArgumentException("budget must be > 0"));
+		}
+	}
+}
@@ -0,0 +1,292 @@
+package us.kbase.test.genehomology.search;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.BooleanSupplier;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.base.Optional;
+
+import us.kbase.genehomology.core.NamespaceID;
+import us.kbase.genehomology.homology.AlignedSequence;
+import us.kbase.genehomology.homology.SequenceSearchResult;
+import us.kbase.genehomology.search.DiskResultCache;
+import us.kbase.genehomology.search.SearchCacheKey;
+import us.kbase.genehomology.util.MetricsRegistry;
+
+public class DiskResultCacheTest {
+
+	private static final String LOG = "results.log";
+	private static final String LOCK = "results.lock";
+	private static final int FILE_HEADER_SIZE = 8;
+	private static final int RECORD_HEADER_SIZE = 16;
+
+	private static final List<SequenceSearchResult> RESULTS = Arrays.asList(
+			new SequenceSearchResult(
+					new AlignedSequence("q1", 10, "MK-VL", 0, 4, true),
+					new AlignedSequence("t1", 200, "MKLVL", 20, 5, false),
+					1.5e-20, 80),
+			new SequenceSearchResult(
+					new AlignedSequence("q1", 10, "KVL", 1, 3, true),
+					new AlignedSequence("t2", 30, "KIL", 3, 3, true),
+					0.3, 12));
+
+	private Path dir;
+
+	@Before
+	public void setUp() throws Exception {
+		dir = Files.createTempDirectory("DiskResultCacheTest");
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		FileUtils.deleteDirectory(dir.toFile());
+	}
+
+	private static SearchCacheKey key(final String hash) throws Exception {
+		return key(hash, 10000);
+	}
+
+	private static SearchCacheKey key(final String hash, final long modificationMillis)
+			throws Exception {
+		return new SearchCacheKey(new NamespaceID("ns"), Instant.ofEpochMilli(modificationMillis),
+				"params", hash);
+	}
+
+	private static void waitFor(final String message, final BooleanSupplier condition)
+			throws Exception {
+		final long end = System.nanoTime() + 10_000_000_000L;
+		while (!condition.getAsBoolean()) {
+			if (System.nanoTime() > end) {
+				fail("timed out waiting for " + message);
+			}
+			Thread.sleep(10);
+		}
+	}
+
+	private DiskResultCache load(final long maxBytes, final MetricsRegistry metrics)
+			throws Exception {
+		final DiskResultCache cache = new DiskResultCache(dir, maxBytes, metrics);
+		waitFor("cache load", () -> cache.isLoaded());
+		return cache;
+	}
+
+	private static void put(
+			final DiskResultCache cache,
+			final SearchCacheKey key,
+			final List<SequenceSearchResult> results)
+			throws Exception {
+		cache.put(key, results);
+		waitFor("cache write", () -> cache.get(key).isPresent());
+	}
+
+	private long recordSize(final long offset) throws IOException {
+		try (final FileChannel ch = FileChannel.open(dir.resolve(LOG), StandardOpenOption.READ)) {
+			final ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+			ch.read(header, offset);
+			header.flip();
+			header.getInt();
+			return RECORD_HEADER_SIZE + header.getInt() + header.getInt();
+		}
+	}
+
+	private void overwrite(final long offset, final byte... bytes) throws IOException {
+		try (final FileChannel ch = FileChannel.open(dir.resolve(LOG), StandardOpenOption.WRITE)) {
+			ch.write(ByteBuffer.wrap(bytes), offset);
+		}
+	}
+
+	@Test
+	public void putAndGet() throws Exception {
+		final MetricsRegistry metrics = new MetricsRegistry();
+		final DiskResultCache cache = load(100000, metrics);
+
+		assertThat("incorrect get", cache.get(key("h1")), is(Optional.absent()));
+		put(cache, key("h1"), RESULTS);
+
+		assertThat("incorrect get", cache.get(key("h1")), is(Optional.of(RESULTS)));
+		assertThat("incorrect get", cache.get(key("h2")), is(Optional.absent()));
+		assertThat("incorrect hits", metrics.getCount(DiskResultCache.METRIC_HITS), is(2L));
+		assertThat("incorrect entries", metrics.snapshot().get(DiskResultCache.METRIC_ENTRIES),
+				is(1));
+	}
+
+	@Test
+	public void replayLog() throws Exception {
+		final DiskResultCache cache1 = load(100000, new MetricsRegistry());
+		put(cache1, key("h1"), RESULTS);
+		put(cache1, key("h2"), RESULTS.subList(0, 1));
+
+		final DiskResultCache cache2 = load(100000, new MetricsRegistry());
+		assertThat("incorrect get", cache2.get(key("h1")), is(Optional.of(RESULTS)));
+		assertThat("incorrect get", cache2.get(key("h2")),
+				is(Optional.of(RESULTS.subList(0, 1))));
+
+		// records appended by another cache instance are indexed before each lookup
+		put(cache1, key("h3"), RESULTS);
+		assertThat("incorrect get", cache2.get(key("h3")), is(Optional.of(RESULTS)));
+	}
+
+	@Test
+	public void shutdown() throws Exception {
+		final DiskResultCache cache1 = load(100000, new MetricsRegistry());
+		// queued writes are completed before shutdown returns
+		cache1.put(key("h1"), RESULTS);
+		cache1.shutdown();
+		assertThat("incorrect get", cache1.get(key("h1")), is(Optional.absent()));
+		cache1.put(key("h2"), RESULTS);
+
+		final DiskResultCache cache2 = load(100000, new MetricsRegistry());
+		assertThat("incorrect get", cache2.get(key("h1")), is(Optional.of(RESULTS)));
+		assertThat("incorrect get", cache2.get(key("h2")), is(Optional.absent()));
+	}
+
+	@Test
+	public void outdatedNamespaceVersion() throws Exception {
+		final DiskResultCache cache = load(100000, new MetricsRegistry());
+		put(cache, key("h1", 10000), RESULTS);
+		put(cache, key("h2", 20000), RESULTS);
+
+		assertThat("incorrect get", cache.get(key("h1", 10000)), is(Optional.absent()));
+
+		cache.put(key("h3", 10000), RESULTS);
+		put(cache, key("h4", 20000), RESULTS);
+		assertThat("incorrect get", cache.get(key("h3", 10000)), is(Optional.absent()));
+
+		final DiskResultCache cache2 = load(100000, new MetricsRegistry());
+		assertThat("incorrect get", cache2.get(key("h1", 10000)), is(Optional.absent()));
+		assertThat("incorrect get", cache2.get(key("h2", 20000)), is(Optional.of(RESULTS)));
+	}
+
+	@Test
+	public void evictLeastRecentlyUsed() throws Exception {
+		put(load(100000, new MetricsRegistry()), key("h0"), RESULTS);
+		final long record = recordSize(FILE_HEADER_SIZE);
+		FileUtils.cleanDirectory(dir.toFile());
+
+		// compacts when the log is larger than 6 records, keeping 2 records
+		final MetricsRegistry metrics = new MetricsRegistry();
+		final DiskResultCache cache = load(FILE_HEADER_SIZE + 6 * record, metrics);
+		for (int i = 1; i < 8; i++) {
+			put(cache, key("h" + i), RESULTS);
+		}
+		assertThat("incorrect compactions",
+				metrics.getCount(DiskResultCache.METRIC_COMPACTIONS), is(0L));
+		cache.get(key("h1"));
+		cache.put(key("h8"), RESULTS);
+		waitFor("compaction", () -> metrics.getCount(DiskResultCache.METRIC_COMPACTIONS) == 1);
+
+		assertThat("incorrect size", Files.size(dir.resolve(LOG)),
+				is(FILE_HEADER_SIZE + 2 * record));
+		assertThat("incorrect get", cache.get(key("h1")), is(Optional.of(RESULTS)));
+		assertThat("incorrect get", cache.get(key("h8")), is(Optional.of(RESULTS)));
+		for (int i = 2; i < 8; i++) {
+			assertThat("incorrect get " + i, cache.get(key("h" + i)), is(Optional.absent()));
+		}
+		final DiskResultCache cache2 = load(FILE_HEADER_SIZE + 6 * record,
+				new MetricsRegistry());
+		assertThat("incorrect get", cache2.get(key("h1")), is(Optional.of(RESULTS)));
+		assertThat("incorrect get", cache2.get(key("h2")), is(Optional.absent()));
+	}
+
+	@Test
+	public void corruptRecordData() throws Exception {
+		final DiskResultCache cache1 = load(100000, new MetricsRegistry());
+		put(cache1, key("h1"), RESULTS);
+		put(cache1, key("h2"), RESULTS);
+		final long record = recordSize(FILE_HEADER_SIZE);
+		// the last data byte of the first record fails the CRC check
+		overwrite(FILE_HEADER_SIZE + record - 1, (byte) 0xFF);
+
+		final DiskResultCache cache2 = load(100000, new MetricsRegistry());
+		assertThat("incorrect get", cache2.get(key("h1")), is(Optional.absent()));
+		assertThat("incorrect get", cache2.get(key("h2")), is(Optional.of(RESULTS)));
+	}
+
+	@Test
+	public void corruptRecordHeader() throws Exception {
+		final DiskResultCache cache1 = load(100000, new MetricsRegistry());
+		put(cache1, key("h1"), RESULTS);
+		put(cache1, key("h2"), RESULTS);
+		put(cache1, key("h3"), RESULTS);
+		final long record = recordSize(FILE_HEADER_SIZE);
+		// a bad magic number ignores the rest of the log
+		overwrite(FILE_HEADER_SIZE + record, (byte) 0);
+
+		final DiskResultCache cache2 = load(100000, new MetricsRegistry());
+		assertThat("incorrect get", cache2.get(key("h1")), is(Optional.of(RESULTS)));
+		assertThat("incorrect get", cache2.get(key("h2")), is(Optional.absent()));
+		assertThat("incorrect get", cache2.get(key("h3")), is(Optional.absent()));
+	}
+
+	@Test
+	public void corruptFileHeader() throws Exception {
+		final DiskResultCache cache1 = load(100000, new MetricsRegistry());
+		put(cache1, key("h1"), RESULTS);
+		overwrite(0, (byte) 0);
+
+		final DiskResultCache cache2 = load(100000, new MetricsRegistry());
+		assertThat("incorrect size", Files.size(dir.resolve(LOG)), is((long) FILE_HEADER_SIZE));
+		assertThat("incorrect get", cache2.get(key("h1")), is(Optional.absent()));
+		put(cache2, key("h1"), RESULTS);
+	}
+
+	@Test
+	public void writeWaitsForFileLock() throws Exception {
+		final DiskResultCache cache = load(100000, new MetricsRegistry());
+		final SearchCacheKey key = key("h1");
+		// file locks are held per process, so the lock must be held by another JVM
+		final Process locker = new ProcessBuilder(
+				Paths.get(System.getProperty("java.home"), "bin", "java").toString(),
+				"-cp", System.getProperty("java.class.path"),
+				LockHolder.class.getName(), dir.resolve(LOCK).toString())
+				.redirectErrorStream(true)
+				.start();
+		try {
+			assertThat("lock holder failed to start", locker.getInputStream().read(),
+					is((int) 'L'));
+			cache.put(key, RESULTS);
+			Thread.sleep(500);
+			assertThat("incorrect get", cache.get(key), is(Optional.absent()));
+
+			try (final OutputStream os = locker.getOutputStream()) {
+				os.write('\n');
+			}
+			waitFor("cache write", () -> cache.get(key).isPresent());
+		} finally {
+			locker.destroy();
+			locker.waitFor();
+		}
+	}
+
+	/** Holds the lock on a file until a line is read from standard input. */
+	public static class LockHolder {
+
+		public static void main(final String[] args) throws Exception {
+			try (final FileChannel ch = FileChannel.open(Paths.get(args[0]),
+					StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+				ch.lock();
+				System.out.write('L');
+				System.out.flush();
+				System.in.read();
+			}
+		}
+	}
+}
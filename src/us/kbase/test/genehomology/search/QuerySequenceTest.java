@@ -0,0 +1,86 @@
+package us.kbase.test.genehomology.search;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import org.junit.Test;
+
+import us.kbase.genehomology.core.exceptions.IllegalParameterException;
+import us.kbase.genehomology.search.QuerySequence;
+import us.kbase.test.genehomology.TestCommon;
+
+public class QuerySequenceTest {
+
+	private static List<QuerySequence> parse(final String fasta, final int max)
+			throws Exception {
+		return QuerySequence.parseFASTA(new ByteArrayInputStream(
+				fasta.getBytes(StandardCharsets.UTF_8)), max);
+	}
+
+	@Test
+	public void parse() throws Exception {
+		final List<QuerySequence> seqs = parse(
+				"; comment\n\n>q1 some description\nMKV\nll*\n;comment\n>q2\nmkvLL*\n", 2);
+
+		assertThat("incorrect count", seqs.size(), is(2));
+		assertThat("incorrect id", seqs.get(0).getID(), is("q1"));
+		assertThat("incorrect id", seqs.get(1).getID(), is("q2"));
+		assertThat("incorrect length", seqs.get(0).getLength(), is(6));
+		assertThat("incorrect hash", seqs.get(0).getResidueHash(),
+				is(seqs.get(1).getResidueHash()));
+		assertThat("incorrect start", seqs.get(0).getStart(), is(11L));
+		assertThat("incorrect end", seqs.get(0).getEnd(), is(49L));
+		assertThat("incorrect start", seqs.get(1).getStart(), is(49L));
+		assertThat("incorrect end", seqs.get(1).getEnd(), is(60L));
+	}
+
+	@Test
+	public void parseOffsets() throws Exception {
+		// multibyte characters and \r\n line endings
+		final List<QuerySequence> seqs = parse(">q1 \u00e9t\u00e9\r\nMKV\r\n>q2\r\nLL", 2);
+
+		assertThat("incorrect count", seqs.size(), is(2));
+		assertThat("incorrect id", seqs.get(0).getID(), is("q1"));
+		assertThat("incorrect length", seqs.get(0).getLength(), is(3));
+		assertThat("incorrect start", seqs.get(0).getStart(), is(0L));
+		assertThat("incorrect end", seqs.get(0).getEnd(), is(16L));
+		assertThat("incorrect start", seqs.get(1).getStart(), is(16L));
+		assertThat("incorrect end", seqs.get(1).getEnd(), is(23L));
+	}
+
+	@Test
+	public void parseStopsAfterMax() throws Exception {
+		final List<QuerySequence> seqs = parse(">q1\nM\n>q2\nK\n>q3\nV\n>q4\n", 2);
+
+		assertThat("incorrect count", seqs.size(), is(3));
+		assertThat("incorrect id", seqs.get(2).getID(), is("q3"));
+	}
+
+	@Test
+	public void parseFail() throws Exception {
+		failParse("", new IllegalParameterException("Empty input FASTA file"));
+		failParse("\n; comment\n", new IllegalParameterException("Empty input FASTA file"));
+		failParse("MKV\n>q1\nMKV\n", new IllegalParameterException(
+				"Invalid input FASTA: line 1: sequence data before the first header line"));
+		failParse(">q1\nMKV\n>  \nMKV\n", new IllegalParameterException(
+				"Invalid input FASTA: line 3: missing sequence ID"));
+		failParse(">q1\nMKV\nMK1V\n", new IllegalParameterException(
+				"Invalid input FASTA: line 3: illegal character '1'"));
+		failParse(">q1\nMKV\n>q2\n\n>q3\nMKV", new IllegalParameterException(
+				"Invalid input FASTA: line 3: no sequence for ID q2"));
+	}
+
+	private void failParse(final String fasta, final Exception expected) {
+		try {
+			parse(fasta, 10);
+			fail("expected exception");
+		} catch (Exception got) {
+			TestCommon.assertExceptionCorrect(got, expected);
+		}
+	}
+}
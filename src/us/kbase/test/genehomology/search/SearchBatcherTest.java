@@ -0,0 +1,301 @@
+package us.kbase.test.genehomology.search;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import us.kbase.genehomology.core.exceptions.TooManyRequestsException;
+import us.kbase.genehomology.homology.AlignedSequence;
+import us.kbase.genehomology.homology.CancellationToken;
+import us.kbase.genehomology.homology.GeneHomologyDBLocation;
+import us.kbase.genehomology.homology.GeneHomologyDBName;
+import us.kbase.genehomology.homology.QueryInput;
+import us.kbase.genehomology.homology.ResultBatch;
+import us.kbase.genehomology.homology.SearchCancelledException;
+import us.kbase.genehomology.homology.SearchParameters;
+import us.kbase.genehomology.homology.SequenceSearchResult;
+import us.kbase.genehomology.homology.last.LAST;
+import us.kbase.genehomology.search.SearchBatcher;
+import us.kbase.genehomology.search.SearchScheduler;
+import us.kbase.genehomology.search.SearchScheduler.SearchPermit;
+import us.kbase.genehomology.util.MetricsRegistry;
+import us.kbase.test.genehomology.TestCommon;
+
+public class SearchBatcherTest {
+
+	private static final SearchParameters PARAMS = SearchParameters.getBuilder().build();
+
+	private Path db;
+	private GeneHomologyDBName dbName;
+	private GeneHomologyDBLocation location;
+	private LAST last;
+	private ExecutorService executor;
+	// the FASTA input and cancellation token of each LAST run
+	private final List<String> searched = Collections.synchronizedList(new ArrayList<>());
+	private final List<CancellationToken> tokens =
+			Collections.synchronizedList(new ArrayList<>());
+	// counted down when a LAST run starts, after which the run waits for the release latch
+	private CountDownLatch started;
+	private CountDownLatch release;
+
+	@Before
+	public void setUp() throws Exception {
+		db = Files.createTempFile("SearchBatcherTest", ".prj");
+		dbName = new GeneHomologyDBName("db");
+		location = new GeneHomologyDBLocation(db);
+		started = new CountDownLatch(0);
+		release = new CountDownLatch(0);
+		last = mock(LAST.class);
+		when(last.search(any(), any(), any(QueryInput.class), any(), any())).thenAnswer(
+				inv -> runSearch(inv.getArgument(2), inv.getArgument(4)));
+		executor = Executors.newCachedThreadPool();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		release.countDown();
+		executor.shutdownNow();
+		Files.delete(db);
+	}
+
+	/* Returns one result per query, with the sequence as the target ID. If the run is cancelled
+	 * while waiting for the release latch, throws the same exception as LAST.
+	 */
+	private ResultBatch runSearch(final QueryInput input, final CancellationToken token)
+			throws Exception {
+		final String fasta;
+		try (final InputStream is = input.openStream()) {
+			fasta = IOUtils.toString(is, StandardCharsets.UTF_8);
+		}
+		searched.add(fasta);
+		tokens.add(token);
+		started.countDown();
+		token.addListener(() -> release.countDown());
+		release.await();
+		token.throwIfCancelled();
+		final List<SequenceSearchResult> res = new ArrayList<>();
+		for (final String record: fasta.substring(1).split("\n>")) {
+			final String[] lines = record.split("\n", 2);
+			res.add(new SequenceSearchResult(
+					new AlignedSequence(lines[0], 3, "MKV", 0, 3, true),
+					new AlignedSequence(lines[1].replace("\n", ""), 10, "MKV", 2, 3, true),
+					1e-5, 20));
+		}
+		return ResultBatch.copyOf(res);
+	}
+
+	private SearchBatcher batcher(
+			final SearchScheduler scheduler,
+			final int windowMS,
+			final int maxBatchSize) {
+		return new SearchBatcher(last, scheduler, windowMS, maxBatchSize, new MetricsRegistry());
+	}
+
+	private SearchBatcher batcher(final int windowMS, final int maxBatchSize) {
+		return batcher(new SearchScheduler(4, 10, 30, new MetricsRegistry()), windowMS,
+				maxBatchSize);
+	}
+
+	private Future<ResultBatch> search(
+			final SearchBatcher batcher,
+			final String fasta,
+			final CancellationToken token) {
+		return executor.submit(() -> batcher.search(dbName, location,
+				QueryInput.fromBytes(fasta.getBytes(StandardCharsets.UTF_8)), PARAMS, token));
+	}
+
+	private Future<ResultBatch> search(final SearchBatcher batcher, final String fasta) {
+		return search(batcher, fasta, new CancellationToken());
+	}
+
+	private static void assertResult(
+			final Future<ResultBatch> result,
+			final String queryID,
+			final String sequence)
+			throws Exception {
+		final ResultBatch res = result.get(10, TimeUnit.SECONDS);
+		assertThat("incorrect result count", res.size(), is(1));
+		assertThat("incorrect query ID", res.getQueryID(0), is(queryID));
+		assertThat("incorrect target ID", res.getTargetID(0), is(sequence));
+	}
+
+	private static void assertFails(final Future<ResultBatch> result, final Exception expected)
+			throws Exception {
+		try {
+			result.get(10, TimeUnit.SECONDS);
+			fail("expected exception");
+		} catch (ExecutionException got) {
+			TestCommon.assertExceptionCorrect((Exception) got.getCause(), expected);
+		}
+	}
+
+	// the IDs of the queries in a batched FASTA input
+	private static List<String> queryIDs(final String fasta) {
+		final List<String> ret = new ArrayList<>();
+		for (final String line: fasta.split("\n")) {
+			if (line.startsWith(">")) {
+				ret.add(line.substring(1));
+			}
+		}
+		return ret;
+	}
+
+	@Test
+	public void batchBySize() throws Exception {
+		final SearchBatcher batcher = batcher(10000, 3);
+		final long start = System.nanoTime();
+		final Future<ResultBatch> r1 = search(batcher, ">q1 some description\nMKV\n");
+		final Future<ResultBatch> r2 = search(batcher, ">q2\nLLL\n");
+		final Future<ResultBatch> r3 = search(batcher, ">q3\nKK\nK\n");
+
+		assertResult(r1, "q1", "MKV");
+		assertResult(r2, "q2", "LLL");
+		assertResult(r3, "q3", "KKK");
+		assertThat("batch waited for window", System.nanoTime() - start <
+				TimeUnit.SECONDS.toNanos(5), is(true));
+		assertThat("incorrect search count", searched.size(), is(1));
+		final List<String> ids = queryIDs(searched.get(0));
+		assertThat("incorrect query count", ids.size(), is(3));
+		assertThat("query IDs not renamed", ids.stream().anyMatch(id -> id.matches("q\\d")),
+				is(false));
+		assertThat("query IDs not unique", ids.stream().distinct().count(), is(3L));
+	}
+
+	@Test
+	public void batchByWindow() throws Exception {
+		final SearchBatcher batcher = batcher(500, 10);
+		final long start = System.nanoTime();
+		final Future<ResultBatch> r1 = search(batcher, ">q1\nMKV\n");
+		final Future<ResultBatch> r2 = search(batcher, ">q2\nLLL\n");
+
+		assertResult(r1, "q1", "MKV");
+		assertResult(r2, "q2", "LLL");
+		assertThat("batch didn't wait for window", System.nanoTime() - start >=
+				TimeUnit.MILLISECONDS.toNanos(500), is(true));
+		assertThat("incorrect search count", searched.size(), is(1));
+		assertThat("incorrect query count", queryIDs(searched.get(0)).size(), is(2));
+
+		// a later search starts a new batch
+		assertResult(search(batcher, ">q1\nWWW\n"), "q1", "WWW");
+		assertThat("incorrect search count", searched.size(), is(2));
+		assertThat("incorrect query count", queryIDs(searched.get(1)).size(), is(1));
+	}
+
+	@Test
+	public void batchingDisabled() throws Exception {
+		final SearchBatcher batcher = batcher(0, 10);
+		final String fasta = ">q1\nMKV\n";
+		assertResult(search(batcher, fasta), "q1", "MKV");
+		assertThat("incorrect searches", searched, is(Arrays.asList(fasta)));
+	}
+
+	@Test
+	public void cancelBeforeBatchRuns() throws Exception {
+		final SearchBatcher batcher = batcher(500, 10);
+		final CancellationToken token = new CancellationToken();
+		final Future<ResultBatch> r1 = search(batcher, ">q1\nMKV\n");
+		Thread.sleep(100);
+		final Future<ResultBatch> r2 = search(batcher, ">q2\nLLL\n", token);
+		Thread.sleep(100);
+		token.cancel();
+
+		assertFails(r2, new SearchCancelledException("The search was cancelled"));
+		assertResult(r1, "q1", "MKV");
+		assertThat("incorrect search count", searched.size(), is(1));
+		assertThat("incorrect query count", queryIDs(searched.get(0)).size(), is(1));
+	}
+
+	@Test
+	public void cancelAllCancelsBatch() throws Exception {
+		started = new CountDownLatch(1);
+		release = new CountDownLatch(1);
+		final SearchBatcher batcher = batcher(10000, 2);
+		final CancellationToken token1 = new CancellationToken();
+		final CancellationToken token2 = new CancellationToken();
+		// the first search runs the batch, and so doesn't return until the batch completes
+		final Future<ResultBatch> r1 = search(batcher, ">q1\nMKV\n", token1);
+		Thread.sleep(100);
+		final Future<ResultBatch> r2 = search(batcher, ">q2\nLLL\n", token2);
+		assertThat("batch didn't start", started.await(10, TimeUnit.SECONDS), is(true));
+
+		token2.cancel();
+		assertFails(r2, new SearchCancelledException("The search was cancelled"));
+		assertThat("batch cancelled", tokens.get(0).isCancelled(), is(false));
+
+		token1.cancel();
+		assertThat("batch not cancelled", tokens.get(0).isCancelled(), is(true));
+		assertFails(r1, new SearchCancelledException("The search was cancelled"));
+		assertThat("incorrect query count", queryIDs(searched.get(0)).size(), is(2));
+	}
+
+	@Test
+	public void rejectBatch() throws Exception {
+		final SearchScheduler scheduler = new SearchScheduler(1, 0, 30, new MetricsRegistry());
+		final SearchBatcher batcher = batcher(scheduler, 10000, 2);
+		final SearchPermit permit = scheduler.acquire(new CancellationToken());
+		try {
+			final Future<ResultBatch> r1 = search(batcher, ">q1\nMKV\n");
+			final Future<ResultBatch> r2 = search(batcher, ">q2\nLLL\n");
+
+			final TooManyRequestsException expected = new TooManyRequestsException(
+					"The service is busy, search queue is full", 1);
+			assertFails(r1, expected);
+			assertFails(r2, expected);
+			assertThat("incorrect search count", searched.size(), is(0));
+		} finally {
+			permit.close();
+		}
+		assertResult(search(batcher(scheduler, 0, 1), ">q1\nMKV\n"), "q1", "MKV");
+	}
+
+	@Test
+	public void constructFail() throws Exception {
+		final SearchScheduler s = new SearchScheduler(1, 0, 30, new MetricsRegistry());
+		final MetricsRegistry m = new MetricsRegistry();
+		failConstruct(null, s, 0, 1, m, new NullPointerException("last"));
+		failConstruct(last, null, 0, 1, m, new NullPointerException("scheduler"));
+		failConstruct(last, s, 0, 1, null, new NullPointerException("metrics"));
+		failConstruct(last, s, -1, 1, m,
+				new IllegalArgumentException("windowMS must be >= 0"));
+		failConstruct(last, s, 0, 0, m,
+				new IllegalArgumentException("maxBatchSize must be > 0"));
+	}
+
+	private void failConstruct(
+			final LAST last,
+			final SearchScheduler scheduler,
+			final int windowMS,
+			final int maxBatchSize,
+			final MetricsRegistry metrics,
+			final Exception expected) {
+		try {
+			new SearchBatcher(last, scheduler, windowMS, maxBatchSize, metrics);
+			fail("expected exception");
+		} catch (Exception got) {
+			TestCommon.assertExceptionCorrect(got, expected);
+		}
+	}
+}
@@ -0,0 +1,248 @@
+package us.kbase.test.genehomology.search;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.BooleanSupplier;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.base.Optional;
+
+import us.kbase.genehomology.core.NamespaceID;
+import us.kbase.genehomology.homology.AlignedSequence;
+import us.kbase.genehomology.homology.ResultBatch;
+import us.kbase.genehomology.homology.SequenceSearchResult;
+import us.kbase.genehomology.search.DiskResultCache;
+import us.kbase.genehomology.search.SearchCacheKey;
+import us.kbase.genehomology.search.SearchResultCache;
+import us.kbase.genehomology.util.MetricsRegistry;
+import us.kbase.test.genehomology.TestCommon;
+
+public class SearchResultCacheTest {
+
+	private static final List<SequenceSearchResult> RESULTS = Arrays.asList(
+			new SequenceSearchResult(
+					new AlignedSequence("q1", 10, "MK-VL", 0, 4, true),
+					new AlignedSequence("t1", 200, "MKLVL", 20, 5, false),
+					1.5e-20, 80),
+			new SequenceSearchResult(
+					new AlignedSequence("q1", 10, "KVL", 1, 3, true),
+					new AlignedSequence("t2", 30, "KIL", 3, 3, true),
+					0.3, 12));
+	private static final List<SequenceSearchResult> RESULTS1 = RESULTS.subList(0, 1);
+
+	private Path dir;
+
+	@Before
+	public void setUp() throws Exception {
+		dir = Files.createTempDirectory("SearchResultCacheTest");
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		FileUtils.deleteDirectory(dir.toFile());
+	}
+
+	private static SearchCacheKey key(final String ns, final long modificationMillis,
+			final String hash)
+			throws Exception {
+		return new SearchCacheKey(new NamespaceID(ns), Instant.ofEpochMilli(modificationMillis),
+				"params", hash);
+	}
+
+	private static SearchCacheKey key(final String hash) throws Exception {
+		return key("ns", 10000, hash);
+	}
+
+	// the estimated size of cached results
+	private static long size(final List<SequenceSearchResult> results) {
+		return ResultBatch.copyOf(results).compact().getEstimatedSize();
+	}
+
+	private static Object metric(final MetricsRegistry metrics, final String name) {
+		return metrics.snapshot().get(name);
+	}
+
+	private static void waitFor(final String message, final BooleanSupplier condition)
+			throws Exception {
+		final long end = System.nanoTime() + 10_000_000_000L;
+		while (!condition.getAsBoolean()) {
+			if (System.nanoTime() > end) {
+				fail("timed out waiting for " + message);
+			}
+			Thread.sleep(10);
+		}
+	}
+
+	@Test
+	public void putAndGet() throws Exception {
+		final MetricsRegistry metrics = new MetricsRegistry();
+		final SearchResultCache cache = new SearchResultCache(
+				100000, Optional.absent(), metrics);
+
+		assertThat("incorrect get", cache.get(key("h1"), "q1"), is(Optional.absent()));
+		cache.put(key("h1"), RESULTS);
+		assertThat("incorrect get", cache.get(key("h1"), "q1").get(), is(RESULTS));
+		// the query IDs are replaced
+		final ResultBatch res = cache.get(key("h1"), "other").get();
+		assertThat("incorrect query ID", res.getQueryID(0), is("other"));
+		assertThat("incorrect query ID", res.getQueryID(1), is("other"));
+		assertThat("incorrect get", cache.get(key("h2"), "q1"), is(Optional.absent()));
+
+		assertThat("incorrect hits", metric(metrics, SearchResultCache.METRIC_HITS), is(2L));
+		assertThat("incorrect misses", metric(metrics, SearchResultCache.METRIC_MISSES), is(2L));
+		assertThat("incorrect hit rate", metric(metrics, SearchResultCache.METRIC_HIT_RATE),
+				is(0.5));
+		assertThat("incorrect entries", metric(metrics, SearchResultCache.METRIC_ENTRIES),
+				is(1L));
+		assertThat("incorrect bytes", metric(metrics, SearchResultCache.METRIC_BYTES),
+				is(size(RESULTS)));
+		assertThat("incorrect evictions", metrics.getCount(SearchResultCache.METRIC_EVICTIONS),
+				is(0L));
+	}
+
+	@Test
+	public void replace() throws Exception {
+		final MetricsRegistry metrics = new MetricsRegistry();
+		final SearchResultCache cache = new SearchResultCache(
+				100000, Optional.absent(), metrics);
+		cache.put(key("h1"), RESULTS);
+		cache.put(key("h2"), RESULTS);
+		cache.put(key("h1"), RESULTS1);
+
+		assertThat("incorrect get", cache.get(key("h1"), "q1").get(), is(RESULTS1));
+		assertThat("incorrect bytes", cache.getBytes(), is(size(RESULTS) + size(RESULTS1)));
+		assertThat("incorrect entries", metric(metrics, SearchResultCache.METRIC_ENTRIES),
+				is(2L));
+		// replacing results isn't an eviction
+		assertThat("incorrect evictions", metrics.getCount(SearchResultCache.METRIC_EVICTIONS),
+				is(0L));
+	}
+
+	@Test
+	public void evictBySize() throws Exception {
+		final MetricsRegistry metrics = new MetricsRegistry();
+		final long maxBytes = 100 * size(RESULTS);
+		final SearchResultCache cache = new SearchResultCache(
+				maxBytes, Optional.absent(), metrics);
+		for (int i = 0; i < 200; i++) {
+			cache.put(key("h" + i), RESULTS);
+		}
+
+		final long entries = (long) metric(metrics, SearchResultCache.METRIC_ENTRIES);
+		assertThat("cache not bounded " + entries, entries <= 100, is(true));
+		assertThat("incorrect bytes", cache.getBytes(), is(entries * size(RESULTS)));
+		assertThat("incorrect evictions", metrics.getCount(SearchResultCache.METRIC_EVICTIONS),
+				is(200 - entries));
+		// the most recently added results are kept
+		assertThat("incorrect get", cache.get(key("h199"), "q1").get(), is(RESULTS));
+
+		// results larger than the cache are evicted immediately
+		final MetricsRegistry smallMetrics = new MetricsRegistry();
+		final SearchResultCache small = new SearchResultCache(
+				size(RESULTS) - 1, Optional.absent(), smallMetrics);
+		small.put(key("h1"), RESULTS);
+		assertThat("incorrect get", small.get(key("h1"), "q1"), is(Optional.absent()));
+		assertThat("incorrect bytes", small.getBytes(), is(0L));
+		assertThat("incorrect evictions",
+				smallMetrics.getCount(SearchResultCache.METRIC_EVICTIONS), is(1L));
+	}
+
+	@Test
+	public void newNamespaceVersion() throws Exception {
+		final MetricsRegistry metrics = new MetricsRegistry();
+		final SearchResultCache cache = new SearchResultCache(
+				100000, Optional.absent(), metrics);
+		cache.put(key("ns", 1000, "h1"), RESULTS);
+		cache.put(key("ns", 1000, "h2"), RESULTS);
+		cache.put(key("ns2", 1000, "h1"), RESULTS1);
+
+		// a lookup with a newer version of the namespace drops the older results
+		assertThat("incorrect get", cache.get(key("ns", 2000, "h1"), "q1"),
+				is(Optional.absent()));
+		assertThat("incorrect entries", metric(metrics, SearchResultCache.METRIC_ENTRIES),
+				is(1L));
+		assertThat("incorrect bytes", cache.getBytes(), is(size(RESULTS1)));
+		assertThat("incorrect get", cache.get(key("ns2", 1000, "h1"), "q1").get(),
+				is(RESULTS1));
+		// dropping outdated results isn't an eviction
+		assertThat("incorrect evictions", metrics.getCount(SearchResultCache.METRIC_EVICTIONS),
+				is(0L));
+
+		// results for the outdated version are ignored
+		cache.put(key("ns", 1000, "h1"), RESULTS);
+		assertThat("incorrect get", cache.get(key("ns", 1000, "h1"), "q1"),
+				is(Optional.absent()));
+		assertThat("incorrect entries", metric(metrics, SearchResultCache.METRIC_ENTRIES),
+				is(1L));
+
+		cache.put(key("ns", 2000, "h1"), RESULTS);
+		assertThat("incorrect get", cache.get(key("ns", 2000, "h1"), "q1").get(), is(RESULTS));
+	}
+
+	@Test
+	public void diskCache() throws Exception {
+		final DiskResultCache disk = new DiskResultCache(dir, 100000, new MetricsRegistry());
+		waitFor("cache load", () -> disk.isLoaded());
+		try {
+			final SearchResultCache cache1 = new SearchResultCache(
+					100000, Optional.of(disk), new MetricsRegistry());
+			final SearchCacheKey key = key("h1");
+			cache1.put(key, RESULTS);
+			waitFor("cache write", () -> disk.get(key).isPresent());
+
+			// results not in memory are read from disk and then kept in memory
+			final MetricsRegistry metrics = new MetricsRegistry();
+			final SearchResultCache cache2 = new SearchResultCache(
+					100000, Optional.of(disk), metrics);
+			assertThat("incorrect get", cache2.get(key("h1"), "q1").get(), is(RESULTS));
+			assertThat("incorrect bytes", cache2.getBytes(), is(size(RESULTS)));
+			assertThat("incorrect get", cache2.get(key("h1"), "q1").get(), is(RESULTS));
+			assertThat("incorrect get", cache2.get(key("h2"), "q1"), is(Optional.absent()));
+			assertThat("incorrect hits", metric(metrics, SearchResultCache.METRIC_HITS),
+					is(1L));
+			assertThat("incorrect misses", metric(metrics, SearchResultCache.METRIC_MISSES),
+					is(2L));
+
+			// the disk cache is used when the in-memory cache is disabled
+			final SearchResultCache cache3 = new SearchResultCache(
+					0, Optional.of(disk), new MetricsRegistry());
+			assertThat("incorrect get", cache3.get(key("h1"), "q1").get(), is(RESULTS));
+			assertThat("incorrect bytes", cache3.getBytes(), is(0L));
+		} finally {
+			disk.shutdown();
+		}
+	}
+
+	@Test
+	public void constructFail() throws Exception {
+		final MetricsRegistry m = new MetricsRegistry();
+		failConstruct(0, null, m, new NullPointerException("disk"));
+		failConstruct(0, Optional.absent(), null, new NullPointerException("metrics"));
+		failConstruct(-1, Optional.absent(), m,
+				new IllegalArgumentException("maxBytes must be >= 0"));
+	}
+
+	private void failConstruct(
+			final long maxBytes,
+			final Optional<DiskResultCache> disk,
+			final MetricsRegistry metrics,
+			final Exception expected) {
+		try {
+			new SearchResultCache(maxBytes, disk, metrics);
+			fail("expected exception");
+		} catch (Exception got) {
+			TestCommon.assertExceptionCorrect(got, expected);
+		}
+	}
+}
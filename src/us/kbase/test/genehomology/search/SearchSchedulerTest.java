@@ -0,0 +1,249 @@
+package us.kbase.test.genehomology.search;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import us.kbase.genehomology.core.exceptions.TooManyRequestsException;
+import us.kbase.genehomology.homology.CancellationToken;
+import us.kbase.genehomology.homology.SearchCancelledException;
+import us.kbase.genehomology.search.SearchScheduler;
+import us.kbase.genehomology.search.SearchScheduler.SearchPermit;
+import us.kbase.genehomology.util.MetricsRegistry;
+import us.kbase.test.genehomology.TestCommon;
+
+public class SearchSchedulerTest {
+
+	private ExecutorService executor;
+
+	@Before
+	public void setUp() {
+		executor = Executors.newCachedThreadPool();
+	}
+
+	@After
+	public void tearDown() {
+		executor.shutdownNow();
+	}
+
+	private static void waitFor(final String message, final BooleanSupplier condition)
+			throws Exception {
+		final long end = System.nanoTime() + 10_000_000_000L;
+		while (!condition.getAsBoolean()) {
+			if (System.nanoTime() > end) {
+				fail("timed out waiting for " + message);
+			}
+			Thread.sleep(10);
+		}
+	}
+
+	private static Object metric(final MetricsRegistry metrics, final String name) {
+		return metrics.snapshot().get(name);
+	}
+
+	private Future<SearchPermit> acquire(
+			final SearchScheduler scheduler,
+			final CancellationToken token) {
+		return executor.submit(() -> scheduler.acquire(token));
+	}
+
+	private static void failAcquire(
+			final SearchScheduler scheduler,
+			final CancellationToken token,
+			final Exception expected) {
+		try {
+			scheduler.acquire(token);
+			fail("expected exception");
+		} catch (Exception got) {
+			TestCommon.assertExceptionCorrect(got, expected);
+		}
+	}
+
+	private static void assertFails(final Future<SearchPermit> permit, final Exception expected)
+			throws Exception {
+		try {
+			permit.get(10, TimeUnit.SECONDS);
+			fail("expected exception");
+		} catch (ExecutionException got) {
+			TestCommon.assertExceptionCorrect((Exception) got.getCause(), expected);
+		}
+	}
+
+	@Test
+	public void acquireAndClose() throws Exception {
+		final MetricsRegistry metrics = new MetricsRegistry();
+		final SearchScheduler scheduler = new SearchScheduler(2, 0, 30, metrics);
+		final SearchPermit p1 = scheduler.acquire(new CancellationToken());
+		final SearchPermit p2 = scheduler.acquire(new CancellationToken());
+		assertThat("incorrect running", metric(metrics, SearchScheduler.METRIC_RUNNING), is(2));
+
+		p1.close();
+		// closing more than once has no effect
+		p1.close();
+		assertThat("incorrect running", metric(metrics, SearchScheduler.METRIC_RUNNING), is(1));
+		scheduler.acquire(new CancellationToken()).close();
+		p2.close();
+		assertThat("incorrect running", metric(metrics, SearchScheduler.METRIC_RUNNING), is(0));
+		assertThat("incorrect rejected", metrics.getCount(SearchScheduler.METRIC_REJECTED),
+				is(0L));
+	}
+
+	@Test
+	public void queueAndRun() throws Exception {
+		final MetricsRegistry metrics = new MetricsRegistry();
+		final SearchScheduler scheduler = new SearchScheduler(1, 1, 30, metrics);
+		final SearchPermit p1 = scheduler.acquire(new CancellationToken());
+		final Future<SearchPermit> p2 = acquire(scheduler, new CancellationToken());
+		waitFor("queued search", () -> metric(metrics, SearchScheduler.METRIC_QUEUED)
+				.equals(1));
+		assertThat("search ran", p2.isDone(), is(false));
+
+		p1.close();
+		p2.get(10, TimeUnit.SECONDS).close();
+		assertThat("incorrect queued", metric(metrics, SearchScheduler.METRIC_QUEUED), is(0));
+		assertThat("incorrect running", metric(metrics, SearchScheduler.METRIC_RUNNING), is(0));
+	}
+
+	@Test
+	public void queueOrder() throws Exception {
+		final MetricsRegistry metrics = new MetricsRegistry();
+		final SearchScheduler scheduler = new SearchScheduler(1, 2, 30, metrics);
+		final SearchPermit p1 = scheduler.acquire(new CancellationToken());
+		final Future<SearchPermit> p2 = acquire(scheduler, new CancellationToken());
+		waitFor("queued search", () -> metric(metrics, SearchScheduler.METRIC_QUEUED)
+				.equals(1));
+		// longer than the time a waiting search used to spend out of the queue
+		Thread.sleep(300);
+		final Future<SearchPermit> p3 = acquire(scheduler, new CancellationToken());
+		waitFor("queued search", () -> metric(metrics, SearchScheduler.METRIC_QUEUED)
+				.equals(2));
+		Thread.sleep(300);
+
+		// the searches run in the order they were queued
+		p1.close();
+		final SearchPermit first = p2.get(10, TimeUnit.SECONDS);
+		assertThat("later search ran first", p3.isDone(), is(false));
+		first.close();
+		p3.get(10, TimeUnit.SECONDS).close();
+	}
+
+	@Test
+	public void newSearchWaitsBehindQueue() throws Exception {
+		final MetricsRegistry metrics = new MetricsRegistry();
+		final SearchScheduler scheduler = new SearchScheduler(1, 2, 30, metrics);
+		final SearchPermit p1 = scheduler.acquire(new CancellationToken());
+		final Future<SearchPermit> p2 = acquire(scheduler, new CancellationToken());
+		waitFor("queued search", () -> metric(metrics, SearchScheduler.METRIC_QUEUED)
+				.equals(1));
+
+		// a search arriving as the permit is released doesn't take it from the queued search
+		p1.close();
+		final Future<SearchPermit> p3 = acquire(scheduler, new CancellationToken());
+		final SearchPermit first = p2.get(10, TimeUnit.SECONDS);
+		Thread.sleep(100);
+		assertThat("new search ran before queued search", p3.isDone(), is(false));
+		first.close();
+		p3.get(10, TimeUnit.SECONDS).close();
+	}
+
+	@Test
+	public void rejectQueueFull() throws Exception {
+		final MetricsRegistry metrics = new MetricsRegistry();
+		final SearchScheduler scheduler = new SearchScheduler(1, 1, 30, metrics);
+		final SearchPermit p1 = scheduler.acquire(new CancellationToken());
+		final Future<SearchPermit> p2 = acquire(scheduler, new CancellationToken());
+		waitFor("queued search", () -> metric(metrics, SearchScheduler.METRIC_QUEUED)
+				.equals(1));
+
+		// with no search times recorded the client is asked to retry after 1 second
+		failAcquire(scheduler, new CancellationToken(), new TooManyRequestsException(
+				"The service is busy, search queue is full", 1));
+		assertThat("incorrect rejected", metrics.getCount(SearchScheduler.METRIC_REJECTED),
+				is(1L));
+		p1.close();
+		p2.get(10, TimeUnit.SECONDS).close();
+	}
+
+	@Test
+	public void rejectQueueTimeout() throws Exception {
+		final MetricsRegistry metrics = new MetricsRegistry();
+		final SearchScheduler scheduler = new SearchScheduler(1, 1, 1, metrics);
+		final SearchPermit p1 = scheduler.acquire(new CancellationToken());
+		Thread.sleep(1500);
+		p1.close();
+		final SearchPermit p2 = scheduler.acquire(new CancellationToken());
+
+		final long start = System.nanoTime();
+		// the retry time is based on the 1.5 second search
+		failAcquire(scheduler, new CancellationToken(), new TooManyRequestsException(
+				"The service is busy, timed out waiting in the search queue", 2));
+		final long elapsedMS = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+		assertThat("rejected before queue time " + elapsedMS, elapsedMS >= 1000, is(true));
+		assertThat("incorrect queued", metric(metrics, SearchScheduler.METRIC_QUEUED), is(0));
+		assertThat("incorrect rejected", metrics.getCount(SearchScheduler.METRIC_REJECTED),
+				is(1L));
+		p2.close();
+	}
+
+	@Test
+	public void cancel() throws Exception {
+		final MetricsRegistry metrics = new MetricsRegistry();
+		final SearchScheduler scheduler = new SearchScheduler(1, 1, 30, metrics);
+		final CancellationToken cancelled = new CancellationToken();
+		cancelled.cancel();
+		failAcquire(scheduler, cancelled, new SearchCancelledException(
+				"The search was cancelled"));
+
+		final SearchPermit p1 = scheduler.acquire(new CancellationToken());
+		final CancellationToken token = new CancellationToken();
+		final Future<SearchPermit> p2 = acquire(scheduler, token);
+		waitFor("queued search", () -> metric(metrics, SearchScheduler.METRIC_QUEUED)
+				.equals(1));
+		token.cancel();
+
+		assertFails(p2, new SearchCancelledException("The search was cancelled while queued"));
+		assertThat("incorrect queued", metric(metrics, SearchScheduler.METRIC_QUEUED), is(0));
+		assertThat("incorrect cancelled", metrics.getCount(SearchScheduler.METRIC_CANCELLED),
+				is(1L));
+		// the cancelled search left the queue, so another search may wait
+		final Future<SearchPermit> p3 = acquire(scheduler, new CancellationToken());
+		p1.close();
+		p3.get(10, TimeUnit.SECONDS).close();
+		assertThat("incorrect running", metric(metrics, SearchScheduler.METRIC_RUNNING), is(0));
+	}
+
+	@Test
+	public void constructFail() throws Exception {
+		final MetricsRegistry m = new MetricsRegistry();
+		failConstruct(1, 0, 0, null, new NullPointerException("metrics"));
+		failConstruct(0, 0, 0, m, new IllegalArgumentException("maxConcurrent must be > 0"));
+		failConstruct(1, -1, 0, m, new IllegalArgumentException("maxQueueSize must be >= 0"));
+		failConstruct(1, 0, -1, m,
+				new IllegalArgumentException("maxQueueTimeSec must be >= 0"));
+	}
+
+	private void failConstruct(
+			final int maxConcurrent,
+			final int maxQueueSize,
+			final int maxQueueTimeSec,
+			final MetricsRegistry metrics,
+			final Exception expected) {
+		try {
+			new SearchScheduler(maxConcurrent, maxQueueSize, maxQueueTimeSec, metrics);
+			fail("expected exception");
+		} catch (Exception got) {
+			TestCommon.assertExceptionCorrect(got, expected);
+		}
+	}
+}
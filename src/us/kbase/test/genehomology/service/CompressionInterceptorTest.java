@@ -0,0 +1,125 @@
+package us.kbase.test.genehomology.service;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.MultivaluedHashMap;
+import javax.ws.rs.core.MultivaluedMap;
+import javax.ws.rs.ext.WriterInterceptorContext;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+
+import us.kbase.genehomology.config.GeneHomologyConfig;
+import us.kbase.genehomology.service.CompressionInterceptor;
+
+public class CompressionInterceptorTest {
+
+	private static final byte[] SMALL = "small".getBytes();
+	private static final byte[] LARGE = new byte[100];
+	static {
+		Arrays.fill(LARGE, (byte) 'x');
+	}
+
+	private static class Response {
+		private final MultivaluedMap<String, Object> headers = new MultivaluedHashMap<>();
+		private final ByteArrayOutputStream body = new ByteArrayOutputStream();
+		private OutputStream current = body;
+	}
+
+	private static Response write(
+			final String acceptEncoding,
+			final int level,
+			final byte[] body)
+			throws Exception {
+		final HttpServletRequest req = mock(HttpServletRequest.class);
+		final GeneHomologyConfig cfg = mock(GeneHomologyConfig.class);
+		final WriterInterceptorContext ctx = mock(WriterInterceptorContext.class);
+		final Response res = new Response();
+		res.headers.putSingle(HttpHeaders.CONTENT_LENGTH, body.length);
+
+		when(req.getHeader(HttpHeaders.ACCEPT_ENCODING)).thenReturn(acceptEncoding);
+		when(cfg.getResponseCompressionLevel()).thenReturn(level);
+		when(cfg.getResponseCompressionMinBytes()).thenReturn(10);
+		when(ctx.getHeaders()).thenReturn(res.headers);
+		when(ctx.getOutputStream()).thenAnswer(inv -> res.current);
+		doAnswer(inv -> {
+			res.current = inv.getArgument(0);
+			return null;
+		}).when(ctx).setOutputStream(any(OutputStream.class));
+		doAnswer(inv -> {
+			res.current.write(body);
+			res.current.close();
+			return null;
+		}).when(ctx).proceed();
+
+		new CompressionInterceptor(req, cfg).aroundWriteTo(ctx);
+		return res;
+	}
+
+	private static void assertCompressed(final Response res) throws Exception {
+		assertThat("incorrect encoding", res.headers.getFirst(HttpHeaders.CONTENT_ENCODING),
+				is("gzip"));
+		assertThat("incorrect length", res.headers.containsKey(HttpHeaders.CONTENT_LENGTH),
+				is(false));
+		assertThat("incorrect vary", res.headers.getFirst(HttpHeaders.VARY),
+				is(HttpHeaders.ACCEPT_ENCODING));
+		assertThat("incorrect body", IOUtils.toByteArray(new GZIPInputStream(
+				new ByteArrayInputStream(res.body.toByteArray()))), is(LARGE));
+	}
+
+	private static void assertUncompressed(final Response res, final byte[] body) {
+		assertThat("incorrect encoding", res.headers.containsKey(HttpHeaders.CONTENT_ENCODING),
+				is(false));
+		assertThat("incorrect length", res.headers.getFirst(HttpHeaders.CONTENT_LENGTH),
+				is(body.length));
+		assertThat("incorrect body", res.body.toByteArray(), is(body));
+	}
+
+	@Test
+	public void compress() throws Exception {
+		assertCompressed(write("gzip", 6, LARGE));
+		assertCompressed(write("deflate, GZIP;q=0.5", 6, LARGE));
+		assertCompressed(write("*", 6, LARGE));
+		assertCompressed(write("gzip;q=0.1, *;q=0", 6, LARGE));
+		assertCompressed(write("*;q=0, gzip", 6, LARGE));
+	}
+
+	@Test
+	public void noCompress() throws Exception {
+		for (final String enc: Arrays.asList(null, "", "identity", "gzip;q=0", "gzip; q=0.0",
+				"gzip;q=foo", "*;q=0", "gzip;q=0, *", "*, gzip;q=0")) {
+			final Response res = write(enc, 6, LARGE);
+			assertUncompressed(res, LARGE);
+			assertThat("incorrect vary for " + enc, res.headers.getFirst(HttpHeaders.VARY),
+					is(HttpHeaders.ACCEPT_ENCODING));
+		}
+	}
+
+	@Test
+	public void noCompressBelowThreshold() throws Exception {
+		final Response res = write("gzip", 6, SMALL);
+		assertUncompressed(res, SMALL);
+		assertThat("incorrect vary", res.headers.getFirst(HttpHeaders.VARY),
+				is(HttpHeaders.ACCEPT_ENCODING));
+	}
+
+	@Test
+	public void compressionDisabled() throws Exception {
+		final Response res = write("gzip", 0, LARGE);
+		assertUncompressed(res, LARGE);
+		assertThat("incorrect vary", res.headers.containsKey(HttpHeaders.VARY), is(false));
+	}
+}
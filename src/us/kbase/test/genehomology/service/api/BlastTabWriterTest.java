@@ -0,0 +1,106 @@
+package us.kbase.test.genehomology.service.api;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import us.kbase.genehomology.homology.AlignedSequence;
+import us.kbase.genehomology.homology.ResultBatch;
+import us.kbase.genehomology.homology.SequenceSearchResult;
+import us.kbase.genehomology.service.api.BlastTabWriter;
+
+public class BlastTabWriterTest {
+	
+	// the String.format based output used before the writer
+	private static String format(final List<SequenceSearchResult> results) {
+		final StringBuilder sb = new StringBuilder();
+		for (final SequenceSearchResult s: results) {
+			final AlignedSequence q = s.getQuery();
+			final AlignedSequence t = s.getTarget();
+			sb.append(String.format(
+					"%s\t%s\t%.2f\t%s\t%s\t%s\t%s\t%s\t%s\t%s\t%s\t%s\n",
+					q.getId(), t.getId(),
+					s.getPercentID() * 100,
+					s.getAlignmentLength(), s.getMismatches(), s.getGapOpenCount(),
+					q.getAlignmentStart() + 1,
+					q.getAlignmentStart() + q.getAlignmentLength(),
+					t.getAlignmentStart() + 1,
+					t.getAlignmentStart() + t.getAlignmentLength(),
+					s.getEValue(),
+					s.getBitScore()));
+		}
+		return sb.toString();
+	}
+	
+	// an alignment of the given length with the given number of matches
+	private static SequenceSearchResult result(
+			final String queryID,
+			final String targetID,
+			final int length,
+			final int matches,
+			final double eValue,
+			final Random random) {
+		final StringBuilder q = new StringBuilder();
+		final StringBuilder t = new StringBuilder();
+		for (int i = 0; i < length; i++) {
+			q.append(i < matches ? 'M' : 'K');
+			t.append(i < matches ? 'M' : (random.nextBoolean() ? 'A' : '-'));
+		}
+		final int tlen = t.toString().replace("-", "").length();
+		return new SequenceSearchResult(
+				new AlignedSequence(queryID, length + 500, q.toString(),
+						random.nextInt(500), length, random.nextBoolean()),
+				new AlignedSequence(targetID, tlen + 1000000, t.toString(),
+						random.nextInt(1000000), tlen, random.nextBoolean()),
+				eValue,
+				random.nextInt(2000));
+	}
+	
+	private static String write(final List<SequenceSearchResult> results, final int bufferSize)
+			throws Exception {
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		final BlastTabWriter w = new BlastTabWriter(out, bufferSize);
+		w.write(ResultBatch.copyOf(results));
+		w.flush();
+		return out.toString("UTF-8");
+	}
+	
+	@Test
+	public void matchesStringFormat() throws Exception {
+		final Random random = new Random(42);
+		final List<SequenceSearchResult> results = new ArrayList<>(Arrays.asList(
+				// 1/32 and 1/64 are rounding ties at 2 decimal places
+				result("q1", "t1", 32, 1, 0, random),
+				result("q1", "t1", 64, 1, 1e-300, random),
+				result("q1", "t1", 3, 3, 1, random),
+				result("q1", "t1", 1, 0, 4.9e-324, random),
+				result("q\u03c8", "\u4e2d\ud83d\ude00" + new String(new char[300]).replace(
+						'\0', 'x'), 7, 2, 1.23e-45, random)));
+		for (int i = 0; i < 2000; i++) {
+			final int length = 1 + random.nextInt(3000);
+			results.add(result("query_" + random.nextInt(10), "target_" + random.nextInt(),
+					length, random.nextInt(length + 1),
+					random.nextDouble() * Math.pow(10, -random.nextInt(300)), random));
+		}
+		final String expected = format(results);
+		for (final int bufferSize: Arrays.asList(200, 256, 65536)) {
+			assertThat("incorrect output", write(results, bufferSize), is(expected));
+		}
+		
+		// single results
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		final BlastTabWriter w = new BlastTabWriter(out);
+		for (final SequenceSearchResult r: results) {
+			w.write(r);
+		}
+		w.flush();
+		assertThat("incorrect output", out.toString("UTF-8"), is(expected));
+	}
+}
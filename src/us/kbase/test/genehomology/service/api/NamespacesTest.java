@@ -0,0 +1,357 @@
+package us.kbase.test.genehomology.service.api;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import javax.servlet.ServletInputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.core.StreamingOutput;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.base.Optional;
+
+import us.kbase.genehomology.config.GeneHomologyConfig;
+import us.kbase.genehomology.homology.GeneHomologyDatabase;
+import us.kbase.genehomology.core.Namespace;
+import us.kbase.genehomology.core.NamespaceID;
+import us.kbase.genehomology.core.exceptions.IllegalParameterException;
+import us.kbase.genehomology.homology.AlignedSequence;
+import us.kbase.genehomology.homology.GeneHomologyDBLocation;
+import us.kbase.genehomology.homology.GeneHomologyDBName;
+import us.kbase.genehomology.homology.GeneHomologyImplementationName;
+import us.kbase.genehomology.homology.QueryInput;
+import us.kbase.genehomology.homology.QueryResultsListener;
+import us.kbase.genehomology.homology.ResultBatch;
+import us.kbase.genehomology.homology.SequenceSearchResult;
+import us.kbase.genehomology.search.SearchBatcher;
+import us.kbase.genehomology.search.SearchExecutor;
+import us.kbase.genehomology.search.SearchResultCache;
+import us.kbase.genehomology.service.ClientConnectionMonitor;
+import us.kbase.genehomology.service.Fields;
+import us.kbase.genehomology.service.SLF4JAutoLogger;
+import us.kbase.genehomology.service.api.Namespaces;
+import us.kbase.genehomology.util.MetricsRegistry;
+import us.kbase.test.genehomology.TestCommon;
+
+public class NamespacesTest {
+
+	private Path db;
+	private Namespace ns;
+	private GeneHomologyConfig cfg;
+	private SearchBatcher batcher;
+	private SearchResultCache cache;
+	private SearchExecutor executor;
+	// the FASTA input of each search run
+	private final List<String> searched = Collections.synchronizedList(new ArrayList<>());
+
+	@Before
+	public void setUp() throws Exception {
+		db = Files.createTempFile("NamespacesTest", ".prj");
+		ns = Namespace.getBuilder(
+				new NamespaceID("ns"),
+				new GeneHomologyDatabase(
+						new GeneHomologyDBName("ns"),
+						new GeneHomologyImplementationName("LAST"),
+						new GeneHomologyDBLocation(db),
+						100),
+				Instant.ofEpochMilli(10000))
+				.build();
+		cfg = mock(GeneHomologyConfig.class);
+		when(cfg.getPathToTemporaryFileDirectory()).thenReturn(db.getParent());
+		when(cfg.getSearchTimeoutSec()).thenReturn(30);
+		when(cfg.getSearchMaxResultsLimit()).thenReturn(10);
+		when(cfg.getSearchMaxEValueLimit()).thenReturn(10.0);
+		when(cfg.getMultiSearchMaxSequences()).thenReturn(5);
+		when(cfg.getMultiSearchMaxMB()).thenReturn(1);
+		when(cfg.getMultiSearchMaxTotalResults()).thenReturn(40);
+		when(cfg.getSearchQueryMemoryMaxKB()).thenReturn(1);
+
+		final MetricsRegistry metrics = new MetricsRegistry();
+		batcher = mock(SearchBatcher.class);
+		when(batcher.searchAll(any(), any(), any(), any(), any())).thenAnswer(
+				inv -> search(inv.getArgument(2)));
+		cache = new SearchResultCache(1000000, Optional.absent(), metrics);
+		executor = new SearchExecutor(2, metrics);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		executor.shutdown();
+		Files.delete(db);
+	}
+
+	// returns one result per query, except for queries with IDs starting with "none"
+	private ResultBatch search(final QueryInput input) throws Exception {
+		final String fasta;
+		try (final InputStream is = input.openStream()) {
+			fasta = IOUtils.toString(is, StandardCharsets.UTF_8);
+		}
+		searched.add(fasta);
+		final List<SequenceSearchResult> res = new ArrayList<>();
+		for (final String line: fasta.split("\n")) {
+			if (line.startsWith(">") && !line.startsWith(">none")) {
+				final String id = line.substring(1).split("\\s+")[0];
+				res.add(new SequenceSearchResult(
+						new AlignedSequence(id, 3, "MKV", 0, 3, true),
+						new AlignedSequence("t_" + id, 10, "MKV", 2, 3, true),
+						1e-5, 20));
+			}
+		}
+		return ResultBatch.copyOf(res);
+	}
+
+	private static HttpServletRequest request(final String fasta) throws Exception {
+		final ByteArrayInputStream body = new ByteArrayInputStream(
+				fasta.getBytes(StandardCharsets.UTF_8));
+		final HttpServletRequest req = mock(HttpServletRequest.class);
+		when(req.getInputStream()).thenReturn(new ServletInputStream() {
+
+			@Override
+			public int read() {
+				return body.read();
+			}
+		});
+		return req;
+	}
+
+	// runs a multiple sequence search and returns the entity the search was resumed with
+	private StreamingOutput multiSearchEntity(
+			final String fasta,
+			final String max,
+			final boolean ndjson)
+			throws Exception {
+		final ClientConnectionMonitor monitor = new ClientConnectionMonitor(
+				60000, new MetricsRegistry());
+		final Namespaces handler = new Namespaces(ns, cfg, batcher, cache, monitor, executor,
+				new MetricsRegistry(), mock(SLF4JAutoLogger.class));
+		final AsyncResponse async = mock(AsyncResponse.class);
+		final CompletableFuture<Object> entity = new CompletableFuture<>();
+		doAnswer(inv -> entity.complete(inv.getArgument(0)))
+				.when(async).resume(any(Object.class));
+		doAnswer(inv -> entity.completeExceptionally(inv.getArgument(0)))
+				.when(async).resume(any(Throwable.class));
+
+		if (ndjson) {
+			handler.multiSearchNamespacesNDJSON(request(fasta), "ns", max, null, null, async);
+		} else {
+			handler.multiSearchNamespacesJson(request(fasta), "ns", max, null, null, async);
+		}
+		return (StreamingOutput) entity.get(10, TimeUnit.SECONDS);
+	}
+
+	// returns the query IDs and target IDs of the results, in order
+	@SuppressWarnings("unchecked")
+	private List<List<String>> multiSearch(final String fasta, final String max)
+			throws Exception {
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		multiSearchEntity(fasta, max, false).write(out);
+		final Map<String, Object> json = new ObjectMapper().readValue(
+				out.toByteArray(), Map.class);
+		final List<List<String>> ret = new ArrayList<>();
+		for (final Map<String, Object> q:
+				(List<Map<String, Object>>) json.get(Fields.ALIGN_QUERIES)) {
+			final List<String> ids = new ArrayList<>();
+			ids.add((String) q.get(Fields.ALIGN_QUERY_ID));
+			ids.addAll(((List<Map<String, Object>>) q.get(Fields.ALIGNMENTS)).stream()
+					.map(a -> (String) a.get(Fields.ALIGN_TARGET_ID))
+					.collect(Collectors.toList()));
+			ret.add(ids);
+		}
+		return ret;
+	}
+
+	private static List<List<String>> expected(final String... queries) {
+		return Arrays.asList(queries).stream()
+				.map(q -> q.startsWith("none") ? Arrays.asList(q) : Arrays.asList(q, "t_" + q))
+				.collect(Collectors.toList());
+	}
+
+	@Test
+	public void inputOrder() throws Exception {
+		assertThat("incorrect results", multiSearch(">q3\nKKK\n>q1 desc\nMKV\n>q2\nLLL\n", null),
+				is(expected("q3", "q1", "q2")));
+		assertThat("incorrect searches", searched,
+				is(Arrays.asList(">q3\nKKK\n>q1 desc\nMKV\n>q2\nLLL\n")));
+	}
+
+	@Test
+	public void cacheSplit() throws Exception {
+		multiSearch(">q1\nMKV\n>q2\nLLL\n>q3\nKKK\n", null);
+
+		// q2 and q3 are cached by residues, so only q4 and q5 are searched
+		assertThat("incorrect results",
+				multiSearch(">q4\nVVV\n>c3\nkkk\n>q5\nWWW\n>c2\nLL\nL\n", null),
+				is(Arrays.asList(
+						Arrays.asList("q4", "t_q4"),
+						Arrays.asList("c3", "t_q3"),
+						Arrays.asList("q5", "t_q5"),
+						Arrays.asList("c2", "t_q2"))));
+		assertThat("incorrect searches", searched, is(Arrays.asList(
+				">q1\nMKV\n>q2\nLLL\n>q3\nKKK\n", ">q4\nVVV\n>q5\nWWW\n")));
+
+		// all cached
+		assertThat("incorrect results", multiSearch(">q2\nLLL\n>q1\nMKV\n", null),
+				is(expected("q2", "q1")));
+		assertThat("incorrect search count", searched.size(), is(2));
+	}
+
+	@Test
+	public void emptyResults() throws Exception {
+		assertThat("incorrect results", multiSearch(">q1\nMKV\n>none1\nLLL\n", null),
+				is(expected("q1", "none1")));
+		// the empty results are cached
+		assertThat("incorrect results", multiSearch(">none2\nLLL\n", null),
+				is(expected("none2")));
+		assertThat("incorrect search count", searched.size(), is(1));
+	}
+
+	// records the data written to the stream at each flush
+	private static class FlushRecorder extends OutputStream {
+
+		private final ByteArrayOutputStream buf = new ByteArrayOutputStream();
+		private volatile String flushed = "";
+
+		@Override
+		public synchronized void write(final int b) {
+			buf.write(b);
+		}
+
+		@Override
+		public synchronized void flush() {
+			flushed = new String(buf.toByteArray(), StandardCharsets.UTF_8);
+		}
+	}
+
+	@Test
+	public void streamNDJSON() throws Exception {
+		// the search reports the results for each query, stopping after the first query until
+		// released
+		final CountDownLatch release = new CountDownLatch(1);
+		doAnswer(inv -> {
+			final QueryResultsListener listener = inv.getArgument(5);
+			for (final Entry<String, ResultBatch> e:
+					search(inv.getArgument(2)).groupByQueryID().entrySet()) {
+				listener.onQueryResults(e.getKey(), e.getValue());
+				release.await();
+			}
+			return null;
+		}).when(batcher).searchAll(any(), any(), any(), any(), any(), any());
+		multiSearch(">q2\nLLL\n", null);
+
+		final StreamingOutput entity = multiSearchEntity(
+				">q1\nMKV\n>c2\nLLL\n>none1\nWWW\n>q3\nKKK\n", null, true);
+		final FlushRecorder out = new FlushRecorder();
+		final CompletableFuture<Void> written = new CompletableFuture<>();
+		new Thread(() -> {
+			try {
+				entity.write(out);
+				written.complete(null);
+			} catch (Exception e) {
+				written.completeExceptionally(e);
+			}
+		}).start();
+
+		// the first line reaches the client while the search is still running
+		final long end = System.nanoTime() + 10_000_000_000L;
+		while (out.flushed.isEmpty()) {
+			if (System.nanoTime() > end) {
+				fail("timed out waiting for the first line");
+			}
+			Thread.sleep(10);
+		}
+		assertThat("incorrect lines", ndjsonIDs(out.flushed), is(expected("q1")));
+		assertThat("search completed", written.isDone(), is(false));
+
+		release.countDown();
+		written.get(10, TimeUnit.SECONDS);
+		final List<String> lines = Arrays.asList(out.flushed.split("\n"));
+		assertThat("incorrect lines", ndjsonIDs(out.flushed), is(Arrays.asList(
+				Arrays.asList("q1", "t_q1"),
+				Arrays.asList("c2", "t_q2"),
+				Arrays.asList("none1"),
+				Arrays.asList("q3", "t_q3"))));
+		assertThat("incorrect line count", lines.size(), is(5));
+		assertThat("incorrect summary", new ObjectMapper().readValue(lines.get(4), Map.class)
+				.get(Fields.ALIGN_IMPLEMENTATION), is("LAST"));
+		// the cached query was not searched
+		assertThat("incorrect searches", searched, is(Arrays.asList(
+				">q2\nLLL\n", ">q1\nMKV\n>none1\nWWW\n>q3\nKKK\n")));
+	}
+
+	// returns the query IDs and target IDs of the NDJSON query lines, in order
+	@SuppressWarnings("unchecked")
+	private static List<List<String>> ndjsonIDs(final String ndjson) throws Exception {
+		final List<List<String>> ret = new ArrayList<>();
+		for (final String line: ndjson.split("\n")) {
+			final Map<String, Object> q = new ObjectMapper().readValue(line, Map.class);
+			if (q.containsKey(Fields.ALIGN_QUERY_ID)) {
+				final List<String> ids = new ArrayList<>();
+				ids.add((String) q.get(Fields.ALIGN_QUERY_ID));
+				ids.addAll(((List<Map<String, Object>>) q.get(Fields.ALIGNMENTS)).stream()
+						.map(a -> (String) a.get(Fields.ALIGN_TARGET_ID))
+						.collect(Collectors.toList()));
+				ret.add(ids);
+			}
+		}
+		return ret;
+	}
+
+	@Test
+	public void totalResultsLimit() throws Exception {
+		// 40 total results allows 4 sequences with the default max of 10, or 5 with a max of 8
+		final String fasta = ">q1\nMKV\n>q2\nLLL\n>q3\nKKK\n>q4\nVVV\n>q5\nWWW\n";
+		failMultiSearch(fasta, null, new IllegalParameterException(
+				"FASTA input contains more than the limit of 4 sequences when max is 10"));
+		assertThat("incorrect results", multiSearch(fasta, "8"),
+				is(expected("q1", "q2", "q3", "q4", "q5")));
+		failMultiSearch(fasta + ">q6\nAAA\n", "1", new IllegalParameterException(
+				"FASTA input contains more than the limit of 5 sequences"));
+	}
+
+	@Test
+	public void duplicateIDs() throws Exception {
+		failMultiSearch(">q1\nMKV\n>q2\nLLL\n>q1 other\nKKK\n", null,
+				new IllegalParameterException("Duplicate sequence ID in FASTA input: q1"));
+		assertThat("incorrect search count", searched.size(), is(0));
+	}
+
+	private void failMultiSearch(final String fasta, final String max, final Exception expected) {
+		try {
+			multiSearch(fasta, max);
+			fail("expected exception");
+		} catch (Exception got) {
+			TestCommon.assertExceptionCorrect(got, expected);
+		}
+	}
+
+}
@@ -0,0 +1,190 @@
+package us.kbase.test.genehomology.service.api;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+
+import us.kbase.genehomology.homology.AlignedSequence;
+import us.kbase.genehomology.homology.ResultBatch;
+import us.kbase.genehomology.homology.SequenceSearchResult;
+import us.kbase.genehomology.service.Fields;
+import us.kbase.genehomology.service.api.SearchResultWriter;
+
+public class SearchResultWriterTest {
+	
+	// the map based serialization used before the results were streamed
+	private static Map<String, Object> toMap(final SequenceSearchResult ssr) {
+		final Map<String, Object> ret = new HashMap<>();
+		ret.put(Fields.ALIGN_E_VAL, ssr.getEValue());
+		ret.put(Fields.ALIGN_BIT_SCORE, ssr.getBitScore());
+		ret.put(Fields.ALIGN_QUERY_ID, ssr.getQuery().getId());
+		ret.put(Fields.ALIGN_QUERY_SEQ, ssr.getQuery().getAlignedSequence());
+		ret.put(Fields.ALIGN_QUERY_LEN, ssr.getQuery().getSequenceLength());
+		ret.put(Fields.ALIGN_QUERY_ALIGN_START, ssr.getQuery().getAlignmentStart());
+		ret.put(Fields.ALIGN_QUERY_ALIGN_LEN, ssr.getQuery().getAlignmentLength());
+		ret.put(Fields.ALIGN_TARGET_ID, ssr.getTarget().getId());
+		ret.put(Fields.ALIGN_TARGET_SEQ, ssr.getTarget().getAlignedSequence());
+		ret.put(Fields.ALIGN_TARGET_LEN, ssr.getTarget().getSequenceLength());
+		ret.put(Fields.ALIGN_TARGET_ALIGN_START, ssr.getTarget().getAlignmentStart());
+		ret.put(Fields.ALIGN_TARGET_ALIGN_LEN, ssr.getTarget().getAlignmentLength());
+		return ret;
+	}
+	
+	private static String write(
+			final Set<Map<String, Object>> namespaces,
+			final List<SequenceSearchResult> results)
+			throws Exception {
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		SearchResultWriter.writeJSON(out, namespaces, "LAST", ResultBatch.copyOf(results));
+		return out.toString("UTF-8");
+	}
+	
+	@Test
+	public void writeJSONMatchesMaps() throws Exception {
+		final List<SequenceSearchResult> results = Arrays.asList(
+				new SequenceSearchResult(
+						new AlignedSequence("q1", 50, "MKVALL-T", 0, 7, false),
+						new AlignedSequence("tgt1|\u03c8 \"x\"", 300, "MKV-LLAT", 12, 8, true),
+						3.4e-31,
+						94),
+				new SequenceSearchResult(
+						new AlignedSequence("q1", 50, "MRV", 4, 3, true),
+						new AlignedSequence("tgt2", 10, "MKV", 0, 3, true),
+						1.0,
+						20));
+		final Map<String, Object> ns = new HashMap<>();
+		ns.put(Fields.NAMESPACE_ID, "foo");
+		ns.put(Fields.NAMESPACE_DESCRIPTION, null);
+		ns.put(Fields.NAMESPACE_LASTMOD, 1000000000000L);
+		final Set<Map<String, Object>> namespaces = new HashSet<>(Arrays.asList(ns));
+		
+		final Map<String, Object> expected = new HashMap<>();
+		expected.put(Fields.ALIGN_NAMESPACES, namespaces);
+		expected.put(Fields.ALIGN_IMPLEMENTATION, "LAST");
+		expected.put(Fields.ALIGNMENTS, results.stream().map(r -> toMap(r))
+				.collect(Collectors.toList()));
+		
+		assertThat("incorrect JSON", write(namespaces, results),
+				is(new ObjectMapper().writeValueAsString(expected)));
+		
+		expected.put(Fields.ALIGNMENTS, Arrays.asList());
+		assertThat("incorrect JSON", write(namespaces, Arrays.asList()),
+				is(new ObjectMapper().writeValueAsString(expected)));
+	}
+	
+	@Test
+	public void writeGroupedJSON() throws Exception {
+		final List<SequenceSearchResult> results = Arrays.asList(
+				new SequenceSearchResult(
+						new AlignedSequence("q2", 50, "MKVALL-T", 0, 7, false),
+						new AlignedSequence("tgt1", 300, "MKV-LLAT", 12, 8, true),
+						3.4e-31,
+						94),
+				new SequenceSearchResult(
+						new AlignedSequence("q1", 50, "MRV", 4, 3, true),
+						new AlignedSequence("tgt2", 10, "MKV", 0, 3, true),
+						1.0,
+						20));
+		final Map<String, ResultBatch> grouped = new LinkedHashMap<>();
+		grouped.put("q2", ResultBatch.copyOf(results.subList(0, 1)));
+		grouped.put("q3", ResultBatch.getBuilder().build());
+		grouped.put("q1", ResultBatch.copyOf(results.subList(1, 2)));
+		final Set<Map<String, Object>> namespaces = new HashSet<>();
+		
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		SearchResultWriter.writeJSON(out, namespaces, "LAST", grouped);
+		
+		final String expected = "{\"impl\":\"LAST\",\"queries\":[" +
+				"{\"queryid\":\"q2\",\"alignments\":" +
+				new ObjectMapper().writeValueAsString(Arrays.asList(toMap(results.get(0)))) +
+				"},{\"queryid\":\"q3\",\"alignments\":[]}," +
+				"{\"queryid\":\"q1\",\"alignments\":" +
+				new ObjectMapper().writeValueAsString(Arrays.asList(toMap(results.get(1)))) +
+				"}],\"namespaces\":[]}";
+		assertThat("incorrect JSON", out.toString("UTF-8"), is(expected));
+	}
+	
+	@Test
+	public void writeNDJSON() throws Exception {
+		final List<SequenceSearchResult> results = Arrays.asList(
+				new SequenceSearchResult(
+						new AlignedSequence("q1", 50, "MKVALL-T", 0, 7, false),
+						new AlignedSequence("tgt1", 300, "MKV-LLAT", 12, 8, true),
+						3.4e-31,
+						94),
+				new SequenceSearchResult(
+						new AlignedSequence("q1", 50, "MRV", 4, 3, true),
+						new AlignedSequence("tgt2", 10, "MKV", 0, 3, true),
+						1.0,
+						20));
+		final ObjectMapper mapper = new ObjectMapper();
+		final String summary = "{\"impl\":\"LAST\",\"namespaces\":[]}\n";
+		
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		SearchResultWriter.writeNDJSON(out, new HashSet<>(), "LAST", ResultBatch.copyOf(results));
+		assertThat("incorrect NDJSON", out.toString("UTF-8"), is(
+				mapper.writeValueAsString(toMap(results.get(0))) + "\n" +
+				mapper.writeValueAsString(toMap(results.get(1))) + "\n" +
+				summary));
+		
+		final Map<String, ResultBatch> grouped = new LinkedHashMap<>();
+		grouped.put("q2", ResultBatch.getBuilder().build());
+		grouped.put("q1", ResultBatch.copyOf(results));
+		final ByteArrayOutputStream gout = new ByteArrayOutputStream();
+		SearchResultWriter.writeNDJSON(gout, new HashSet<>(), "LAST", grouped);
+		assertThat("incorrect NDJSON", gout.toString("UTF-8"), is(
+				"{\"queryid\":\"q2\",\"alignments\":[]}\n" +
+				"{\"queryid\":\"q1\",\"alignments\":" + mapper.writeValueAsString(
+						Arrays.asList(toMap(results.get(0)), toMap(results.get(1)))) + "}\n" +
+				summary));
+	}
+	
+	@Test
+	public void writeSmileMatchesJSON() throws Exception {
+		final List<SequenceSearchResult> results = Arrays.asList(
+				new SequenceSearchResult(
+						new AlignedSequence("q1", 50, "MKVALL-T", 0, 7, false),
+						new AlignedSequence("tgt1|\u03c8", 300, "MKV-LLAT", 12, 8, true),
+						3.4e-31,
+						94),
+				new SequenceSearchResult(
+						new AlignedSequence("q1", 50, "MRV", 4, 3, true),
+						new AlignedSequence("tgt1|\u03c8", 10, "MKV", 0, 3, true),
+						1.0,
+						20));
+		final Map<String, Object> ns = new HashMap<>();
+		ns.put(Fields.NAMESPACE_ID, "foo");
+		final Set<Map<String, Object>> namespaces = new HashSet<>(Arrays.asList(ns));
+		final ObjectMapper smile = new ObjectMapper(new SmileFactory());
+		final ObjectMapper json = new ObjectMapper();
+		
+		final ByteArrayOutputStream sout = new ByteArrayOutputStream();
+		SearchResultWriter.writeSmile(sout, namespaces, "LAST", ResultBatch.copyOf(results));
+		assertThat("incorrect Smile", smile.readTree(sout.toByteArray()),
+				is(json.readTree(write(namespaces, results))));
+		
+		final Map<String, ResultBatch> grouped = new LinkedHashMap<>();
+		grouped.put("q1", ResultBatch.copyOf(results));
+		grouped.put("q2", ResultBatch.getBuilder().build());
+		final ByteArrayOutputStream gsout = new ByteArrayOutputStream();
+		SearchResultWriter.writeSmile(gsout, namespaces, "LAST", grouped);
+		final ByteArrayOutputStream gjout = new ByteArrayOutputStream();
+		SearchResultWriter.writeJSON(gjout, namespaces, "LAST", grouped);
+		assertThat("incorrect Smile", smile.readTree(gsout.toByteArray()),
+				is(json.readTree(gjout.toByteArray())));
+	}
+}
@@ -0,0 +1,125 @@
+package us.kbase.test.genehomology.util;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import us.kbase.genehomology.util.ProcessManager;
+import us.kbase.test.genehomology.TestCommon;
+
+public class ProcessManagerTest {
+
+	private static Process sleep(final ProcessManager pm) throws IOException {
+		return pm.start(new ProcessBuilder("sleep", "30"));
+	}
+
+	// starts a process that ignores the termination signal and waits until the signal is
+	// ignored
+	private static Process sleepIgnoringTerm(final ProcessManager pm) throws IOException {
+		final Process p = pm.start(new ProcessBuilder(
+				"sh", "-c", "trap '' TERM; echo ready; exec sleep 30"));
+		final String line = new BufferedReader(new InputStreamReader(p.getInputStream()))
+				.readLine();
+		assertThat("incorrect output", line, is("ready"));
+		return p;
+	}
+
+	@Test
+	public void releaseRunning() throws Exception {
+		final ProcessManager pm = new ProcessManager(10000);
+		try {
+			final Process p = sleep(pm);
+			assertThat("incorrect running", pm.getRunningCount(), is(1));
+			assertThat("incorrect orphaned", pm.getOrphanedCount(), is(0));
+
+			pm.release(p);
+			assertThat("incorrect running", pm.getRunningCount(), is(0));
+			assertThat("process did not exit", p.waitFor(5, TimeUnit.SECONDS), is(true));
+			assertThat("incorrect orphaned", pm.getOrphanedCount(), is(0));
+		} finally {
+			pm.shutdown();
+		}
+	}
+
+	@Test
+	public void releaseExited() throws Exception {
+		final ProcessManager pm = new ProcessManager(10000);
+		try {
+			final Process p = pm.start(new ProcessBuilder("true"));
+			p.waitFor();
+			pm.release(p);
+			// terminating an untracked process has no effect
+			pm.terminate(p);
+			assertThat("incorrect running", pm.getRunningCount(), is(0));
+			assertThat("incorrect orphaned", pm.getOrphanedCount(), is(0));
+		} finally {
+			pm.shutdown();
+		}
+	}
+
+	@Test
+	public void killAfterGracePeriod() throws Exception {
+		final ProcessManager pm = new ProcessManager(1000);
+		try {
+			final Process p = sleepIgnoringTerm(pm);
+			final Process p2 = sleep(pm);
+			final long start = System.nanoTime();
+			pm.terminate(p);
+			Thread.sleep(200);
+			assertThat("process exited", p.isAlive(), is(true));
+			assertThat("incorrect running", pm.getRunningCount(), is(1));
+			assertThat("incorrect orphaned", pm.getOrphanedCount(), is(1));
+
+			assertThat("process did not exit", p.waitFor(5, TimeUnit.SECONDS), is(true));
+			final long elapsedMS = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+			assertThat("killed before grace period " + elapsedMS, elapsedMS >= 1000, is(true));
+			assertThat("incorrect exit", p.exitValue(), is(137));
+			assertThat("incorrect orphaned", pm.getOrphanedCount(), is(0));
+			assertThat("other process exited", p2.isAlive(), is(true));
+		} finally {
+			pm.shutdown();
+		}
+	}
+
+	@Test
+	public void shutdown() throws Exception {
+		final ProcessManager pm = new ProcessManager(500);
+		final Process p1 = sleep(pm);
+		final Process p2 = sleepIgnoringTerm(pm);
+		pm.release(p1);
+
+		pm.shutdown();
+		assertThat("process did not exit", p1.waitFor(5, TimeUnit.SECONDS), is(true));
+		assertThat("process did not exit", p2.waitFor(5, TimeUnit.SECONDS), is(true));
+		assertThat("incorrect running", pm.getRunningCount(), is(0));
+		assertThat("incorrect orphaned", pm.getOrphanedCount(), is(0));
+		// no effect
+		pm.shutdown();
+
+		try {
+			sleep(pm);
+			fail("expected exception");
+		} catch (Exception got) {
+			TestCommon.assertExceptionCorrect(got,
+					new IOException("The process manager is shut down"));
+		}
+	}
+
+	@Test
+	public void constructFail() throws Exception {
+		try {
+			new ProcessManager(-1);
+			fail("expected exception");
+		} catch (Exception got) {
+			TestCommon.assertExceptionCorrect(got,
+					new IllegalArgumentException("terminationGraceMS must be >= 0"));
+		}
+	}
+}
@@ -0,0 +1,125 @@
+package us.kbase.test.genehomology.util;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+
+import us.kbase.genehomology.util.ThresholdGZIPOutputStream;
+import us.kbase.test.genehomology.TestCommon;
+
+public class ThresholdGZIPOutputStreamTest {
+
+	private static byte[] bytes(final int size) {
+		final byte[] ret = new byte[size];
+		for (int i = 0; i < size; i++) {
+			ret[i] = (byte) ('a' + i % 7);
+		}
+		return ret;
+	}
+
+	@Test
+	public void belowThreshold() throws Exception {
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		final AtomicInteger calls = new AtomicInteger();
+		final ThresholdGZIPOutputStream os = new ThresholdGZIPOutputStream(
+				out, 10, 6, () -> calls.incrementAndGet());
+		os.write(bytes(6));
+		os.flush();
+		assertThat("incorrect output", out.size(), is(0));
+		os.write(bytes(4));
+		os.close();
+
+		assertThat("incorrect compressing", os.isCompressing(), is(false));
+		assertThat("incorrect calls", calls.get(), is(0));
+		final byte[] expected = new byte[10];
+		System.arraycopy(bytes(6), 0, expected, 0, 6);
+		System.arraycopy(bytes(4), 0, expected, 6, 4);
+		assertThat("incorrect output", out.toByteArray(), is(expected));
+	}
+
+	@Test
+	public void aboveThreshold() throws Exception {
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		final AtomicInteger calls = new AtomicInteger();
+		final ThresholdGZIPOutputStream os = new ThresholdGZIPOutputStream(
+				out, 10, 9, () -> calls.incrementAndGet());
+		os.write(bytes(6));
+		os.write(bytes(5000));
+		assertThat("incorrect compressing", os.isCompressing(), is(true));
+		assertThat("incorrect calls", calls.get(), is(1));
+		os.flush();
+		// the sync flushed output decompresses to everything written so far
+		final byte[] flushed = new byte[5006];
+		IOUtils.readFully(new GZIPInputStream(new ByteArrayInputStream(out.toByteArray())),
+				flushed);
+		os.write('x');
+		os.close();
+
+		assertThat("incorrect calls", calls.get(), is(1));
+		final byte[] got = IOUtils.toByteArray(
+				new GZIPInputStream(new ByteArrayInputStream(out.toByteArray())));
+		final byte[] expected = new byte[5007];
+		System.arraycopy(bytes(6), 0, expected, 0, 6);
+		System.arraycopy(bytes(5000), 0, expected, 6, 5000);
+		expected[5006] = 'x';
+		assertThat("incorrect output", got, is(expected));
+		assertThat("incorrect flushed output", flushed.length, is(5006));
+	}
+
+	@Test
+	public void singleByteWrites() throws Exception {
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		final AtomicInteger calls = new AtomicInteger();
+		final ThresholdGZIPOutputStream os = new ThresholdGZIPOutputStream(
+				out, 3, 6, () -> calls.incrementAndGet());
+		os.write('a');
+		os.write('b');
+		os.write('c');
+		assertThat("incorrect compressing", os.isCompressing(), is(false));
+		os.write('d');
+		assertThat("incorrect compressing", os.isCompressing(), is(true));
+		assertThat("incorrect calls", calls.get(), is(1));
+		os.close();
+
+		final byte[] got = IOUtils.toByteArray(
+				new GZIPInputStream(new ByteArrayInputStream(out.toByteArray())));
+		assertThat("incorrect output", new String(got, "UTF-8"), is("abcd"));
+	}
+
+	@Test
+	public void constructFail() throws Exception {
+		final OutputStream o = new ByteArrayOutputStream();
+		final Runnable r = () -> {};
+		failConstruct(null, 1, 1, r, new NullPointerException("out"));
+		failConstruct(o, 1, 1, null, new NullPointerException("onCompress"));
+		failConstruct(o, -1, 1, r,
+				new IllegalArgumentException("threshold must be at least 0"));
+		failConstruct(o, 1, 0, r,
+				new IllegalArgumentException("level must be between 1 and 9"));
+		failConstruct(o, 1, 10, r,
+				new IllegalArgumentException("level must be between 1 and 9"));
+	}
+
+	private void failConstruct(
+			final OutputStream out,
+			final int threshold,
+			final int level,
+			final Runnable onCompress,
+			final Exception expected) {
+		try {
+			new ThresholdGZIPOutputStream(out, threshold, level, onCompress);
+			fail("expected exception");
+		} catch (Exception got) {
+			TestCommon.assertExceptionCorrect(got, expected);
+		}
+	}
+}